@@ -9,7 +9,11 @@ import java.net.UnknownHostException;
 import java.util.Vector;
 
 import chat.Failure;
+import chat.Hello;
 import chat.UserOutputType;
+import chat.codec.CodecType;
+import chat.codec.Compression;
+import chat.codec.ResetBudget;
 import chat.client.ChatClient;
 import models.OSCheck;
 import widgets.AbstractClientFrame;
@@ -57,6 +61,43 @@ public class RunChatClient extends AbstractRunChat
 	 */
 	private int guiVersion;
 
+	/**
+	 * Codec used by the server to encode messages
+	 */
+	private CodecType codec;
+
+	/**
+	 * Maximum number of messages between two resets of the stream of
+	 * messages sent to the GUI (0 for no limit)
+	 */
+	private int resetMessages;
+
+	/**
+	 * Maximum number of bytes between two resets of the stream of messages
+	 * sent to the GUI (0 for no limit)
+	 */
+	private int resetBytes;
+
+	/**
+	 * Preferred compression advertised to the server
+	 */
+	private Compression compression;
+
+	/**
+	 * Token of a previous session to resume (or null)
+	 */
+	private String resumeToken;
+
+	/**
+	 * Room joined when connecting (or null)
+	 */
+	private String room;
+
+	/**
+	 * Maximum size (in bytes) of the frames exchanged with the server
+	 */
+	private int maxFrame;
+
 	/**
 	 * Clients threads pool containg all threads used in the client.
 	 * Typically there will be a thread for the {@link ChatClient} and
@@ -114,12 +155,29 @@ public class RunChatClient extends AbstractRunChat
 		host = null;
 		name = null;
 		gui = false;
+		codec = CodecType.SERIAL;
+		resetMessages = ResetBudget.EACH_MESSAGE.getMaxMessages();
+		resetBytes = 0;
+		compression = Compression.DEFLATE;
+		resumeToken = null;
+		room = null;
+		maxFrame = Hello.DEFAULTMAXFRAME;
 
 		/*
 		 * Client specific arguments parsing
 		 * -h | --host : server name or IP address
 		 * -n | --name : user name on server
 		 * -g | --gui : use GUI(s) or console interface
+		 * -c | --codec : serial or binary messages encoding (same as server)
+		 * -r | --reset : max number of messages between two resets of the
+		 * stream to the GUI
+		 * -R | --reset-bytes : max number of bytes between two resets of the
+		 * stream to the GUI
+		 * -s | --resume : token of a previous session to resume
+		 * -j | --join : room joined when connecting
+		 * -m | --max-frame : max size of the frames exchanged with the server
+		 * -z | --compression : preferred compression (none to refuse
+		 * compression)
 		 */
 		for (int i = 0; i < args.length; i++)
 		{
@@ -180,6 +238,103 @@ public class RunChatClient extends AbstractRunChat
 					guiVersion = 1;
 				}
 			}
+			if (args[i].equals("--codec") || args[i].equals("-c"))
+			{
+				if (i < (args.length - 1))
+				{
+					codec = CodecType.fromString(args[++i]);
+					logger.fine("Setting codec to " + codec);
+				}
+				else
+				{
+					logger.warning("Setting codec to: nothing, invalid value");
+				}
+			}
+			if (args[i].equals("--reset") || args[i].equals("-r"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer resetInteger = readInt(args[++i]);
+					if (resetInteger != null)
+					{
+						resetMessages = resetInteger.intValue();
+					}
+					logger.fine("Setting reset messages to " + resetMessages);
+				}
+				else
+				{
+					logger.warning("Setting reset messages to: nothing, invalid value");
+				}
+			}
+			if (args[i].equals("--reset-bytes") || args[i].equals("-R"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer resetInteger = readInt(args[++i]);
+					if (resetInteger != null)
+					{
+						resetBytes = resetInteger.intValue();
+					}
+					logger.fine("Setting reset bytes to " + resetBytes);
+				}
+				else
+				{
+					logger.warning("Setting reset bytes to: nothing, invalid value");
+				}
+			}
+			if (args[i].equals("--resume") || args[i].equals("-s"))
+			{
+				if (i < (args.length - 1))
+				{
+					resumeToken = args[++i];
+					logger.fine("Setting resume token to " + resumeToken);
+				}
+				else
+				{
+					logger.warning("Setting resume token to: nothing, invalid value");
+				}
+			}
+			if (args[i].equals("--join") || args[i].equals("-j"))
+			{
+				if (i < (args.length - 1))
+				{
+					room = args[++i];
+					logger.fine("Setting room to " + room);
+				}
+				else
+				{
+					logger.warning("Setting room to: nothing, invalid value");
+				}
+			}
+			if (args[i].equals("--max-frame") || args[i].equals("-m"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer maxFrameInteger = readInt(args[++i]);
+					if ((maxFrameInteger != null)
+					    && (maxFrameInteger.intValue() > 0))
+					{
+						maxFrame = maxFrameInteger.intValue();
+					}
+					logger.fine("Setting max frame to " + maxFrame);
+				}
+				else
+				{
+					logger.warning("Setting max frame to: nothing, invalid value");
+				}
+			}
+			if (args[i].equals("--compression") || args[i].equals("-z"))
+			{
+				if (i < (args.length - 1))
+				{
+					compression = Compression.fromString(args[++i]);
+					logger.fine("Setting compression to " + compression);
+				}
+				else
+				{
+					logger.warning("Setting compression to: nothing, invalid value");
+				}
+			}
 		}
 
 		if (host == null) // use localhost if there is no specified host
@@ -266,6 +421,10 @@ public class RunChatClient extends AbstractRunChat
 			                                      host,
 			                                      commonRun,
 			                                      logger));
+			if (frame instanceof ClientFrame2)
+			{
+				((ClientFrame2) frame).setCodec(codec.getCodec());
+			}
 
 			/*
 			 * COMPLETE GUI Output stream instantiation: userOut from the
@@ -352,6 +511,13 @@ public class RunChatClient extends AbstractRunChat
 		                                   userIn,		// user input
 		                                   userOut,		// user output
 		                                   outType,		// user output type (text or object)
+		                                   codec.getCodec(), // server's codec
+		                                   new ResetBudget(resetMessages,
+		                                                   resetBytes), // GUI stream resets
+		                                   compression,	// preferred compression
+		                                   maxFrame,	// max frame size
+		                                   resumeToken,	// previous session
+		                                   room,		// room joined
 		                                   commonRun,	// GUI commonRun
 		                                   logger);		// parent logger
 		if (client.isReady())
@@ -394,6 +560,17 @@ public class RunChatClient extends AbstractRunChat
 	 * <li>--verbose : set verbose on</li>
 	 * <li>--gui <1, 2 or 3>: use graphical interface rather than console interface
 	 * </li>
+	 * <li>--codec <serial or binary> : messages encoding used by the server
+	 * </li>
+	 * <li>--reset <nb messages> : max messages between two resets of the
+	 * stream to the GUI</li>
+	 * <li>--reset-bytes <nb bytes> : max bytes between two resets of the
+	 * stream to the GUI</li>
+	 * <li>--resume <token> : token of a previous session to resume</li>
+	 * <li>--join <room> : room joined when connecting</li>
+	 * <li>--max-frame <nb bytes> : max size of the frames exchanged with the
+	 * server</li>
+	 * <li>--compression <none or deflate> : preferred compression</li>
 	 * </ul>
 	 */
 	public static void main(String[] args)
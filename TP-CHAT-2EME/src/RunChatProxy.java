@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.Failure;
+import chat.proxy.ChatProxy;
+import chat.proxy.ConsistentHash;
+import chat.server.Listener;
+
+/**
+ * Chat front proxy launcher: routes clients to several backend chat servers
+ * by consistent hashing of their room
+ * @author davidroussel
+ */
+public class RunChatProxy extends AbstractRunChat
+{
+	/**
+	 * Handshake timeout: time given to new clients to send their handshake
+	 * before being disconnected
+	 */
+	private int timeout;
+
+	/**
+	 * Listener accepting clients' connections (null to listen on all
+	 * interfaces on {@link #port})
+	 */
+	private Listener listener;
+
+	/**
+	 * Backend chat servers
+	 */
+	private List<Listener> backends;
+
+	/**
+	 * Number of points of each backend on the consistent hashing ring
+	 */
+	private int replicas;
+
+	/**
+	 * Chat proxy launcher constructor
+	 * @param args program's arguments
+	 */
+	protected RunChatProxy(String[] args)
+	{
+		super(args);
+	}
+
+	/**
+	 * Sets attributes values based on argument parsing
+	 * @param args arguments to parse for setting attributes values of
+	 * {@link #timeout}, {@link #listener}, {@link #backends} and
+	 * {@link #replicas}
+	 */
+	@Override
+	protected void setAttributes(String[] args)
+	{
+		/*
+		 * set attributes to default values
+		 */
+		timeout = RunChatServer.DEFAULTTIMEOUT;
+		listener = null;
+		backends = new ArrayList<Listener>();
+		replicas = ConsistentHash.DEFAULTREPLICAS;
+
+		/*
+		 * Common arguments parsing
+		 * 	-v | --verbose
+		 * 	-p | --port : proxy's port
+		 */
+		super.setAttributes(args);
+
+		/*
+		 * Proxy's specific arguments parsing
+		 * 	-t | --timeout : handshake timeout of new clients
+		 * 	-L | --listen : listener [address:]port[/backlog]
+		 * 	-b | --backend : backend chat server address:port (repeatable)
+		 * 	-V | --vnodes : number of points of each backend on the ring
+		 */
+		for (int i=0; i < args.length; i++)
+		{
+			if (args[i].equals("--timeout") || args[i].equals("-t"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in timeout value
+					Integer timeInteger = readInt(args[++i]);
+					if (timeInteger != null)
+					{
+						timeout = timeInteger.intValue();
+					}
+					logger.info("Setting timeout to " + timeout);
+				}
+				else
+				{
+					logger.warning("invalid timeout value");
+				}
+			}
+			if (args[i].equals("--listen") || args[i].equals("-L"))
+			{
+				Listener parsed = null;
+				if (i < (args.length - 1))
+				{
+					parsed = Listener.fromString(args[++i]);
+				}
+				if (parsed != null)
+				{
+					listener = parsed;
+					logger.info("Setting listener to " + listener);
+				}
+				else
+				{
+					logger.warning("invalid listener value");
+				}
+			}
+			if (args[i].equals("--backend") || args[i].equals("-b"))
+			{
+				Listener backend = null;
+				if (i < (args.length - 1))
+				{
+					backend = Listener.fromString(args[++i]);
+				}
+				if (backend != null)
+				{
+					backends.add(backend);
+					logger.info("Adding backend " + backend);
+				}
+				else
+				{
+					logger.warning("invalid backend value");
+				}
+			}
+			if (args[i].equals("--vnodes") || args[i].equals("-V"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in vnodes value
+					Integer replicasInteger = readInt(args[++i]);
+					if (replicasInteger != null)
+					{
+						replicas = replicasInteger.intValue();
+					}
+					logger.info("Setting points per backend to " + replicas);
+				}
+				else
+				{
+					logger.warning("invalid vnodes value");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chat proxy's launch
+	 */
+	@Override
+	protected void launch()
+	{
+		if (backends.isEmpty())
+		{
+			logger.severe(Failure.NO_BACKEND + ", abort ...");
+			System.exit(Failure.NO_BACKEND.toInteger());
+		}
+		if (listener == null)
+		{
+			listener = new Listener(port);
+		}
+
+		ChatProxy proxy = null;
+		try
+		{
+			proxy = new ChatProxy(listener,
+			                      backends,
+			                      replicas,
+			                      timeout,
+			                      logger);
+		}
+		catch (IOException e)
+		{
+			logger.severe(Failure.CREATE_SERVER_SOCKET + ", abort ...");
+			logger.severe(e.getLocalizedMessage());
+			System.exit(Failure.CREATE_SERVER_SOCKET.toInteger());
+		}
+
+		proxy.run();
+	}
+
+	/**
+	 * Main program
+	 * @param args program's arguments
+	 * <ul>
+	 * 	<li>--port <port number> : set proxy's port</li>
+	 * 	<li>--verbose : set verbose on</li>
+	 * 	<li>--timeout <timeout in ms> : time given to new clients to send
+	 * 	their handshake</li>
+	 * 	<li>--listen <[address:]port[/backlog]> : listener (replaces
+	 * 	--port)</li>
+	 * 	<li>--backend <address:port> : backend chat server (can be
+	 * 	repeated)</li>
+	 * 	<li>--vnodes <nb points> : points of each backend on the consistent
+	 * 	hashing ring</li>
+	 * </ul>
+	 */
+	public static void main(String[] args)
+	{
+		RunChatProxy proxy = new RunChatProxy(args);
+
+		proxy.launch();
+	}
+}
@@ -1,9 +1,27 @@
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 
 import chat.Failure;
 import chat.Vocabulary;
+import chat.codec.CodecType;
+import chat.codec.Compression;
+import chat.codec.ResetBudget;
 import chat.server.ChatServer;
+import chat.server.Coalescing;
+import chat.server.Durability;
+import chat.server.ExecutionMode;
+import chat.server.Federation;
+import chat.server.Listener;
+import chat.server.MessageLog;
+import chat.server.NioChatServer;
+import chat.server.OutboundQueue;
+import chat.server.OverflowPolicy;
+import chat.server.Replica;
+import chat.server.Replication;
+import chat.server.Retention;
 
 /**
  * Chat server launcher
@@ -12,8 +30,8 @@ import chat.server.ChatServer;
 public class RunChatServer extends AbstractRunChat
 {
 	/**
-	 * Server socket timeout before it starts waiting for new clients
-	 * connections
+	 * Handshake timeout: time given to new clients to send their name before
+	 * being disconnected
 	 */
 	private int timeout;
 
@@ -30,7 +48,170 @@ public class RunChatServer extends AbstractRunChat
 	private int history;
 
 	/**
-	 * Default time out to wait for client connection : 5 seconds
+	 * Flag to use the non blocking {@link NioChatServer} engine rather than
+	 * the thread per client {@link ChatServer} engine
+	 */
+	private boolean nio;
+
+	/**
+	 * Number of shards: event loops used by the non blocking engine or
+	 * executors used by the blocking engine
+	 */
+	private int loops;
+
+	/**
+	 * Listeners (address, port and backlog) of the server (empty to listen
+	 * on all interfaces on {@link #port})
+	 */
+	private List<Listener> listeners;
+
+	/**
+	 * Number of acceptors (threads or event loops) on each listener
+	 */
+	private int acceptors;
+
+	/**
+	 * The way client handlers are executed by the blocking engine (platform
+	 * or virtual threads)
+	 */
+	private ExecutionMode executionMode;
+
+	/**
+	 * Maximum number of messages queued for each client
+	 */
+	private int queueCapacity;
+
+	/**
+	 * What happens when a client's outbound queue is full
+	 */
+	private OverflowPolicy overflowPolicy;
+
+	/**
+	 * Time (in ms) a sender waits for room in a full client's queue with the
+	 * {@link OverflowPolicy#BLOCK} policy
+	 */
+	private int blockTimeout;
+
+	/**
+	 * Codec used to encode messages sent to clients
+	 */
+	private CodecType codec;
+
+	/**
+	 * Compression offered to clients
+	 */
+	private Compression compression;
+
+	/**
+	 * Maximum number of messages between two resets of clients streams
+	 * (0 for no limit)
+	 */
+	private int resetMessages;
+
+	/**
+	 * Maximum number of bytes between two resets of clients streams (0 for
+	 * no limit)
+	 */
+	private int resetBytes;
+
+	/**
+	 * Coalescing window (in µs) of clients writers (0 for no coalescing)
+	 */
+	private int window;
+
+	/**
+	 * Maximum number of bytes gathered during a coalescing window (0 for no
+	 * limit)
+	 */
+	private int windowBytes;
+
+	/**
+	 * Directory of the durable message log (null to keep messages in memory
+	 * only)
+	 */
+	private String logDirectory;
+
+	/**
+	 * Maximum size (in bytes) of the message log's segment files
+	 */
+	private int segmentBytes;
+
+	/**
+	 * Durability mode of the message log
+	 */
+	private Durability durability;
+
+	/**
+	 * Period (in ms) between two forces of the message log with
+	 * {@link Durability#INTERVAL}
+	 */
+	private int syncInterval;
+
+	/**
+	 * Maximum age (in s) of logged messages (0 for no limit)
+	 */
+	private int retentionTime;
+
+	/**
+	 * Maximum size (in MB) of the message log (0 for no limit)
+	 */
+	private int retentionMb;
+
+	/**
+	 * Age (in s) after which logged system notices are compacted away (0 to
+	 * keep notices)
+	 */
+	private int noticeTtl;
+
+	/**
+	 * Number of most recent sealed segments of the message log kept
+	 * uncompressed and memory-mapped (warm tier), older ones being
+	 * compressed (cold tier). 0 not to tier the log
+	 */
+	private int warmSegments;
+
+	/**
+	 * Listener accepting the connections of the other nodes of the
+	 * federation (null if this server does not listen for other nodes)
+	 */
+	private Listener federationListener;
+
+	/**
+	 * Other nodes of the federation this server connects to
+	 */
+	private List<Listener> peers;
+
+	/**
+	 * Id of this node in the federation (null to use the address of the
+	 * federation listener)
+	 */
+	private String nodeId;
+
+	/**
+	 * Listener accepting the connections of hot standby servers (null if
+	 * the history is not replicated)
+	 */
+	private Listener replicationListener;
+
+	/**
+	 * Replication listener of the primary server this server is a hot
+	 * standby of (null if this server is not a standby)
+	 */
+	private Listener primary;
+
+	/**
+	 * Time (in ms) without news from the primary before this standby server
+	 * fails over
+	 */
+	private int failover;
+
+	/**
+	 * Period (in seconds) of metrics logging (0 for no metrics)
+	 */
+	private int metricsPeriod;
+
+	/**
+	 * Default time out to wait for a new client's name : 5 seconds
 	 */
 	public static final int DEFAULTTIMEOUT = 5000;
 
@@ -39,6 +220,12 @@ public class RunChatServer extends AbstractRunChat
 	 */
 	public static final int DEFAULTHISTORY = 10;
 
+	/**
+	 * Period (in ms) between two applications of the message log's
+	 * retention : 10 seconds
+	 */
+	public static final int RETENTIONPERIOD = 10000;
+
 	/**
 	 * Chat server launcher constructor
 	 * @param args program's arguments
@@ -62,6 +249,35 @@ public class RunChatServer extends AbstractRunChat
 		timeout = DEFAULTTIMEOUT;
 		quitOnLastclient = true;
 		history = DEFAULTHISTORY;
+		nio = false;
+		loops = NioChatServer.DEFAULTLOOPS;
+		listeners = new ArrayList<Listener>();
+		acceptors = 1;
+		executionMode = ExecutionMode.PLATFORM;
+		queueCapacity = OutboundQueue.DEFAULTCAPACITY;
+		overflowPolicy = OverflowPolicy.DROP_OLDEST;
+		blockTimeout = (int) OutboundQueue.DEFAULTTIMEOUT;
+		codec = CodecType.SERIAL;
+		compression = Compression.NONE;
+		resetMessages = ResetBudget.EACH_MESSAGE.getMaxMessages();
+		resetBytes = 0;
+		window = (int) Coalescing.NONE.getWindow();
+		windowBytes = Coalescing.NONE.getMaxBytes();
+		logDirectory = null;
+		segmentBytes = MessageLog.DEFAULTSEGMENT;
+		durability = Durability.NONE;
+		syncInterval = 1000;
+		retentionTime = 0;
+		retentionMb = 0;
+		noticeTtl = 0;
+		warmSegments = 0;
+		federationListener = null;
+		peers = new ArrayList<Listener>();
+		nodeId = null;
+		replicationListener = null;
+		primary = null;
+		failover = Replica.DEFAULTFAILOVER;
+		metricsPeriod = 0;
 
 		/*
 		 * Common arguments parsing
@@ -72,9 +288,38 @@ public class RunChatServer extends AbstractRunChat
 
 		/*
 		 * Server's specific arguments parsing
-		 * 	-t | --timeout : server socket wait timeout
+		 * 	-t | --timeout : handshake timeout of new clients
 		 * 	-q | --quit : quits on last client logging out
 		 * 	-h | --history : number of messages to record
+		 * 	-e | --engine : blocking (thread per client) or nio (event loops)
+		 * 	-l | --loops : number of shards (event loops or executors)
+		 * 	-L | --listen : listener [address:]port[/backlog] (repeatable)
+		 * 	-A | --acceptors : number of acceptors on each listener
+		 * 	-x | --executor : platform or virtual threads for client handlers
+		 * 	-Q | --queue : maximum number of messages queued for each client
+		 * 	-o | --overflow : drop, disconnect or block when a queue is full
+		 * 	-b | --block-timeout : max wait (ms) with the block overflow policy
+		 * 	-c | --codec : serial or binary messages encoding
+		 * 	-r | --reset : max number of messages between two streams resets
+		 * 	-R | --reset-bytes : max number of bytes between two streams resets
+		 * 	-M | --metrics : period (in s) of memory metrics logging
+		 * 	-z | --compression : compression offered to clients
+		 * 	-w | --window : coalescing window (in µs) of clients writers
+		 * 	-W | --window-bytes : max number of bytes gathered in a window
+		 * 	-d | --log-dir : directory of the durable message log
+		 * 	-S | --segment : max size (in bytes) of the log's segment files
+		 * 	-D | --durability : none, interval or batch (group commit)
+		 * 	-I | --sync-interval : period (in ms) of log forces (interval)
+		 * 	-T | --retention-time : max age (in s) of logged messages
+		 * 	-B | --retention-mb : max size (in MB) of the message log
+		 * 	-N | --notice-ttl : age (in s) of logged notices compaction
+		 * 	-m | --warm : number of mapped log segments (older compressed)
+		 * 	-f | --federation : federation listener [address:]port
+		 * 	-P | --peer : other node address:port to connect to (repeatable)
+		 * 	-i | --node : id of this node in the federation
+		 * 	-y | --replicate : replication listener [address:]port
+		 * 	-Y | --standby : primary's replication address:port
+		 * 	-F | --failover : time (in ms) without primary before failover
 		 */
 		for (int i=0; i < args.length; i++)
 		{
@@ -122,6 +367,466 @@ public class RunChatServer extends AbstractRunChat
 					logger.warning("invalid history value");
 				}
 			}
+			if (args[i].equals("--engine") || args[i].equals("-e"))
+			{
+				if (i < (args.length - 1))
+				{
+					nio = args[++i].equalsIgnoreCase("nio");
+					logger.info("Setting engine to " + (nio ? "nio" : "blocking"));
+				}
+				else
+				{
+					logger.warning("invalid engine value");
+				}
+			}
+			if (args[i].equals("--loops") || args[i].equals("-l"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in loops value
+					Integer loopsInteger = readInt(args[++i]);
+					if (loopsInteger != null)
+					{
+						loops = loopsInteger.intValue();
+					}
+					logger.info("Setting event loops to " + loops);
+				}
+				else
+				{
+					logger.warning("invalid loops value");
+				}
+			}
+			if (args[i].equals("--listen") || args[i].equals("-L"))
+			{
+				Listener listener = null;
+				if (i < (args.length - 1))
+				{
+					listener = Listener.fromString(args[++i]);
+				}
+				if (listener != null)
+				{
+					listeners.add(listener);
+					logger.info("Adding listener " + listener);
+				}
+				else
+				{
+					logger.warning("invalid listener value");
+				}
+			}
+			if (args[i].equals("--acceptors") || args[i].equals("-A"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in acceptors value
+					Integer acceptorsInteger = readInt(args[++i]);
+					if (acceptorsInteger != null)
+					{
+						acceptors = acceptorsInteger.intValue();
+					}
+					logger.info("Setting acceptors to " + acceptors);
+				}
+				else
+				{
+					logger.warning("invalid acceptors value");
+				}
+			}
+			if (args[i].equals("--executor") || args[i].equals("-x"))
+			{
+				if (i < (args.length - 1))
+				{
+					executionMode = ExecutionMode.fromString(args[++i]);
+					logger.info("Setting executor to " + executionMode);
+				}
+				else
+				{
+					logger.warning("invalid executor value");
+				}
+			}
+			if (args[i].equals("--queue") || args[i].equals("-Q"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in queue capacity value
+					Integer queueInteger = readInt(args[++i]);
+					if (queueInteger != null)
+					{
+						queueCapacity = queueInteger.intValue();
+					}
+					logger.info("Setting queue capacity to " + queueCapacity);
+				}
+				else
+				{
+					logger.warning("invalid queue value");
+				}
+			}
+			if (args[i].equals("--overflow") || args[i].equals("-o"))
+			{
+				if (i < (args.length - 1))
+				{
+					overflowPolicy = OverflowPolicy.fromString(args[++i]);
+					logger.info("Setting overflow policy to " + overflowPolicy);
+				}
+				else
+				{
+					logger.warning("invalid overflow value");
+				}
+			}
+			if (args[i].equals("--block-timeout") || args[i].equals("-b"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in block timeout value
+					Integer blockInteger = readInt(args[++i]);
+					if (blockInteger != null)
+					{
+						blockTimeout = blockInteger.intValue();
+					}
+					logger.info("Setting block timeout to " + blockTimeout);
+				}
+				else
+				{
+					logger.warning("invalid block timeout value");
+				}
+			}
+			if (args[i].equals("--codec") || args[i].equals("-c"))
+			{
+				if (i < (args.length - 1))
+				{
+					codec = CodecType.fromString(args[++i]);
+					logger.info("Setting codec to " + codec);
+				}
+				else
+				{
+					logger.warning("invalid codec value");
+				}
+			}
+			if (args[i].equals("--reset") || args[i].equals("-r"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in reset messages value
+					Integer resetInteger = readInt(args[++i]);
+					if (resetInteger != null)
+					{
+						resetMessages = resetInteger.intValue();
+					}
+					logger.info("Setting reset messages to " + resetMessages);
+				}
+				else
+				{
+					logger.warning("invalid reset messages value");
+				}
+			}
+			if (args[i].equals("--reset-bytes") || args[i].equals("-R"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in reset bytes value
+					Integer resetInteger = readInt(args[++i]);
+					if (resetInteger != null)
+					{
+						resetBytes = resetInteger.intValue();
+					}
+					logger.info("Setting reset bytes to " + resetBytes);
+				}
+				else
+				{
+					logger.warning("invalid reset bytes value");
+				}
+			}
+			if (args[i].equals("--metrics") || args[i].equals("-M"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in metrics period value
+					Integer metricsInteger = readInt(args[++i]);
+					if (metricsInteger != null)
+					{
+						metricsPeriod = metricsInteger.intValue();
+					}
+					logger.info("Setting metrics period to " + metricsPeriod);
+				}
+				else
+				{
+					logger.warning("invalid metrics period value");
+				}
+			}
+			if (args[i].equals("--compression") || args[i].equals("-z"))
+			{
+				if (i < (args.length - 1))
+				{
+					compression = Compression.fromString(args[++i]);
+					logger.info("Setting compression to " + compression);
+				}
+				else
+				{
+					logger.warning("invalid compression value");
+				}
+			}
+			if (args[i].equals("--window") || args[i].equals("-w"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in coalescing window value
+					Integer windowInteger = readInt(args[++i]);
+					if (windowInteger != null)
+					{
+						window = windowInteger.intValue();
+					}
+					logger.info("Setting coalescing window to " + window
+					    + " us");
+				}
+				else
+				{
+					logger.warning("invalid coalescing window value");
+				}
+			}
+			if (args[i].equals("--window-bytes") || args[i].equals("-W"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in coalescing bytes value
+					Integer bytesInteger = readInt(args[++i]);
+					if (bytesInteger != null)
+					{
+						windowBytes = bytesInteger.intValue();
+					}
+					logger.info("Setting coalescing bytes to " + windowBytes);
+				}
+				else
+				{
+					logger.warning("invalid coalescing bytes value");
+				}
+			}
+			if (args[i].equals("--log-dir") || args[i].equals("-d"))
+			{
+				if (i < (args.length - 1))
+				{
+					logDirectory = args[++i];
+					logger.info("Setting message log directory to "
+					    + logDirectory);
+				}
+				else
+				{
+					logger.warning("invalid message log directory value");
+				}
+			}
+			if (args[i].equals("--segment") || args[i].equals("-S"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in segment size value
+					Integer segmentInteger = readInt(args[++i]);
+					if (segmentInteger != null)
+					{
+						segmentBytes = segmentInteger.intValue();
+					}
+					logger.info("Setting log segment size to " + segmentBytes);
+				}
+				else
+				{
+					logger.warning("invalid log segment size value");
+				}
+			}
+			if (args[i].equals("--durability") || args[i].equals("-D"))
+			{
+				if (i < (args.length - 1))
+				{
+					durability = Durability.fromString(args[++i]);
+					logger.info("Setting log durability to " + durability);
+				}
+				else
+				{
+					logger.warning("invalid durability value");
+				}
+			}
+			if (args[i].equals("--sync-interval") || args[i].equals("-I"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in sync interval value
+					Integer intervalInteger = readInt(args[++i]);
+					if (intervalInteger != null)
+					{
+						syncInterval = intervalInteger.intValue();
+					}
+					logger.info("Setting log sync interval to " + syncInterval
+					    + " ms");
+				}
+				else
+				{
+					logger.warning("invalid sync interval value");
+				}
+			}
+			if (args[i].equals("--retention-time") || args[i].equals("-T"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in retention time value
+					Integer timeInteger = readInt(args[++i]);
+					if (timeInteger != null)
+					{
+						retentionTime = timeInteger.intValue();
+					}
+					logger.info("Setting log retention time to " + retentionTime
+					    + " s");
+				}
+				else
+				{
+					logger.warning("invalid retention time value");
+				}
+			}
+			if (args[i].equals("--retention-mb") || args[i].equals("-B"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in retention size value
+					Integer mbInteger = readInt(args[++i]);
+					if (mbInteger != null)
+					{
+						retentionMb = mbInteger.intValue();
+					}
+					logger.info("Setting log retention size to " + retentionMb
+					    + " MB");
+				}
+				else
+				{
+					logger.warning("invalid retention size value");
+				}
+			}
+			if (args[i].equals("--notice-ttl") || args[i].equals("-N"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in notice ttl value
+					Integer ttlInteger = readInt(args[++i]);
+					if (ttlInteger != null)
+					{
+						noticeTtl = ttlInteger.intValue();
+					}
+					logger.info("Setting log notices ttl to " + noticeTtl
+					    + " s");
+				}
+				else
+				{
+					logger.warning("invalid notice ttl value");
+				}
+			}
+			if (args[i].equals("--warm") || args[i].equals("-m"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in warm segments value
+					Integer warmInteger = readInt(args[++i]);
+					if (warmInteger != null)
+					{
+						warmSegments = warmInteger.intValue();
+					}
+					logger.info("Setting log warm segments to " + warmSegments);
+				}
+				else
+				{
+					logger.warning("invalid warm segments value");
+				}
+			}
+			if (args[i].equals("--federation") || args[i].equals("-f"))
+			{
+				Listener listener = null;
+				if (i < (args.length - 1))
+				{
+					listener = Listener.fromString(args[++i]);
+				}
+				if (listener != null)
+				{
+					federationListener = listener;
+					logger.info("Setting federation listener to " + listener);
+				}
+				else
+				{
+					logger.warning("invalid federation listener value");
+				}
+			}
+			if (args[i].equals("--peer") || args[i].equals("-P"))
+			{
+				Listener peer = null;
+				if (i < (args.length - 1))
+				{
+					peer = Listener.fromString(args[++i]);
+				}
+				if (peer != null)
+				{
+					peers.add(peer);
+					logger.info("Adding federation peer " + peer);
+				}
+				else
+				{
+					logger.warning("invalid federation peer value");
+				}
+			}
+			if (args[i].equals("--node") || args[i].equals("-i"))
+			{
+				if (i < (args.length - 1))
+				{
+					nodeId = args[++i];
+					logger.info("Setting federation node id to " + nodeId);
+				}
+				else
+				{
+					logger.warning("invalid node id value");
+				}
+			}
+			if (args[i].equals("--replicate") || args[i].equals("-y"))
+			{
+				Listener listener = null;
+				if (i < (args.length - 1))
+				{
+					listener = Listener.fromString(args[++i]);
+				}
+				if (listener != null)
+				{
+					replicationListener = listener;
+					logger.info("Setting replication listener to " + listener);
+				}
+				else
+				{
+					logger.warning("invalid replication listener value");
+				}
+			}
+			if (args[i].equals("--standby") || args[i].equals("-Y"))
+			{
+				Listener listener = null;
+				if (i < (args.length - 1))
+				{
+					listener = Listener.fromString(args[++i]);
+				}
+				if (listener != null)
+				{
+					primary = listener;
+					logger.info("Setting standby of " + primary);
+				}
+				else
+				{
+					logger.warning("invalid primary value");
+				}
+			}
+			if (args[i].equals("--failover") || args[i].equals("-F"))
+			{
+				if (i < (args.length - 1))
+				{
+					// parse next arg for in failover value
+					Integer failoverInteger = readInt(args[++i]);
+					if (failoverInteger != null)
+					{
+						failover = failoverInteger.intValue();
+					}
+					logger.info("Setting failover timeout to " + failover
+					    + " ms");
+				}
+				else
+				{
+					logger.warning("invalid failover value");
+				}
+			}
 		}
 	}
 
@@ -135,17 +840,47 @@ public class RunChatServer extends AbstractRunChat
 		 * Create and Launch server on local ip adress with port number and verbose
 		 * status
 		 */
-		logger.info("Creating server on port " + port + " with timeout "
+		if (listeners.isEmpty())
+		{
+			listeners.add(new Listener(port));
+		}
+		logger.info("Creating server on " + listeners + " with timeout "
 				+ timeout + " ms and verbose " + (verbose ? "on" : "off"));
 
 		ChatServer server = null;
+		// A standby only binds its listeners once its primary failed
+		List<Listener> bound = (primary != null ?
+		    new ArrayList<Listener>() : listeners);
 		try
 		{
-			server = new ChatServer(port,
-			                        timeout,
-			                        quitOnLastclient,
-			                        history,
-			                        logger);
+			if (nio)
+			{
+				server = new NioChatServer(bound,
+				                           timeout,
+				                           quitOnLastclient,
+				                           history,
+				                           loops,
+				                           logger);
+			}
+			else
+			{
+				server = new ChatServer(bound,
+				                        timeout,
+				                        quitOnLastclient,
+				                        history,
+				                        logger);
+				server.setShards(loops);
+			}
+			server.setAcceptors(acceptors);
+			server.setExecutionMode(executionMode);
+			server.setOutboundQueues(queueCapacity,
+			                         overflowPolicy,
+			                         blockTimeout);
+			server.setCodec(codec.getCodec());
+			server.setCompression(compression);
+			server.setResetBudget(new ResetBudget(resetMessages, resetBytes));
+			server.setMetricsPeriod(metricsPeriod);
+			server.setCoalescing(new Coalescing(window, windowBytes));
 		}
 		catch (SocketException se)
 		{
@@ -160,6 +895,83 @@ public class RunChatServer extends AbstractRunChat
 			System.exit(Failure.CREATE_SERVER_SOCKET.toInteger());
 		}
 
+		if ((server != null) && (logDirectory != null))
+		{
+			try
+			{
+				MessageLog log = new MessageLog(new File(logDirectory),
+				                                segmentBytes,
+				                                logger);
+				log.setDurability(durability, syncInterval);
+				log.setWarmSegments(warmSegments);
+				log.setRetention(new Retention(retentionTime,
+				                               (long) retentionMb << 20,
+				                               noticeTtl),
+				                 RETENTIONPERIOD);
+				server.setLog(log);
+			}
+			catch (IOException e)
+			{
+				logger.severe(Failure.MESSAGE_LOG + ", abort ...");
+				logger.severe(e.getLocalizedMessage());
+				System.exit(Failure.MESSAGE_LOG.toInteger());
+			}
+		}
+
+		if ((server != null)
+		    && ((federationListener != null) || !peers.isEmpty()))
+		{
+			try
+			{
+				// without listener, other nodes can't connect to this node
+				server.setFederation(new Federation(server,
+				                                    nodeId,
+				                                    federationListener != null ?
+				                                        federationListener :
+				                                        new Listener(0),
+				                                    peers,
+				                                    logger));
+			}
+			catch (IOException e)
+			{
+				logger.severe(Failure.FEDERATION + ", abort ...");
+				logger.severe(e.getLocalizedMessage());
+				System.exit(Failure.FEDERATION.toInteger());
+			}
+		}
+
+		if ((server != null) && (replicationListener != null))
+		{
+			try
+			{
+				server.setReplication(new Replication(server,
+				                                      replicationListener,
+				                                      logger));
+			}
+			catch (IOException e)
+			{
+				logger.severe(Failure.REPLICATION + ", abort ...");
+				logger.severe(e.getLocalizedMessage());
+				System.exit(Failure.REPLICATION.toInteger());
+			}
+		}
+
+		// A standby only serves its clients once its primary failed
+		if ((server != null) && (primary != null))
+		{
+			new Replica(server, primary, failover, logger).run();
+			try
+			{
+				server.listen(listeners);
+			}
+			catch (IOException e)
+			{
+				logger.severe(Failure.CREATE_SERVER_SOCKET + ", abort ...");
+				logger.severe(e.getLocalizedMessage());
+				System.exit(Failure.CREATE_SERVER_SOCKET.toInteger());
+			}
+		}
+
 		// Wait for serverThread to stop
 		Thread serverThread = null;
 		if (server != null)
@@ -187,9 +999,59 @@ public class RunChatServer extends AbstractRunChat
 	 * <ul>
 	 * 	<li>--port <port number> : set host connection port</li>
 	 * 	<li>--verbose : set verbose on</li>
-	 * 	<li>--timeout <timeout in ms> : server socket waiting time out</li>
+	 * 	<li>--timeout <timeout in ms> : time given to new clients to send
+	 * 	their name</li>
 	 * 	<li>--quit : quits on last client logout</li>
 	 * 	<li>--history <nb messages> : number of messages to keep</li>
+	 * 	<li>--engine <blocking|nio> : thread per client or event loops
+	 * 	server</li>
+	 * 	<li>--loops <nb loops> : number of shards (event loops of the nio
+	 * 	engine or executors of the blocking engine)</li>
+	 * 	<li>--listen <[address:]port[/backlog]> : listener (can be repeated,
+	 * 	replaces --port)</li>
+	 * 	<li>--acceptors <nb acceptors> : acceptors on each listener</li>
+	 * 	<li>--executor <platform|virtual> : threads running client handlers
+	 * 	in the blocking engine</li>
+	 * 	<li>--queue <nb messages> : max number of messages queued per client</li>
+	 * 	<li>--overflow <drop|disconnect|block> : full client queue policy</li>
+	 * 	<li>--block-timeout <ms> : max wait with the block policy</li>
+	 * 	<li>--codec <serial|binary> : messages encoding</li>
+	 * 	<li>--reset <nb messages> : max messages between two streams
+	 * 	resets</li>
+	 * 	<li>--reset-bytes <nb bytes> : max bytes between two streams
+	 * 	resets</li>
+	 * 	<li>--metrics <seconds> : period of memory metrics logging</li>
+	 * 	<li>--compression <none|deflate> : compression offered to clients</li>
+	 * 	<li>--window <µs> : coalescing window of clients writers (0 to
+	 * 	write frames as soon as they are queued)</li>
+	 * 	<li>--window-bytes <nb bytes> : max bytes gathered during a
+	 * 	coalescing window</li>
+	 * 	<li>--log-dir <directory> : directory of the durable message log
+	 * 	(history survives restarts)</li>
+	 * 	<li>--segment <nb bytes> : max size of the log's segment files</li>
+	 * 	<li>--durability <none|interval|batch> : when logged messages are
+	 * 	forced to the disk (batch: group commit before broadcast)</li>
+	 * 	<li>--sync-interval <ms> : period of log forces (interval)</li>
+	 * 	<li>--retention-time <s> : max age of logged messages (older sealed
+	 * 	segments are deleted)</li>
+	 * 	<li>--retention-mb <MB> : max size of the message log (oldest sealed
+	 * 	segments are deleted)</li>
+	 * 	<li>--notice-ttl <s> : age after which logged system notices are
+	 * 	compacted away</li>
+	 * 	<li>--warm <nb segments> : number of most recent sealed segments of
+	 * 	the log kept memory-mapped (warm tier), older ones being compressed
+	 * 	and decompressed on demand by deep catchups (cold tier)</li>
+	 * 	<li>--federation <[address:]port> : listener accepting the other
+	 * 	nodes of the federation</li>
+	 * 	<li>--peer <address:port> : federation listener of another node to
+	 * 	connect to (can be repeated)</li>
+	 * 	<li>--node <id> : id of this node in the federation</li>
+	 * 	<li>--replicate <[address:]port> : listener accepting hot standby
+	 * 	servers the history is replicated to</li>
+	 * 	<li>--standby <address:port> : replication listener of the primary
+	 * 	server this server is a hot standby of</li>
+	 * 	<li>--failover <ms> : time without news from the primary before the
+	 * 	standby serves its clients</li>
 	 * </ul>
 	 */
 	public static void main(String[] args)
@@ -89,7 +89,23 @@ public enum Failure
 	/**
 	 * Other
 	 */
-	OTHER;
+	OTHER,
+	/**
+	 * Unable to open the durable message log
+	 */
+	MESSAGE_LOG,
+	/**
+	 * Unable to open the federation listener
+	 */
+	FEDERATION,
+	/**
+	 * No backend server given to the front proxy
+	 */
+	NO_BACKEND,
+	/**
+	 * Unable to open the replication listener
+	 */
+	REPLICATION;
 
 	/**
 	 * String representation of possible errors
@@ -143,6 +159,14 @@ public enum Failure
 				return new String("Main Client not ready");
 			case OTHER:
 				return new String("Other cause");
+			case MESSAGE_LOG:
+				return new String("Unable to open message log");
+			case FEDERATION:
+				return new String("Unable to open federation listener");
+			case NO_BACKEND:
+				return new String("No backend server");
+			case REPLICATION:
+				return new String("Unable to open replication listener");
 		}
 		throw new AssertionError("Failure: unknown op: " + this);
 	}
@@ -0,0 +1,388 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import chat.codec.BinaryCodec;
+import chat.codec.CodecType;
+import chat.codec.Compression;
+
+/**
+ * Versioned hello exchanged when a client connects to the server.
+ * The client sends a hello line <b>before</b> its name line, advertising
+ * (in order of preference) the codecs and compressions it supports, the
+ * maximum size of a frame it accepts and, optionally, the resume token of a
+ * previous session and the room it joins when it connects:
+ * <pre>
+ * HELLO 1 codecs=binary,serial compression=none maxframe=16777216 resume=...
+ * room=ops.alerts
+ * </pre>
+ * (on a single line). The room is also used by front proxies to choose the
+ * server hosting this room.
+ * The server answers (after the name has been accepted and before the
+ * codec's stream header) with the same kind of line containing its choices:
+ * a single codec, a single compression, the negotiated maximum frame size
+ * and the resume token of this session.
+ * When the chosen compression is {@link Compression#DEFLATE}, the server's
+ * answer is followed by the preset dictionary of the session (its length as
+ * a 4 bytes integer then its bytes) and everything following it (starting
+ * with the codec's header) is compressed.
+ * Unknown keys and values are ignored so that later versions can add
+ * new settings. Clients which don't send a hello (and only send their name)
+ * are still accepted and use the server's default codec.
+ * @author davidroussel
+ */
+public class Hello
+{
+	/**
+	 * First word of a hello line
+	 */
+	public final static String GREETING = "HELLO";
+
+	/**
+	 * Current protocol version
+	 */
+	public final static int VERSION = 1;
+
+	/**
+	 * Default maximum size (in bytes) of a frame
+	 */
+	public final static int DEFAULTMAXFRAME = BinaryCodec.MAXLENGTH;
+
+	/**
+	 * Protocol version
+	 */
+	private final int version;
+
+	/**
+	 * Codecs (in order of preference)
+	 */
+	private final List<CodecType> codecs;
+
+	/**
+	 * Compressions (in order of preference)
+	 */
+	private final List<Compression> compressions;
+
+	/**
+	 * Maximum size (in bytes) of a frame
+	 */
+	private final int maxFrame;
+
+	/**
+	 * Resume token (or null if there is no session to resume)
+	 */
+	private final String resumeToken;
+
+	/**
+	 * Room joined when connecting (or null)
+	 */
+	private final String room;
+
+	/**
+	 * Constructor
+	 * @param version protocol version
+	 * @param codecs codecs in order of preference
+	 * @param compressions compressions in order of preference
+	 * @param maxFrame maximum size (in bytes) of a frame
+	 * @param resumeToken resume token or null
+	 * @param room room joined when connecting or null
+	 */
+	public Hello(int version,
+	             List<CodecType> codecs,
+	             List<Compression> compressions,
+	             int maxFrame,
+	             String resumeToken,
+	             String room)
+	{
+		this.version = version;
+		this.codecs = Collections.unmodifiableList(
+		    new ArrayList<CodecType>(codecs));
+		this.compressions = Collections.unmodifiableList(
+		    new ArrayList<Compression>(compressions));
+		this.maxFrame = maxFrame;
+		this.resumeToken = resumeToken;
+		this.room = room;
+	}
+
+	/**
+	 * Constructor without room
+	 * @param version protocol version
+	 * @param codecs codecs in order of preference
+	 * @param compressions compressions in order of preference
+	 * @param maxFrame maximum size (in bytes) of a frame
+	 * @param resumeToken resume token or null
+	 */
+	public Hello(int version,
+	             List<CodecType> codecs,
+	             List<Compression> compressions,
+	             int maxFrame,
+	             String resumeToken)
+	{
+		this(version, codecs, compressions, maxFrame, resumeToken, null);
+	}
+
+	/**
+	 * Client's hello of the current version advertising a preferred codec
+	 * first followed by all other known codecs, and a preferred compression
+	 * first followed by all other known compressions (unless the preferred
+	 * compression is {@link Compression#NONE} which is then the only one
+	 * advertised)
+	 * @param preferred the preferred codec
+	 * @param compression the preferred compression
+	 * @param maxFrame maximum size (in bytes) of a frame (at most
+	 * {@link #DEFAULTMAXFRAME})
+	 * @param resumeToken resume token of a previous session or null
+	 * @param room room joined when connecting or null
+	 * @return a new hello
+	 */
+	public static Hello request(CodecType preferred,
+	                            Compression compression,
+	                            int maxFrame,
+	                            String resumeToken,
+	                            String room)
+	{
+		List<CodecType> codecs = new ArrayList<CodecType>();
+		codecs.add(preferred);
+		for (CodecType type : CodecType.values())
+		{
+			if (type != preferred)
+			{
+				codecs.add(type);
+			}
+		}
+		List<Compression> compressions = new ArrayList<Compression>();
+		compressions.add(compression);
+		if (compression != Compression.NONE)
+		{
+			for (Compression other : Compression.values())
+			{
+				if (other != compression)
+				{
+					compressions.add(other);
+				}
+			}
+		}
+		return new Hello(VERSION,
+		                 codecs,
+		                 compressions,
+		                 Math.min(maxFrame, DEFAULTMAXFRAME),
+		                 resumeToken,
+		                 room);
+	}
+
+	/**
+	 * Protocol version accessor
+	 * @return the protocol version
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Codecs accessor
+	 * @return the (unmodifiable) list of codecs in order of preference
+	 */
+	public List<CodecType> getCodecs()
+	{
+		return codecs;
+	}
+
+	/**
+	 * First codec accessor (the chosen one in a server's answer)
+	 * @return the preferred codec or null if there is no known codec
+	 */
+	public CodecType getCodec()
+	{
+		return (codecs.isEmpty() ? null : codecs.get(0));
+	}
+
+	/**
+	 * Compressions accessor
+	 * @return the (unmodifiable) list of compressions in order of preference
+	 */
+	public List<Compression> getCompressions()
+	{
+		return compressions;
+	}
+
+	/**
+	 * First compression accessor (the chosen one in a server's answer)
+	 * @return the preferred compression or {@link Compression#NONE} if there
+	 * is no known compression
+	 */
+	public Compression getCompression()
+	{
+		return (compressions.isEmpty() ? Compression.NONE :
+		    compressions.get(0));
+	}
+
+	/**
+	 * Maximum frame size accessor
+	 * @return the maximum size (in bytes) of a frame
+	 */
+	public int getMaxFrame()
+	{
+		return maxFrame;
+	}
+
+	/**
+	 * Resume token accessor
+	 * @return the resume token or null
+	 */
+	public String getResumeToken()
+	{
+		return resumeToken;
+	}
+
+	/**
+	 * Room accessor
+	 * @return the room joined when connecting or null
+	 */
+	public String getRoom()
+	{
+		return room;
+	}
+
+	/**
+	 * Checks if a line is a hello line
+	 * @param line the line to check
+	 * @return true if this line starts with {@link #GREETING}
+	 */
+	public static boolean isHello(String line)
+	{
+		return (line != null) && line.startsWith(GREETING + " ");
+	}
+
+	/**
+	 * Factory method of a {@link Hello} from a hello line. Unknown keys,
+	 * codecs and compressions are ignored
+	 * @param line the hello line
+	 * @return the hello described by this line or null if this line is not
+	 * a hello line
+	 */
+	public static Hello fromString(String line)
+	{
+		if (!isHello(line))
+		{
+			return null;
+		}
+
+		String[] words = line.trim().split("\\s+");
+		int version = 0;
+		try
+		{
+			version = Integer.parseInt(words[1]);
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			return null;
+		}
+
+		List<CodecType> codecs = new ArrayList<CodecType>();
+		List<Compression> compressions = new ArrayList<Compression>();
+		int maxFrame = DEFAULTMAXFRAME;
+		String resumeToken = null;
+		String room = null;
+		for (int i = 2; i < words.length; i++)
+		{
+			int separator = words[i].indexOf('=');
+			if (separator < 0)
+			{
+				continue;
+			}
+			String key = words[i].substring(0, separator);
+			String value = words[i].substring(separator + 1);
+			if (key.equals("codecs"))
+			{
+				for (String name : value.split(","))
+				{
+					for (CodecType type : CodecType.values())
+					{
+						if (type.name().equalsIgnoreCase(name))
+						{
+							codecs.add(type);
+						}
+					}
+				}
+			}
+			else if (key.equals("compression"))
+			{
+				for (String name : value.split(","))
+				{
+					for (Compression compression : Compression.values())
+					{
+						if (compression.name().equalsIgnoreCase(name))
+						{
+							compressions.add(compression);
+						}
+					}
+				}
+			}
+			else if (key.equals("maxframe"))
+			{
+				try
+				{
+					maxFrame = Integer.parseInt(value);
+				}
+				catch (NumberFormatException e)
+				{
+					// keep default max frame size
+				}
+			}
+			else if (key.equals("resume") && !value.isEmpty())
+			{
+				resumeToken = value;
+			}
+			else if (key.equals("room") && !value.isEmpty())
+			{
+				room = value;
+			}
+		}
+
+		return new Hello(version,
+		                 codecs,
+		                 compressions,
+		                 maxFrame,
+		                 resumeToken,
+		                 room);
+	}
+
+	/**
+	 * Hello line (without line separator)
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(GREETING);
+		sb.append(' ');
+		sb.append(version);
+		sb.append(" codecs=");
+		for (int i = 0; i < codecs.size(); i++)
+		{
+			sb.append(i > 0 ? "," : "");
+			sb.append(codecs.get(i).name().toLowerCase());
+		}
+		sb.append(" compression=");
+		for (int i = 0; i < compressions.size(); i++)
+		{
+			sb.append(i > 0 ? "," : "");
+			sb.append(compressions.get(i).name().toLowerCase());
+		}
+		sb.append(" maxframe=");
+		sb.append(maxFrame);
+		if (resumeToken != null)
+		{
+			sb.append(" resume=");
+			sb.append(resumeToken);
+		}
+		if (room != null)
+		{
+			sb.append(" room=");
+			sb.append(room);
+		}
+		return sb.toString();
+	}
+}
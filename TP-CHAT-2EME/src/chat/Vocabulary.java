@@ -21,11 +21,74 @@ public interface Vocabulary
 	public final static String kickCmd="kick";
 
 	/**
-	 * Keyword used to ask server for all recorded messages:
-	 * the server then sends us all recorded messages
+	 * Keyword used to ask server for recorded messages:
+	 * <ul>
+	 * <li>catchup : the server sends us all recorded messages</li>
+	 * <li>catchup &lt;sequence&gt; : the server sends us recorded messages
+	 * following this sequence number (the client adds the sequence number of
+	 * the last message it received to a bare catchup)</li>
+	 * <li>catchup &lt;yyyy/MM/dd HH:mm:ss&gt; : the server sends us recorded
+	 * messages dated after this date</li>
+	 * </ul>
 	 */
 	public final static String catchUpCmd="catchup";
 
+	/**
+	 * Keyword used to join a chat room: join &lt;room&gt;. Rooms names are
+	 * topics made of levels separated by dots (such as "ops.alerts.db"). The
+	 * room is created if it does not exist, the server sends us the room's
+	 * recorded messages and our next messages are only sent to the room's
+	 * members and subscribers (until we join another room or leave this
+	 * one)
+	 */
+	public final static String joinCmd="join";
+
+	/**
+	 * Keyword used to leave a chat room: leave [&lt;room&gt;] (the room our
+	 * messages are sent to if no room is given). Our next messages are sent
+	 * to the room we joined before (or to all users)
+	 */
+	public final static String leaveCmd="leave";
+
+	/**
+	 * Keyword used to ask server for the list of chat rooms and their number
+	 * of members
+	 */
+	public final static String listCmd="list";
+
+	/**
+	 * Keyword used to send a message to a chat room without joining it:
+	 * publish &lt;room&gt; &lt;message&gt;
+	 */
+	public final static String publishCmd="publish";
+
+	/**
+	 * Keyword used to receive the messages sent to all the rooms matching a
+	 * pattern without joining them: subscribe &lt;pattern&gt;. In a pattern,
+	 * "*" matches exactly one level and "#" (as last level) matches zero or
+	 * more levels (such as "ops.*" or "ops.#")
+	 */
+	public final static String subscribeCmd="subscribe";
+
+	/**
+	 * Keyword used to stop receiving the messages sent to the rooms matching
+	 * a pattern: unsubscribe &lt;pattern&gt;
+	 */
+	public final static String unsubscribeCmd="unsubscribe";
+
+	/**
+	 * Keyword used to send a private message to a single user:
+	 * /msg &lt;username&gt; &lt;message&gt;. The message is only sent to this
+	 * user (and to us) and is not recorded by the server
+	 */
+	public final static String msgCmd="/msg";
+
+	/**
+	 * Prefix of the room of direct messages (followed by the recipient's
+	 * name), rooms names can't start with this prefix
+	 */
+	public final static String directPrefix="@";
+
 	/**
 	 * Line separator used on this OS (used in text)
 	 */
@@ -40,6 +103,13 @@ public interface Vocabulary
 		byeCmd,
 		kickCmd,
 		killCmd,
-		catchUpCmd
+		catchUpCmd,
+		joinCmd,
+		leaveCmd,
+		listCmd,
+		publishCmd,
+		subscribeCmd,
+		unsubscribeCmd,
+		msgCmd
 	};
 }
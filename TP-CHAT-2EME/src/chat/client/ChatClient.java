@@ -1,15 +1,26 @@
 package chat.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.Hello;
 import chat.UserOutputType;
+import chat.codec.CodecType;
+import chat.codec.Compression;
+import chat.codec.InflatingInputStream;
+import chat.codec.MessageCodec;
+import chat.codec.ResetBudget;
 import logger.LoggerFactory;
 import models.Message;
 
@@ -45,11 +56,33 @@ public class ChatClient implements Runnable
 	private OutputStream serverOut;
 
 	/**
-	 * Server output print writer (used only once to send our user name to
-	 * server)
+	 * Server output print writer (used only once to send our hello and user
+	 * name to server)
 	 */
 	private PrintWriter serverOutPW;
 
+	/**
+	 * Settings of this session chosen by the server in answer to our
+	 * {@link Hello} (null if the server did not answer our hello)
+	 */
+	private Hello session;
+
+	/**
+	 * Decompressing stream from server (null if the session is not
+	 * compressed)
+	 */
+	private InflatingInputStream decompressor;
+
+	/**
+	 * Maximum length of the server's hello line
+	 */
+	private final static int MAXHELLO = 4096;
+
+	/**
+	 * Maximum size of the preset dictionary of a compressed session
+	 */
+	private final static int MAXDICTIONARY = 32768;
+
 	/**
 	 * The input stream from user
 	 */
@@ -80,6 +113,14 @@ public class ChatClient implements Runnable
 	 */
 	private Boolean commonRun;
 
+	/**
+	 * Sequence number of the last message received from the server's history,
+	 * shared between {@link #serverHandler} (which updates it) and
+	 * {@link #userHandler} (which sends it with catchup commands so that the
+	 * server only sends the messages we missed)
+	 */
+	private final AtomicLong lastSequence = new AtomicLong(0);
+
 	/**
 	 * Client readiness status: true when socket and streams have been
 	 * initialized
@@ -101,6 +142,18 @@ public class ChatClient implements Runnable
 	 * @param out output stream to user
 	 * @param outType kind of data expected by the user (either text or
 	 * {@link Message} objects)
+	 * @param codec preferred codec advertised to the server (also used to
+	 * encode {@link Message} objects to user). The server might choose
+	 * another codec in its answer to our {@link Hello}
+	 * @param budget budget between two resets of the stream of
+	 * {@link Message} objects to user
+	 * @param compression preferred compression advertised to the server
+	 * ({@link Compression#NONE} to refuse compression)
+	 * @param maxFrame maximum size (in bytes) of the frames exchanged with
+	 * the server advertised to the server: larger messages from the server
+	 * end the session and larger lines are not sent
+	 * @param resumeToken token of a previous session to resume (or null)
+	 * @param room room joined when connecting (or null)
 	 * @param commonRun common run shared by another runnable or null if we
 	 * should create our own common run between our handlers
 	 * @param parentLogger parent logger
@@ -111,11 +164,19 @@ public class ChatClient implements Runnable
 	                  InputStream in,
 	                  OutputStream out,
 	                  UserOutputType outType,
+	                  MessageCodec codec,
+	                  ResetBudget budget,
+	                  Compression compression,
+	                  int maxFrame,
+	                  String resumeToken,
+	                  String room,
 	                  Boolean commonRun,
 	                  Logger parentLogger)
 	{
 		userName = name;
 		ready = false;
+		session = null;
+		decompressor = null;
 
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
@@ -167,7 +228,7 @@ public class ChatClient implements Runnable
 
 		/*Create a temporary PrintWriter to serverOut (serverOutPW with
 		 * autoFlush) and
-		 * send our user name so that the server can create
+		 * send our hello followed by our user name so that the server can create
 		 * a thread dedicated to handling our messages
 		 * Use the logger to log progression and/or errors
 		 */
@@ -175,6 +236,13 @@ public class ChatClient implements Runnable
 		serverOutPW = new PrintWriter(serverOut, true);
 		if (serverOut != null)
 		{
+			Hello hello = Hello.request(codec.getType(),
+			                            compression,
+			                            maxFrame,
+			                            resumeToken,
+			                            room);
+			logger.info("ChatClient: sending hello " + hello);
+			serverOutPW.println(hello);
 			serverOutPW.println(userName);
 			if (serverOutPW.checkError()) {logger.severe("serverOutPW : Error in println");}
 			
@@ -200,6 +268,35 @@ public class ChatClient implements Runnable
 		System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
 		}
 
+		/*
+		 * Read the server's answer to our hello which tells us which codec
+		 * is used on this session
+		 */
+		MessageCodec serverCodec = codec;
+		int sessionMaxFrame = maxFrame;
+		try
+		{
+			serverIn = readSession(serverIn);
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChatClient :" + Failure.CLIENT_INPUT_STREAM);
+			logger.severe(e.getLocalizedMessage());
+			System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
+		}
+		if (session != null)
+		{
+			logger.info("ChatClient: session " + session);
+			if (session.getCodec() != null)
+			{
+				serverCodec = session.getCodec().getCodec();
+			}
+			if (session.getMaxFrame() > 0)
+			{
+				sessionMaxFrame = Math.min(maxFrame, session.getMaxFrame());
+			}
+		}
+
 		userIn = in;
 		userOut = out;
 
@@ -214,6 +311,8 @@ public class ChatClient implements Runnable
 
 		userHandler = new UserHandler(userIn,
 		                              serverOut,
+		                              sessionMaxFrame,
+		                              lastSequence,
 		                              this.commonRun,
 		                              logger);
 
@@ -221,12 +320,57 @@ public class ChatClient implements Runnable
 		                                  serverIn,
 		                                  userOut,
 		                                  outType,
+		                                  serverCodec,
+		                                  sessionMaxFrame,
+		                                  codec,
+		                                  budget,
+		                                  lastSequence,
 		                                  this.commonRun,
 		                                  logger);
 
 		ready = true;
 	}
 
+	/**
+	 * Chat client constructor using the default (serial) codec, resetting
+	 * the stream of {@link Message} objects to user before each message
+	 * @param host the server name or IP address
+	 * @param port the port used to communicate with server
+	 * @param name user name to register on server (server only accept users
+	 * once)
+	 * @param in input stream from user
+	 * @param out output stream to user
+	 * @param outType kind of data expected by the user (either text or
+	 * {@link Message} objects)
+	 * @param commonRun common run shared by another runnable or null if we
+	 * should create our own common run between our handlers
+	 * @param parentLogger parent logger
+	 */
+	public ChatClient(String host,
+	                  int port,
+	                  String name,
+	                  InputStream in,
+	                  OutputStream out,
+	                  UserOutputType outType,
+	                  Boolean commonRun,
+	                  Logger parentLogger)
+	{
+		this(host,
+		     port,
+		     name,
+		     in,
+		     out,
+		     outType,
+		     CodecType.SERIAL.getCodec(),
+		     ResetBudget.EACH_MESSAGE,
+		     Compression.NONE,
+		     Hello.DEFAULTMAXFRAME,
+		     null,
+		     null,
+		     commonRun,
+		     parentLogger);
+	}
+
 	/**
 	 * Ready status accessor
 	 * @return the ready status
@@ -236,6 +380,68 @@ public class ChatClient implements Runnable
 		return ready;
 	}
 
+	/**
+	 * Session accessor
+	 * @return the settings chosen by the server for this session (including
+	 * the token to resume it later) or null if the server did not answer our
+	 * {@link Hello}
+	 */
+	public Hello getSession()
+	{
+		return session;
+	}
+
+	/**
+	 * Reads the server's answer to our {@link Hello} and sets up
+	 * {@link #session}. The answer is read byte per byte so that no byte
+	 * following it is consumed. If the first line received is not a hello
+	 * (a denial message or a server without hello support) it is pushed back
+	 * in front of the server's stream. If the session is compressed, the
+	 * preset dictionary following the answer is read and the returned
+	 * stream decompresses the rest of the server's stream
+	 * @param in the input stream from server
+	 * @return the stream to read messages from server
+	 * @throws IOException if the answer could not be read
+	 */
+	private InputStream readSession(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		int b;
+		while ((received.size() < MAXHELLO) && ((b = in.read()) != -1))
+		{
+			received.write(b);
+			if (b == '\n')
+			{
+				break;
+			}
+		}
+
+		String line = received.toString("UTF-8").trim();
+		if (Hello.isHello(line))
+		{
+			session = Hello.fromString(line);
+			if ((session != null)
+			    && (session.getCompression() == Compression.DEFLATE))
+			{
+				DataInputStream dataIn = new DataInputStream(in);
+				int length = dataIn.readInt();
+				if ((length < 0) || (length > MAXDICTIONARY))
+				{
+					throw new IOException("invalid dictionary length " + length);
+				}
+				byte[] dictionary = new byte[length];
+				dataIn.readFully(dictionary);
+				decompressor = new InflatingInputStream(in, dictionary);
+				return decompressor;
+			}
+			return in;
+		}
+
+		logger.warning("ChatClient: no hello from server");
+		return new SequenceInputStream(
+		    new ByteArrayInputStream(received.toByteArray()), in);
+	}
+
 	/**
 	 * Run loop: Launch {@link UserHandler} and {@link ServerHandler}
 	 * in their own threads and wait for them to finish.
@@ -279,6 +485,11 @@ public class ChatClient implements Runnable
 	 */
 	public void cleanup()
 	{
+		if (decompressor != null)
+		{
+			logger.info("ChatClient: " + decompressor);
+		}
+
 		userHandler.cleanup();
 
 		serverHandler.cleanup();
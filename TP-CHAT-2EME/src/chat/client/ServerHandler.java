@@ -3,17 +3,20 @@ package chat.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StreamCorruptedException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.sun.corba.se.impl.io.OptionalDataException;
 
 import chat.Failure;
 import chat.UserOutputType;
+import chat.codec.MessageCodec;
+import chat.codec.MessageReader;
+import chat.codec.MessageWriter;
+import chat.codec.ResetBudget;
 import logger.LoggerFactory;
 import models.Message;
 
@@ -33,9 +36,10 @@ import models.Message;
 class ServerHandler implements Runnable
 {
 	/**
-	 * Input stream from server (contains {@link Message} objects)
+	 * Input stream from server (contains {@link Message}s encoded with
+	 * the server's codec)
 	 */
-	private ObjectInputStream serverInOS;
+	private MessageReader serverInOS;
 
 	/**
 	 * The kind of messages supported by the client (either text or message
@@ -50,15 +54,21 @@ class ServerHandler implements Runnable
 	private PrintWriter userOutPW;
 
 	/**
-	 * Object output stream to user output (when using Message objects)
+	 * Message output stream to user output (when using Message objects)
 	 */
-	private ObjectOutputStream userOutOS;
+	private MessageWriter userOutOS;
 
 	/**
 	 * Common run between {@link ServerHandler} and {@link UserHandler}
 	 */
 	private Boolean commonRun;
 
+	/**
+	 * Sequence number of the last message received from the server's history
+	 * (used by {@link UserHandler} to only catchup missed messages)
+	 */
+	private AtomicLong lastSequence;
+
 	/**
 	 * Logger used to display debug or info messages
 	 */
@@ -70,6 +80,16 @@ class ServerHandler implements Runnable
 	 * @param in input stream from server
 	 * @param out output stream to user
 	 * @param outType output type (text or {@link Message} objects)
+	 * @param codec codec used to decode messages from server (negotiated
+	 * with the server)
+	 * @param maxFrame maximum size (in bytes) of the messages from server
+	 * (negotiated with the server): a larger message ends the session
+	 * @param userCodec codec used to encode {@link Message} objects to user
+	 * @param budget budget between two resets of the stream of
+	 * {@link Message} objects to user (bounds the memory used by the user's
+	 * reader such as {@link widgets.ClientFrame2})
+	 * @param lastSequence sequence number of the last message received from
+	 * the server's history (updated by this handler)
 	 * @param commonRun common run between this and {@link UserHandler}
 	 * @param parentLogger parent logger
 	 */
@@ -77,6 +97,11 @@ class ServerHandler implements Runnable
 	                     InputStream in,
 	                     OutputStream out,
 	                     UserOutputType outType,
+	                     MessageCodec codec,
+	                     int maxFrame,
+	                     MessageCodec userCodec,
+	                     ResetBudget budget,
+	                     AtomicLong lastSequence,
 	                     Boolean commonRun,
 	                     Logger parentLogger)
 	{
@@ -91,14 +116,14 @@ class ServerHandler implements Runnable
 		{
 			logger.info("ServerHandler: creating server input reader ... ");
 			/*
-			 * DONE ObjectInputStream instantiation from server input stream
-			 * (in). If an exception occur shut down app with
+			 * DONE Message reader instantiation (according to codec) from
+			 * server input stream (in). If an exception occur shut down app with
 			 * CLIENT_INPUT_STREAM Failure status
 			 */
 			serverInOS = null;
 			try 
 			{
-				serverInOS = new ObjectInputStream(in);
+				serverInOS = codec.newReader(in, maxFrame);
 			}
 			catch(Exception e)
 			{
@@ -133,7 +158,8 @@ class ServerHandler implements Runnable
 					userOutPW = null;
 					try 
 					{
-						userOutOS = new ObjectOutputStream(out);
+						userOutOS = userCodec.newWriter(out, budget);
+						userOutOS.flush();
 					}
 					catch(Exception e)
 					{
@@ -162,6 +188,8 @@ class ServerHandler implements Runnable
 			System.exit(Failure.USER_OUTPUT_STREAM.toInteger());
 		}
 
+		this.lastSequence = lastSequence;
+
 		if (commonRun != null)
 		{
 			this.commonRun = commonRun;
@@ -203,7 +231,7 @@ class ServerHandler implements Runnable
 			
 			try
 			{
-				message = (Message) serverInOS.readObject();
+				message = serverInOS.read();
 			}
 			catch (ClassNotFoundException cnfe){
 				logger.warning("ServerHandler: Class of a serialized object" + "cannot be found after readObject"
@@ -231,11 +259,26 @@ class ServerHandler implements Runnable
 			}
 			if ((message != null))
 			{
+				// Remember the last message received from server's history
+				// (room messages are not in this history)
+				long sequence = message.getSequence();
+				if ((sequence > 0) && !message.hasRoom()
+				    && (lastSequence != null))
+				{
+					long last;
+					do
+					{
+						last = lastSequence.get();
+					}
+					while ((sequence > last)
+					    && !lastSequence.compareAndSet(last, sequence));
+				}
+
 				/*
 				 * DONE Display message to user with either
 				 * - userOutPW.println when using text messages (check userOutPW for
 				 * errors and log warning if any) or
-				 * - userOutOS.writeObject when using Message objects
+				 * - userOutOS.write when using Message objects
 				 * if an error occurs set error = true;
 				 */
 				boolean error = false;
@@ -244,7 +287,8 @@ class ServerHandler implements Runnable
 					case OBJECT:
 						try
 						{
-							userOutOS.writeObject(message);
+							userOutOS.write(message);
+							userOutOS.flush();
 						}
 						catch(Exception e)
 						{
@@ -326,6 +370,9 @@ class ServerHandler implements Runnable
 
 		if (userOutOS != null)
 		{
+			logger.info("ServerHandler: " + userOutOS.getMessages()
+			    + " messages (" + userOutOS.getBytes() + " bytes) written to "
+			    + "user with " + userOutOS.getResets() + " resets");
 			try
 			{
 				userOutOS.close();
@@ -6,6 +6,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import chat.Failure;
@@ -28,6 +30,18 @@ class UserHandler implements Runnable
 	 */
 	private PrintWriter serverOutPW;
 
+	/**
+	 * Maximum size (in bytes) of the lines sent to the server (negotiated
+	 * with the server)
+	 */
+	private int maxFrame;
+
+	/**
+	 * Sequence number of the last message received from the server's history
+	 * (updated by {@link ServerHandler}) added to bare catchup commands
+	 */
+	private AtomicLong lastSequence;
+
 	/**
 	 * Common Run execution status between {@link UserHandler} and
 	 * {@link ServerHandler}
@@ -43,12 +57,18 @@ class UserHandler implements Runnable
 	 * UserHandler constructor
 	 * @param in User input stream to read user inputs
 	 * @param out Server Output stream to write users inputs to server
+	 * @param maxFrame maximum size (in bytes) of the lines sent to the server
+	 * (longer lines are not sent since the server would close the session)
+	 * @param lastSequence sequence number of the last message received from
+	 * the server's history (updated by {@link ServerHandler})
 	 * @param commonRun Common Run execution status between {@link UserHandler} and
 	 * {@link ServerHandler}
 	 * @param parentLogger the parent logger
 	 */
 	public UserHandler(InputStream in,
 	                   OutputStream out,
+	                   int maxFrame,
+	                   AtomicLong lastSequence,
 	                   Boolean commonRun,
 	                   Logger parentLogger)
 	{
@@ -98,6 +118,9 @@ class UserHandler implements Runnable
 			System.exit(Failure.CLIENT_OUTPUT_STREAM.toInteger());
 		}
 
+		this.maxFrame = maxFrame;
+		this.lastSequence = lastSequence;
+
 		if (commonRun != null)
 		{
 			this.commonRun = commonRun;
@@ -141,7 +164,13 @@ class UserHandler implements Runnable
 			{
 				break;
 			}
-			if (userInput != null)
+			if ((userInput != null)
+			    && (userInput.getBytes(StandardCharsets.UTF_8).length > maxFrame))
+			{
+				logger.warning("UserHandler: line exceeds max frame " + maxFrame
+				    + ", not sent");
+			}
+			else if (userInput != null)
 			{
 				/*
 				 * DONE Sends user input to server using the server print writer
@@ -149,7 +178,7 @@ class UserHandler implements Runnable
 				 */
 				try 
 				{
-					serverOutPW.println(userInput);
+					serverOutPW.println(catchupSince(userInput));
 				}
 				catch(Exception e)
 				{
@@ -184,6 +213,27 @@ class UserHandler implements Runnable
 		}
 	}
 
+	/**
+	 * Adds the sequence number of the last message received from the server's
+	 * history to a bare catchup command so that the server only sends the
+	 * messages we missed
+	 * @param userInput the line typed by the user
+	 * @return the line to send to the server
+	 */
+	private String catchupSince(String userInput)
+	{
+		if ((lastSequence != null)
+		    && userInput.trim().equalsIgnoreCase(Vocabulary.catchUpCmd))
+		{
+			long since = lastSequence.get();
+			if (since > 0)
+			{
+				return new String(Vocabulary.catchUpCmd + " " + since);
+			}
+		}
+		return userInput;
+	}
+
 	/**
 	 * Streams cleanup and close
 	 */
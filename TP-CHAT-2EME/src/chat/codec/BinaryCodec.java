@@ -0,0 +1,439 @@
+package chat.codec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import models.Message;
+
+/**
+ * Compact binary codec.
+ * A stream starts with a 5 bytes header ("CHAT" followed by the format
+ * version) and each message is encoded as:
+ * <ul>
+ * 	<li>the length of the rest of the message (varint)</li>
+ * 	<li>the message's date in ms since epoch (varint)</li>
+ * 	<li>the message's sequence number (varint, 0 if the message is not kept
+ * 	in the server's history), since version 2</li>
+ * 	<li>the length of the author's name + 1 (varint), 0 if the message has no
+ * 	author, followed by the author's name (UTF-8). Since version 3, the
+ * 	name of the room a message has been sent to follows the author's name
+ * 	(which may be empty) after a NUL character, so messages without room
+ * 	are encoded as in version 2 (and stored messages remain readable)</li>
+ * 	<li>the message's content (UTF-8) up to the end of the message</li>
+ * </ul>
+ * Varints are unsigned little endian base 128 integers: 7 bits per byte,
+ * the high bit of each byte indicating another byte follows.
+ * @author davidroussel
+ */
+public class BinaryCodec implements MessageCodec
+{
+	/**
+	 * Shared instance (this codec has no state)
+	 */
+	public final static BinaryCodec INSTANCE = new BinaryCodec();
+
+	/**
+	 * Format version
+	 */
+	public final static byte VERSION = 3;
+
+	/**
+	 * Stream header
+	 */
+	private final static byte[] HEADER = {'C', 'H', 'A', 'T', VERSION};
+
+	/**
+	 * Oldest format version still accepted by readers (version 1 messages
+	 * have no sequence number)
+	 */
+	public final static byte MINVERSION = 1;
+
+	/**
+	 * Maximum length of an encoded message accepted by readers (protects
+	 * readers from allocating huge buffers on corrupted streams)
+	 */
+	public final static int MAXLENGTH = 1 << 24;
+
+	/**
+	 * Separator between the author's name and the room's name (since
+	 * version 3)
+	 */
+	private final static char ROOMSEPARATOR = '\0';
+
+	/**
+	 * Charset of authors and contents
+	 */
+	private final static Charset charset = StandardCharsets.UTF_8;
+
+	/**
+	 * Private constructor (use {@link #INSTANCE})
+	 */
+	private BinaryCodec()
+	{
+	}
+
+	/**
+	 * Type of this codec
+	 * @return {@link CodecType#BINARY}
+	 */
+	@Override
+	public CodecType getType()
+	{
+		return CodecType.BINARY;
+	}
+
+	/**
+	 * Binary stream header
+	 * @return the binary stream header bytes
+	 */
+	@Override
+	public byte[] header()
+	{
+		return HEADER;
+	}
+
+	/**
+	 * Encodes a message in binary format
+	 * @param message the message to encode
+	 * @return the encoded message (including its length prefix)
+	 */
+	@Override
+	public byte[] encode(Message message)
+	{
+		String name = message.getAuthor();
+		if (message.hasRoom())
+		{
+			name = (name != null ? name : "") + ROOMSEPARATOR
+			    + message.getRoom();
+		}
+		byte[] author = (name != null ? name.getBytes(charset) : null);
+		byte[] content = message.getContent().getBytes(charset);
+		long date = message.getDate().getTime();
+		long sequence = message.getSequence();
+		int authorPrefix = (author != null ? author.length + 1 : 0);
+
+		int bodyLength = varintSize(date)
+		    + varintSize(sequence)
+		    + varintSize(authorPrefix)
+		    + (author != null ? author.length : 0)
+		    + content.length;
+		byte[] encoded = new byte[varintSize(bodyLength) + bodyLength];
+
+		int position = putVarint(encoded, 0, bodyLength);
+		position = putVarint(encoded, position, date);
+		position = putVarint(encoded, position, sequence);
+		position = putVarint(encoded, position, authorPrefix);
+		if (author != null)
+		{
+			System.arraycopy(author, 0, encoded, position, author.length);
+			position += author.length;
+		}
+		System.arraycopy(content, 0, encoded, position, content.length);
+		return encoded;
+	}
+
+	/**
+	 * Creates a reader on a binary stream accepting messages up to
+	 * {@link #MAXLENGTH}
+	 * @param in the stream to read messages from
+	 * @return a new reader
+	 * @throws IOException if the stream header could not be read or is
+	 * invalid (or of an unsupported version)
+	 */
+	@Override
+	public MessageReader newReader(InputStream in) throws IOException
+	{
+		return newReader(in, MAXLENGTH);
+	}
+
+	/**
+	 * Creates a reader on a binary stream
+	 * @param in the stream to read messages from
+	 * @param maxFrame maximum size of an encoded message (including its
+	 * length prefix), bounded by {@link #MAXLENGTH}
+	 * @return a new reader
+	 * @throws IOException if the stream header could not be read or is
+	 * invalid (or of an unsupported version)
+	 */
+	@Override
+	public MessageReader newReader(InputStream in, int maxFrame)
+	    throws IOException
+	{
+		final int maxLength = Math.min(maxFrame, MAXLENGTH);
+		final DataInputStream input =
+		    new DataInputStream(new BufferedInputStream(in));
+		byte[] header = new byte[HEADER.length];
+		input.readFully(header);
+		final byte version = header[HEADER.length - 1];
+		if (!Arrays.equals(Arrays.copyOf(header, HEADER.length - 1),
+		                   Arrays.copyOf(HEADER, HEADER.length - 1))
+		    || (version < MINVERSION) || (version > VERSION))
+		{
+			throw new StreamCorruptedException("invalid binary stream header");
+		}
+
+		return new MessageReader()
+		{
+			@Override
+			public Message read() throws IOException
+			{
+				long length = readVarint(input);
+				if ((length < 0) || (length > MAXLENGTH))
+				{
+					throw new StreamCorruptedException("invalid message length "
+					    + length);
+				}
+				if (length + varintSize(length) > maxLength)
+				{
+					throw new StreamCorruptedException("message of "
+					    + (length + varintSize(length))
+					    + " bytes exceeds max frame " + maxLength);
+				}
+				byte[] body = new byte[(int) length];
+				input.readFully(body);
+				return decode(body, version);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				input.close();
+			}
+		};
+	}
+
+	/**
+	 * Creates a writer on a binary stream
+	 * @param out the stream to write messages to
+	 * @param budget ignored since binary messages are always independent
+	 * @return a new writer
+	 * @throws IOException if the stream header could not be written
+	 */
+	@Override
+	public MessageWriter newWriter(OutputStream out, ResetBudget budget)
+	    throws IOException
+	{
+		return new EncodingWriter(out, this);
+	}
+
+	/**
+	 * Length of the encoded message starting at an offset of a buffer (used
+	 * to split stored sequences of encoded messages)
+	 * @param buffer the buffer containing encoded messages
+	 * @param offset the offset of the encoded message in the buffer
+	 * @param limit the end of the valid bytes of the buffer
+	 * @return the length of the encoded message (including its length
+	 * prefix) or -1 if its length prefix is truncated by limit
+	 * @throws StreamCorruptedException if the length prefix is invalid
+	 */
+	public static int frameLength(byte[] buffer, int offset, int limit)
+	    throws StreamCorruptedException
+	{
+		long value = 0;
+		for (int i = offset, shift = 0; shift < 35; i++, shift += 7)
+		{
+			if (i >= limit)
+			{
+				return -1;
+			}
+			byte b = buffer[i];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if ((value <= 0) || (value > MAXLENGTH))
+				{
+					throw new StreamCorruptedException("invalid message length "
+					    + value);
+				}
+				return (int) value + (i - offset + 1);
+			}
+		}
+		throw new StreamCorruptedException("varint too long");
+	}
+
+	/**
+	 * Date and sequence number of the encoded message starting at an offset
+	 * of a buffer (without decoding its author and content)
+	 * @param buffer the buffer containing the beginning of the encoded
+	 * message
+	 * @param offset the offset of the encoded message in the buffer
+	 * @param limit the end of the valid bytes of the buffer
+	 * @return the message's date (in ms since epoch) and sequence number
+	 * @throws StreamCorruptedException if the message's beginning is
+	 * truncated or invalid
+	 */
+	public static long[] frameHeader(byte[] buffer, int offset, int limit)
+	    throws StreamCorruptedException
+	{
+		byte[] header = Arrays.copyOfRange(buffer, offset, limit);
+		int[] position = {0};
+		getVarint(header, position); // length
+		long date = getVarint(header, position);
+		long sequence = getVarint(header, position);
+		return new long[] {date, sequence};
+	}
+
+	/**
+	 * Decodes an encoded message (including its length prefix) in the
+	 * current format version, such as the ones returned by
+	 * {@link #encode(Message)}
+	 * @param encoded the encoded message
+	 * @return the decoded message
+	 * @throws StreamCorruptedException if the encoded message is inconsistent
+	 */
+	public Message decode(byte[] encoded) throws StreamCorruptedException
+	{
+		int[] position = {0};
+		long length = getVarint(encoded, position);
+		if (length != encoded.length - position[0])
+		{
+			throw new StreamCorruptedException("invalid message length "
+			    + length);
+		}
+		return decode(Arrays.copyOfRange(encoded, position[0], encoded.length),
+		              VERSION);
+	}
+
+	/**
+	 * Decodes a message's body (without its length prefix)
+	 * @param body the message's body
+	 * @param version format version of the stream
+	 * @return the decoded message
+	 * @throws StreamCorruptedException if the body is inconsistent
+	 */
+	private static Message decode(byte[] body, byte version)
+	    throws StreamCorruptedException
+	{
+		int[] position = {0};
+		long date = getVarint(body, position);
+		long sequence = (version >= 2 ? getVarint(body, position) : 0);
+		long authorPrefix = getVarint(body, position);
+		String author = null;
+		String room = null;
+		if (authorPrefix > 0)
+		{
+			int authorLength = (int) (authorPrefix - 1);
+			if ((authorPrefix > body.length)
+			    || (position[0] + authorLength > body.length))
+			{
+				throw new StreamCorruptedException("invalid author length");
+			}
+			author = new String(body, position[0], authorLength, charset);
+			position[0] += authorLength;
+			int separator = (version >= 3 ? author.indexOf(ROOMSEPARATOR) : -1);
+			if (separator >= 0)
+			{
+				room = author.substring(separator + 1);
+				author = (separator > 0 ? author.substring(0, separator) : null);
+			}
+		}
+		String content = new String(body,
+		                            position[0],
+		                            body.length - position[0],
+		                            charset);
+		Message message = new Message(new Date(date), content, author, room);
+		return (sequence != 0 ? new Message(message, sequence) : message);
+	}
+
+	/**
+	 * Number of bytes of a varint
+	 * @param value the (unsigned) value to encode
+	 * @return the number of bytes needed to encode this value
+	 */
+	private static int varintSize(long value)
+	{
+		int size = 1;
+		while ((value & ~0x7FL) != 0)
+		{
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a varint in a buffer
+	 * @param buffer the buffer to write to
+	 * @param position the position to write at
+	 * @param value the (unsigned) value to write
+	 * @return the position following the written varint
+	 */
+	private static int putVarint(byte[] buffer, int position, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Reads a varint from a buffer
+	 * @param buffer the buffer to read from
+	 * @param position the position to read at (updated to the position
+	 * following the varint)
+	 * @return the read value
+	 * @throws StreamCorruptedException if the varint is truncated or too long
+	 */
+	private static long getVarint(byte[] buffer, int[] position)
+	    throws StreamCorruptedException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			if (position[0] >= buffer.length)
+			{
+				throw new StreamCorruptedException("truncated varint");
+			}
+			byte b = buffer[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("varint too long");
+	}
+
+	/**
+	 * Reads a varint from a stream
+	 * @param in the stream to read from
+	 * @return the read value
+	 * @throws EOFException if the stream ends before the varint
+	 * @throws IOException if the varint could not be read or is too long
+	 */
+	private static long readVarint(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("varint too long");
+	}
+
+	/**
+	 * Codec string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return getType().toString();
+	}
+}
@@ -0,0 +1,66 @@
+package chat.codec;
+
+/**
+ * Enumeration of available {@link MessageCodec}s
+ * @author davidroussel
+ */
+public enum CodecType
+{
+	/**
+	 * Java serialization of {@link models.Message} objects
+	 * @see SerialCodec
+	 */
+	SERIAL,
+	/**
+	 * Compact binary format
+	 * @see BinaryCodec
+	 */
+	BINARY;
+
+	/**
+	 * Codec type string representation
+	 */
+	@Override
+	public String toString()
+	{
+		switch (this)
+		{
+			case SERIAL:
+				return new String("Serial codec");
+			case BINARY:
+				return new String("Binary codec");
+		}
+		throw new AssertionError("CodecType: unknown type: " + this);
+	}
+
+	/**
+	 * Codec of this type
+	 * @return the (shared) codec of this type
+	 */
+	public MessageCodec getCodec()
+	{
+		switch (this)
+		{
+			case SERIAL:
+				return SerialCodec.INSTANCE;
+			case BINARY:
+				return BinaryCodec.INSTANCE;
+		}
+		throw new AssertionError("CodecType: unknown type: " + this);
+	}
+
+	/**
+	 * Factory method of a {@link CodecType} from its name
+	 * @param value the name of the codec ("serial" or "binary")
+	 * @return {@link #BINARY} if value is "binary" (ignoring case),
+	 * {@link #SERIAL} otherwise
+	 */
+	public static CodecType fromString(String value)
+	{
+		if ((value != null) && value.equalsIgnoreCase("binary"))
+		{
+			return BINARY;
+		}
+		return SERIAL;
+	}
+}
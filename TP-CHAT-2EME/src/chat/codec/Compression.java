@@ -0,0 +1,53 @@
+package chat.codec;
+
+/**
+ * Enumeration of compressions which can be applied to a stream of encoded
+ * {@link models.Message}s (negotiated between a client and the server, see
+ * {@link chat.Hello})
+ * @author davidroussel
+ */
+public enum Compression
+{
+	/**
+	 * Messages are sent as encoded by their {@link MessageCodec}
+	 */
+	NONE,
+	/**
+	 * Raw deflate with a preset dictionary and a sync flush after each batch
+	 * of messages
+	 * @see DeflatingOutputStream
+	 * @see InflatingInputStream
+	 */
+	DEFLATE;
+
+	/**
+	 * Compression string representation
+	 */
+	@Override
+	public String toString()
+	{
+		switch (this)
+		{
+			case NONE:
+				return new String("No compression");
+			case DEFLATE:
+				return new String("Deflate compression");
+		}
+		throw new AssertionError("Compression: unknown compression: " + this);
+	}
+
+	/**
+	 * Factory method of a {@link Compression} from its name
+	 * @param value the name of the compression ("none" or "deflate")
+	 * @return {@link #DEFLATE} if value is "deflate" (ignoring case),
+	 * {@link #NONE} otherwise
+	 */
+	public static Compression fromString(String value)
+	{
+		if ((value != null) && value.equalsIgnoreCase("deflate"))
+		{
+			return DEFLATE;
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,179 @@
+package chat.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compressing stream of a connection using {@link Compression#DEFLATE}.
+ * Raw deflate data (without zlib header) is produced with a preset
+ * dictionary shared with the {@link InflatingInputStream} reading it, and
+ * each {@link #flush()} ends with a sync flush so every flushed batch can be
+ * decoded as soon as it is received.
+ * This stream also counts bytes before and after compression and the time
+ * spent compressing.
+ * @author davidroussel
+ */
+public class DeflatingOutputStream extends DeflaterOutputStream
+{
+	/**
+	 * Size of the compressed data buffer
+	 */
+	private final static int BUFFERSIZE = 4096;
+
+	/**
+	 * Number of bytes written to this stream (before compression)
+	 */
+	private long bytesIn;
+
+	/**
+	 * Number of compressed bytes written to the underlying stream
+	 */
+	private long bytesOut;
+
+	/**
+	 * Time spent compressing (in ns)
+	 */
+	private long nanos;
+
+	/**
+	 * Constructor
+	 * @param out the stream to write compressed data to
+	 * @param dictionary the preset dictionary (or null)
+	 */
+	public DeflatingOutputStream(OutputStream out, byte[] dictionary)
+	{
+		super(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true), BUFFERSIZE);
+		if ((dictionary != null) && (dictionary.length > 0))
+		{
+			def.setDictionary(dictionary);
+		}
+		bytesIn = 0;
+		bytesOut = 0;
+		nanos = 0;
+	}
+
+	/**
+	 * Compresses bytes
+	 * @param b the bytes to compress
+	 * @param off the start offset in b
+	 * @param len the number of bytes to compress
+	 * @throws IOException if compressed data could not be written
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		long start = System.nanoTime();
+		super.write(b, off, len);
+		bytesIn += len;
+		nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Writes the next block of compressed data to the underlying stream
+	 * @throws IOException if compressed data could not be written
+	 */
+	@Override
+	protected void deflate() throws IOException
+	{
+		int len = def.deflate(buf, 0, buf.length);
+		if (len > 0)
+		{
+			out.write(buf, 0, len);
+			bytesOut += len;
+		}
+	}
+
+	/**
+	 * Sync flush: writes all pending compressed data (aligned on a byte
+	 * boundary) then flushes the underlying stream
+	 * @throws IOException if compressed data could not be written or flushed
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		long start = System.nanoTime();
+		if (!def.finished())
+		{
+			int len;
+			while ((len = def.deflate(buf, 0, buf.length,
+			                          Deflater.SYNC_FLUSH)) > 0)
+			{
+				out.write(buf, 0, len);
+				bytesOut += len;
+				if (len < buf.length)
+				{
+					break;
+				}
+			}
+		}
+		nanos += System.nanoTime() - start;
+		out.flush();
+	}
+
+	/**
+	 * Closes this stream and releases the deflater's native resources
+	 * @throws IOException if remaining data could not be written
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			def.end();
+		}
+	}
+
+	/**
+	 * Number of bytes written to this stream
+	 * @return the number of bytes before compression
+	 */
+	public long getBytesIn()
+	{
+		return bytesIn;
+	}
+
+	/**
+	 * Number of compressed bytes
+	 * @return the number of bytes written to the underlying stream
+	 */
+	public long getBytesOut()
+	{
+		return bytesOut;
+	}
+
+	/**
+	 * Time spent compressing
+	 * @return the time spent compressing (in ns)
+	 */
+	public long getNanos()
+	{
+		return nanos;
+	}
+
+	/**
+	 * Compression ratio
+	 * @return the number of bytes before compression per compressed byte
+	 * (1 if nothing has been compressed yet)
+	 */
+	public double getRatio()
+	{
+		return (bytesOut > 0 ? (double) bytesIn / bytesOut : 1.0);
+	}
+
+	/**
+	 * Statistics string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("deflate " + bytesIn + " -> " + bytesOut
+		    + " bytes (ratio " + String.format("%.2f", getRatio()) + ", "
+		    + (nanos / 1000) + " us)");
+	}
+}
@@ -0,0 +1,53 @@
+package chat.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import models.Message;
+
+/**
+ * Stateless writer: each message is encoded independently with
+ * {@link MessageCodec#encode(Message)}
+ * @author davidroussel
+ */
+class EncodingWriter extends MessageWriter
+{
+	/**
+	 * The codec used to encode messages
+	 */
+	private final MessageCodec codec;
+
+	/**
+	 * Constructor: writes the codec's header on the stream
+	 * @param out the stream to write messages to
+	 * @param codec the codec used to encode messages
+	 * @throws IOException if the header could not be written
+	 */
+	EncodingWriter(OutputStream out, MessageCodec codec) throws IOException
+	{
+		super(out);
+		this.codec = codec;
+		this.out.write(codec.header());
+	}
+
+	/**
+	 * Encodes and writes a message
+	 * @param message the message to write
+	 * @throws IOException if the message could not be encoded or written
+	 */
+	@Override
+	public void write(Message message) throws IOException
+	{
+		writeEncoded(codec.encode(message));
+	}
+
+	/**
+	 * Messages are encoded independently
+	 * @return true
+	 */
+	@Override
+	public boolean isStateless()
+	{
+		return true;
+	}
+}
@@ -0,0 +1,161 @@
+package chat.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompressing stream of a connection using {@link Compression#DEFLATE}:
+ * reads the raw deflate data produced by a {@link DeflatingOutputStream}
+ * using the same preset dictionary.
+ * This stream also counts bytes before and after decompression and the
+ * time spent decompressing.
+ * @author davidroussel
+ */
+public class InflatingInputStream extends InflaterInputStream
+{
+	/**
+	 * Size of the compressed data buffer
+	 */
+	private final static int BUFFERSIZE = 4096;
+
+	/**
+	 * Number of compressed bytes read from the underlying stream
+	 */
+	private long bytesIn;
+
+	/**
+	 * Number of bytes read from this stream (after decompression)
+	 */
+	private long bytesOut;
+
+	/**
+	 * Time spent decompressing (in ns, excluding time spent waiting for
+	 * compressed data)
+	 */
+	private long nanos;
+
+	/**
+	 * Time spent waiting for compressed data (in ns)
+	 */
+	private long waitNanos;
+
+	/**
+	 * Constructor
+	 * @param in the stream to read compressed data from
+	 * @param dictionary the preset dictionary (or null)
+	 */
+	public InflatingInputStream(InputStream in, byte[] dictionary)
+	{
+		super(in, new Inflater(true), BUFFERSIZE);
+		if ((dictionary != null) && (dictionary.length > 0))
+		{
+			inf.setDictionary(dictionary);
+		}
+		bytesIn = 0;
+		bytesOut = 0;
+		nanos = 0;
+		waitNanos = 0;
+	}
+
+	/**
+	 * Reads the underlying stream into the compressed data buffer
+	 * @throws IOException if the underlying stream could not be read
+	 */
+	@Override
+	protected void fill() throws IOException
+	{
+		long start = System.nanoTime();
+		super.fill();
+		waitNanos += System.nanoTime() - start;
+		bytesIn += len;
+	}
+
+	/**
+	 * Decompresses bytes
+	 * @param b the buffer to decompress to
+	 * @param off the start offset in b
+	 * @param len the maximum number of bytes to decompress
+	 * @return the number of decompressed bytes or -1 at the end of the stream
+	 * @throws IOException if compressed data could not be read or is invalid
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		long start = System.nanoTime();
+		long waitStart = waitNanos;
+		int count = super.read(b, off, len);
+		nanos += System.nanoTime() - start - (waitNanos - waitStart);
+		if (count > 0)
+		{
+			bytesOut += count;
+		}
+		return count;
+	}
+
+	/**
+	 * Closes this stream and releases the inflater's native resources
+	 * @throws IOException if the underlying stream could not be closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			inf.end();
+		}
+	}
+
+	/**
+	 * Number of compressed bytes
+	 * @return the number of bytes read from the underlying stream
+	 */
+	public long getBytesIn()
+	{
+		return bytesIn;
+	}
+
+	/**
+	 * Number of bytes read from this stream
+	 * @return the number of bytes after decompression
+	 */
+	public long getBytesOut()
+	{
+		return bytesOut;
+	}
+
+	/**
+	 * Time spent decompressing
+	 * @return the time spent decompressing (in ns)
+	 */
+	public long getNanos()
+	{
+		return nanos;
+	}
+
+	/**
+	 * Compression ratio
+	 * @return the number of decompressed bytes per compressed byte (1 if
+	 * nothing has been decompressed yet)
+	 */
+	public double getRatio()
+	{
+		return (bytesIn > 0 ? (double) bytesOut / bytesIn : 1.0);
+	}
+
+	/**
+	 * Statistics string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("inflate " + bytesIn + " -> " + bytesOut
+		    + " bytes (ratio " + String.format("%.2f", getRatio()) + ", "
+		    + (nanos / 1000) + " us)");
+	}
+}
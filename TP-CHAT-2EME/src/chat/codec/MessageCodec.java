@@ -0,0 +1,77 @@
+package chat.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import models.Message;
+
+/**
+ * Wire format of a stream of {@link Message}s.
+ * A stream starts with the codec's {@link #header()} followed by encoded
+ * messages. Messages encoded with {@link #encode(Message)} are independent
+ * of each other, so a message encoded once can be written to any number of
+ * streams using the same codec (as long as these streams are stateless, see
+ * {@link MessageWriter#isStateless()}).
+ * @author davidroussel
+ */
+public interface MessageCodec
+{
+	/**
+	 * Type of this codec
+	 * @return the type of this codec
+	 */
+	public CodecType getType();
+
+	/**
+	 * Header to write once at the beginning of a stream, before any message
+	 * @return the stream header bytes (should not be modified)
+	 */
+	public byte[] header();
+
+	/**
+	 * Encodes a message so it can be written on any stream of this codec
+	 * after its header
+	 * @param message the message to encode
+	 * @return the encoded message
+	 * @throws IOException if the message could not be encoded
+	 */
+	public byte[] encode(Message message) throws IOException;
+
+	/**
+	 * Creates a reader decoding messages from a stream of this codec.
+	 * The stream header is read (and checked) at creation
+	 * @param in the stream to read messages from
+	 * @return a new reader
+	 * @throws IOException if the stream header could not be read or is
+	 * invalid
+	 */
+	public MessageReader newReader(InputStream in) throws IOException;
+
+	/**
+	 * Creates a reader decoding messages from a stream of this codec and
+	 * rejecting messages larger than a maximum frame size (such as the one
+	 * negotiated in a {@link chat.Hello}).
+	 * The stream header is read (and checked) at creation
+	 * @param in the stream to read messages from
+	 * @param maxFrame maximum size (in bytes) of an encoded message: reading
+	 * a larger message fails with a {@link java.io.StreamCorruptedException}
+	 * @return a new reader
+	 * @throws IOException if the stream header could not be read or is
+	 * invalid
+	 */
+	public MessageReader newReader(InputStream in, int maxFrame)
+	    throws IOException;
+
+	/**
+	 * Creates a writer encoding messages on a stream of this codec.
+	 * The stream header is written at creation
+	 * @param out the stream to write messages to
+	 * @param budget budget between two resets of the stream (ignored by
+	 * codecs without state)
+	 * @return a new writer
+	 * @throws IOException if the stream header could not be written
+	 */
+	public MessageWriter newWriter(OutputStream out, ResetBudget budget)
+	    throws IOException;
+}
@@ -0,0 +1,25 @@
+package chat.codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import models.Message;
+
+/**
+ * Reader decoding {@link Message}s from a stream encoded with a
+ * {@link MessageCodec}
+ * @author davidroussel
+ */
+public interface MessageReader extends Closeable
+{
+	/**
+	 * Reads the next message from the stream (blocks until a whole message
+	 * has been received)
+	 * @return the next message
+	 * @throws ClassNotFoundException if the class of a serialized object
+	 * could not be found
+	 * @throws IOException if the stream is closed, corrupted or reached
+	 * its end ({@link java.io.EOFException})
+	 */
+	public Message read() throws ClassNotFoundException, IOException;
+}
@@ -0,0 +1,204 @@
+package chat.codec;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import models.Message;
+
+/**
+ * Writer encoding {@link Message}s on a stream with a {@link MessageCodec}
+ * (obtained with {@link MessageCodec#newWriter(OutputStream, ResetBudget)}).
+ * A writer also counts messages, bytes and resets written on its stream.
+ * @author davidroussel
+ */
+public abstract class MessageWriter implements Closeable, Flushable
+{
+	/**
+	 * The (counting) stream to write messages to
+	 */
+	protected final OutputStream out;
+
+	/**
+	 * Number of bytes written on {@link #out}
+	 */
+	private long bytes;
+
+	/**
+	 * Number of messages written
+	 */
+	protected long messages;
+
+	/**
+	 * Number of resets of the stream
+	 */
+	protected long resets;
+
+	/**
+	 * Number of bytes written when the stream was last reset
+	 */
+	protected long resetMark;
+
+	/**
+	 * Constructor
+	 * @param out the stream to write messages to
+	 */
+	protected MessageWriter(OutputStream out)
+	{
+		this.out = new FilterOutputStream(out)
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				super.out.write(b);
+				bytes++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				super.out.write(b, off, len);
+				bytes += len;
+			}
+		};
+		bytes = 0;
+		messages = 0;
+		resets = 0;
+		resetMark = 0;
+	}
+
+	/**
+	 * Encodes and writes a message (without flushing the stream)
+	 * @param message the message to write
+	 * @throws IOException if the message could not be encoded or written
+	 */
+	public abstract void write(Message message) throws IOException;
+
+	/**
+	 * Indicates messages written on this stream are independent of each other
+	 * so a message encoded once with {@link MessageCodec#encode(Message)} can
+	 * be written with {@link #writeEncoded(byte[])} on any number of streams
+	 * @return true if this writer's stream has no state
+	 */
+	public abstract boolean isStateless();
+
+	/**
+	 * Writes an already encoded message (only on stateless writers)
+	 * @param encoded the message encoded with this writer's codec
+	 * @throws IOException if the message could not be written
+	 * @throws IllegalStateException if this writer is not stateless
+	 */
+	public void writeEncoded(byte[] encoded) throws IOException
+	{
+		if (!isStateless())
+		{
+			throw new IllegalStateException("MessageWriter: stateful stream");
+		}
+		out.write(encoded);
+		messages++;
+	}
+
+	/**
+	 * Writes already encoded messages stored in a file (only on stateless
+	 * writers): the file's bytes are transferred to the stream without
+	 * decoding the messages
+	 * @param file the file containing messages encoded with this writer's
+	 * codec
+	 * @param position position of the first message in the file
+	 * @param count number of bytes to transfer
+	 * @param nbMessages number of messages contained in these bytes
+	 * @throws IOException if the file could not be read (or is shorter than
+	 * expected) or the stream could not be written
+	 * @throws IllegalStateException if this writer is not stateless
+	 */
+	public void transferEncoded(FileChannel file,
+	                            long position,
+	                            long count,
+	                            long nbMessages)
+	    throws IOException
+	{
+		if (!isStateless())
+		{
+			throw new IllegalStateException("MessageWriter: stateful stream");
+		}
+		WritableByteChannel target = Channels.newChannel(out);
+		long transferred = 0;
+		while (transferred < count)
+		{
+			long written = file.transferTo(position + transferred,
+			                               count - transferred,
+			                               target);
+			if (written <= 0)
+			{
+				throw new EOFException("MessageWriter: truncated file");
+			}
+			transferred += written;
+		}
+		messages += nbMessages;
+	}
+
+	/**
+	 * Flushes the stream
+	 * @throws IOException if the stream could not be flushed
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	/**
+	 * Closes the stream
+	 * @throws IOException if the stream could not be closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		out.close();
+	}
+
+	/**
+	 * Number of written messages
+	 * @return the number of messages written on this stream
+	 */
+	public long getMessages()
+	{
+		return messages;
+	}
+
+	/**
+	 * Number of written bytes
+	 * @return the number of bytes written on this stream (including header)
+	 */
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Number of resets
+	 * @return the number of times this stream's handle table has been reset
+	 */
+	public long getResets()
+	{
+		return resets;
+	}
+
+	/**
+	 * Number of bytes written since last reset: objects contained in these
+	 * bytes are still referenced by the stream's handle table (and by the
+	 * handle table of the stream reading it)
+	 * @return the number of bytes written since last reset (0 on stateless
+	 * streams)
+	 */
+	public long getBytesSinceReset()
+	{
+		return (isStateless() ? 0 : bytes - resetMark);
+	}
+}
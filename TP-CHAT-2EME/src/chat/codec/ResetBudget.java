@@ -0,0 +1,105 @@
+package chat.codec;
+
+/**
+ * Budget of a stateful stream (such as an object stream) between two resets
+ * of its handle table.
+ * Objects written on an object stream are kept by the stream (and by the
+ * stream reading it) until the stream is reset, so a long lived stream
+ * should be reset regularly to keep memory bounded. Resetting after each
+ * message makes every message independent of others (they can be encoded
+ * once and shared by several streams) but class descriptors are then sent
+ * again with every message.
+ * @author davidroussel
+ */
+public class ResetBudget
+{
+	/**
+	 * Budget resetting the stream before each message (messages are
+	 * independent of each other)
+	 */
+	public final static ResetBudget EACH_MESSAGE = new ResetBudget(1, 0);
+
+	/**
+	 * Maximum number of messages between two resets (0 for no limit)
+	 */
+	private final int maxMessages;
+
+	/**
+	 * Maximum number of bytes between two resets (0 for no limit)
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Constructor
+	 * @param maxMessages maximum number of messages between two resets
+	 * (0 or less for no limit)
+	 * @param maxBytes maximum number of bytes between two resets (0 or less
+	 * for no limit)
+	 */
+	public ResetBudget(int maxMessages, long maxBytes)
+	{
+		this.maxMessages = Math.max(maxMessages, 0);
+		this.maxBytes = Math.max(maxBytes, 0);
+	}
+
+	/**
+	 * Maximum number of messages accessor
+	 * @return the maximum number of messages between two resets (0 for no
+	 * limit)
+	 */
+	public int getMaxMessages()
+	{
+		return maxMessages;
+	}
+
+	/**
+	 * Maximum number of bytes accessor
+	 * @return the maximum number of bytes between two resets (0 for no limit)
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Indicates the stream should be reset before each message
+	 * @return true if there can't be more than one message between resets
+	 */
+	public boolean isEachMessage()
+	{
+		return maxMessages == 1;
+	}
+
+	/**
+	 * Indicates this budget is exhausted and the stream should be reset
+	 * before writing another message
+	 * @param messages number of messages written since last reset
+	 * @param bytes number of bytes written since last reset
+	 * @return true if the stream should be reset
+	 */
+	public boolean isExhausted(int messages, long bytes)
+	{
+		return ((maxMessages > 0) && (messages >= maxMessages))
+		    || ((maxBytes > 0) && (bytes >= maxBytes));
+	}
+
+	/**
+	 * Budget string representation
+	 */
+	@Override
+	public String toString()
+	{
+		if (isEachMessage())
+		{
+			return new String("reset before each message");
+		}
+		if ((maxMessages == 0) && (maxBytes == 0))
+		{
+			return new String("never reset");
+		}
+		return new String("reset every "
+		    + (maxMessages > 0 ? maxMessages + " messages" : "")
+		    + ((maxMessages > 0) && (maxBytes > 0) ? " or " : "")
+		    + (maxBytes > 0 ? maxBytes + " bytes" : ""));
+	}
+}
@@ -0,0 +1,284 @@
+package chat.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import models.Message;
+
+/**
+ * Codec using Java serialization: a stream of this codec is a regular object
+ * stream which can be read by an {@link ObjectInputStream}.
+ * Each encoded message starts with a reset marker followed by the serialized
+ * message, so it does not depend on objects previously written on the
+ * stream (the reset marker is consumed transparently by
+ * {@link ObjectInputStream#readObject()}).
+ * @author davidroussel
+ */
+public class SerialCodec implements MessageCodec
+{
+	/**
+	 * Shared instance (this codec has no state)
+	 */
+	public final static SerialCodec INSTANCE = new SerialCodec();
+
+	/**
+	 * Object stream header (magic number and version)
+	 */
+	private final static byte[] HEADER = encodeHeader();
+
+	/**
+	 * Private constructor (use {@link #INSTANCE})
+	 */
+	private SerialCodec()
+	{
+	}
+
+	/**
+	 * Computes the object stream header
+	 * @return the bytes written by an {@link ObjectOutputStream} when created
+	 */
+	private static byte[] encodeHeader()
+	{
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		try
+		{
+			new ObjectOutputStream(encoded).flush();
+		}
+		catch (IOException e)
+		{
+			// Can't happen on an in memory stream
+			throw new AssertionError("SerialCodec: unable to encode header");
+		}
+		return encoded.toByteArray();
+	}
+
+	/**
+	 * Type of this codec
+	 * @return {@link CodecType#SERIAL}
+	 */
+	@Override
+	public CodecType getType()
+	{
+		return CodecType.SERIAL;
+	}
+
+	/**
+	 * Object stream header
+	 * @return the object stream header bytes
+	 */
+	@Override
+	public byte[] header()
+	{
+		return HEADER;
+	}
+
+	/**
+	 * Serializes a message preceded by a reset marker
+	 * @param message the message to encode
+	 * @return the serialized message
+	 * @throws IOException if the message could not be serialized
+	 */
+	@Override
+	public byte[] encode(Message message) throws IOException
+	{
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ObjectOutputStream encoder = new ObjectOutputStream(encoded);
+		/*
+		 * The reset marker tells the receiving stream to forget previously
+		 * read objects and classes descriptors so that this message's own
+		 * references (numbered from the beginning of a fresh stream) are
+		 * valid on any stream
+		 */
+		encoder.reset();
+		encoder.writeObject(message);
+		encoder.flush();
+		byte[] serialized = encoded.toByteArray();
+		return Arrays.copyOfRange(serialized, HEADER.length, serialized.length);
+	}
+
+	/**
+	 * Creates a reader on an object stream without limit on the size of
+	 * messages
+	 * @param in the stream to read messages from
+	 * @return a new reader
+	 * @throws IOException if the object stream header could not be read or
+	 * is invalid
+	 */
+	@Override
+	public MessageReader newReader(InputStream in) throws IOException
+	{
+		return newReader(in, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a reader on an object stream: the bytes read while reading
+	 * each message are counted so that a message larger than maxFrame is
+	 * rejected as soon as its bytes exceed maxFrame
+	 * @param in the stream to read messages from
+	 * @param maxFrame maximum size (in bytes) of a serialized message
+	 * @return a new reader
+	 * @throws IOException if the object stream header could not be read or
+	 * is invalid
+	 */
+	@Override
+	public MessageReader newReader(InputStream in, int maxFrame)
+	    throws IOException
+	{
+		final FrameLimit limit = new FrameLimit(in, maxFrame);
+		final ObjectInputStream inOIS = new ObjectInputStream(limit);
+		return new MessageReader()
+		{
+			@Override
+			public Message read() throws ClassNotFoundException, IOException
+			{
+				limit.reset();
+				return (Message) inOIS.readObject();
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				inOIS.close();
+			}
+		};
+	}
+
+	/**
+	 * Creates a writer on an object stream: when the stream is reset before
+	 * each message, messages are encoded independently (with
+	 * {@link #encode(Message)}), otherwise they are written on a single
+	 * object stream reset according to budget
+	 * @param out the stream to write messages to
+	 * @param budget budget between two resets of the stream
+	 * @return a new writer
+	 * @throws IOException if the object stream header could not be written
+	 */
+	@Override
+	public MessageWriter newWriter(OutputStream out, ResetBudget budget)
+	    throws IOException
+	{
+		if (budget.isEachMessage())
+		{
+			return new EncodingWriter(out, this);
+		}
+		return new SerialStreamWriter(out, budget);
+	}
+
+	/**
+	 * Stream counting the bytes read since its last {@link #reset()} (the
+	 * beginning of a message) and failing when they exceed a maximum frame
+	 * size
+	 */
+	private static class FrameLimit extends FilterInputStream
+	{
+		/**
+		 * Maximum number of bytes between two resets
+		 */
+		private final int maxFrame;
+
+		/**
+		 * Number of bytes read since the last reset
+		 */
+		private long count;
+
+		/**
+		 * Constructor
+		 * @param in the stream to read from
+		 * @param maxFrame maximum number of bytes between two resets
+		 */
+		public FrameLimit(InputStream in, int maxFrame)
+		{
+			super(in);
+			this.maxFrame = maxFrame;
+			count = 0;
+		}
+
+		/**
+		 * Starts counting the bytes of a new message
+		 */
+		@Override
+		public synchronized void reset()
+		{
+			count = 0;
+		}
+
+		/**
+		 * Marks are not supported since {@link #reset()} starts a new message
+		 * @return false
+		 */
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		/**
+		 * Reads a byte of the current message
+		 * @return the byte read or -1 at the end of the stream
+		 * @throws IOException if the byte could not be read or the current
+		 * message exceeds the maximum frame size
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			int b = in.read();
+			if (b >= 0)
+			{
+				count(1);
+			}
+			return b;
+		}
+
+		/**
+		 * Reads bytes of the current message
+		 * @param b the buffer to read to
+		 * @param off the offset of the first byte in b
+		 * @param len the maximum number of bytes to read
+		 * @return the number of bytes read or -1 at the end of the stream
+		 * @throws IOException if the bytes could not be read or the current
+		 * message exceeds the maximum frame size
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = in.read(b, off, len);
+			if (read > 0)
+			{
+				count(read);
+			}
+			return read;
+		}
+
+		/**
+		 * Counts bytes read for the current message
+		 * @param read the number of bytes read
+		 * @throws StreamCorruptedException if the current message exceeds
+		 * the maximum frame size
+		 */
+		private void count(int read) throws StreamCorruptedException
+		{
+			count += read;
+			if (count > maxFrame)
+			{
+				throw new StreamCorruptedException("message exceeds max frame "
+				    + maxFrame);
+			}
+		}
+	}
+
+	/**
+	 * Codec string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return getType().toString();
+	}
+}
@@ -0,0 +1,100 @@
+package chat.codec;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import models.Message;
+
+/**
+ * Stateful writer of a {@link SerialCodec} stream: messages are written on a
+ * single {@link ObjectOutputStream} so class descriptors (and strings shared
+ * by several messages) are only sent once between two resets. The stream is
+ * reset each time its {@link ResetBudget} is exhausted so the handle tables
+ * of the stream and of the stream reading it stay bounded.
+ * @author davidroussel
+ */
+class SerialStreamWriter extends MessageWriter
+{
+	/**
+	 * Object stream writing messages
+	 */
+	private final ObjectOutputStream outOS;
+
+	/**
+	 * Budget between two resets
+	 */
+	private final ResetBudget budget;
+
+	/**
+	 * Number of messages written since last reset
+	 */
+	private int messagesSinceReset;
+
+	/**
+	 * Constructor: writes the object stream header
+	 * @param out the stream to write messages to
+	 * @param budget budget between two resets
+	 * @throws IOException if the header could not be written
+	 */
+	SerialStreamWriter(OutputStream out, ResetBudget budget) throws IOException
+	{
+		super(out);
+		this.budget = budget;
+		outOS = new ObjectOutputStream(this.out);
+		outOS.flush();
+		resetMark = getBytes();
+		messagesSinceReset = 0;
+	}
+
+	/**
+	 * Writes a message on the object stream, after resetting the stream if
+	 * its budget is exhausted
+	 * @param message the message to write
+	 * @throws IOException if the message could not be serialized or written
+	 */
+	@Override
+	public void write(Message message) throws IOException
+	{
+		if (budget.isExhausted(messagesSinceReset, getBytesSinceReset()))
+		{
+			outOS.reset();
+			resets++;
+			resetMark = getBytes();
+			messagesSinceReset = 0;
+		}
+		outOS.writeObject(message);
+		messagesSinceReset++;
+		messages++;
+	}
+
+	/**
+	 * Messages depend on previous messages (until next reset)
+	 * @return false
+	 */
+	@Override
+	public boolean isStateless()
+	{
+		return false;
+	}
+
+	/**
+	 * Flushes the object stream
+	 * @throws IOException if the stream could not be flushed
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		outOS.flush();
+	}
+
+	/**
+	 * Closes the object stream
+	 * @throws IOException if the stream could not be closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		outOS.close();
+	}
+}
@@ -0,0 +1,6 @@
+package chat.codec;
+
+/**
+ * Sub package containing the wire formats of {@link models.Message}s shared
+ * by the server and its clients
+ */
@@ -6,5 +6,6 @@ package chat;
  * {@link chat.Failure} containing possible errors, {@link chat.UserOutputType}
  * defining the kind of messages managed by the client (text or objects) and
  * {@link chat.Vocabulary} containing special commands that the user can use
- * such as "bye" to quit client or "kick" to kick other users
+ * such as "bye" to quit client or "kick" to kick other users and
+ * {@link chat.Hello} negotiating a session's settings when a client connects
  */
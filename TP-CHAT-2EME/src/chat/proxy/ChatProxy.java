@@ -0,0 +1,362 @@
+package chat.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import chat.Hello;
+import chat.server.Listener;
+import logger.LoggerFactory;
+
+/**
+ * Front proxy of several backend chat servers: each client is routed to a
+ * backend chosen by consistent hashing of the room found in its
+ * {@link Hello} (or of its name if it does not join a room when it
+ * connects), so that all the clients of a room share the same backend.
+ * The proxy only reads the handshake (the optional hello line and the name
+ * line), forwards it unchanged to the chosen backend and then copies the
+ * bytes in both directions without parsing them.
+ * Adding a backend only moves to this backend a small share of the rooms
+ * (see {@link ConsistentHash}). If the chosen backend can't be reached, the
+ * client is routed to the next backend of its room on the ring.
+ * Each connection is served by two threads (one per direction).
+ * @author davidroussel
+ */
+public class ChatProxy implements Runnable
+{
+	/**
+	 * Maximum length (in bytes) of a handshake line
+	 */
+	public final static int MAXLINE = 4096;
+
+	/**
+	 * Size (in bytes) of the buffers copying bytes between clients and
+	 * backends
+	 */
+	public final static int BUFFERSIZE = 8192;
+
+	/**
+	 * Timeout (in ms) of connections to backends
+	 */
+	public final static int CONNECTTIMEOUT = 2000;
+
+	/**
+	 * Server socket accepting clients' connections
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Backends ring
+	 */
+	private final ConsistentHash<Listener> backends;
+
+	/**
+	 * Time (in ms) given to new clients to send their handshake
+	 */
+	private final int handshakeTimeout;
+
+	/**
+	 * Number of clients routed to each backend
+	 */
+	private final Map<Listener, AtomicLong> routed;
+
+	/**
+	 * Number of clients which could not be routed (invalid handshake or no
+	 * reachable backend)
+	 */
+	private final AtomicLong rejected;
+
+	/**
+	 * Logger
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructor: binds the proxy's listener
+	 * @param listener the listener accepting clients' connections
+	 * @param backends the backend servers
+	 * @param replicas number of points of each backend on the ring
+	 * @param handshakeTimeout time (in ms) given to new clients to send their
+	 * handshake
+	 * @param parentLogger parent logger
+	 * @throws IOException if the proxy's listener could not be bound
+	 */
+	public ChatProxy(Listener listener,
+	                 List<Listener> backends,
+	                 int replicas,
+	                 int handshakeTimeout,
+	                 Logger parentLogger) throws IOException
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		this.backends = new ConsistentHash<Listener>(replicas);
+		routed = new ConcurrentHashMap<Listener, AtomicLong>();
+		for (Listener backend : backends)
+		{
+			this.backends.add(backend);
+			routed.put(backend, new AtomicLong());
+		}
+		rejected = new AtomicLong();
+		this.handshakeTimeout = handshakeTimeout;
+		serverSocket = listener.open(false);
+	}
+
+	/**
+	 * Accept loop: each new client is served by its own thread until the
+	 * proxy's listener is closed
+	 */
+	@Override
+	public void run()
+	{
+		logger.info("ChatProxy: listening on "
+		    + serverSocket.getLocalSocketAddress() + ", backends "
+		    + backends);
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket client = serverSocket.accept();
+				new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(client);
+					}
+				}, "Proxy-" + client.getRemoteSocketAddress()).start();
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+				{
+					logger.warning("ChatProxy: accept failed");
+					logger.warning(e.getLocalizedMessage());
+				}
+			}
+		}
+		logger.info("ChatProxy: " + this);
+	}
+
+	/**
+	 * Closes the proxy's listener (connected clients are still served)
+	 */
+	public void close()
+	{
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatProxy: unable to close listener");
+			logger.warning(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Serves a client: reads its handshake, connects to its backend, forwards
+	 * the handshake and then copies bytes in both directions until both
+	 * directions are closed
+	 * @param client the client's socket
+	 */
+	private void serve(Socket client)
+	{
+		Socket backend = null;
+		try
+		{
+			client.setTcpNoDelay(true);
+			client.setSoTimeout(handshakeTimeout);
+			InputStream clientIn =
+			    new BufferedInputStream(client.getInputStream());
+			ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+			String line = readLine(clientIn, handshake);
+			Hello hello = Hello.fromString(line);
+			String name = (hello != null ? readLine(clientIn, handshake) :
+			    line);
+			if ((name == null) || name.isEmpty())
+			{
+				rejected.incrementAndGet();
+				logger.warning("ChatProxy: no name from "
+				    + client.getRemoteSocketAddress());
+				return;
+			}
+			client.setSoTimeout(0);
+			String room = (hello != null ? hello.getRoom() : null);
+
+			Listener chosen = null;
+			for (Listener candidate :
+			    backends.candidates(room != null ? room : name))
+			{
+				backend = new Socket();
+				try
+				{
+					backend.connect(candidate.getSocketAddress(),
+					                CONNECTTIMEOUT);
+					chosen = candidate;
+					break;
+				}
+				catch (IOException e)
+				{
+					logger.warning("ChatProxy: backend " + candidate
+					    + " unreachable: " + e.getLocalizedMessage());
+					backend.close();
+				}
+			}
+			if (chosen == null)
+			{
+				rejected.incrementAndGet();
+				logger.severe("ChatProxy: no reachable backend for " + name);
+				return;
+			}
+			routed.get(chosen).incrementAndGet();
+			logger.info("ChatProxy: " + name
+			    + (room != null ? " (" + room + ")" : "") + " -> " + chosen);
+			backend.setTcpNoDelay(true);
+			OutputStream backendOut = backend.getOutputStream();
+			handshake.writeTo(backendOut);
+			backendOut.flush();
+
+			final Socket from = client;
+			final Socket to = backend;
+			final InputStream upstream = clientIn;
+			Thread writer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					splice(upstream, from, to);
+				}
+			}, Thread.currentThread().getName() + "-up");
+			writer.start();
+			splice(backend.getInputStream(), backend, client);
+			writer.join();
+		}
+		catch (SocketTimeoutException e)
+		{
+			rejected.incrementAndGet();
+			logger.warning("ChatProxy: handshake timeout from "
+			    + client.getRemoteSocketAddress());
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatProxy: connection from "
+			    + client.getRemoteSocketAddress() + " failed");
+			logger.warning(e.getLocalizedMessage());
+		}
+		catch (InterruptedException e)
+		{
+			logger.warning("ChatProxy: connection interrupted");
+		}
+		finally
+		{
+			close(client);
+			if (backend != null)
+			{
+				close(backend);
+			}
+		}
+	}
+
+	/**
+	 * Reads a handshake line byte per byte (so that nothing is read beyond
+	 * the line) and keeps its raw bytes
+	 * @param in the client's input stream
+	 * @param raw the raw bytes read so far
+	 * @return the line without its line separator or null if the stream
+	 * ended before the end of the line
+	 * @throws IOException if the line could not be read or is too long
+	 */
+	private static String readLine(InputStream in, ByteArrayOutputStream raw)
+	    throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0)
+		{
+			raw.write(b);
+			if (b == '\n')
+			{
+				String text = line.toString(StandardCharsets.UTF_8.name());
+				return (text.endsWith("\r") ?
+				    text.substring(0, text.length() - 1) : text);
+			}
+			if (line.size() >= MAXLINE)
+			{
+				throw new IOException("handshake line too long");
+			}
+			line.write(b);
+		}
+		return null;
+	}
+
+	/**
+	 * Copies bytes from a socket to another until the input ends, then shuts
+	 * down the output of the other socket (so that the other side sees the
+	 * end of the stream)
+	 * @param in the input stream of the source socket
+	 * @param from the source socket
+	 * @param to the destination socket
+	 */
+	private void splice(InputStream in, Socket from, Socket to)
+	{
+		byte[] buffer = new byte[BUFFERSIZE];
+		try
+		{
+			OutputStream out = to.getOutputStream();
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+			{
+				out.write(buffer, 0, read);
+				out.flush();
+			}
+			to.shutdownOutput();
+		}
+		catch (IOException e)
+		{
+			// the other direction fails as well when sockets are closed
+			logger.fine("ChatProxy: " + from.getRemoteSocketAddress() + " -> "
+			    + to.getRemoteSocketAddress() + ": " + e.getLocalizedMessage());
+			close(from);
+			close(to);
+		}
+	}
+
+	/**
+	 * Closes a socket
+	 * @param socket the socket to close
+	 */
+	private void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatProxy: unable to close socket");
+			logger.warning(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Proxy string representation: clients routed to each backend
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("routed " + routed + ", " + rejected.get()
+		    + " rejected");
+	}
+}
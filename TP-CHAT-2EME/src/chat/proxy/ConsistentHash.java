@@ -0,0 +1,179 @@
+package chat.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing ring assigning keys (such as rooms names) to nodes
+ * (such as backend servers).
+ * Each node is placed on the ring at several points (virtual nodes) and a
+ * key belongs to the node of the first point following the key's hash on
+ * the ring. Adding a node only moves to this node the keys falling just
+ * before its points (about 1/n of the keys with n nodes), other keys stay
+ * on their node. Virtual nodes spread the keys evenly between nodes.
+ * @param <T> the type of nodes (identified on the ring by their string
+ * representation)
+ * @author davidroussel
+ */
+public class ConsistentHash<T>
+{
+	/**
+	 * Default number of points of each node on the ring
+	 */
+	public final static int DEFAULTREPLICAS = 160;
+
+	/**
+	 * Number of points of each node on the ring
+	 */
+	private final int replicas;
+
+	/**
+	 * Nodes indexed by their points on the ring
+	 */
+	private final TreeMap<Long, T> ring;
+
+	/**
+	 * Nodes on the ring
+	 */
+	private final List<T> nodes;
+
+	/**
+	 * Constructor of an empty ring
+	 * @param replicas number of points of each node on the ring
+	 */
+	public ConsistentHash(int replicas)
+	{
+		this.replicas = Math.max(replicas, 1);
+		ring = new TreeMap<Long, T>();
+		nodes = new ArrayList<T>();
+	}
+
+	/**
+	 * Adds a node to the ring
+	 * @param node the node to add
+	 */
+	public synchronized void add(T node)
+	{
+		for (int i = 0; i < replicas; i++)
+		{
+			ring.put(hash(node + "#" + i), node);
+		}
+		nodes.add(node);
+	}
+
+	/**
+	 * Removes a node from the ring (its keys move to the following nodes)
+	 * @param node the node to remove
+	 */
+	public synchronized void remove(T node)
+	{
+		for (int i = 0; i < replicas; i++)
+		{
+			ring.remove(hash(node + "#" + i), node);
+		}
+		nodes.remove(node);
+	}
+
+	/**
+	 * Node of a key
+	 * @param key the key
+	 * @return the node the key belongs to or null if the ring is empty
+	 */
+	public synchronized T get(String key)
+	{
+		if (ring.isEmpty())
+		{
+			return null;
+		}
+		SortedMap<Long, T> tail = ring.tailMap(hash(key));
+		return (tail.isEmpty() ? ring.firstEntry().getValue() :
+		    tail.get(tail.firstKey()));
+	}
+
+	/**
+	 * Nodes of a key in order of preference: the node the key belongs to
+	 * followed by the nodes the key would move to if the previous ones were
+	 * removed
+	 * @param key the key
+	 * @return the distinct nodes in order of preference for this key
+	 */
+	public synchronized List<T> candidates(String key)
+	{
+		List<T> candidates = new ArrayList<T>(nodes.size());
+		long hash = hash(key);
+		collect(ring.tailMap(hash).values(), candidates);
+		collect(ring.headMap(hash).values(), candidates);
+		return candidates;
+	}
+
+	/**
+	 * Adds the nodes of a part of the ring to the candidates of a key (until
+	 * all nodes are candidates)
+	 * @param part the nodes of the part of the ring, in ring order
+	 * @param candidates the distinct candidates found so far
+	 */
+	private void collect(Collection<T> part, List<T> candidates)
+	{
+		for (T node : part)
+		{
+			if (candidates.size() == nodes.size())
+			{
+				return;
+			}
+			if (!candidates.contains(node))
+			{
+				candidates.add(node);
+			}
+		}
+	}
+
+	/**
+	 * Number of nodes accessor
+	 * @return the number of nodes on the ring
+	 */
+	public synchronized int size()
+	{
+		return nodes.size();
+	}
+
+	/**
+	 * Position of a key or of a node's point on the ring: the first 8 bytes
+	 * of its MD5 digest (well spread even for similar keys)
+	 * @param key the key
+	 * @return the position of key on the ring
+	 */
+	private static long hash(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5")
+			    .digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++)
+			{
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			}
+			return hash;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// MD5 is available on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Ring string representation
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return new String(nodes + " (" + replicas + " points per node)");
+	}
+}
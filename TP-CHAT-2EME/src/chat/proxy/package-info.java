@@ -0,0 +1,6 @@
+package chat.proxy;
+
+/**
+ * Sub package containing the front proxy routing clients to several backend
+ * servers
+ */
@@ -0,0 +1,372 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import chat.codec.Compression;
+import chat.codec.DeflatingOutputStream;
+import chat.codec.MessageCodec;
+import chat.codec.ResetBudget;
+
+/**
+ * Class representing a client connected through a non blocking
+ * {@link java.nio.channels.SocketChannel} and processed by an
+ * {@link EventLoop} of a {@link NioChatServer}.
+ * Frames sent to this client are queued in its {@link OutboundQueue} and
+ * written by the event loop (which is this client's writer) when the
+ * channel is ready to be written, so {@link #send(Frame)} never blocks.
+ * Frames are written without copy when this client's stream is stateless
+ * and not compressed, otherwise they are encoded (and compressed) by this
+ * client's writer in a private buffer.
+ * When write coalescing is enabled, the event loop delays writing frames
+ * queued for this client until the end of the coalescing window, or until
+ * {@link #isFull()} indicates the byte budget has been reached.
+ * @author davidroussel
+ */
+public class ChannelClient extends InputOutputClient
+{
+	/**
+	 * The connection (channel and outbound buffers) of this client
+	 */
+	private final EventLoop.Connection connection;
+
+	/**
+	 * Buffer receiving messages encoded by this client's (stateful) writer
+	 */
+	private final ByteArrayOutputStream encoded;
+
+	/**
+	 * Indicates frames bytes are shared with other recipients and handed to
+	 * the connection without copy
+	 */
+	private final boolean shared;
+
+	/**
+	 * Number of shared frames handed to the connection without copy
+	 */
+	private long sharedMessages;
+
+	/**
+	 * Number of bytes of shared frames handed to the connection without copy
+	 */
+	private long sharedBytes;
+
+	/**
+	 * Number of bytes of queued frames (only counted when the coalescing
+	 * window has a byte budget). Since frames are measured with their shared
+	 * encoding, this is an estimate on stateful or compressed streams.
+	 */
+	private final AtomicLong queuedBytes;
+
+	/**
+	 * Log region polled from the queue to be transferred by the connection
+	 * after the pending buffers (null if none)
+	 */
+	private LogRegion region;
+
+	/**
+	 * Frames polled from the queue after a log region, moved to the
+	 * connection's pending buffers once the region has been transferred
+	 */
+	private final List<Frame> deferred;
+
+	/**
+	 * Constructor
+	 * @param connection the connection of this client
+	 * @param name client's name
+	 * @param outbound queue of frames waiting to be written to this client
+	 * @param codec codec used to encode messages sent to this client
+	 * @param budget budget between two resets of this client's stream
+	 * (only used by stateful codecs streams)
+	 * @param compression compression of this client's stream
+	 * @param dictionary preset dictionary of the compression (or null)
+	 * @param coalescing write coalescing of this client's connection
+	 * @param parentLogger parent's logger
+	 */
+	public ChannelClient(EventLoop.Connection connection,
+	                     String name,
+	                     OutboundQueue<Frame> outbound,
+	                     MessageCodec codec,
+	                     ResetBudget budget,
+	                     Compression compression,
+	                     byte[] dictionary,
+	                     Coalescing coalescing,
+	                     Logger parentLogger)
+	{
+		super(name, outbound, codec, coalescing, parentLogger);
+		this.connection = connection;
+		clientSocket = connection.getChannel().socket();
+		encoded = new ByteArrayOutputStream();
+		sharedMessages = 0;
+		sharedBytes = 0;
+		queuedBytes = new AtomicLong(0);
+		region = null;
+		deferred = new ArrayList<Frame>();
+		try
+		{
+			if (compression == Compression.DEFLATE)
+			{
+				compressor = new DeflatingOutputStream(encoded, dictionary);
+				writer = codec.newWriter(compressor, budget);
+			}
+			else
+			{
+				writer = codec.newWriter(encoded, budget);
+			}
+			writer.flush();
+		}
+		catch (IOException e)
+		{
+			// Can't happen on an in memory stream
+			throw new AssertionError("ChannelClient: unable to write header");
+		}
+		shared = writer.isStateless() && (compressor == null);
+		// the codec's stream header is queued first
+		connection.enqueue(drainEncoded());
+		ready = true;
+	}
+
+	/**
+	 * Number of messages written to this client (shared frames included)
+	 * @return the number of messages written to this client
+	 */
+	@Override
+	public long getMessagesWritten()
+	{
+		return super.getMessagesWritten() + sharedMessages;
+	}
+
+	/**
+	 * Number of bytes written to this client (shared frames included)
+	 * @return the number of bytes written to this client
+	 */
+	@Override
+	public long getBytesWritten()
+	{
+		return super.getBytesWritten() + sharedBytes;
+	}
+
+	/**
+	 * Number of writes on this client's channel
+	 * @return the number of writes on this client's channel
+	 */
+	@Override
+	public long getSocketWrites()
+	{
+		return connection.getWrites();
+	}
+
+	/**
+	 * Indicates queued frames reached the byte budget of the coalescing
+	 * window and should be written without waiting for the end of the window
+	 * @return true if queued frames should be written
+	 */
+	boolean isFull()
+	{
+		return coalescing.isFull(queuedBytes.get());
+	}
+
+	/**
+	 * Size of a frame counted in {@link #queuedBytes}
+	 * @param frame the frame to measure
+	 * @return the size of the frame with this client's codec or 0 if the
+	 * coalescing window has no byte budget
+	 */
+	private int weight(Frame frame)
+	{
+		if (coalescing.getMaxBytes() == 0)
+		{
+			return 0;
+		}
+		try
+		{
+			return frame.size(codec);
+		}
+		catch (IOException e)
+		{
+			// will fail again (and be reported) when written
+			return 0;
+		}
+	}
+
+	/**
+	 * Sends a framed message to this client by queuing it and asking the
+	 * event loop to write it. Since event loops never wait, a full queue with
+	 * the {@link OverflowPolicy#BLOCK} policy disconnects this client.
+	 * @param frame the framed message to send
+	 * @param mayBlock ignored: event loops never wait
+	 */
+	@Override
+	public void send(Frame frame, boolean mayBlock)
+	{
+		if (!fits(frame))
+		{
+			return;
+		}
+		if (outbound.offer(frame, false))
+		{
+			queuedBytes.addAndGet(weight(frame));
+			connection.requestWrite();
+		}
+		else if (ready)
+		{
+			logger.warning("ChannelClient[" + name + "]: outbound queue full ("
+			    + outbound.getPolicy() + "), disconnecting");
+			disconnect();
+		}
+	}
+
+	/**
+	 * Disconnects a slow client: queued messages are discarded and the
+	 * event loop closes the connection and terminates the client's handler
+	 */
+	@Override
+	protected void disconnect()
+	{
+		ready = false;
+		outbound.clear();
+		connection.abort();
+	}
+
+	/**
+	 * Moves the next batch of queued frames to the connection's pending
+	 * buffers (called by the event loop when the channel can be written).
+	 * On a stateless and uncompressed stream, frames bytes are shared with
+	 * other recipients and are not copied, otherwise the whole batch is
+	 * encoded (and compressed with a single sync flush) by this client's
+	 * writer in a single buffer.
+	 * A {@link LogRegion} ends the batch: it should be taken with
+	 * {@link #takeRegion()} and transferred after the pending buffers, and
+	 * the frames following it are moved by the next call.
+	 * @param pending the connection's buffers waiting to be written
+	 * @return the number of frames moved to pending buffers (including a
+	 * region ending the batch)
+	 * @throws IOException if a frame could not be encoded
+	 */
+	int pollPending(Collection<ByteBuffer> pending) throws IOException
+	{
+		List<Frame> batch = new ArrayList<Frame>(MAXBATCH);
+		batch.addAll(deferred);
+		deferred.clear();
+		outbound.pollBatch(batch, MAXBATCH);
+		for (Frame frame : batch)
+		{
+			queuedBytes.addAndGet(-weight(frame));
+		}
+		for (int i = 0; i < batch.size(); i++)
+		{
+			if (batch.get(i) instanceof LogRegion)
+			{
+				region = (LogRegion) batch.get(i);
+				List<Frame> following = batch.subList(i + 1, batch.size());
+				deferred.addAll(following);
+				following.clear();
+				break;
+			}
+		}
+		if (region != null)
+		{
+			batch.remove(batch.size() - 1);
+		}
+		int count = batch.size();
+		if (outbound.size() == 0)
+		{
+			// frames dropped by the overflow policy are not subtracted
+			queuedBytes.set(0);
+		}
+		if (shared)
+		{
+			for (Frame frame : batch)
+			{
+				ByteBuffer buffer = frame.buffer(codec);
+				sharedMessages++;
+				sharedBytes += buffer.remaining();
+				pending.add(buffer);
+			}
+		}
+		else if (count > 0)
+		{
+			for (Frame frame : batch)
+			{
+				frame.writeTo(writer, codec);
+			}
+			writer.flush();
+			pending.add(drainEncoded());
+		}
+		return count + (region != null ? 1 : 0);
+	}
+
+	/**
+	 * Takes the log region ending the last batch moved by
+	 * {@link #pollPending(Collection)}
+	 * @return the log region to transfer after the pending buffers (or null)
+	 */
+	LogRegion takeRegion()
+	{
+		LogRegion taken = region;
+		region = null;
+		return taken;
+	}
+
+	/**
+	 * Counts a log region entirely transferred by the connection
+	 * @param transferred the region
+	 */
+	void regionTransferred(LogRegion transferred)
+	{
+		sharedMessages += transferred.getMessages();
+		sharedBytes += transferred.getBytes();
+	}
+
+	/**
+	 * Moves bytes encoded by this client's writer to a new buffer
+	 * @return a new buffer containing the bytes encoded since last call
+	 */
+	private ByteBuffer drainEncoded()
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(encoded.toByteArray());
+		encoded.reset();
+		return buffer;
+	}
+
+	/**
+	 * Releases this client's writer (and the native resources of its
+	 * compressor) once its connection has been closed by the event loop
+	 */
+	void release()
+	{
+		logger.info("ChannelClient[" + name + "]: released after "
+		    + getMessagesWritten() + " messages (" + getBytesWritten()
+		    + " bytes, " + getSocketWrites() + " writes, " + getResets()
+		    + " resets"
+		    + (compressor != null ? ", " + compressor : "") + ")");
+		try
+		{
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChannelClient[" + name + "]: unable to close writer: "
+			    + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Client's cleanup: the connection is closed by its event loop as soon
+	 * as all queued messages have been written
+	 */
+	@Override
+	public void cleanup()
+	{
+		ready = false;
+		outbound.close();
+		logger.info("ChannelClient::cleanup: closing connection ... ");
+		connection.closeWhenFlushed();
+	}
+}
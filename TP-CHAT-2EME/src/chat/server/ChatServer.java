@@ -1,19 +1,43 @@
 package chat.server;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.Deque;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Vector;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.Hello;
+import chat.Vocabulary;
+import chat.codec.CodecType;
+import chat.codec.Compression;
+import chat.codec.DeflatingOutputStream;
+import chat.codec.MessageCodec;
+import chat.codec.ResetBudget;
 import logger.LoggerFactory;
 import models.Message;
 
@@ -25,9 +49,56 @@ import models.Message;
 public class ChatServer implements Runnable
 {
 	/**
-	 * The server socket
+	 * The server sockets (one for each {@link Listener}).
+	 * Obtained from a {@link ServerSocketChannel} for subclasses such as
+	 * {@link NioChatServer} which use them in non blocking mode
 	 */
-	private ServerSocket serverSocket;
+	protected List<ServerSocket> serverSockets;
+
+	/**
+	 * Indicates the server sockets are obtained from a
+	 * {@link ServerSocketChannel}
+	 */
+	private final boolean channel;
+
+	/**
+	 * Number of acceptors (threads or event loops) accepting connections on
+	 * each server socket
+	 */
+	private int acceptors;
+
+	/**
+	 * Number of shards of a blocking server (a {@link NioChatServer}'s
+	 * shards are its event loops)
+	 */
+	private int nbShards;
+
+	/**
+	 * Shards running client handlers and clients writers (created when the
+	 * server runs)
+	 */
+	private Shard[] shards;
+
+	/**
+	 * Counter used to assign new connections to shards in a round robin
+	 * fashion
+	 */
+	private final AtomicInteger shardCounter;
+
+	/**
+	 * Number of connections accepted on all listeners
+	 */
+	private final AtomicLong accepted;
+
+	/**
+	 * Number of accepted connections when metrics were last logged
+	 */
+	private long lastAccepted;
+
+	/**
+	 * Time (in ns) when metrics were last logged
+	 */
+	private long lastMetrics;
 
 	/**
 	 * default port
@@ -35,41 +106,58 @@ public class ChatServer implements Runnable
 	public final static int DEFAULTPORT = 1394;
 
 	/**
-	 * Default clients connection timeout (in ms). When this timeout is up a
-	 * {@link SocketTimeoutException} is raised and we can choose to wait again
-	 * for a client connection or quit the loop if there is no mode clients
-	 * connected to the server
+	 * Default handshake timeout (in ms): a newly connected client which
+	 * hasn't sent its name within this time is disconnected
 	 */
 	public final static int DEFAULTTIMEOUT = 1000;
 
 	/**
-	 * Clients list, a client is made of
+	 * Handshake timeout (in ms) of newly connected clients
+	 */
+	private final int handshakeTimeout;
+
+	/**
+	 * Scheduler closing the sockets of clients which didn't complete their
+	 * handshake in time (created when the server runs)
+	 */
+	private ScheduledExecutorService handshakeScheduler;
+
+	/**
+	 * Number of clients disconnected because they didn't complete their
+	 * handshake in time
+	 */
+	private final AtomicLong handshakeTimeouts;
+
+	/**
+	 * Clients registry, a client is made of
 	 * <ul>
 	 * <li>a {@link Socket}</li>
 	 * <li>a name : {@link String}</li>
 	 * <li>an input stream : {@link BufferedReader}</li>
 	 * <li>an output stream {@link PrintWriter}</li>
 	 * </ul>
-	 * One should access this list atomically since several threads (one for
-	 * each client)
+	 * The registry is indexed by clients names and can be accessed
+	 * concurrently without locking since several threads (one for each client)
 	 * will be running in the server
 	 */
-	private Vector<InputOutputClient> clients;
+	protected ClientRegistry clients;
 
 	/**
-	 * Clients handler list (one handler for each client)
+	 * Handlers of currently connected clients (one handler for each client).
+	 * Handlers remove themselves from this set when they terminate
 	 */
-	private Vector<ClientHandler> handlers;
+	private Set<ClientHandler> handlers;
 
 	/**
 	 * logger to display debug or info messages
 	 */
-	private Logger logger;
+	protected Logger logger;
 
 	/**
 	 * Listining state of the server.
 	 * Set to false when {@link #quitOnLastClient} is true and last client logs
-	 * out
+	 * out (which also closes the {@link #serverSocket} so that the accept loop
+	 * stops at once)
 	 */
 	private boolean listening;
 
@@ -79,10 +167,77 @@ public class ChatServer implements Runnable
 	private final boolean quitOnLastClient;
 
 	/**
-	 * Number of messages to keep on server (used when a client sends a
-	 * "catchup" request)
+	 * The way client handlers are executed.
+	 * Should be set with {@link #setExecutionMode(ExecutionMode)} before
+	 * running the server
+	 */
+	protected ExecutionMode executionMode;
+
+	/**
+	 * Maximum number of messages queued for each client
+	 */
+	private int queueCapacity;
+
+	/**
+	 * What happens when a client's outbound queue is full
+	 */
+	private OverflowPolicy overflowPolicy;
+
+	/**
+	 * Time (in ms) a sender waits for room in a full client's queue with the
+	 * {@link OverflowPolicy#BLOCK} policy
+	 */
+	private long overflowTimeout;
+
+	/**
+	 * Codec used to encode messages sent to clients
+	 */
+	private MessageCodec codec;
+
+	/**
+	 * Compression offered to clients supporting it (clients can always
+	 * choose {@link Compression#NONE})
+	 */
+	private Compression compression;
+
+	/**
+	 * Maximum size of the preset dictionary of compressed sessions
+	 */
+	public final static int DICTIONARYSIZE = 4096;
+
+	/**
+	 * Budget between two resets of clients streams (only used by stateful
+	 * codecs streams)
+	 */
+	private ResetBudget resetBudget;
+
+	/**
+	 * Write coalescing of clients writers (time window and byte budget
+	 * during which queued frames are gathered in a single write)
+	 */
+	private Coalescing coalescing;
+
+	/**
+	 * Period (in seconds) of metrics logging (0 for no metrics)
+	 */
+	private int metricsPeriod;
+
+	/**
+	 * Scheduler logging metrics while the server runs (null when metrics
+	 * are not logged)
+	 */
+	private ScheduledExecutorService metricsScheduler;
+
+	/**
+	 * Session tokens issued to clients during their {@link Hello} (token to
+	 * client's name), least recently used first
+	 */
+	private final Map<String, String> sessions;
+
+	/**
+	 * Maximum number of session tokens kept by the server
 	 */
-	private final int messagesHistory;
+	public final static int MAXSESSIONS = 1024;
 
 	/**
 	 * Default number of messages to keep on server
@@ -90,17 +245,59 @@ public class ChatServer implements Runnable
 	private final static int DefaultMessagesHistory = 200;
 
 	/**
-	 * List of all messages received from clients (resent during "catchup"
-	 * processing)
+	 * Last messages received from clients (resent during "catchup"
+	 * processing). Messages are kept serialized so they are resent without
+	 * being serialized again
+	 */
+	private final MessageHistory allMessages;
+
+	/**
+	 * Chat rooms indexed by name. Rooms are created when first joined and
+	 * removed when their last member leaves
+	 */
+	private final ConcurrentHashMap<String, Room> rooms;
+
+	/**
+	 * Subscriptions of clients to rooms topics (patterns with wildcards)
+	 */
+	private final SubscriptionTrie subscriptions;
+
+	/**
+	 * Durable log of all messages added to {@link #allMessages} (null if
+	 * messages are only kept in memory). Catchups reaching beyond
+	 * {@link #allMessages} are read from this log
+	 */
+	private MessageLog log;
+
+	/**
+	 * Catchups served by {@link #allMessages} (hot tier hits)
+	 */
+	private final AtomicLong hotHits;
+
+	/**
+	 * Catchups reaching beyond {@link #allMessages} read from the
+	 * {@link #log} (hot tier misses)
+	 */
+	private final AtomicLong hotMisses;
+
+	/**
+	 * Federation with other nodes (null if this server runs alone). Messages
+	 * of this server's clients are relayed to the other nodes and messages
+	 * relayed by the other nodes are delivered to this server's clients
+	 */
+	private Federation federation;
+
+	/**
+	 * Replication of {@link #allMessages} (and {@link #log}) to hot standby
+	 * servers (null if there is no replication)
 	 */
-	private Deque<Message> allMessages;
+	private Replication replication;
 
 	/**
 	 * Chat server constructor.
 	 * Initialize the {@link ServerSocket}
 	 * @param port TCP port used to listen to clients messages
-	 * @param verbose indicates if logger displays messages in console
-	 * @param timeout client wait timeout
+	 * @param timeout handshake timeout (in ms) of newly connected clients
 	 * @param quitOnLastClient quits the server when last client logs out
 	 * @param history number of messages to keep on server
 	 * @param parentLogger parent logger
@@ -113,27 +310,117 @@ public class ChatServer implements Runnable
 	                  int history,
 	                  Logger parentLogger)
 	    throws IOException
+	{
+		this(Collections.singletonList(new Listener(port)),
+		     timeout,
+		     quitOnLastClient,
+		     history,
+		     false,
+		     parentLogger);
+	}
+
+	/**
+	 * Chat server constructor listening on several listeners.
+	 * Initialize the {@link ServerSocket}s
+	 * @param listeners listeners (address, port and backlog) used to listen
+	 * to clients connections
+	 * @param timeout handshake timeout (in ms) of newly connected clients
+	 * @param quitOnLastClient quits the server when last client logs out
+	 * @param history number of messages to keep on server
+	 * @param parentLogger parent logger
+	 * @throws IOException if one of the {@link ServerSocket}s could not be
+	 * created properly
+	 */
+	public ChatServer(List<Listener> listeners,
+	                  int timeout,
+	                  boolean quitOnLastClient,
+	                  int history,
+	                  Logger parentLogger)
+	    throws IOException
+	{
+		this(listeners, timeout, quitOnLastClient, history, false, parentLogger);
+	}
+
+	/**
+	 * Chat server constructor.
+	 * Initialize the {@link ServerSocket}s
+	 * @param listeners listeners (address, port and backlog) used to listen
+	 * to clients connections
+	 * @param timeout handshake timeout (in ms) of newly connected clients
+	 * @param quitOnLastClient quits the server when last client logs out
+	 * @param history number of messages to keep on server
+	 * @param channel indicates the server socket should be obtained from a
+	 * {@link ServerSocketChannel} (for non blocking servers). Blocking
+	 * servers use a plain {@link ServerSocket} since sockets accepted from a
+	 * channel can't be read and written concurrently by different threads on
+	 * some runtimes
+	 * @param parentLogger parent logger
+	 * @throws IOException if one of the {@link ServerSocket}s could not be
+	 * created properly
+	 */
+	protected ChatServer(List<Listener> listeners,
+	                     int timeout,
+	                     boolean quitOnLastClient,
+	                     int history,
+	                     boolean channel,
+	                     Logger parentLogger)
+	    throws IOException
 	{
 		this.quitOnLastClient = quitOnLastClient;
+		handshakeTimeout = (timeout > 0 ? timeout : DEFAULTTIMEOUT);
+		handshakeScheduler = null;
+		handshakeTimeouts = new AtomicLong(0);
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
 		                                       parentLogger.getLevel());
 
-		logger.info("ChatServer::ChatServer(port = " + port + ", timeout = "
-		    + timeout + ", quit = " + (quitOnLastClient ? "true" : "false")
-		    + ")");
+		logger.info("ChatServer::ChatServer(listeners = " + listeners
+		    + ", timeout = " + timeout + ", quit = "
+		    + (quitOnLastClient ? "true" : "false") + ")");
 
-		serverSocket = new ServerSocket(port);
-		if (serverSocket != null)
-		{
-			serverSocket.setSoTimeout(timeout);
-		}
+		this.channel = channel;
+		serverSockets = Collections.unmodifiableList(open(listeners));
+		acceptors = 1;
+		nbShards = 1;
+		shards = null;
+		shardCounter = new AtomicInteger();
+		accepted = new AtomicLong(0);
+		lastAccepted = 0;
+		lastMetrics = System.nanoTime();
+
+		clients = new ClientRegistry();
+		handlers = Collections.newSetFromMap(
+		    new ConcurrentHashMap<ClientHandler, Boolean>());
 
-		clients = new Vector<InputOutputClient>();
-		handlers = new Vector<ClientHandler>();
+		allMessages = new MessageHistory(history);
+		rooms = new ConcurrentHashMap<String, Room>();
+		subscriptions = new SubscriptionTrie();
+		log = null;
+		federation = null;
+		replication = null;
+		hotHits = new AtomicLong(0);
+		hotMisses = new AtomicLong(0);
+		executionMode = ExecutionMode.PLATFORM;
+		queueCapacity = OutboundQueue.DEFAULTCAPACITY;
+		overflowPolicy = OverflowPolicy.DROP_OLDEST;
+		overflowTimeout = OutboundQueue.DEFAULTTIMEOUT;
+		codec = CodecType.SERIAL.getCodec();
+		compression = Compression.NONE;
+		resetBudget = ResetBudget.EACH_MESSAGE;
+		coalescing = Coalescing.NONE;
+		metricsPeriod = 0;
+		metricsScheduler = null;
+		sessions = Collections.synchronizedMap(
+		    new LinkedHashMap<String, String>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
 
-		messagesHistory = history;
-		allMessages = new LinkedList<Message>();
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return size() > MAXSESSIONS;
+			}
+		});
 	}
 
 	/**
@@ -165,6 +452,56 @@ public class ChatServer implements Runnable
 		this(DEFAULTPORT, parentLogger);
 	}
 
+	/**
+	 * Binds server sockets on listeners
+	 * @param listeners listeners (address, port and backlog) to bind
+	 * @return the bound server sockets
+	 * @throws IOException if one of the {@link ServerSocket}s could not be
+	 * created properly (the ones already bound are closed)
+	 */
+	private List<ServerSocket> open(List<Listener> listeners)
+	    throws IOException
+	{
+		List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+		try
+		{
+			for (Listener listener : listeners)
+			{
+				sockets.add(listener.open(channel));
+			}
+		}
+		catch (IOException e)
+		{
+			// releases listeners already bound
+			for (ServerSocket socket : sockets)
+			{
+				socket.close();
+			}
+			throw e;
+		}
+		return sockets;
+	}
+
+	/**
+	 * Binds additional listeners (should be called before running the
+	 * server). A hot standby server is created without listeners and only
+	 * binds its listeners when it fails over, so that clients connecting
+	 * before are refused instead of waiting for a server which doesn't
+	 * accept them yet
+	 * @param listeners listeners (address, port and backlog) used to listen
+	 * to clients connections
+	 * @throws IOException if one of the {@link ServerSocket}s could not be
+	 * created properly
+	 */
+	public void listen(List<Listener> listeners) throws IOException
+	{
+		List<ServerSocket> sockets =
+		    new ArrayList<ServerSocket>(serverSockets);
+		sockets.addAll(open(listeners));
+		serverSockets = Collections.unmodifiableList(sockets);
+		logger.info("ChatServer: listening on " + listeners);
+	}
+
 	/**
 	 * {@link #quitOnLastClient} accessor
 	 * @return {@link #quitOnLastClient}'s value
@@ -175,269 +512,1595 @@ public class ChatServer implements Runnable
 	}
 
 	/**
-	 * listening state setter
-	 * @param value new value of the listenig state
+	 * {@link #executionMode} setter (should be called before running the
+	 * server)
+	 * @param mode the way client handlers should be executed
 	 */
-	public synchronized void setListening(boolean value)
+	public void setExecutionMode(ExecutionMode mode)
 	{
-		listening = value;
+		if (mode != null)
+		{
+			executionMode = mode;
+		}
 	}
 
 	/**
-	 * Adds a message to the list of messages to keep on server
-	 * {@link #allMessages} is accessed atomically to avoid multiple clients
-	 * modifying this list.
-	 * @param m the message to add to the list
+	 * Clients outbound queues settings (should be called before running the
+	 * server)
+	 * @param capacity maximum number of messages queued for each client
+	 * @param policy what happens when a client's queue is full
+	 * @param timeout time (in ms) a sender waits for room in a full queue
+	 * with the {@link OverflowPolicy#BLOCK} policy
 	 */
-	public synchronized void addMessage(Message m)
+	public void setOutboundQueues(int capacity,
+	                              OverflowPolicy policy,
+	                              long timeout)
 	{
-		if (m != null)
+		queueCapacity = capacity;
+		if (policy != null)
 		{
-			synchronized (allMessages)
-			{
-				allMessages.add(m);
-				if (allMessages.size() > messagesHistory)
-				{
-					allMessages.remove();
-				}
-//				System.out.println("Messages stored : [" + messagesHistory + "]");
-//				allMessages.stream().forEach((Message ms) -> System.out.println(ms));
-			}
+			overflowPolicy = policy;
 		}
+		overflowTimeout = timeout;
 	}
 
 	/**
-	 * Factory method to get an iterator to the list of messages kept on the
-	 * server
-	 * @return an iterator to the list of messages kept on the server (might be
-	 * invalidated if a client's thread add a new message during traversal)
+	 * {@link #codec} setter (should be called before running the server).
+	 * Clients should use the same codec to decode messages
+	 * @param codec the codec used to encode messages sent to clients
 	 */
-	public Iterator<Message> messages()
+	public void setCodec(MessageCodec codec)
 	{
-		synchronized (allMessages)
+		if (codec != null)
 		{
-			return allMessages.iterator();
+			this.codec = codec;
 		}
 	}
 
 	/**
-	 * Chat server run loop: Awaits connection from a client, when a client
-	 * connects a new {@link ClientHandler} is created and launched in a thread
-	 * then the loop resume. Default behavior to clients time out is also to
-	 * resume loop.
-	 * When a {@link ClientHandler} terminates it triggers the
-	 * {@link #cleanup()} method which might set the listening state to false,
-	 * then the running loop ends.
-	 * @see java.lang.Runnable#run()
+	 * {@link #codec} accessor
+	 * @return the codec used to encode messages sent to clients
 	 */
-	@Override
-	public void run()
+	public MessageCodec getCodec()
 	{
-		Vector<Thread> handlerThreads = new Vector<Thread>();
-		listening = true;
+		return codec;
+	}
 
-		while (listening)
+	/**
+	 * {@link #compression} setter (should be called before running the
+	 * server)
+	 * @param compression the compression offered to clients supporting it
+	 */
+	public void setCompression(Compression compression)
+	{
+		if (compression != null)
 		{
-			Socket clientSocket = null;
-			String clientName = null;
-
-			// Accept client's socket (until timeout is up)
-			try
-			{
-				// wait for new client's connection
-				clientSocket = serverSocket.accept(); // --> IOException
-				logger.fine("ChatServer: client connection accepted");
-
-			}
-			catch (SocketTimeoutException ste)
-			{
-				// Wait again
-				// logger.info("Socket timeout, rewaiting ...");
-				continue;
-			}
-			catch (IOException e)
-			{
-
-				logger.severe(Failure.SERVER_CONNECTION.toString()
-				    + ": " + e.getLocalizedMessage());
-				System.exit(Failure.SERVER_CONNECTION.toInteger());
-			}
-
-			if (clientSocket != null)
-			{
-				// Get client's name
-				BufferedReader reader = null;
-				logger.info("ChatServer: Creatingc client input stream to get client's name ... ");
-				try
-				{
-					reader = new BufferedReader(new InputStreamReader(
-							clientSocket.getInputStream()));
-				}
-				catch (IOException e1)
-				{
-					logger.severe("ChatServer: " + Failure.CLIENT_INPUT_STREAM);
-					logger.severe(e1.getLocalizedMessage());
-					System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
-				}
-				if (reader != null)
-				{
-					logger.info("ChatServer: reading client's name: ");
-					try
-					{
-						// Read client's name
-						clientName = reader.readLine();
-						logger.info("ChatServer: client name " + clientName);
-					}
-					catch (IOException e)
-					{
-						logger.severe("ChatServer: "+ Failure.NO_NAME_CLIENT);
-						logger.severe(e.getLocalizedMessage());
-						System.exit(Failure.NO_NAME_CLIENT.toInteger());
-					}
-
-					/*
-					 * NOTE: client input stream should NOT be close since
-					 * it would close the socket
-					 */
-				}
-
-				/*
-				 * Before registering an new client's connection we
-				 * should check if there is not already a client with
-				 * this name
-				 */
-				if (searchClientByName(clientName) == null)
-				{
-					// new client instantiation
-					InputOutputClient newClient =
-							new InputOutputClient(clientSocket,
-							                      clientName,
-							                      logger);
-
-					// Adds this client to the list of clients
-					synchronized (clients)
-					{
-						clients.add(newClient);
-					}
-
-					// Create and launch a handler for this client
-					ClientHandler handler = new ClientHandler(this,
-					                                          newClient,
-					                                          clients,
-					                                          logger);
-					handlers.add(handler);
-					Thread handlerThread = new Thread(handler);
-					handlerThread.start();
-					handlerThreads.add(handlerThread);
-				}
-				else // a client with this name already exists
-				{
-					// sends denial message to client
-					try
-					{
-						PrintWriter out = new PrintWriter(
-								clientSocket.getOutputStream(), true);
-						out.println("server > Sorry another client already use the name "
-								+ clientName);
-						out.println("Hit ^D to close your client and try another name");
-						out.close();
-					}
-					catch (IOException e)
-					{
-						logger.severe("ChatServer: " + Failure.CLIENT_OUTPUT_STREAM);
-						logger.severe(e.getLocalizedMessage());
-					}
-				}
-
-				/*
-				 * When a ClientHandler terminates it triggers the
-				 * cleanup method which might change the listening status
-				 * if this is the last client to log out
-				 */
-			}
-		} // while listening
+			this.compression = compression;
+		}
+	}
 
-		// Wait for all ClientHandlers to terminate
-		for (Thread t : handlerThreads)
+	/**
+	 * {@link #resetBudget} setter (should be called before running the
+	 * server).
+	 * Clients streams are reset before each message by default so every
+	 * message can be encoded once for all clients. A larger budget produces
+	 * a more compact stream (with a stateful codec) at the expense of
+	 * encoding messages for each client
+	 * @param budget budget between two resets of clients streams
+	 */
+	public void setResetBudget(ResetBudget budget)
+	{
+		if (budget != null)
 		{
-			try
-			{
-				t.join();
-			}
-			catch (InterruptedException e)
-			{
-				logger.severe("ChatServer::run: Client handlers join interrupted");
-				logger.severe(e.getLocalizedMessage());
-			}
+			resetBudget = budget;
 		}
+	}
 
-		logger.info("ChatServer::run: all client handlers terminated");
-
-		handlerThreads.clear();
-		handlers.clear();
-		clients.clear();
+	/**
+	 * {@link #resetBudget} accessor
+	 * @return the budget between two resets of clients streams
+	 */
+	public ResetBudget getResetBudget()
+	{
+		return resetBudget;
+	}
 
-		logger.info("ChatServer::run: Closing server socket ... ");
-		try
-		{
-			serverSocket.close();
-		}
-		catch (IOException e)
+	/**
+	 * {@link #coalescing} setter (should be called before running the
+	 * server).
+	 * Frames are written as soon as they are queued by default (lowest
+	 * latency). A time window lets clients writers gather frames queued
+	 * during this window in a single write (fewer system calls and TCP
+	 * segments per message, higher throughput) and a byte budget ends the
+	 * window early when enough bytes have been gathered
+	 * @param coalescing the write coalescing of clients writers
+	 */
+	public void setCoalescing(Coalescing coalescing)
+	{
+		if (coalescing != null)
 		{
-			logger.severe("Close serversocket Failed !");
-			logger.severe(e.getLocalizedMessage());
+			this.coalescing = coalescing;
 		}
+	}
 
+	/**
+	 * {@link #coalescing} accessor
+	 * @return the write coalescing of clients writers
+	 */
+	public Coalescing getCoalescing()
+	{
+		return coalescing;
 	}
 
 	/**
-	 * Cleanup method invoked by {@link ClientHandler}s when they
-	 * terminate which might change the {@link #listening} status if
-	 * the last client terminates
+	 * {@link #log} setter (should be called before running the server):
+	 * the last messages of the log are restored in {@link #allMessages} and
+	 * sequence numbers of new messages follow the log's last message
+	 * @param log the durable log of messages
 	 */
-	protected synchronized void cleanup()
+	public void setLog(MessageLog log)
 	{
-		// s'il ne reste plus de threads on arrête la boucle
-		int nbThreads = ClientHandler.getNbThreads();
-		if (nbThreads <= 0)
+		this.log = log;
+		if (log != null)
 		{
-			if (quitOnLastClient)
+			long start = System.nanoTime();
+			List<Frame> tail = log.tail(allMessages.getCapacity());
+			for (Frame frame : tail)
 			{
-				listening = false;
-				logger.info("ChatServer::run: no more threads.");
+				allMessages.restore(frame);
 			}
-		}
-		else
-		{
-			logger.info("ChatServer::run: still " + nbThreads +
-					" threads remaining ...");
+			allMessages.resume(log.getLastSequence());
+			logger.info("ChatServer: restored " + tail.size()
+			    + " messages from " + log + " in "
+			    + ((System.nanoTime() - start) / 1000000) + " ms");
 		}
 	}
 
 	/**
-	 * Search a client by name
-	 * @param clientName the name of the client to search in the
-	 * {@link #clients} list
-	 * @return the first client with this name of null if there is no such
-	 * client
+	 * {@link #log} accessor
+	 * @return the durable log of messages (or null)
 	 */
-	protected InputOutputClient searchClientByName(String clientName)
+	public MessageLog getLog()
+	{
+		return log;
+	}
+
+	/**
+	 * Closes the durable log of messages (if any) when the server terminates
+	 */
+	protected void closeLog()
+	{
+		if (log != null)
+		{
+			try
+			{
+				log.close();
+			}
+			catch (IOException e)
+			{
+				logger.severe("ChatServer: unable to close " + log);
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * {@link #federation} setter (should be called before running the
+	 * server which starts the federation)
+	 * @param federation the federation with other nodes
+	 */
+	public void setFederation(Federation federation)
+	{
+		this.federation = federation;
+	}
+
+	/**
+	 * {@link #federation} accessor
+	 * @return the federation with other nodes (or null)
+	 */
+	public Federation getFederation()
+	{
+		return federation;
+	}
+
+	/**
+	 * Starts the federation with other nodes (if any) when the server runs
+	 */
+	protected void startFederation()
+	{
+		if (federation != null)
+		{
+			federation.start();
+		}
+	}
+
+	/**
+	 * Closes the federation with other nodes (if any) when the server
+	 * terminates
+	 */
+	protected void closeFederation()
+	{
+		if (federation != null)
+		{
+			federation.close();
+		}
+	}
+
+	/**
+	 * {@link #replication} setter (should be called before running the
+	 * server which starts the replication)
+	 * @param replication the replication to hot standby servers
+	 */
+	public void setReplication(Replication replication)
+	{
+		this.replication = replication;
+	}
+
+	/**
+	 * {@link #replication} accessor
+	 * @return the replication to hot standby servers (or null)
+	 */
+	public Replication getReplication()
+	{
+		return replication;
+	}
+
+	/**
+	 * Starts the replication to hot standby servers (if any) when the
+	 * server runs
+	 */
+	protected void startReplication()
+	{
+		if (replication != null)
+		{
+			replication.start();
+		}
+	}
+
+	/**
+	 * Closes the replication to hot standby servers (if any) when the
+	 * server terminates (standbys are sent the last messages first)
+	 */
+	protected void closeReplication()
+	{
+		if (replication != null)
+		{
+			replication.close();
+		}
+	}
+
+	/**
+	 * {@link #acceptors} setter (should be called before running the
+	 * server)
+	 * @param acceptors number of acceptors (threads or event loops)
+	 * accepting connections on each server socket
+	 */
+	public void setAcceptors(int acceptors)
+	{
+		this.acceptors = Math.max(acceptors, 1);
+	}
+
+	/**
+	 * {@link #acceptors} accessor
+	 * @return the number of acceptors accepting connections on each server
+	 * socket
+	 */
+	public int getAcceptors()
+	{
+		return acceptors;
+	}
+
+	/**
+	 * {@link #nbShards} setter (should be called before running the server).
+	 * Each shard of a blocking server has its own executor running the
+	 * handshakes, handlers and writers of the clients assigned to it
+	 * @param shards number of shards of a blocking server
+	 */
+	public void setShards(int shards)
+	{
+		nbShards = Math.max(shards, 1);
+	}
+
+	/**
+	 * Counts a connection accepted on one of the listeners
+	 */
+	void connectionAccepted()
+	{
+		accepted.incrementAndGet();
+	}
+
+	/**
+	 * Load of each shard (for metrics)
+	 * @return a description of each shard's current and accepted
+	 * connections
+	 */
+	protected String shardsLoad()
+	{
+		Shard[] currentShards = shards;
+		return (currentShards != null ? Arrays.toString(currentShards) : "[]");
+	}
+
+	/**
+	 * {@link #handshakeTimeout} accessor
+	 * @return the handshake timeout (in ms) of newly connected clients
+	 */
+	public int getHandshakeTimeout()
+	{
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Counts a client disconnected because it didn't complete its handshake
+	 * in time
+	 */
+	void handshakeTimedOut()
+	{
+		handshakeTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * {@link #metricsPeriod} setter (should be called before running the
+	 * server)
+	 * @param seconds period (in seconds) of metrics logging, 0 or less for
+	 * no metrics
+	 */
+	public void setMetricsPeriod(int seconds)
+	{
+		metricsPeriod = Math.max(seconds, 0);
+	}
+
+	/**
+	 * Starts logging metrics periodically (if {@link #metricsPeriod} is set)
+	 */
+	protected void startMetrics()
+	{
+		if (metricsPeriod > 0)
+		{
+			metricsScheduler = Executors.newSingleThreadScheduledExecutor();
+			metricsScheduler.scheduleAtFixedRate(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					logMetrics();
+				}
+			}, metricsPeriod, metricsPeriod, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops logging metrics (and logs them one last time)
+	 */
+	protected void stopMetrics()
+	{
+		if (metricsScheduler != null)
+		{
+			metricsScheduler.shutdownNow();
+			metricsScheduler = null;
+			logMetrics();
+		}
+	}
+
+	/**
+	 * Logs memory metrics: heap used per connected client and bytes still
+	 * referenced by clients streams handle tables (summary at info level and
+	 * one line per client at fine level). These values should stay flat on a
+	 * long running server with a steady number of clients.
+	 * The number of socket writes (i.e. system calls) per message written
+	 * shows the effect of write coalescing.
+	 * The accept rate (since metrics were last logged) and the load of each
+	 * shard (current/accepted connections) are logged on a second line.
+	 */
+	protected synchronized void logMetrics()
+	{
+		long now = System.nanoTime();
+		long nbAccepted = accepted.get();
+		logger.info("ChatServer::metrics: " + nbAccepted + " accepted ("
+		    + String.format("%.1f", (nbAccepted - lastAccepted) * 1e9
+		        / Math.max(now - lastMetrics, 1))
+		    + " per s), shards " + shardsLoad());
+		lastAccepted = nbAccepted;
+		lastMetrics = now;
+
+		Runtime runtime = Runtime.getRuntime();
+		long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+		int nbClients = 0;
+		long written = 0;
+		long sinceReset = 0;
+		long uncompressed = 0;
+		long compressed = 0;
+		long compressNanos = 0;
+		long socketWrites = 0;
+		for (InputOutputClient client : clients)
+		{
+			nbClients++;
+			written += client.getMessagesWritten();
+			sinceReset += client.getBytesSinceReset();
+			socketWrites += client.getSocketWrites();
+			DeflatingOutputStream compressor = client.getCompressor();
+			if (compressor != null)
+			{
+				uncompressed += compressor.getBytesIn();
+				compressed += compressor.getBytesOut();
+				compressNanos += compressor.getNanos();
+			}
+			logger.fine("ChatServer::metrics: client " + client.getName()
+			    + ": " + client.getMessagesWritten() + " messages ("
+			    + client.getBytesWritten() + " bytes), "
+			    + client.getSocketWrites() + " writes, "
+			    + client.getResets() + " resets, "
+			    + client.getBytesSinceReset() + " bytes since reset, "
+			    + client.getOutbound().size() + " queued"
+			    + (compressor != null ? ", " + compressor : ""));
+		}
+		logger.info("ChatServer::metrics: " + nbClients + " clients, heap "
+		    + (heapUsed / 1024) + " KB ("
+		    + (heapUsed / Math.max(nbClients, 1) / 1024) + " KB per client), "
+		    + written + " messages written ("
+		    + String.format("%.3f",
+		                    (double) socketWrites / Math.max(written, 1))
+		    + " writes per message, " + coalescing + "), " + sinceReset
+		    + " bytes since reset (" + resetBudget + "), "
+		    + handshakeTimeouts.get() + " handshake timeouts, "
+		    + rooms.size() + " rooms, " + subscriptions
+		    + (compressed > 0 ? ", compression ratio "
+		        + String.format("%.2f", (double) uncompressed / compressed)
+		        + " (" + (compressNanos / Math.max(written, 1))
+		        + " ns per message)" : ""));
+		if (log != null)
+		{
+			logger.info("ChatServer::metrics: " + log + ", "
+			    + log.commitMetrics());
+			logger.info("ChatServer::metrics: hot tier " + hotHits.get()
+			    + " hits / " + hotMisses.get() + " misses, "
+			    + log.tierMetrics());
+		}
+		if (federation != null)
+		{
+			logger.info("ChatServer::metrics: " + federation);
+		}
+		if (replication != null)
+		{
+			logger.info("ChatServer::metrics: " + replication);
+		}
+	}
+
+	/**
+	 * Negotiates the settings of a new client's session from its
+	 * {@link Hello}:
+	 * <ul>
+	 * 	<li>the server's codec if the client supports it, otherwise the
+	 * 	client's preferred (known) codec</li>
+	 * 	<li>the client's preferred compression among the one offered by the
+	 * 	server and {@link Compression#NONE}</li>
+	 * 	<li>the smallest of the client's and server's maximum frame sizes</li>
+	 * 	<li>the client's resume token if it has been issued to a client with
+	 * 	the same name, otherwise a new token</li>
+	 * </ul>
+	 * @param request the client's hello
+	 * @param clientName the client's name
+	 * @return the server's answer containing the chosen settings
+	 */
+	protected Hello negotiate(Hello request, String clientName)
+	{
+		CodecType chosenCodec = codec.getType();
+		if (!request.getCodecs().isEmpty()
+		    && !request.getCodecs().contains(chosenCodec))
+		{
+			chosenCodec = request.getCodec();
+		}
+
+		Compression chosenCompression = Compression.NONE;
+		for (Compression candidate : request.getCompressions())
+		{
+			if ((candidate == compression) || (candidate == Compression.NONE))
+			{
+				chosenCompression = candidate;
+				break;
+			}
+		}
+
+		int maxFrame = Hello.DEFAULTMAXFRAME;
+		if ((request.getMaxFrame() > 0) && (request.getMaxFrame() < maxFrame))
+		{
+			maxFrame = request.getMaxFrame();
+		}
+
+		String token = request.getResumeToken();
+		if ((token != null) && clientName.equals(sessions.get(token)))
+		{
+			logger.info("ChatServer: client " + clientName
+			    + " resumes its session");
+		}
+		else
+		{
+			token = UUID.randomUUID().toString();
+		}
+		sessions.put(token, clientName);
+
+		Hello answer = new Hello(Math.min(request.getVersion(), Hello.VERSION),
+		                         Collections.singletonList(chosenCodec),
+		                         Collections.singletonList(chosenCompression),
+		                         maxFrame,
+		                         token);
+		logger.info("ChatServer: negotiated with " + clientName + ": "
+		    + answer);
+		return answer;
+	}
+
+	/**
+	 * Builds the preset dictionary of a new compressed session from recent
+	 * traffic: messages kept on the server followed by usual notices (so
+	 * that the codec's recurring bytes such as class descriptors are
+	 * closest to new messages), keeping at most {@link #DICTIONARYSIZE}
+	 * bytes
+	 * @param clientCodec the codec used by the client
+	 * @return a new dictionary
+	 */
+	protected byte[] newDictionary(MessageCodec clientCodec)
+	{
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+		try
+		{
+			for (Iterator<Frame> it = messages(); it.hasNext();)
+			{
+				dictionary.write(it.next().bytes(clientCodec));
+			}
+			dictionary.write(clientCodec.encode(new Message("logged out")));
+			dictionary.write(clientCodec.encode(new Message("logged in")));
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatServer: unable to build dictionary: "
+			    + e.getLocalizedMessage());
+		}
+
+		byte[] bytes = dictionary.toByteArray();
+		if (bytes.length > DICTIONARYSIZE)
+		{
+			return Arrays.copyOfRange(bytes,
+			                          bytes.length - DICTIONARYSIZE,
+			                          bytes.length);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Bytes sent to a client in answer to its {@link Hello}: the answer line
+	 * followed by the session's preset dictionary if the session is
+	 * compressed
+	 * @param answer the server's answer
+	 * @param dictionary the session's dictionary (or null if the session is
+	 * not compressed)
+	 * @return the bytes to send to the client before the codec's header
+	 */
+	protected byte[] greeting(Hello answer, byte[] dictionary)
+	{
+		ByteArrayOutputStream greeting = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(greeting);
+		try
+		{
+			out.write((answer + Vocabulary.newLine).getBytes("UTF-8"));
+			if (dictionary != null)
+			{
+				out.writeInt(dictionary.length);
+				out.write(dictionary);
+			}
+		}
+		catch (IOException e)
+		{
+			// Can't happen on an in memory stream
+			throw new AssertionError("ChatServer: unable to write greeting");
+		}
+		return greeting.toByteArray();
+	}
+
+	/**
+	 * Factory method of a new client's outbound queue according to current
+	 * settings
+	 * @return a new outbound queue
+	 */
+	protected OutboundQueue<Frame> newOutboundQueue()
+	{
+		return new OutboundQueue<Frame>(queueCapacity,
+		                                overflowPolicy,
+		                                overflowTimeout);
+	}
+
+	/**
+	 * listening state setter. Stopping to listen closes the server socket so
+	 * that the accept loop stops at once (connections in progress are
+	 * refused)
+	 * @param value new value of the listenig state
+	 */
+	public synchronized void setListening(boolean value)
+	{
+		listening = value;
+		if (!value)
+		{
+			closeServerSockets();
+		}
+	}
+
+	/**
+	 * Closes all server sockets (if not already closed)
+	 */
+	protected void closeServerSockets()
+	{
+		for (ServerSocket serverSocket : serverSockets)
+		{
+			if (!serverSocket.isClosed())
+			{
+				logger.info("ChatServer: closing server socket "
+				    + serverSocket.getLocalSocketAddress());
+				try
+				{
+					serverSocket.close();
+				}
+				catch (IOException e)
+				{
+					logger.severe("Close serversocket Failed !");
+					logger.severe(e.getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * listening state accessor
+	 * @return the current listening state
+	 */
+	public synchronized boolean isListening()
+	{
+		return listening;
+	}
+
+	/**
+	 * Adds a message to the messages kept on server. Senders never lock
+	 * since the message only claims the next slot of {@link #allMessages},
+	 * unless messages are also appended to the {@link #log} (in sequence
+	 * order, so sequence numbers are claimed while holding the log). Then
+	 * the sender waits for the message to be committed according to the
+	 * log's {@link Durability} (without holding the log so that concurrent
+	 * senders are committed together) before the message is broadcast.
+	 * Senders which must not wait (such as event loops) should use
+	 * {@link #addMessage(Frame, Runnable)} instead.
+	 * @param m the serialized message to add
+	 * @return the sequence number of the message (0 if m is null)
+	 */
+	public long addMessage(Frame m)
+	{
+		long sequence = append(m);
+		if ((sequence > 0) && (log != null))
+		{
+			try
+			{
+				log.commit(sequence);
+			}
+			catch (IOException e)
+			{
+				logger.severe("ChatServer: unable to commit message "
+				    + sequence);
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Adds a message to the messages kept on server without waiting for it
+	 * to be committed: the callback (which broadcasts the message) is run
+	 * once the message is committed according to the log's
+	 * {@link Durability}, by the log's committer with
+	 * {@link Durability#BATCH} or at once otherwise
+	 * @param m the serialized message to add
+	 * @param committed the callback to run once the message is committed
+	 * @return the sequence number of the message (0 if m is null)
+	 * @see MessageLog#commit(long, Runnable)
+	 */
+	public long addMessage(Frame m, Runnable committed)
+	{
+		long sequence = append(m);
+		if ((sequence > 0) && (log != null))
+		{
+			log.commit(sequence, committed);
+		}
+		else
+		{
+			committed.run();
+		}
+		return sequence;
+	}
+
+	/**
+	 * Appends a message to the history (and to the log if any) with the next
+	 * sequence number
+	 * @param m the serialized message to add
+	 * @return the sequence number of the message (0 if m is null)
+	 */
+	private long append(Frame m)
+	{
+		if (m == null)
+		{
+			return 0;
+		}
+		if (log == null)
+		{
+			if (replication == null)
+			{
+				return allMessages.add(m);
+			}
+			// messages are replicated in sequence order
+			synchronized (allMessages)
+			{
+				long sequence = allMessages.add(m);
+				replication.append(m);
+				return sequence;
+			}
+		}
+		long sequence;
+		synchronized (log)
+		{
+			sequence = allMessages.add(m);
+			if (replication != null)
+			{
+				replication.append(m);
+			}
+			try
+			{
+				log.append(m);
+			}
+			catch (IOException e)
+			{
+				logger.severe("ChatServer: unable to log message " + sequence);
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Sequence number of the last message added to the server
+	 * @return the sequence number of the last message kept on the server
+	 */
+	public long getLastSequence()
+	{
+		return allMessages.getLastSequence();
+	}
+
+	/**
+	 * Applies a message replicated from a primary server on this (standby)
+	 * server: the message is kept with the primary's sequence number in the
+	 * history and the log (messages should be applied in sequence order)
+	 * @param m the replicated message (with its sequence number)
+	 */
+	protected void replicate(Frame m)
+	{
+		if (log == null)
+		{
+			allMessages.restore(m);
+			return;
+		}
+		synchronized (log)
+		{
+			allMessages.restore(m);
+			try
+			{
+				log.append(m);
+			}
+			catch (IOException e)
+			{
+				logger.severe("ChatServer: unable to log message "
+				    + m.getSequence());
+				logger.severe(e.getLocalizedMessage());
+				return;
+			}
+		}
+		try
+		{
+			log.commit(m.getSequence());
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChatServer: unable to commit message "
+			    + m.getSequence());
+			logger.severe(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Factory method to get an iterator to the list of messages kept on the
+	 * server
+	 * @return a snapshot cursor over the messages kept on the server (which
+	 * can't be invalidated if a client's thread add a new message during
+	 * traversal)
+	 */
+	public Iterator<Frame> messages()
+	{
+		return allMessages.cursor();
+	}
+
+	/**
+	 * Factory method to get an iterator to the messages kept on the server
+	 * after a sequence number (read from the {@link #log} if older messages
+	 * than the ones kept in {@link #allMessages} are requested)
+	 * @param since the sequence number of the last message already received
+	 * @return a snapshot cursor over the messages kept on the server with a
+	 * greater sequence number
+	 */
+	public Iterator<Frame> messages(long since)
+	{
+		if ((log != null)
+		    && (since < allMessages.getLastSequence()
+		        - allMessages.getCapacity()))
+		{
+			hotMisses.incrementAndGet();
+			return log.cursor(since);
+		}
+		hotHits.incrementAndGet();
+		return allMessages.cursor(since);
+	}
+
+	/**
+	 * Region of the {@link #log} containing the messages following a
+	 * sequence number, when older messages than the ones kept in
+	 * {@link #allMessages} are requested. A region is sent as is (without
+	 * decoding messages) to a client accepting regions
+	 * (see {@link InputOutputClient#acceptsRegions()})
+	 * @param since the sequence number of the last message already received
+	 * @return a region containing the messages following since or null if
+	 * these messages should be read from {@link #messages(long)}
+	 */
+	public Frame region(long since)
+	{
+		if ((log != null)
+		    && (since < allMessages.getLastSequence()
+		        - allMessages.getCapacity()))
+		{
+			try
+			{
+				Frame region = log.region(since);
+				if (region != null)
+				{
+					hotMisses.incrementAndGet();
+				}
+				return region;
+			}
+			catch (IOException e)
+			{
+				logger.warning("ChatServer: unable to read region from "
+				    + log + ": " + e.getLocalizedMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Region of the {@link #log} containing the messages following a date,
+	 * when the oldest message of {@link #allMessages} is dated after this
+	 * date
+	 * @param since the date of the last message already received
+	 * @return a region containing the messages following since or null if
+	 * these messages should be read from {@link #messages(Date)}
+	 */
+	public Frame region(Date since)
+	{
+		if (log != null)
+		{
+			Iterator<Frame> oldest = allMessages.cursor();
+			if (!oldest.hasNext()
+			    || oldest.next().getMessage().getDate().after(since))
+			{
+				try
+				{
+					Frame region = log.region(since);
+					if (region != null)
+					{
+						hotMisses.incrementAndGet();
+					}
+					return region;
+				}
+				catch (IOException e)
+				{
+					logger.warning("ChatServer: unable to read region from "
+					    + log + ": " + e.getLocalizedMessage());
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Factory method to get an iterator to the messages kept on the server
+	 * after a date (read from the {@link #log} if the oldest message of
+	 * {@link #allMessages} is dated after since)
+	 * @param since the date of the last message already received
+	 * @return a snapshot cursor over the messages kept on the server dated
+	 * after since
+	 */
+	public Iterator<Frame> messages(Date since)
+	{
+		if (log != null)
+		{
+			Iterator<Frame> oldest = allMessages.cursor();
+			if (!oldest.hasNext()
+			    || oldest.next().getMessage().getDate().after(since))
+			{
+				hotMisses.incrementAndGet();
+				return log.cursor(since);
+			}
+		}
+		hotHits.incrementAndGet();
+		return allMessages.cursor(since);
+	}
+
+	/**
+	 * Chat server run: starts {@link #acceptors} acceptor threads on each
+	 * server socket then waits for them to terminate. Each acceptor awaits
+	 * connections from clients, when a client connects a task reading its
+	 * name (within {@link #handshakeTimeout}) and then running a new
+	 * {@link ClientHandler} is assigned to the next {@link Shard} (whose
+	 * executor runs it according to {@link #executionMode}) then the
+	 * acceptor resumes. Acceptors never wait for a client's name so a client
+	 * which doesn't send it can't delay other connections.
+	 * When a {@link ClientHandler} terminates it triggers the
+	 * {@link #cleanup()} method which might set the listening state to false
+	 * and close the server sockets, then the acceptors terminate and the
+	 * shards are shut down so that the server waits for all client handlers
+	 * to finish.
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		Shard[] newShards = new Shard[nbShards];
+		for (int i = 0; i < nbShards; i++)
+		{
+			newShards[i] = new Shard(i, executionMode.newExecutor(logger));
+		}
+		shards = newShards;
+		logger.info("ChatServer::run: " + nbShards + " shards, client handlers "
+		    + "executed with " + executionMode + ", outbound queues of "
+		    + queueCapacity + " messages (" + overflowPolicy + "), " + codec
+		    + " (" + resetBudget + ")");
+		handshakeScheduler = Executors.newSingleThreadScheduledExecutor();
+		setListening(true);
+		startMetrics();
+		startFederation();
+		startReplication();
+
+		List<Thread> acceptorThreads = new ArrayList<Thread>();
+		for (int i = 0; i < serverSockets.size(); i++)
+		{
+			final ServerSocket serverSocket = serverSockets.get(i);
+			for (int j = 0; j < acceptors; j++)
+			{
+				Thread acceptor = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						accept(serverSocket);
+					}
+				}, "Acceptor-" + i + "-" + j);
+				acceptorThreads.add(acceptor);
+				acceptor.start();
+			}
+		}
+
+		// Wait for all acceptors to terminate
+		for (Thread acceptor : acceptorThreads)
+		{
+			try
+			{
+				acceptor.join();
+			}
+			catch (InterruptedException e)
+			{
+				logger.severe("ChatServer::run: acceptors join interrupted");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+
+		// Wait for all ClientHandlers and clients writers to terminate
+		for (Shard shard : newShards)
+		{
+			try
+			{
+				shard.terminate();
+			}
+			catch (InterruptedException e)
+			{
+				logger.severe("ChatServer::run: Client handlers termination interrupted");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+
+		logger.info("ChatServer::run: all client handlers terminated");
+		handshakeScheduler.shutdownNow();
+		stopMetrics();
+		closeFederation();
+		closeReplication();
+
+		handlers.clear();
+		clients.clear();
+
+		logger.info("ChatServer::run: Closing server sockets ... ");
+		closeServerSockets();
+		closeLog();
+	}
+
+	/**
+	 * Acceptor loop: accepts connections on a server socket and assigns
+	 * them to shards in a round robin fashion until the server socket is
+	 * closed
+	 * @param serverSocket the server socket to accept connections from
+	 */
+	private void accept(ServerSocket serverSocket)
+	{
+		while (isListening())
+		{
+			Socket clientSocket = null;
+
+			// Accept client's socket (until the server socket is closed)
+			try
+			{
+				// wait for new client's connection
+				clientSocket = serverSocket.accept(); // --> IOException
+				logger.fine("ChatServer: client connection accepted");
+			}
+			catch (IOException e)
+			{
+				if (!isListening())
+				{
+					// server socket closed by setListening(false)
+					break;
+				}
+				logger.severe(Failure.SERVER_CONNECTION.toString()
+				    + ": " + e.getLocalizedMessage());
+				System.exit(Failure.SERVER_CONNECTION.toInteger());
+			}
+
+			connectionAccepted();
+			final Socket acceptedSocket = clientSocket;
+			final Shard shard =
+			    shards[(shardCounter.getAndIncrement() & Integer.MAX_VALUE)
+			           % shards.length];
+			/*
+			 * The name handshake and the client handler run in the same
+			 * thread of the shard's executor
+			 */
+			shard.assign(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ClientHandler handler = handshake(acceptedSocket, shard);
+					if (handler != null)
+					{
+						handler.run();
+					}
+				}
+			});
+
+			/*
+			 * When a ClientHandler terminates it triggers the
+			 * cleanup method which might change the listening status
+			 * if this is the last client to log out
+			 */
+		}
+	}
+
+	/**
+	 * Handshake with a newly connected client: reads the client's optional
+	 * {@link Hello} and name, then registers a new client with its
+	 * {@link ClientHandler} if there is not already a client with this name
+	 * (after answering the client's hello with the negotiated settings),
+	 * otherwise sends a denial message to the client.
+	 * The client's socket is closed if the client didn't send its name
+	 * within {@link #handshakeTimeout}.
+	 * @param clientSocket the newly connected client's socket
+	 * @param shard the shard running the new client's handler and writer
+	 * @return the new client's handler or null if the client could not be
+	 * registered
+	 */
+	protected ClientHandler handshake(Socket clientSocket, Shard shard)
 	{
+		String clientName = null;
+		Hello hello = null;
+
+		// Closes the socket (which ends reading) when the deadline is up
+		ScheduledFuture<?> deadline = handshakeScheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				logger.warning("ChatServer: client handshake timed out after "
+				    + handshakeTimeout + " ms");
+				handshakeTimedOut();
+				closeSocket(clientSocket);
+			}
+		}, handshakeTimeout, TimeUnit.MILLISECONDS);
+
+		// Get client's hello and name
+		BufferedReader reader = null;
+		logger.info("ChatServer: Creating client input stream to get client's name ... ");
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(
+					clientSocket.getInputStream()));
+			logger.info("ChatServer: reading client's name: ");
+			// Read client's name (preceded by its hello, if any)
+			clientName = reader.readLine();
+			if (Hello.isHello(clientName))
+			{
+				hello = Hello.fromString(clientName);
+				logger.info("ChatServer: client hello " + hello);
+				clientName = (hello != null ? reader.readLine() : null);
+			}
+			logger.info("ChatServer: client name " + clientName);
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChatServer: "+ Failure.NO_NAME_CLIENT);
+			logger.severe(e.getLocalizedMessage());
+		}
+
+		if (!deadline.cancel(false))
+		{
+			// socket has been closed by the deadline
+			return null;
+		}
+
+		/*
+		 * NOTE: client input stream should NOT be close since
+		 * it would close the socket
+		 */
+		if (clientName == null)
+		{
+			closeSocket(clientSocket);
+			return null;
+		}
+
 		/*
-		 * Accessing the client list must be performed atomically
-		 * to avoid modification by other threads
+		 * Before instantiating a new client we check if there is not already
+		 * a client with this name (the name is only claimed atomically when
+		 * registering the new client)
 		 */
-		synchronized (clients)
+		if (isNameAvailable(clientName))
 		{
-			for (InputOutputClient c : clients)
+			/*
+			 * Clients without hello use the server's codec without
+			 * compression, others use the negotiated ones (the answer is sent
+			 * before the codec's header)
+			 */
+			MessageCodec clientCodec = codec;
+			Compression clientCompression = Compression.NONE;
+			int maxFrame = Hello.DEFAULTMAXFRAME;
+			byte[] dictionary = null;
+			if (hello != null)
+			{
+				Hello answer = negotiate(hello, clientName);
+				clientCodec = answer.getCodec().getCodec();
+				clientCompression = answer.getCompression();
+				maxFrame = answer.getMaxFrame();
+				if (clientCompression != Compression.NONE)
+				{
+					dictionary = newDictionary(clientCodec);
+				}
+				try
+				{
+					OutputStream out = clientSocket.getOutputStream();
+					out.write(greeting(answer, dictionary));
+					out.flush();
+				}
+				catch (IOException e)
+				{
+					logger.severe("ChatServer: " + Failure.CLIENT_OUTPUT_STREAM);
+					logger.severe(e.getLocalizedMessage());
+					closeSocket(clientSocket);
+					return null;
+				}
+			}
+
+			// new client instantiation
+			InputOutputClient newClient =
+					new InputOutputClient(clientSocket,
+					                      clientName,
+					                      newOutboundQueue(),
+					                      clientCodec,
+					                      resetBudget,
+					                      clientCompression,
+					                      dictionary,
+					                      coalescing,
+					                      logger);
+			newClient.setMaxFrame(maxFrame);
+
+			/*
+			 * Adds this client to the registry, unless another client
+			 * with the same name registered in the meantime
+			 */
+			if (clients.claim(newClient))
 			{
-				if (c.getName().equals(clientName))
+				// Launch this client's writer
+				shard.execute(newClient.getWriter());
+
+				// Create a handler for this client
+				ClientHandler handler = new ClientHandler(this,
+				                                          newClient,
+				                                          clients,
+				                                          logger);
+				addHandler(handler);
+				if ((hello != null) && (hello.getRoom() != null))
 				{
-					return c;
+					handler.join(hello.getRoom());
 				}
+				return handler;
+			}
+
+			newClient.cleanup();
+		}
+		else // a client with this name already exists
+		{
+			// sends denial message to client
+			try
+			{
+				PrintWriter out = new PrintWriter(
+						clientSocket.getOutputStream(), true);
+				out.println("server > Sorry another client already use the name "
+						+ clientName);
+				out.println("Hit ^D to close your client and try another name");
+				out.close();
+			}
+			catch (IOException e)
+			{
+				logger.severe("ChatServer: " + Failure.CLIENT_OUTPUT_STREAM);
+				logger.severe(e.getLocalizedMessage());
 			}
 		}
 
 		return null;
 	}
+
+	/**
+	 * Closes the socket of a client which could not be registered
+	 * @param clientSocket the socket to close
+	 */
+	private void closeSocket(Socket clientSocket)
+	{
+		try
+		{
+			clientSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChatServer: unable to close client socket");
+			logger.severe(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Registers the handler of a newly connected client
+	 * @param handler the handler to register
+	 */
+	void addHandler(ClientHandler handler)
+	{
+		handlers.add(handler);
+	}
+
+	/**
+	 * Unregisters the handler of a client which logged out so that handlers
+	 * of past clients are not kept during the whole server's life
+	 * @param handler the handler to unregister
+	 */
+	void removeHandler(ClientHandler handler)
+	{
+		handlers.remove(handler);
+	}
+
+	/**
+	 * Cleanup method invoked by {@link ClientHandler}s when they
+	 * terminate which might change the {@link #listening} status if
+	 * the last client terminates
+	 */
+	protected synchronized void cleanup()
+	{
+		// s'il ne reste plus de threads on arrête la boucle
+		int nbThreads = ClientHandler.getNbThreads();
+		if (nbThreads <= 0)
+		{
+			if (quitOnLastClient)
+			{
+				setListening(false);
+				logger.info("ChatServer::run: no more threads.");
+			}
+		}
+		else
+		{
+			logger.info("ChatServer::run: still " + nbThreads +
+					" threads remaining ...");
+		}
+	}
+
+	/**
+	 * Search a client by name
+	 * @param clientName the name of the client to search in the
+	 * {@link #clients} registry
+	 * @return the client with this name of null if there is no such
+	 * client
+	 */
+	protected InputOutputClient searchClientByName(String clientName)
+	{
+		return clients.get(clientName);
+	}
+
+	/**
+	 * Indicates a name can be used by a new client: no client with this name
+	 * is connected to this server nor to the other nodes of the federation
+	 * @param clientName the name of the new client
+	 * @return true if no client uses this name
+	 */
+	protected boolean isNameAvailable(String clientName)
+	{
+		return (searchClientByName(clientName) == null)
+		    && ((federation == null) || !federation.isRemoteUser(clientName));
+	}
+
+	/**
+	 * Indicates a client is connected to another node of the federation
+	 * @param clientName the name of the client
+	 * @return true if a client with this name is connected to another node
+	 */
+	public boolean isRemoteClient(String clientName)
+	{
+		return (federation != null) && federation.isRemoteUser(clientName);
+	}
+
+	/**
+	 * Relays the login of a client of this server to the other nodes of the
+	 * federation (if any)
+	 * @param clientName the name of the client
+	 */
+	public void relayLogin(String clientName)
+	{
+		if (federation != null)
+		{
+			federation.relayLogin(clientName);
+		}
+	}
+
+	/**
+	 * Relays the logout of a client of this server to the other nodes of the
+	 * federation (if any)
+	 * @param clientName the name of the client
+	 */
+	public void relayLogout(String clientName)
+	{
+		if (federation != null)
+		{
+			federation.relayLogout(clientName);
+		}
+	}
+
+	/**
+	 * Relays a message of a client of this server to the other nodes of the
+	 * federation (if any)
+	 * @param message the message to relay
+	 */
+	public void relay(Message message)
+	{
+		if (federation != null)
+		{
+			federation.relay(message);
+		}
+	}
+
+	/**
+	 * Notifies the clients of this server that a client logged in on another
+	 * node of the federation
+	 * @param clientName the name of the client
+	 */
+	protected void remoteLogin(String clientName)
+	{
+		Frame frame = new Frame(new Message(clientName + " logged in"));
+		for (InputOutputClient client : clients)
+		{
+			if (client.isReady())
+			{
+				client.send(frame);
+			}
+		}
+	}
+
+	/**
+	 * Delivers a message relayed by another node of the federation to the
+	 * clients of this server:
+	 * <ul>
+	 * 	<li>a direct message is only sent to its recipient</li>
+	 * 	<li>a message to a room is sent to the room of the same name (created
+	 * 	if it does not exist)</li>
+	 * 	<li>other messages are added to the history (with a sequence number of
+	 * 	this server) and sent to all clients</li>
+	 * </ul>
+	 * @param message the relayed message
+	 */
+	protected void deliver(Message message)
+	{
+		if (message.hasRoom())
+		{
+			String room = message.getRoom();
+			if (room.startsWith(Vocabulary.directPrefix))
+			{
+				InputOutputClient recipient = searchClientByName(
+				    room.substring(Vocabulary.directPrefix.length()));
+				if ((recipient != null) && recipient.isReady())
+				{
+					recipient.send(new Frame(new Message(message, 0)));
+				}
+			}
+			else
+			{
+				publish(room, message.getContent(), message.getAuthor());
+			}
+			return;
+		}
+		Frame frame = new Frame(new Message(message, 0));
+		addMessage(frame);
+		for (InputOutputClient client : clients)
+		{
+			if (client.isReady())
+			{
+				client.send(frame);
+			}
+		}
+	}
+
+	/**
+	 * Adds a client to a chat room (created if it does not exist)
+	 * @param name the name of the room
+	 * @param client the client joining the room
+	 * @return the room joined by the client
+	 */
+	public Room joinRoom(String name, InputOutputClient client)
+	{
+		while (true)
+		{
+			Room room = room(name);
+			if (room.join(client))
+			{
+				return room;
+			}
+			// the room has been closed by its last member in the meantime
+			rooms.remove(name, room);
+		}
+	}
+
+	/**
+	 * Sends a message to a chat room without joining it: the message is
+	 * queued to the room's members and to the clients subscribed to the
+	 * room's topic. If nobody joined this room, the message is only queued to
+	 * the subscribers: no room is created (so publishing to many topics does
+	 * not keep rooms nor histories on the server)
+	 * @param name the name of the room
+	 * @param content the message's content
+	 * @param author the message's author
+	 * @return the frame sent to the room
+	 */
+	public Frame publish(String name, String content, String author)
+	{
+		while (true)
+		{
+			Room room = rooms.get(name);
+			if (room == null)
+			{
+				Frame frame = new Frame(new Message(null, content, author, name));
+				for (InputOutputClient subscriber : subscriptions.match(name))
+				{
+					if (subscriber.isReady())
+					{
+						subscriber.send(frame);
+					}
+				}
+				return frame;
+			}
+			Frame frame = room.send(content, author);
+			if (frame != null)
+			{
+				return frame;
+			}
+			// the room has been closed by its last member in the meantime
+			rooms.remove(name, room);
+		}
+	}
+
+	/**
+	 * Room with a name (created if it does not exist, keeping up to as many
+	 * messages as the server's history)
+	 * @param name the name of the room
+	 * @return the room with this name
+	 */
+	private Room room(String name)
+	{
+		Room room = rooms.get(name);
+		if (room == null)
+		{
+			Room created = new Room(name,
+			                        allMessages.getCapacity(),
+			                        subscriptions);
+			room = rooms.putIfAbsent(name, created);
+			if (room == null)
+			{
+				room = created;
+				logger.fine("ChatServer: new room " + name);
+			}
+		}
+		return room;
+	}
+
+	/**
+	 * Subscribes a client to the rooms whose topic matches a pattern
+	 * @param pattern the pattern (see {@link SubscriptionTrie})
+	 * @param client the subscribing client
+	 * @return true if the client has been subscribed, false if it was
+	 * already subscribed to this pattern
+	 */
+	public boolean subscribe(String pattern, InputOutputClient client)
+	{
+		return subscriptions.subscribe(pattern, client);
+	}
+
+	/**
+	 * Unsubscribes a client from a pattern
+	 * @param pattern the pattern
+	 * @param client the subscribed client
+	 * @return true if the client has been unsubscribed, false if it was not
+	 * subscribed to this pattern
+	 */
+	public boolean unsubscribe(String pattern, InputOutputClient client)
+	{
+		return subscriptions.unsubscribe(pattern, client);
+	}
+
+	/**
+	 * Removes a client from a chat room (the room is removed if this client
+	 * was its last member)
+	 * @param room the room to leave
+	 * @param client the client leaving the room
+	 */
+	public void leaveRoom(Room room, InputOutputClient client)
+	{
+		if (room.leave(client))
+		{
+			rooms.remove(room.getName(), room);
+			logger.fine("ChatServer: room " + room.getName() + " closed");
+		}
+	}
+
+	/**
+	 * Search a chat room by name
+	 * @param name the name of the room
+	 * @return the room with this name or null if there is no such room
+	 */
+	public Room searchRoomByName(String name)
+	{
+		return rooms.get(name);
+	}
+
+	/**
+	 * Snapshot of the chat rooms
+	 * @return a list of the current rooms sorted by name
+	 */
+	public List<Room> rooms()
+	{
+		List<Room> snapshot = new ArrayList<Room>(rooms.values());
+		Collections.sort(snapshot, new Comparator<Room>()
+		{
+			@Override
+			public int compare(Room r1, Room r2)
+			{
+				return r1.getName().compareTo(r2.getName());
+			}
+		});
+		return snapshot;
+	}
 }
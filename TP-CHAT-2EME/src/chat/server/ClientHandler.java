@@ -3,9 +3,15 @@ package chat.server;
 import java.io.IOException;
 import java.io.InvalidClassException;
 import java.io.NotSerializableException;
-import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import chat.Vocabulary;
@@ -13,7 +19,8 @@ import logger.LoggerFactory;
 import models.Message;
 
 /**
- * Class designed to handle each client's messages in a thread.
+ * Class designed to handle each client's messages in a thread (or fed line by
+ * line by the event loops of a {@link NioChatServer}).
  * @author davidroussel
  */
 public class ClientHandler implements Runnable
@@ -32,20 +39,52 @@ public class ClientHandler implements Runnable
 	 * Other clients connected to the server (in order to broadcast any message
 	 * of the main client to all clients (including the main client))
 	 */
-	private Vector<InputOutputClient> allClients;
+	private ClientRegistry allClients;
 
 	/**
-	 * Index of the main client among all clients (in order to send special
-	 * messages to this client only, during a "catchup" request for instance)
+	 * Chat rooms joined by the main client (in joining order): the main
+	 * client's messages are sent to the last one (or to all clients if the
+	 * main client did not join any room).
+	 * Only accessed by the thread (or event loop) processing the main
+	 * client's lines
 	 */
-	private int clientIndex;
+	private final List<Room> rooms;
+
+	/**
+	 * Patterns the main client subscribed to (only accessed by the thread
+	 * or event loop processing the main client's lines)
+	 */
+	private final List<String> subscriptions;
+
+	/**
+	 * Indicates the main client's lines are processed by this handler's own
+	 * thread (see {@link #run()}) which may then wait for room in clients'
+	 * outbound queues when it holds no shared lock. Event loops never wait.
+	 */
+	private boolean ownThread;
+
+	/**
+	 * Indicates the main client's logout notice is waiting to be committed
+	 * (event loops only): the handler is only terminated once the notice
+	 * has been broadcast, so that the main client also receives it (guarded
+	 * by this handler)
+	 */
+	private boolean logoutPending;
+
+	/**
+	 * Indicates {@link #terminate()} has been called while the logout
+	 * notice was pending (guarded by this handler)
+	 */
+	private boolean terminating;
 
 	/**
 	 * Threads (or ClientHandler) instance counter.
 	 * Used to determine the number of remaining connected clients
-	 * when run loop ends and {@link ChatServer#cleanup()} is triggered
+	 * when run loop ends and {@link ChatServer#cleanup()} is triggered.
+	 * Handlers may be created concurrently by the server's executor threads
+	 * or event loops hence the atomic counter
 	 */
-	private static int nbThreads = 0;
+	private static final AtomicInteger nbThreads = new AtomicInteger(0);
 
 	/**
 	 * Logger used to display info or debug messages
@@ -56,88 +95,51 @@ public class ClientHandler implements Runnable
 	 * Constructor
 	 * @param parent the {@link ChatServer} launching this client handler
 	 * @param mainClient the main client to listen to
-	 * @param allClients all clients list to broadcast messages from the main
-	 * client to
+	 * @param allClients all clients registry to broadcast messages from the
+	 * main client to
 	 */
 	public ClientHandler(ChatServer parent,
 	                     InputClient mainClient,
-	                     Vector<InputOutputClient> allClients,
+	                     ClientRegistry allClients,
 	                     Logger parentLogger)
 	{
 		this.parent = parent;
 		this.mainClient = mainClient;
 		this.allClients = allClients;
-		nbThreads++;
+		rooms = new ArrayList<Room>();
+		subscriptions = new ArrayList<String>();
+		ownThread = false;
+		logoutPending = false;
+		terminating = false;
+		nbThreads.incrementAndGet();
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
 		                                       parentLogger.getLevel());
 
 
-		synchronized (allClients)
+		/*
+		 * send message "<ClientName> logged in" to all other clients.
+		 * Messages are only queued to clients outbound queues so that a slow
+		 * client does not block every other handler (nor pin a virtual thread)
+		 */
+		Frame frame = new Frame(new Message(mainClient.getName()
+		    + " logged in"));
+		for (InputOutputClient client : allClients)
 		{
-			// Search for this client in allClients
-			clientIndex = -1;
-			int index = 0;
-			for (InputOutputClient client : allClients)
-			{
-				if (client == mainClient)
-				{
-					break;
-				}
-				index++;
-			}
-			if (index < allClients.size())
+			if ((client != mainClient) && client.isReady())
 			{
-				clientIndex = index;
-			}
-
-			// send message "<ClientName> logged in" to all other clients
-			Message m = new Message(mainClient.getName() + " logged in");
-
-			for (InputOutputClient client : allClients)
-			{
-				if (client != mainClient)
-				{
-					if (client.isReady())
-					{
-						ObjectOutputStream out = client.getOut();
-						try
-						{
-							out.writeObject(m);
-						}
-						catch (InvalidClassException ice)
-						{
-							logger.severe("ClientHandler["
-							    + mainClient.getName() + "]: write "
-							    + m.toString() + " to client invalid class "
-							    + ice.getLocalizedMessage());
-						}
-						catch (NotSerializableException nse)
-						{
-							logger
-							    .severe("ClientHandler[" + mainClient.getName()
-							        + "]: write " + m.toString()
-							        + " with not serializable exception "
-							        + nse.getLocalizedMessage());
-						}
-						catch (IOException e)
-						{
-							logger
-							    .severe("ClientHandler[" + mainClient.getName()
-							        + "]: write " + m.toString() + " failed");
-
-						}
-					}
-				}
+				client.send(frame);
 			}
+		}
 
-			/*
-			 * This specific message may not be recorded in parent's recorded
-			 * messages
-			 */
-			// parent.addMessage(m);
+		/*
+		 * This specific message may not be recorded in parent's recorded
+		 * messages
+		 */
+		// parent.addMessage(frame);
 
-		}
+		// other nodes notify their own clients
+		parent.relayLogin(mainClient.getName());
 	}
 
 	/**
@@ -146,252 +148,739 @@ public class ClientHandler implements Runnable
 	 */
 	public static int getNbThreads()
 	{
-		return nbThreads;
+		return nbThreads.get();
 	}
 
 	/**
-	 * Client handler run loop: Read a new line from main client. Process the
-	 * line (for special commands such as "bye" or "kick") and eventually
-	 * boradcast the message to all clients if the main client is not banned
+	 * Client handler run loop: Read a new line from main client and process it
+	 * with {@link #processLine(String)} until the main client logs out, is
+	 * banned or kills the server.
+	 * This is the blocking execution mode where each handler runs in its own
+	 * thread. The {@link NioChatServer} does not use this method but feeds
+	 * lines to {@link #processLine(String)} from its event loops instead.
 	 * @see java.lang.Runnable#run()
 	 */
 	@Override
 	public void run()
 	{
-		boolean loggedOut = false;
-		boolean killed = false;
-		boolean catchup = false;
+		boolean running = true;
 		String clientInput = null;
-
+		ownThread = true;
 
 		try
 		{
 			/*
 			 * Wait for a new line from client
 			 */
-			while (!loggedOut && !killed &&
+			while (running &&
 			       ((clientInput = mainClient.getIn().readLine()) != null))
 			{
-				// Display the line on the console
-				System.out.println(mainClient.getName() + " > " + clientInput);
-
-				// Check if main client is banned
-				if (mainClient.isBanned())
+				if (exceedsMaxFrame(clientInput))
 				{
-					logger.info(mainClient.getName() + " is banned");
-					loggedOut = true;
+					logger.warning("ClientHandler[" + mainClient.getName()
+					    + "]: line exceeds max frame "
+					    + mainClient.getMaxFrame() + ", closing");
 					break;
 				}
+				running = processLine(clientInput);
+			}
+		}
+		catch (InvalidClassException ice)
+		{
+			logger.severe("ClientHandler["
+				+ mainClient.getName() + "]: write to client invalid class " +
+				ice.getLocalizedMessage());
+		}
+		catch (NotSerializableException nse)
+		{
+			logger.severe(
+				"ClientHandler[" + mainClient.getName()
+					+ "]: write to not serializable exception "
+					+ nse.getLocalizedMessage());
+		}
+		catch (IOException e)
+		{
+			logger.severe("ClientHandler[" + mainClient.getName()
+					+ "]: received or write failed, Closing client " + this);
+		}
 
-				// Check for control messages (kick, bye, ...)
-				boolean controlMessage = false;
-				for (String command : Vocabulary.commands)
-				{
-					if (clientInput.toLowerCase().startsWith(command))
-					{
-						controlMessage = true;
-						break;
-					}
-				}
+		terminate();
+	}
+
+	/**
+	 * Message broadcast to a snapshot of all clients: messages are only
+	 * queued to each client's outbound queue and written by the client's
+	 * writer so no socket I/O occurs here
+	 * @param frame the framed message to broadcast
+	 */
+	private void broadcast(Frame frame)
+	{
+		for (InputOutputClient c : allClients)
+		{
+			if (c.isReady())
+			{
+				// send framed message to client
+				c.send(frame, ownThread);
+			}
+			else
+			{
+				logger.warning("ClientHandler["
+						+ mainClient.getName() + "]Client "
+						+ c.getName() + " not ready");
+			}
+		}
+	}
+
+	/**
+	 * Checks if a line read from the main client exceeds the maximum frame
+	 * size negotiated with it (the line's UTF-8 encoding is only computed
+	 * when its length is not enough to decide)
+	 * @param line the line read from the main client
+	 * @return true if the line exceeds the main client's maximum frame size
+	 */
+	private boolean exceedsMaxFrame(String line)
+	{
+		int maxFrame = mainClient.getMaxFrame();
+		if (line.length() > maxFrame)
+		{
+			return true;
+		}
+		if (line.length() * 3 <= maxFrame)
+		{
+			return false;
+		}
+		return line.getBytes(StandardCharsets.UTF_8).length > maxFrame;
+	}
 
-				StringBuffer messageContent = new StringBuffer();
+	/**
+	 * Process a line received from the main client (for special commands such
+	 * as "bye" or "kick") and eventually boradcast the message to all clients
+	 * if the main client is not banned
+	 * @param clientInput the line received from the main client
+	 * @return true if the main client should keep being processed, false if
+	 * it logged out, has been banned or killed the server
+	 * @throws IOException if a message could not be written to a client
+	 */
+	protected boolean processLine(String clientInput) throws IOException
+	{
+		boolean loggedOut = false;
+		boolean killed = false;
+		boolean catchup = false;
+
+		// Display the line on the console (but not direct messages' content)
+		String direct = argument(clientInput, Vocabulary.msgCmd);
+		System.out.println(mainClient.getName() + " > " + (direct != null ?
+		    Vocabulary.msgCmd + " [private]" : clientInput));
+
+		// Check if main client is banned
+		if (mainClient.isBanned())
+		{
+			logger.info(mainClient.getName() + " is banned");
+			return false;
+		}
+
+		// Check for control messages (kick, bye, ...)
+		boolean controlMessage = false;
+		for (String command : Vocabulary.commands)
+		{
+			if (argument(clientInput, command) != null)
+			{
+				controlMessage = true;
+				break;
+			}
+		}
 
-				if (controlMessage)
+		// Direct messages
+		if (direct != null)
+		{
+			sendDirect(direct);
+			return true;
+		}
+
+		// Rooms commands and messages sent to a room
+		if (processRoomLine(clientInput, controlMessage))
+		{
+			return true;
+		}
+
+		StringBuffer messageContent = new StringBuffer();
+
+		if (controlMessage)
+		{
+			// Check if client wants to quit
+			if (clientInput.toLowerCase().equals(Vocabulary.byeCmd))
+			{
+				messageContent.append(mainClient.getName() +
+				                      " logged out");
+				loggedOut = true;
+			}
+			// Check if client requested a server kill
+			else if (clientInput.toLowerCase().startsWith(Vocabulary.killCmd))
+			{
+				// Only allowed if main client is first client (super user)
+				if (allClients.first() == mainClient)
+				{
+					killed = true;
+					parent.setListening(false);
+					return false;
+				}
+			}
+			// Checks if client requested a kick
+			else if (clientInput.toLowerCase().startsWith(Vocabulary.kickCmd))
+			{
+				messageContent.append(Vocabulary.kickCmd);
+				// Only allowed if main client is first client
+				if (allClients.first() == mainClient)
 				{
-					// Check if client wants to quit
-					if (clientInput.toLowerCase().equals(Vocabulary.byeCmd))
+					// Search for client to kick
+					String kickedName = null;
+					try
 					{
-						messageContent.append(mainClient.getName() +
-						                      " logged out");
-						loggedOut = true;
+						kickedName = clientInput.substring(
+							Vocabulary.kickCmd.length() + 1);
 					}
-					// Check if client requested a server kill
-					else if (clientInput.toLowerCase().startsWith(Vocabulary.killCmd))
+					catch (IndexOutOfBoundsException iob)
 					{
-						// Only allowed if main client is first client (super user)
-						if (allClients.get(0) == mainClient)
-						{
-							killed = true;
-							parent.setListening(false);
-							break;
-						}
+						logger.warning("ClientHandler: Error retreiving client name to kick");
 					}
-					// Checks if client requested a kick
-					else if (clientInput.toLowerCase().startsWith(Vocabulary.kickCmd))
+					if (kickedName != null)
 					{
-						messageContent.append(Vocabulary.kickCmd);
-						// Atomic access to all clients during request processing
-						synchronized (allClients)
+						messageContent.append(" " + kickedName);
+						InputOutputClient kickedClient =
+							parent.searchClientByName(kickedName);
+						if (kickedClient != null)
+						{
+							kickedClient.setBanned(true);
+							logger.info("Clienthandler["
+								+ mainClient.getName() + "] client "
+								+ kickedName + " banned");
+							messageContent.append(" [request granted by server]");
+						}
+						else
 						{
-							// Only allowed if main client is first client
-							if (allClients.get(0) == mainClient)
-							{
-								// Search for client to kick
-								String kickedName = null;
-								try
-								{
-									kickedName = clientInput.substring(
-										Vocabulary.kickCmd.length() + 1);
-								}
-								catch (IndexOutOfBoundsException iob)
-								{
-									logger.warning("ClientHandler: Error retreiving client name to kick");
-								}
-								if (kickedName != null)
-								{
-									messageContent.append(" " + kickedName);
-									InputOutputClient kickedClient =
-										parent.searchClientByName(kickedName);
-									if (kickedClient != null)
-									{
-										kickedClient.setBanned(true);
-										logger.info("Clienthandler["
-											+ mainClient.getName() + "] client "
-											+ kickedName + " banned");
-										messageContent.append(" [request granted by server]");
-									}
-									else
-									{
-										messageContent.append(" [client "
-											+ kickedName + " does not exist]");
-									}
-								}
-								else
-								{
-									messageContent.append(" [no client name to kick]");
-								}
-							}
-							else
-							{
-								int cmdL = Vocabulary.kickCmd.length();
-								messageContent.append(clientInput.substring(cmdL, (clientInput.length())));
-								messageContent.append(" [request denied by server]");
-							}
-							messageContent.append(" by " + mainClient.getName());
+							messageContent.append(" [client "
+								+ kickedName + " does not exist]");
 						}
 					}
-					else if(clientInput.toLowerCase().startsWith(Vocabulary.catchUpCmd))
+					else
 					{
-						catchup = true;
+						messageContent.append(" [no client name to kick]");
 					}
 				}
 				else
 				{
-					// regular message
-					messageContent.append(clientInput);
+					int cmdL = Vocabulary.kickCmd.length();
+					messageContent.append(clientInput.substring(cmdL, (clientInput.length())));
+					messageContent.append(" [request denied by server]");
 				}
+				messageContent.append(" by " + mainClient.getName());
+			}
+			else if(clientInput.toLowerCase().startsWith(Vocabulary.catchUpCmd))
+			{
+				catchup = true;
+			}
+		}
+		else
+		{
+			// regular message
+			messageContent.append(clientInput);
+		}
+
+		/*
+		 * Creates the message to broadcast
+		 */
+		Message message = null;
 
+		if (!catchup)
+		{
+			if (controlMessage)
+			{
+				message = new Message(messageContent.toString());
+			}
+			else
+			{
+				message = new Message(messageContent.toString(),
+				                      mainClient.getName());
+			}
+
+			/*
+			 * The message is encoded once (per codec) and the same frame is
+			 * kept by parent and sent to all clients
+			 */
+			final Frame frame = new Frame(message);
+
+			/*
+			 * DONE Add this message to parent
+			 */
+			if (ownThread)
+			{
+				parent.addMessage(frame);
+				parent.relay(message);
+				broadcast(frame);
+			}
+			else
+			{
 				/*
-				 * Creates the message to broadcast
+				 * Event loops never wait for the message to be committed: it
+				 * is relayed and broadcast once committed (and a logged out
+				 * main client is only released afterwards)
 				 */
-				Message message = null;
-
-				if (!catchup)
+				final boolean logout = loggedOut;
+				if (logout)
 				{
-					if (controlMessage)
-					{
-						message = new Message(messageContent.toString());
-					}
-					else
+					synchronized (this)
 					{
-						message = new Message(messageContent.toString(),
-						                      mainClient.getName());
-					}
-
-					/*
-					 * DONE Add this message to parent
-					 */
-					parent.addMessage(message);
-
-					/*
-					 * Message broadcast to all clients in an allClients
-					 * synchronized block to avoid any modification to
-					 * this list during the broadcast
-					 */
-					synchronized (allClients)
-					{
-						for (InputOutputClient c : allClients)
-						{
-							if (c.isReady())
-							{
-								// get client output stream and send message object
-								ObjectOutputStream out = c.getOut();
-								out.writeObject(message);
-							}
-							else
-							{
-								logger.warning("ClientHandler["
-										+ mainClient.getName() + "]Client "
-										+ c.getName() + " not ready");
-							}
-						}
+						logoutPending = true;
 					}
 				}
-				else // catchup : resend all stored messages to main client
+				parent.addMessage(frame, new Runnable()
 				{
-					synchronized (allClients)
+					@Override
+					public void run()
 					{
-						if ((clientIndex != -1) &&
-							(clientIndex < allClients.size()))
+						parent.relay(frame.getMessage());
+						broadcast(frame);
+						if (logout)
 						{
-							InputOutputClient client =
-							    allClients.get(clientIndex);
-							if (client.isReady())
-							{
-								ObjectOutputStream out = client.getOut();
-								Iterator<Message> itm = parent.messages();
-								while (itm.hasNext())
-								{
-									out.writeObject(itm.next());
-								}
-							}
-						}
-						else
-						{
-							logger.warning("ClientHandler["
-											+ mainClient.getName()
-											+ "] invalid index : "
-											+ String.valueOf(clientIndex));
+							loggedOut();
 						}
 					}
-					catchup = false;
+				});
+			}
+		}
+		else // catchup : resend stored messages missed by main client
+		{
+			InputOutputClient client = allClients.get(mainClient.getName());
+			if (client != mainClient)
+			{
+				logger.warning("ClientHandler[" + mainClient.getName()
+				    + "] not registered");
+			}
+			else if (client.isReady())
+			{
+				Iterator<Frame> itm = catchupMessages(
+				    clientInput.substring(Vocabulary.catchUpCmd.length()).trim(),
+				    client.acceptsRegions());
+				while (itm.hasNext())
+				{
+					client.send(itm.next(), ownThread);
 				}
 			}
 		}
-		catch (InvalidClassException ice)
+
+		return !loggedOut && !killed;
+	}
+
+	/**
+	 * Argument of a command line
+	 * @param clientInput the line received from the main client
+	 * @param command the command
+	 * @return the (trimmed) argument following the command, an empty string
+	 * if the line only contains the command or null if the line is not this
+	 * command
+	 */
+	private static String argument(String clientInput, String command)
+	{
+		String line = clientInput.toLowerCase();
+		if (line.equals(command))
 		{
-			logger.severe("ClientHandler["
-				+ mainClient.getName() + "]: write to client invalid class " +
-				ice.getLocalizedMessage());
+			return "";
 		}
-		catch (NotSerializableException nse)
+		if (line.startsWith(command + " "))
 		{
-			logger.severe(
-				"ClientHandler[" + mainClient.getName()
-					+ "]: write to not serializable exception "
-					+ nse.getLocalizedMessage());
+			return clientInput.substring(command.length()).trim();
 		}
-		catch (IOException e)
+		return null;
+	}
+
+	/**
+	 * Processes the rooms commands (join, leave, list, publish, subscribe
+	 * and unsubscribe) and the regular messages of a main client which
+	 * joined a room (only sent to the room's members and subscribers)
+	 * @param clientInput the line received from the main client
+	 * @param controlMessage indicates the line is a control message
+	 * @return true if the line has been processed, false if it should be
+	 * processed as a message to all clients
+	 */
+	protected boolean processRoomLine(String clientInput,
+	                                  boolean controlMessage)
+	{
+		if (!controlMessage)
 		{
-			logger.severe("ClientHandler[" + mainClient.getName()
-					+ "]: received or write failed, Closing client " + this);
+			if (rooms.isEmpty())
+			{
+				return false;
+			}
+			Frame frame = rooms.get(rooms.size() - 1).send(clientInput,
+			                                               mainClient.getName());
+			if (frame != null)
+			{
+				parent.relay(frame.getMessage());
+			}
+			return true;
+		}
+
+		String join = argument(clientInput, Vocabulary.joinCmd);
+		String leave = argument(clientInput, Vocabulary.leaveCmd);
+		String list = argument(clientInput, Vocabulary.listCmd);
+		String publish = argument(clientInput, Vocabulary.publishCmd);
+		String subscribe = argument(clientInput, Vocabulary.subscribeCmd);
+		String unsubscribe = argument(clientInput,
+		                              Vocabulary.unsubscribeCmd);
+		if ((join == null) && (leave == null) && (list == null)
+		    && (publish == null) && (subscribe == null)
+		    && (unsubscribe == null))
+		{
+			return false;
+		}
+		InputOutputClient client = allClients.get(mainClient.getName());
+		if (client != mainClient)
+		{
+			logger.warning("ClientHandler[" + mainClient.getName()
+			    + "] not registered");
+			return true;
 		}
 
-		// remove current client from allClients (should be atomic)
-		synchronized (allClients)
+		StringBuffer answer = new StringBuffer();
+		if (join != null)
+		{
+			if (!SubscriptionTrie.isTopic(join))
+			{
+				answer.append(Vocabulary.joinCmd + " " + join
+				    + " [invalid room name]");
+			}
+			else
+			{
+				join(join, client);
+			}
+		}
+		else if (leave != null)
+		{
+			Room room = null;
+			for (Room joined : rooms)
+			{
+				if (leave.isEmpty() || joined.getName().equals(leave))
+				{
+					room = joined;
+				}
+			}
+			if (room != null)
+			{
+				rooms.remove(room);
+				parent.leaveRoom(room, client);
+				answer.append("left " + room.getName()
+				    + (rooms.isEmpty() ? ", messages sent to all users" :
+				        ", messages sent to "
+				        + rooms.get(rooms.size() - 1).getName()));
+			}
+			else
+			{
+				answer.append(Vocabulary.leaveCmd + " " + leave
+				    + " [not a member]");
+			}
+		}
+		else if (publish != null)
 		{
-			boolean removed = allClients.remove(mainClient);
-			if (!removed)
+			int separator = publish.indexOf(' ');
+			String topic = (separator > 0 ? publish.substring(0, separator) :
+			    publish);
+			if (!SubscriptionTrie.isTopic(topic) || (separator < 0))
+			{
+				answer.append(Vocabulary.publishCmd + " " + publish
+				    + " [invalid room name or no message]");
+			}
+			else
+			{
+				Frame frame = parent.publish(topic,
+				    publish.substring(separator + 1).trim(),
+				    mainClient.getName());
+				parent.relay(frame.getMessage());
+			}
+		}
+		else if (subscribe != null)
+		{
+			if (!SubscriptionTrie.isPattern(subscribe))
+			{
+				answer.append(Vocabulary.subscribeCmd + " " + subscribe
+				    + " [invalid pattern]");
+			}
+			else if (parent.subscribe(subscribe, client))
+			{
+				subscriptions.add(subscribe);
+				answer.append("subscribed to " + subscribe);
+			}
+		}
+		else if (unsubscribe != null)
+		{
+			if (subscriptions.remove(unsubscribe))
+			{
+				parent.unsubscribe(unsubscribe, client);
+				answer.append("unsubscribed from " + unsubscribe);
+			}
+			else
 			{
-				logger.warning("ClientHandler::run::end : failed to remove " +
-					"main client from clients");
+				answer.append(Vocabulary.unsubscribeCmd + " " + unsubscribe
+				    + " [not subscribed]");
 			}
 		}
+		else
+		{
+			answer.append("rooms:");
+			for (Room room : parent.rooms())
+			{
+				answer.append(" " + room);
+			}
+			if (!subscriptions.isEmpty())
+			{
+				answer.append(", subscriptions: " + subscriptions);
+			}
+		}
+
+		if ((answer.length() > 0) && client.isReady())
+		{
+			// answers are only sent to the main client
+			client.send(new Frame(new Message(answer.toString())));
+		}
+		return true;
+	}
+
+	/**
+	 * Joins a room from the main client's {@link chat.Hello} when it connects
+	 * (invalid room names are ignored)
+	 * @param name the name of the room
+	 */
+	public void join(String name)
+	{
+		if ((mainClient instanceof InputOutputClient)
+		    && SubscriptionTrie.isTopic(name))
+		{
+			join(name, (InputOutputClient) mainClient);
+		}
+		else
+		{
+			logger.warning("ClientHandler[" + mainClient.getName()
+			    + "] invalid room name " + name);
+		}
+	}
+
+	/**
+	 * Adds the main client to a room which becomes the room its messages are
+	 * sent to
+	 * @param name the name of the room
+	 * @param client the main client
+	 */
+	private void join(String name, InputOutputClient client)
+	{
+		Room room = parent.joinRoom(name, client);
+		// the joined room becomes the one messages are sent to
+		rooms.remove(room);
+		rooms.add(room);
+		logger.info("ClientHandler[" + mainClient.getName()
+		    + "] joined room " + room);
+	}
+
+	/**
+	 * Sends a direct message from the main client to a single client: the
+	 * recipient is looked up by name in the registry (without locking nor
+	 * traversing the clients), the message is only queued to the recipient
+	 * (or relayed to the recipient's node if it is connected to another node
+	 * of the federation) and echoed to the main client, and is not added to
+	 * the server's history
+	 * @param argument the argument of the direct message command: the
+	 * recipient's name followed by the message
+	 */
+	protected void sendDirect(String argument)
+	{
+		InputOutputClient client = allClients.get(mainClient.getName());
+		if (client != mainClient)
+		{
+			logger.warning("ClientHandler[" + mainClient.getName()
+			    + "] not registered");
+			return;
+		}
+		int separator = argument.indexOf(' ');
+		String name = (separator > 0 ? argument.substring(0, separator) :
+		    argument);
+		String content = (separator > 0 ?
+		    argument.substring(separator + 1).trim() : "");
+		InputOutputClient recipient = (name.isEmpty() ? null :
+		    allClients.get(name));
+		boolean remote = (recipient == null) && !name.isEmpty()
+		    && parent.isRemoteClient(name);
+		Frame frame;
+		if (((recipient == null) && !remote) || content.isEmpty())
+		{
+			frame = new Frame(new Message(Vocabulary.msgCmd + " " + argument
+			    + ((recipient == null) && !remote ?
+			        " [client " + name + " does not exist]" :
+			        " [no message]")));
+		}
+		else
+		{
+			frame = new Frame(new Message(null,
+			                              content,
+			                              mainClient.getName(),
+			                              Vocabulary.directPrefix + name));
+			if (remote)
+			{
+				parent.relay(frame.getMessage());
+			}
+			else if ((recipient != client) && recipient.isReady())
+			{
+				recipient.send(frame, ownThread);
+			}
+		}
+		if (client.isReady())
+		{
+			client.send(frame, ownThread);
+		}
+	}
+
+	/**
+	 * Leaves all the rooms joined by the main client and removes its
+	 * subscriptions
+	 */
+	private void leaveRooms()
+	{
+		if ((mainClient instanceof InputOutputClient)
+		    && !subscriptions.isEmpty())
+		{
+			for (String pattern : subscriptions)
+			{
+				parent.unsubscribe(pattern, (InputOutputClient) mainClient);
+			}
+			subscriptions.clear();
+		}
+		if ((mainClient instanceof InputOutputClient) && !rooms.isEmpty())
+		{
+			for (Room room : rooms)
+			{
+				parent.leaveRoom(room, (InputOutputClient) mainClient);
+			}
+			rooms.clear();
+		}
+	}
+
+	/**
+	 * Cursor over the stored messages requested by a catchup command
+	 * @param since the catchup argument: empty for all stored messages, the
+	 * sequence number of the last message received by the main client or the
+	 * date of the last message received by the main client (in
+	 * {@link Message#getDateFormat()} format)
+	 * @param regions indicates the main client accepts regions of the
+	 * server's message log, sent without decoding the logged messages
+	 * @return a cursor over the stored messages newer than since (or over all
+	 * stored messages if since is empty or invalid), or over a single region
+	 * of the message log containing these messages
+	 */
+	protected Iterator<Frame> catchupMessages(String since, boolean regions)
+	{
+		if (since.isEmpty())
+		{
+			return parent.messages();
+		}
+		try
+		{
+			long sequence = Long.parseLong(since);
+			Frame region = (regions ? parent.region(sequence) : null);
+			if (region != null)
+			{
+				logger.info("ClientHandler[" + mainClient.getName()
+				    + "] catchup: " + region);
+				return Collections.singletonList(region).iterator();
+			}
+			return parent.messages(sequence);
+		}
+		catch (NumberFormatException nfe)
+		{
+			// not a sequence number, might be a date
+		}
+		try
+		{
+			SimpleDateFormat format =
+			    new SimpleDateFormat(Message.getDateFormat().toPattern());
+			Date date = format.parse(since);
+			Frame region = (regions ? parent.region(date) : null);
+			if (region != null)
+			{
+				logger.info("ClientHandler[" + mainClient.getName()
+				    + "] catchup: " + region);
+				return Collections.singletonList(region).iterator();
+			}
+			return parent.messages(date);
+		}
+		catch (ParseException pe)
+		{
+			logger.warning("ClientHandler[" + mainClient.getName()
+			    + "] invalid catchup argument " + since
+			    + ", sending all messages");
+			return parent.messages();
+		}
+	}
+
+	/**
+	 * Releases the main client once its logout notice has been broadcast,
+	 * if this handler has been terminated in the meantime
+	 */
+	private void loggedOut()
+	{
+		boolean release;
+		synchronized (this)
+		{
+			logoutPending = false;
+			release = terminating;
+		}
+		if (release)
+		{
+			release();
+		}
+	}
+
+	/**
+	 * Terminates this handler: removes the main client from all clients,
+	 * cleanup the main client and notify the parent server which might stop
+	 * listening if this was the last client. If the main client's logout
+	 * notice is still waiting to be committed, the handler is terminated
+	 * once the notice has been broadcast.
+	 */
+	protected void terminate()
+	{
+		synchronized (this)
+		{
+			if (logoutPending)
+			{
+				terminating = true;
+				return;
+			}
+		}
+		release();
+	}
+
+	/**
+	 * Releases the main client: removes it from all clients, cleanup the
+	 * main client and notify the parent server
+	 */
+	private void release()
+	{
+		leaveRooms();
+		// remove current client from allClients (releasing its name)
+		boolean removed = (mainClient instanceof InputOutputClient) &&
+		    allClients.remove((InputOutputClient) mainClient);
+		if (!removed)
+		{
+			logger.warning("ClientHandler::run::end : failed to remove " +
+				"main client from clients");
+		}
+		else
+		{
+			parent.relayLogout(mainClient.getName());
+		}
+		parent.removeHandler(this);
 		// cleanup current client
 		mainClient.cleanup();
 		synchronized (parent)
 		{
-			nbThreads--;
+			nbThreads.decrementAndGet();
 			parent.cleanup();
 		}
 	}
@@ -0,0 +1,176 @@
+package chat.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the clients connected to a {@link ChatServer}, indexed by
+ * name.
+ * <ul>
+ * 	<li>Looking up a client by its name does not require any lock and does not
+ * 	traverse all clients</li>
+ * 	<li>A name can only be claimed once: checking a name is free and
+ * 	registering a client with this name is a single atomic operation
+ * 	({@link #claim(InputOutputClient)})</li>
+ * 	<li>Iterating over all clients (to broadcast a message for instance)
+ * 	never locks nor copies the registry and is never invalidated by clients
+ * 	connecting or leaving during traversal (which may or may not be
+ * 	visited)</li>
+ * 	<li>Claiming and removing a client never copies the registry: the
+ * 	claim order is only kept to find the first client</li>
+ * </ul>
+ * @author davidroussel
+ */
+public class ClientRegistry implements Iterable<InputOutputClient>
+{
+	/**
+	 * Clients indexed by name
+	 */
+	private final ConcurrentMap<String, InputOutputClient> byName;
+
+	/**
+	 * Clients indexed by claim number, in connection order (the first one
+	 * being the super user which can kick other clients or kill the server)
+	 */
+	private final ConcurrentSkipListMap<Long, InputOutputClient> ordered;
+
+	/**
+	 * Claim number of each registered client
+	 */
+	private final ConcurrentMap<InputOutputClient, Long> claims;
+
+	/**
+	 * Next claim number
+	 */
+	private final AtomicLong nextClaim;
+
+	/**
+	 * Constructor of an empty registry
+	 */
+	public ClientRegistry()
+	{
+		byName = new ConcurrentHashMap<String, InputOutputClient>();
+		ordered = new ConcurrentSkipListMap<Long, InputOutputClient>();
+		claims = new ConcurrentHashMap<InputOutputClient, Long>();
+		nextClaim = new AtomicLong();
+	}
+
+	/**
+	 * Registers a client under its name unless this name is already claimed
+	 * by another client
+	 * @param client the client to register
+	 * @return true if the client has been registered, false if another
+	 * client already uses this name
+	 */
+	public boolean claim(InputOutputClient client)
+	{
+		if (byName.putIfAbsent(client.getName(), client) != null)
+		{
+			return false;
+		}
+		Long claim = Long.valueOf(nextClaim.getAndIncrement());
+		ordered.put(claim, client);
+		claims.put(client, claim);
+		// the client may have been removed before its claim was recorded
+		if ((byName.get(client.getName()) != client)
+		    && claims.remove(client, claim))
+		{
+			ordered.remove(claim);
+		}
+		return true;
+	}
+
+	/**
+	 * Search a client by name
+	 * @param name the name of the client to search
+	 * @return the client registered with this name or null if there is no
+	 * such client
+	 */
+	public InputOutputClient get(String name)
+	{
+		return byName.get(name);
+	}
+
+	/**
+	 * Removes a client from this registry, releasing its name
+	 * @param client the client to remove
+	 * @return true if the client was registered, false otherwise
+	 */
+	public boolean remove(InputOutputClient client)
+	{
+		boolean removed = byName.remove(client.getName(), client);
+		Long claim = claims.remove(client);
+		if (claim != null)
+		{
+			ordered.remove(claim);
+		}
+		return removed;
+	}
+
+	/**
+	 * First connected client still registered
+	 * @return the first connected client or null if there is no client
+	 */
+	public InputOutputClient first()
+	{
+		Map.Entry<Long, InputOutputClient> first = ordered.firstEntry();
+		return first != null ? first.getValue() : null;
+	}
+
+	/**
+	 * Snapshot of all registered clients
+	 * @return an array of all clients (in no particular order)
+	 */
+	public InputOutputClient[] snapshot()
+	{
+		return byName.values().toArray(new InputOutputClient[0]);
+	}
+
+	/**
+	 * Weakly consistent iterator on all registered clients (in no particular
+	 * order). The iterator does not support removal
+	 * @return an iterator which can be traversed without any lock
+	 */
+	@Override
+	public Iterator<InputOutputClient> iterator()
+	{
+		final Iterator<InputOutputClient> it = byName.values().iterator();
+		return new Iterator<InputOutputClient>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return it.hasNext();
+			}
+
+			@Override
+			public InputOutputClient next()
+			{
+				return it.next();
+			}
+		};
+	}
+
+	/**
+	 * Number of registered clients
+	 * @return the number of registered clients
+	 */
+	public int size()
+	{
+		return byName.size();
+	}
+
+	/**
+	 * Removes all clients
+	 */
+	public void clear()
+	{
+		byName.clear();
+		ordered.clear();
+		claims.clear();
+	}
+}
@@ -0,0 +1,104 @@
+package chat.server;
+
+/**
+ * Write coalescing settings of clients writers: frames queued for a client
+ * within a time window (starting with the first frame of a batch) are
+ * gathered and sent to the client in a single write, unless the batch
+ * reaches a byte budget before the end of the window.
+ * A larger window reduces the number of writes (and TCP segments) per
+ * message at the expense of latency: this is the latency vs throughput knob
+ * of the server.
+ * @author davidroussel
+ */
+public class Coalescing
+{
+	/**
+	 * No coalescing: frames are written as soon as they are queued
+	 */
+	public final static Coalescing NONE = new Coalescing(0, 0);
+
+	/**
+	 * Time window (in µs) during which frames are gathered
+	 */
+	private final long window;
+
+	/**
+	 * Maximum number of bytes gathered before writing (0 for no limit)
+	 */
+	private final int maxBytes;
+
+	/**
+	 * Constructor
+	 * @param window time window (in µs) during which frames are gathered
+	 * (0 or less for no coalescing)
+	 * @param maxBytes maximum number of bytes gathered before writing (0 or
+	 * less for no limit other than the window)
+	 */
+	public Coalescing(long window, int maxBytes)
+	{
+		this.window = Math.max(window, 0);
+		this.maxBytes = Math.max(maxBytes, 0);
+	}
+
+	/**
+	 * Time window accessor
+	 * @return the time window (in µs) during which frames are gathered
+	 */
+	public long getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Time window in ns
+	 * @return the time window (in ns) during which frames are gathered
+	 */
+	public long getWindowNanos()
+	{
+		return window * 1000;
+	}
+
+	/**
+	 * Byte budget accessor
+	 * @return the maximum number of bytes gathered before writing (0 for no
+	 * limit)
+	 */
+	public int getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Indicates frames are gathered before being written
+	 * @return true if the time window is not null
+	 */
+	public boolean isEnabled()
+	{
+		return window > 0;
+	}
+
+	/**
+	 * Indicates a batch reached the byte budget and should be written
+	 * without waiting for the end of the window
+	 * @param bytes number of bytes gathered in the batch
+	 * @return true if the batch should be written
+	 */
+	public boolean isFull(long bytes)
+	{
+		return (maxBytes > 0) && (bytes >= maxBytes);
+	}
+
+	/**
+	 * Coalescing string representation
+	 */
+	@Override
+	public String toString()
+	{
+		if (!isEnabled())
+		{
+			return new String("no coalescing");
+		}
+		return new String("coalescing " + window + " us"
+		    + (maxBytes > 0 ? " or " + maxBytes + " bytes" : ""));
+	}
+}
@@ -0,0 +1,66 @@
+package chat.server;
+
+/**
+ * Enumeration of the durability modes of the {@link MessageLog}: when
+ * appended messages are forced to the disk
+ * @author davidroussel
+ */
+public enum Durability
+{
+	/**
+	 * Messages are never forced: they are written to the operating system
+	 * and survive a server crash but not a system crash
+	 */
+	NONE,
+	/**
+	 * Messages are forced periodically by a background thread: a system
+	 * crash loses at most the messages of the last interval, senders never
+	 * wait
+	 */
+	INTERVAL,
+	/**
+	 * Messages are forced before being broadcast: senders appending
+	 * concurrently are batched and released together after a single force
+	 * (group commit), so a broadcast message is never lost
+	 */
+	BATCH;
+
+	/**
+	 * Durability string representation
+	 */
+	@Override
+	public String toString()
+	{
+		switch (this)
+		{
+			case NONE:
+				return new String("None");
+			case INTERVAL:
+				return new String("Interval");
+			case BATCH:
+				return new String("Batch");
+		}
+		throw new AssertionError("Durability: unknown mode: " + this);
+	}
+
+	/**
+	 * Factory method of a {@link Durability} from its name
+	 * @param value the name of the mode ("none", "interval" or "batch")
+	 * @return the corresponding mode, or {@link #NONE} if the name is unknown
+	 */
+	public static Durability fromString(String value)
+	{
+		if (value != null)
+		{
+			if (value.equalsIgnoreCase("interval"))
+			{
+				return INTERVAL;
+			}
+			if (value.equalsIgnoreCase("batch"))
+			{
+				return BATCH;
+			}
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,1002 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import chat.Hello;
+import chat.Vocabulary;
+import chat.codec.Compression;
+import chat.codec.MessageCodec;
+import logger.LoggerFactory;
+
+/**
+ * Event loop of a {@link NioChatServer}: a single thread multiplexing
+ * several client connections with a {@link Selector}.
+ * Each loop handles for all its connections:
+ * <ul>
+ * <li>the handshake (optional {@link Hello} line followed by the client's
+ * name)</li>
+ * <li>reading lines and feeding them to the client's
+ * {@link ClientHandler#processLine(String)}</li>
+ * <li>writing frames queued by {@link ChannelClient#send(Frame)} (the
+ * loop is the writer of its clients' {@link OutboundQueue}s)</li>
+ * </ul>
+ * All buffers pending on a connection are written with a single gathering
+ * write and, when the server's {@link Coalescing} window is enabled,
+ * writing newly queued frames is delayed until the end of the window (or
+ * until the client's byte budget is reached) so that frames queued during
+ * the window share the same write. Since the selector's timeout is in ms,
+ * windows shorter than 1 ms are rounded up to 1 ms by this loop.
+ * Connections which don't complete their handshake within the server's
+ * handshake timeout are closed by the loop (without blocking others).
+ * Some loops also accept new connections on the server's listeners and
+ * dispatch them to all loops (the server's shards) in a round robin
+ * fashion.
+ * @author davidroussel
+ */
+class EventLoop implements Runnable
+{
+	/**
+	 * Size of the buffer used to read from clients
+	 */
+	private final static int READBUFFERSIZE = 8192;
+
+	/**
+	 * Charset used to decode lines sent by clients and encode text sent
+	 * to clients (same as the one used by the blocking server streams)
+	 */
+	private final static Charset charset = Charset.defaultCharset();
+
+	/**
+	 * The server owning this loop
+	 */
+	private final NioChatServer server;
+
+	/**
+	 * This loop index among all server's loops
+	 */
+	private final int index;
+
+	/**
+	 * Selector multiplexing this loop connections
+	 */
+	private final Selector selector;
+
+	/**
+	 * Buffer used to read from clients
+	 */
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * Accepted channels waiting to be registered in this loop
+	 */
+	private final Queue<SocketChannel> registrations;
+
+	/**
+	 * Connections waiting for their interest to be updated because some
+	 * bytes have been queued for them
+	 */
+	private final Queue<Connection> writeRequests;
+
+	/**
+	 * Connections whose write is delayed by the coalescing window, in the
+	 * order of their deadlines (only used by this loop's thread)
+	 */
+	private final Deque<Connection> delayedWrites;
+
+	/**
+	 * Coalescing window (in ns) of delayed writes
+	 */
+	private final long window;
+
+	/**
+	 * Connections which haven't completed their handshake yet, in the order
+	 * of their handshake deadlines (only used by this loop's thread)
+	 */
+	private final Deque<Connection> handshakes;
+
+	/**
+	 * Handshake timeout (in ns) of new connections
+	 */
+	private final long handshakeTimeout;
+
+	/**
+	 * Keys of the server channels this loop accepts new connections from
+	 */
+	private final List<SelectionKey> acceptKeys;
+
+	/**
+	 * Number of connections currently handled by this loop
+	 */
+	private volatile int connections;
+
+	/**
+	 * Number of connections registered in this loop
+	 */
+	private volatile long registered;
+
+	/**
+	 * The thread running this loop
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Logger used to display info or debug messages
+	 */
+	private Logger logger;
+
+	/**
+	 * Constructor
+	 * @param server the server owning this loop
+	 * @param index index of this loop among all server's loops
+	 * @param parentLogger parent logger
+	 * @throws IOException if the selector could not be opened
+	 */
+	public EventLoop(NioChatServer server, int index, Logger parentLogger)
+	    throws IOException
+	{
+		this.server = server;
+		this.index = index;
+		selector = Selector.open();
+		readBuffer = ByteBuffer.allocateDirect(READBUFFERSIZE);
+		registrations = new ConcurrentLinkedQueue<SocketChannel>();
+		writeRequests = new ConcurrentLinkedQueue<Connection>();
+		delayedWrites = new ArrayDeque<Connection>();
+		window = server.getCoalescing().getWindowNanos();
+		handshakes = new ArrayDeque<Connection>();
+		handshakeTimeout =
+		    TimeUnit.MILLISECONDS.toNanos(server.getHandshakeTimeout());
+		acceptKeys = new ArrayList<SelectionKey>();
+		connections = 0;
+		registered = 0;
+		thread = null;
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+	}
+
+	/**
+	 * Makes this loop accept new connections on a server channel (a server
+	 * channel can be accepted by several loops)
+	 * @param serverChannel the non blocking server channel
+	 * @throws ClosedChannelException if the server channel is closed
+	 */
+	public void listen(ServerSocketChannel serverChannel)
+	    throws ClosedChannelException
+	{
+		acceptKeys.add(serverChannel.register(selector,
+		                                      SelectionKey.OP_ACCEPT));
+	}
+
+	/**
+	 * Hands a newly accepted channel to this loop (may be called from any
+	 * thread)
+	 * @param channel the accepted channel
+	 */
+	public void register(SocketChannel channel)
+	{
+		registrations.add(channel);
+		wakeup();
+	}
+
+	/**
+	 * Wakes up this loop's selector, unless called from the loop itself
+	 * which will process its pending requests before selecting again
+	 */
+	public void wakeup()
+	{
+		if (Thread.currentThread() != thread)
+		{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Event loop: select ready connections, accept, read and write until the
+	 * server stops listening and all connections of this loop are closed.
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		thread = Thread.currentThread();
+		logger.info("EventLoop[" + index + "] started");
+
+		while (server.isListening() || (connections > 0))
+		{
+			try
+			{
+				long wait = timeToNextDeadline();
+				if (wait == Long.MAX_VALUE)
+				{
+					selector.select();
+				}
+				else if (wait > 0)
+				{
+					selector.select((wait + 999999) / 1000000);
+				}
+				else
+				{
+					selector.selectNow();
+				}
+			}
+			catch (IOException e)
+			{
+				logger.severe("EventLoop[" + index + "] select failed: "
+				    + e.getLocalizedMessage());
+				break;
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				it.remove();
+
+				if (!key.isValid())
+				{
+					continue;
+				}
+				if (key.isAcceptable())
+				{
+					accept((ServerSocketChannel) key.channel());
+					continue;
+				}
+
+				Connection connection = (Connection) key.attachment();
+				if (key.isReadable())
+				{
+					read(connection);
+				}
+				if (key.isValid() && key.isWritable())
+				{
+					write(connection);
+				}
+			}
+
+			processRegistrations();
+			processWriteRequests();
+			processDelayedWrites();
+			processHandshakeDeadlines();
+
+			if (!acceptKeys.isEmpty() && !server.isListening())
+			{
+				logger.info("EventLoop[" + index + "] stops accepting");
+				for (SelectionKey acceptKey : acceptKeys)
+				{
+					acceptKey.cancel();
+				}
+				acceptKeys.clear();
+			}
+		}
+
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("EventLoop[" + index + "] close selector failed");
+		}
+		logger.info("EventLoop[" + index + "] terminated");
+	}
+
+	/**
+	 * Accepts all pending connections on the server channel and dispatches
+	 * them to the server's loops
+	 * @param serverChannel the server channel
+	 */
+	private void accept(ServerSocketChannel serverChannel)
+	{
+		try
+		{
+			SocketChannel channel;
+			while ((channel = serverChannel.accept()) != null)
+			{
+				logger.fine("EventLoop[" + index + "] connection accepted");
+				server.connectionAccepted();
+				channel.configureBlocking(false);
+				server.nextLoop().register(channel);
+			}
+		}
+		catch (IOException e)
+		{
+			if (!server.isListening())
+			{
+				// server channel closed by setListening(false)
+				return;
+			}
+			logger.severe("EventLoop[" + index + "] accept failed: "
+			    + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Registers channels handed to this loop
+	 */
+	private void processRegistrations()
+	{
+		SocketChannel channel;
+		while ((channel = registrations.poll()) != null)
+		{
+			try
+			{
+				SelectionKey key = channel.register(selector,
+				                                    SelectionKey.OP_READ);
+				Connection connection = new Connection(channel, key);
+				connection.handshakeDeadline = System.nanoTime()
+				    + handshakeTimeout;
+				key.attach(connection);
+				handshakes.add(connection);
+				connections++;
+				registered++;
+			}
+			catch (ClosedChannelException e)
+			{
+				logger.warning("EventLoop[" + index
+				    + "] channel closed before registration");
+			}
+		}
+	}
+
+	/**
+	 * Updates interests of connections which have new bytes to write.
+	 * When the coalescing window is enabled, writing frames queued for a
+	 * client is delayed until the end of the window unless the client's byte
+	 * budget is reached
+	 */
+	private void processWriteRequests()
+	{
+		Connection connection;
+		while ((connection = writeRequests.poll()) != null)
+		{
+			if ((window > 0)
+			    && (connection.client != null)
+			    && !connection.closing
+			    && !connection.aborted
+			    && !connection.client.isFull())
+			{
+				if (connection.deadline == 0)
+				{
+					connection.deadline = System.nanoTime() + window;
+					delayedWrites.add(connection);
+				}
+				continue;
+			}
+			if (connection.deadline != 0)
+			{
+				connection.deadline = 0;
+				delayedWrites.remove(connection);
+			}
+			write(connection);
+		}
+	}
+
+	/**
+	 * Time until the nearest deadline (delayed write or handshake) which
+	 * bounds the time this loop can wait in its selector
+	 * @return the time (in ns) until the nearest deadline or
+	 * {@link Long#MAX_VALUE} if there is no pending deadline
+	 */
+	private long timeToNextDeadline()
+	{
+		long now = System.nanoTime();
+		long wait = Long.MAX_VALUE;
+		if (!delayedWrites.isEmpty())
+		{
+			wait = delayedWrites.peek().deadline - now;
+		}
+		if (!handshakes.isEmpty())
+		{
+			wait = Math.min(wait, handshakes.peek().handshakeDeadline - now);
+		}
+		return wait;
+	}
+
+	/**
+	 * Closes connections which didn't complete their handshake before their
+	 * deadline (all handshakes have the same timeout so deadlines of
+	 * handshaking connections are ordered) and forgets completed ones
+	 */
+	private void processHandshakeDeadlines()
+	{
+		long now = System.nanoTime();
+		Connection connection;
+		while ((connection = handshakes.peek()) != null)
+		{
+			if ((connection.client == null) && !connection.closed
+			    && !connection.closing
+			    && (connection.handshakeDeadline - now > 0))
+			{
+				break;
+			}
+			handshakes.poll();
+			if ((connection.client == null) && !connection.closed
+			    && !connection.closing)
+			{
+				logger.warning("EventLoop[" + index
+				    + "] handshake timed out after "
+				    + server.getHandshakeTimeout() + " ms");
+				server.handshakeTimedOut();
+				dispose(connection);
+			}
+		}
+	}
+
+	/**
+	 * Writes connections whose coalescing window is over (all windows have
+	 * the same length so the deadlines of delayed connections are ordered)
+	 */
+	private void processDelayedWrites()
+	{
+		long now = System.nanoTime();
+		while (!delayedWrites.isEmpty()
+		    && (delayedWrites.peek().deadline - now <= 0))
+		{
+			Connection connection = delayedWrites.poll();
+			connection.deadline = 0;
+			write(connection);
+		}
+	}
+
+	/**
+	 * Loop load string representation: current and registered connections
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("#" + index + ": " + connections + "/" + registered);
+	}
+
+	/**
+	 * Reads available bytes from a connection and process all complete lines
+	 * @param connection the connection to read from
+	 */
+	private void read(Connection connection)
+	{
+		int count;
+		readBuffer.clear();
+		try
+		{
+			count = connection.channel.read(readBuffer);
+		}
+		catch (IOException e)
+		{
+			logger.warning("EventLoop[" + index + "] read failed: "
+			    + e.getLocalizedMessage());
+			count = -1;
+		}
+
+		if (count < 0)
+		{
+			// Peer closed the connection
+			connection.terminate();
+			dispose(connection);
+			return;
+		}
+
+		readBuffer.flip();
+		while (readBuffer.hasRemaining() && !connection.closing)
+		{
+			byte b = readBuffer.get();
+			if (b == '\n')
+			{
+				byte[] bytes = connection.line.toByteArray();
+				int length = bytes.length;
+				if ((length > 0) && (bytes[length - 1] == '\r'))
+				{
+					length--;
+				}
+				connection.line.reset();
+				processLine(connection, new String(bytes, 0, length, charset));
+			}
+			else if (connection.line.size() < maxLine(connection))
+			{
+				connection.line.write(b);
+			}
+			else
+			{
+				logger.warning("EventLoop[" + index + "] line of "
+				    + (connection.client != null ?
+				        connection.client.getName() : "new client")
+				    + " exceeds max frame " + maxLine(connection)
+				    + ", closing");
+				connection.terminate();
+				dispose(connection);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Maximum length (in bytes) of the lines received on a connection: the
+	 * maximum frame size negotiated with its client (or the default one
+	 * during the handshake)
+	 * @param connection the connection
+	 * @return the maximum length of a line
+	 */
+	private static int maxLine(Connection connection)
+	{
+		return (connection.client != null ? connection.client.getMaxFrame() :
+		    Hello.DEFAULTMAXFRAME);
+	}
+
+	/**
+	 * Process a complete line received on a connection: the first line is the
+	 * client's name (possibly preceded by its {@link Hello}), the following
+	 * ones are handed to its {@link ClientHandler}
+	 * @param connection the connection the line has been received on
+	 * @param line the received line
+	 */
+	private void processLine(Connection connection, String line)
+	{
+		if (connection.handler == null)
+		{
+			if ((connection.hello == null) && Hello.isHello(line))
+			{
+				connection.hello = Hello.fromString(line);
+				logger.info("EventLoop[" + index + "] client hello "
+				    + connection.hello);
+				if (connection.hello == null)
+				{
+					connection.closeWhenFlushed();
+				}
+				return;
+			}
+			handshake(connection, line);
+			return;
+		}
+
+		boolean running = false;
+		try
+		{
+			running = connection.handler.processLine(line);
+		}
+		catch (IOException e)
+		{
+			logger.severe("EventLoop[" + index + "] processing "
+			    + connection.client.getName() + " failed: "
+			    + e.getLocalizedMessage());
+		}
+
+		if (!running)
+		{
+			connection.terminate();
+		}
+	}
+
+	/**
+	 * Registers a new client with the name received on a connection (after
+	 * answering the client's {@link Hello} if any) or sends a denial message
+	 * if a client with the same name already exists
+	 * @param connection the connection of the new client
+	 * @param clientName the client's name
+	 */
+	private void handshake(Connection connection, String clientName)
+	{
+		logger.info("EventLoop[" + index + "] client name " + clientName);
+		ChannelClient newClient = null;
+		/*
+		 * The name is claimed atomically since other loops might
+		 * register clients concurrently
+		 */
+		if (server.isNameAvailable(clientName))
+		{
+			/*
+			 * Clients without hello use the server's codec without
+			 * compression, others use the negotiated ones (the answer is
+			 * queued before the codec's header)
+			 */
+			MessageCodec clientCodec = server.getCodec();
+			Compression clientCompression = Compression.NONE;
+			int maxFrame = Hello.DEFAULTMAXFRAME;
+			byte[] dictionary = null;
+			if (connection.hello != null)
+			{
+				Hello answer = server.negotiate(connection.hello, clientName);
+				clientCodec = answer.getCodec().getCodec();
+				clientCompression = answer.getCompression();
+				maxFrame = answer.getMaxFrame();
+				if (clientCompression != Compression.NONE)
+				{
+					dictionary = server.newDictionary(clientCodec);
+				}
+				connection.enqueue(ByteBuffer.wrap(
+				    server.greeting(answer, dictionary)));
+			}
+			ChannelClient candidate =
+			    new ChannelClient(connection,
+			                      clientName,
+			                      server.newOutboundQueue(),
+			                      clientCodec,
+			                      server.getResetBudget(),
+			                      clientCompression,
+			                      dictionary,
+			                      server.getCoalescing(),
+			                      logger);
+			candidate.setMaxFrame(maxFrame);
+			if (server.clients.claim(candidate))
+			{
+				newClient = candidate;
+			}
+		}
+
+		if (newClient != null)
+		{
+			connection.client = newClient;
+			connection.handler = new ClientHandler(server,
+			                                       newClient,
+			                                       server.clients,
+			                                       logger);
+			server.addHandler(connection.handler);
+			if ((connection.hello != null)
+			    && (connection.hello.getRoom() != null))
+			{
+				connection.handler.join(connection.hello.getRoom());
+			}
+		}
+		else // a client with this name already exists
+		{
+			String denial = "server > Sorry another client already use the name "
+			    + clientName + Vocabulary.newLine
+			    + "Hit ^D to close your client and try another name"
+			    + Vocabulary.newLine;
+			connection.enqueue(ByteBuffer.wrap(denial.getBytes(charset)));
+			connection.closeWhenFlushed();
+		}
+	}
+
+	/**
+	 * Writes as many queued bytes as possible on a connection and updates its
+	 * interests accordingly
+	 * @param connection the connection to write to
+	 */
+	private void write(Connection connection)
+	{
+		if (connection.closed)
+		{
+			return;
+		}
+
+		if (connection.aborted)
+		{
+			connection.terminate();
+			dispose(connection);
+			return;
+		}
+
+		boolean flushed;
+		try
+		{
+			flushed = connection.flush();
+		}
+		catch (IOException e)
+		{
+			logger.warning("EventLoop[" + index + "] write failed: "
+			    + e.getLocalizedMessage());
+			connection.terminate();
+			dispose(connection);
+			return;
+		}
+
+		if (flushed && connection.closing)
+		{
+			dispose(connection);
+		}
+		else if (flushed)
+		{
+			connection.key.interestOps(SelectionKey.OP_READ);
+		}
+		else
+		{
+			connection.key.interestOps(connection.closing ?
+			                           SelectionKey.OP_WRITE :
+			                           SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Closes a connection's channel
+	 * @param connection the connection to close
+	 */
+	private void dispose(Connection connection)
+	{
+		if (!connection.closed)
+		{
+			connection.closed = true;
+			if (connection.deadline != 0)
+			{
+				connection.deadline = 0;
+				delayedWrites.remove(connection);
+			}
+			connection.key.cancel();
+			try
+			{
+				connection.channel.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("EventLoop[" + index + "] close failed: "
+				    + e.getLocalizedMessage());
+			}
+			if (connection.client != null)
+			{
+				connection.client.release();
+			}
+			connections--;
+		}
+	}
+
+	/**
+	 * A connection handled by this loop: a channel with its partial input line
+	 * and its queue of bytes to write
+	 */
+	class Connection
+	{
+		/**
+		 * The connection's channel
+		 */
+		private final SocketChannel channel;
+
+		/**
+		 * The connection's key in this loop's selector
+		 */
+		private final SelectionKey key;
+
+		/**
+		 * Bytes of the line currently being received
+		 */
+		private final ByteArrayOutputStream line;
+
+		/**
+		 * Queue of buffers waiting to be written on the channel
+		 */
+		private final Deque<ByteBuffer> pending;
+
+		/**
+		 * Log region being transferred after the pending buffers (null if
+		 * none)
+		 */
+		private LogRegion region;
+
+		/**
+		 * The client's hello (null until received or if the client doesn't
+		 * send any)
+		 */
+		private Hello hello;
+
+		/**
+		 * The client of this connection (null until the name handshake is
+		 * complete)
+		 */
+		private ChannelClient client;
+
+		/**
+		 * The handler of the client of this connection (null until the name
+		 * handshake is complete)
+		 */
+		private ClientHandler handler;
+
+		/**
+		 * Indicates this connection should be closed as soon as all pending
+		 * bytes have been written
+		 */
+		private volatile boolean closing;
+
+		/**
+		 * Indicates this connection should be closed immediately, discarding
+		 * pending bytes
+		 */
+		private volatile boolean aborted;
+
+		/**
+		 * Indicates this connection's channel has been closed
+		 */
+		private boolean closed;
+
+		/**
+		 * Indicates the client's handler has been terminated
+		 */
+		private boolean terminated;
+
+		/**
+		 * End of the coalescing window (in ns, see {@link System#nanoTime()})
+		 * of this connection's delayed write, 0 when its write is not delayed
+		 */
+		private long deadline;
+
+		/**
+		 * Time (in ns, see {@link System#nanoTime()}) before which the
+		 * client should complete its handshake
+		 */
+		private long handshakeDeadline;
+
+		/**
+		 * Number of writes on this connection's channel
+		 */
+		private volatile long writes;
+
+		/**
+		 * Constructor
+		 * @param channel the connection's channel
+		 * @param key the connection's key in this loop's selector
+		 */
+		private Connection(SocketChannel channel, SelectionKey key)
+		{
+			this.channel = channel;
+			this.key = key;
+			line = new ByteArrayOutputStream();
+			pending = new ArrayDeque<ByteBuffer>();
+			region = null;
+			hello = null;
+			client = null;
+			handler = null;
+			closing = false;
+			aborted = false;
+			closed = false;
+			terminated = false;
+			deadline = 0;
+			handshakeDeadline = 0;
+			writes = 0;
+		}
+
+		/**
+		 * Number of writes accessor
+		 * @return the number of writes (i.e. system calls) on this
+		 * connection's channel
+		 */
+		public long getWrites()
+		{
+			return writes;
+		}
+
+		/**
+		 * Channel accessor
+		 * @return the connection's channel
+		 */
+		public SocketChannel getChannel()
+		{
+			return channel;
+		}
+
+		/**
+		 * Queues bytes to write on this connection (may be called from any
+		 * thread)
+		 * @param buffer the bytes to write
+		 */
+		public void enqueue(ByteBuffer buffer)
+		{
+			synchronized (pending)
+			{
+				pending.add(buffer);
+			}
+			requestWrite();
+		}
+
+		/**
+		 * Requests this connection to be closed once all pending bytes have
+		 * been written (may be called from any thread)
+		 */
+		public void closeWhenFlushed()
+		{
+			closing = true;
+			requestWrite();
+		}
+
+		/**
+		 * Requests this connection to be closed immediately (may be called
+		 * from any thread)
+		 */
+		public void abort()
+		{
+			aborted = true;
+			requestWrite();
+		}
+
+		/**
+		 * Asks the loop to write queued bytes or messages and update this
+		 * connection's interests (may be called from any thread)
+		 */
+		public void requestWrite()
+		{
+			writeRequests.add(this);
+			wakeup();
+		}
+
+		/**
+		 * Writes as many pending bytes and queued client's frames as
+		 * possible without blocking: once pending buffers have been written,
+		 * all queued frames are moved to pending buffers which are written
+		 * with a single gathering write (frames stay in the client's queue,
+		 * subject to its overflow policy, while the channel is congested).
+		 * A log region queued by a catchup is transferred from the log's
+		 * segment files to the channel (without copy) once the buffers
+		 * preceding it have been written.
+		 * @return true if all pending bytes and frames have been written
+		 * @throws IOException if writing to the channel failed
+		 */
+		private boolean flush() throws IOException
+		{
+			synchronized (pending)
+			{
+				while (true)
+				{
+					if ((region != null) && pending.isEmpty())
+					{
+						region.transferTo(channel);
+						writes++;
+						if (region.hasRemaining())
+						{
+							return false;
+						}
+						client.regionTransferred(region);
+						region = null;
+					}
+					if ((client != null) && pending.isEmpty())
+					{
+						while ((client.pollPending(pending) > 0)
+						    && ((region = client.takeRegion()) == null))
+						{
+							// gathers all queued frames up to a region
+						}
+					}
+					if (pending.isEmpty())
+					{
+						if (region != null)
+						{
+							continue;
+						}
+						return true;
+					}
+
+					channel.write(pending.toArray(new ByteBuffer[pending.size()]));
+					writes++;
+					while (!pending.isEmpty() && !pending.peek().hasRemaining())
+					{
+						pending.poll();
+					}
+					if (!pending.isEmpty())
+					{
+						return false;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Terminates this connection's client handler (if any and if not
+		 * already terminated) which will request this connection to be closed
+		 */
+		private void terminate()
+		{
+			if (!terminated)
+			{
+				terminated = true;
+				if (handler != null)
+				{
+					handler.terminate();
+				}
+				else
+				{
+					closeWhenFlushed();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Enumeration of the ways {@link ClientHandler}s (and client's name
+ * handshakes) can be executed by a {@link ChatServer}
+ * @author davidroussel
+ */
+public enum ExecutionMode
+{
+	/**
+	 * Each client is handled by a platform thread
+	 */
+	PLATFORM,
+	/**
+	 * Each client is handled by a virtual thread (requires a Java 21+ runtime,
+	 * otherwise falls back to {@link #PLATFORM} threads)
+	 */
+	VIRTUAL;
+
+	/**
+	 * Execution mode string representation
+	 */
+	@Override
+	public String toString()
+	{
+		switch (this)
+		{
+			case PLATFORM:
+				return new String("Platform threads");
+			case VIRTUAL:
+				return new String("Virtual threads");
+		}
+		throw new AssertionError("ExecutionMode: unknown mode: " + this);
+	}
+
+	/**
+	 * Creates a new executor running each submitted task in its own thread
+	 * according to this mode.
+	 * The virtual threads executor is obtained by reflection since this code
+	 * should still compile and run on runtimes without virtual threads
+	 * @param logger logger used to warn about virtual threads unavailability
+	 * @return a new executor service
+	 */
+	public ExecutorService newExecutor(Logger logger)
+	{
+		if (this == VIRTUAL)
+		{
+			try
+			{
+				Method factory = Executors.class
+				    .getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				logger.warning("ExecutionMode: virtual threads not available "
+				    + "on this runtime, using platform threads");
+			}
+		}
+
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Factory method of an {@link ExecutionMode} from its name
+	 * @param value the name of the mode ("platform" or "virtual")
+	 * @return {@link #VIRTUAL} if value is "virtual" (ignoring case),
+	 * {@link #PLATFORM} otherwise
+	 */
+	public static ExecutionMode fromString(String value)
+	{
+		if ((value != null) && value.equalsIgnoreCase("virtual"))
+		{
+			return VIRTUAL;
+		}
+		return PLATFORM;
+	}
+}
@@ -0,0 +1,1046 @@
+package chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import chat.Vocabulary;
+import chat.codec.BinaryCodec;
+import logger.LoggerFactory;
+import models.Message;
+
+/**
+ * Federation of several {@link ChatServer} nodes over TCP: each node relays
+ * the messages of its own clients to its peers and keeps a merged view of
+ * the users connected to the other nodes, so that users connected to
+ * different nodes see one chat.
+ * Nodes form a full mesh: each node listens for peers on its federation
+ * listener and connects to the peers it has been given (reconnecting when a
+ * link is lost). Each link carries records:
+ * <ul>
+ * 	<li>a hello giving the node's instance (its id and start time, so that a
+ * 	restarted node is a new instance) and its current sequence</li>
+ * 	<li>a resume giving the sequence of the last record delivered from the
+ * 	peer's instance (or of its first hello)</li>
+ * 	<li>a roster of the node's users sent when the link opens, then the
+ * 	logins and logouts of the node's users</li>
+ * 	<li>the messages of the node's users: messages to all users, messages to
+ * 	rooms (delivered to the members and subscribers of the room of the same
+ * 	name on each node) and direct messages (only sent to the recipient's
+ * 	node)</li>
+ * </ul>
+ * Relay loops are avoided by construction: a node only relays the records
+ * originating from itself and never relays the records received from its
+ * peers. Each record carries its origin's sequence number: records are
+ * sequenced and queued to all links under a single lock and each link is
+ * written by a single writer, so records from one origin are received in
+ * sequence order on each link. Records received from an origin are
+ * delivered while holding this origin's lock and only if their sequence is
+ * greater than the last one delivered, so duplicates (when two nodes
+ * connect to each other) are dropped and each sender's messages are
+ * delivered in order.
+ * Links are written by their own writer thread from a bounded queue so that
+ * a slow peer never blocks the client handlers: a link whose queue is full
+ * is closed (then reconnected and resynchronized with a new roster).
+ * Each node keeps its last {@link #BACKLOGSIZE} records: when a link
+ * opens, the records the peer missed (after the sequence of its resume)
+ * are resent before any new record, so records dropped by a closed or
+ * overflowed link are not lost.
+ * @author davidroussel
+ */
+public class Federation implements Closeable
+{
+	/**
+	 * Hello record: the sending node's instance
+	 */
+	private final static byte HELLO = 1;
+
+	/**
+	 * Roster record: a user connected to the sending node when the link was
+	 * opened
+	 */
+	private final static byte ROSTER = 2;
+
+	/**
+	 * Login record: a user logged in on the sending node
+	 */
+	private final static byte LOGIN = 3;
+
+	/**
+	 * Logout record: a user logged out from the sending node
+	 */
+	private final static byte LOGOUT = 4;
+
+	/**
+	 * Message record: a message of a user of the sending node
+	 */
+	private final static byte MESSAGE = 5;
+
+	/**
+	 * Resume record: the sequence of the last record the sending node
+	 * delivered from the receiving node's instance (or of the first hello
+	 * of this instance)
+	 */
+	private final static byte RESUME = 6;
+
+	/**
+	 * Writer marker queued in place of the records resent to a link
+	 */
+	private final static byte[] RESEND = new byte[0];
+
+	/**
+	 * Maximum number of records queued to a link before it is closed
+	 */
+	public final static int QUEUESIZE = 65536;
+
+	/**
+	 * Delay (in ms) between two connections attempts to a peer
+	 */
+	public final static int RECONNECTDELAY = 2000;
+
+	/**
+	 * Number of this node's last records kept to be resent to peers
+	 * (enough to cover a full link queue and a reconnection)
+	 */
+	public final static int BACKLOGSIZE = 2 * QUEUESIZE;
+
+	/**
+	 * Maximum payload length of a record
+	 */
+	public final static int MAXRECORD = BinaryCodec.MAXLENGTH;
+
+	/**
+	 * The local server
+	 */
+	private final ChatServer server;
+
+	/**
+	 * Id of this node
+	 */
+	private final String nodeId;
+
+	/**
+	 * Instance of this node: its id and start time
+	 */
+	private final String instance;
+
+	/**
+	 * Server socket accepting peers' connections
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Peers this node connects to
+	 */
+	private final List<Listener> peers;
+
+	/**
+	 * Open links to peers
+	 */
+	private final Set<Link> links;
+
+	/**
+	 * Users connected to the other nodes: the instance of the node of each
+	 * user's name
+	 */
+	private final Map<String, String> remoteUsers;
+
+	/**
+	 * Delivery state of each peer's instance
+	 */
+	private final Map<String, Origin> origins;
+
+	/**
+	 * Lock sequencing the records of this node and queuing them to the links
+	 */
+	private final Object sendLock;
+
+	/**
+	 * Sequence number of the last record of this node (guarded by
+	 * {@link #sendLock})
+	 */
+	private long sequence;
+
+	/**
+	 * Last records of this node, to be resent to peers (guarded by
+	 * {@link #sendLock})
+	 */
+	private final Deque<Relayed> backlog;
+
+	/**
+	 * Indicates the federation is running
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Number of records relayed to peers (once per record)
+	 */
+	private final AtomicLong relayed;
+
+	/**
+	 * Number of records delivered from peers
+	 */
+	private final AtomicLong delivered;
+
+	/**
+	 * Number of records received twice (dropped)
+	 */
+	private final AtomicLong duplicates;
+
+	/**
+	 * Number of records resent to peers after a reconnection
+	 */
+	private final AtomicLong resent;
+
+	/**
+	 * Logger
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructor: binds the federation listener (links are only opened by
+	 * {@link #start()})
+	 * @param server the local server
+	 * @param nodeId the id of this node (or null to use the address of the
+	 * federation listener)
+	 * @param listener the listener accepting peers' connections
+	 * @param peers the peers this node connects to
+	 * @param parentLogger parent logger
+	 * @throws IOException if the federation listener could not be bound
+	 */
+	public Federation(ChatServer server,
+	                  String nodeId,
+	                  Listener listener,
+	                  List<Listener> peers,
+	                  Logger parentLogger) throws IOException
+	{
+		this.server = server;
+		this.peers = new ArrayList<Listener>(peers);
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		serverSocket = listener.open(false);
+		this.nodeId = (nodeId != null ? nodeId :
+		    serverSocket.getInetAddress().getHostName() + ":"
+		    + serverSocket.getLocalPort());
+		instance = this.nodeId + "#" + System.currentTimeMillis();
+		links = new CopyOnWriteArraySet<Link>();
+		remoteUsers = new ConcurrentHashMap<String, String>();
+		origins = new ConcurrentHashMap<String, Origin>();
+		sendLock = new Object();
+		sequence = 0;
+		backlog = new ArrayDeque<Relayed>();
+		running = false;
+		relayed = new AtomicLong();
+		delivered = new AtomicLong();
+		duplicates = new AtomicLong();
+		resent = new AtomicLong();
+	}
+
+	/**
+	 * Id of this node accessor
+	 * @return the id of this node
+	 */
+	public String getNodeId()
+	{
+		return nodeId;
+	}
+
+	/**
+	 * Starts accepting peers' connections and connecting to the peers
+	 */
+	public void start()
+	{
+		running = true;
+		Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		}, "Federation-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		for (final Listener peer : peers)
+		{
+			Thread connector = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					connect(peer);
+				}
+			}, "Federation-" + peer);
+			connector.setDaemon(true);
+			connector.start();
+		}
+		logger.info("Federation: node " + nodeId + " listening on "
+		    + serverSocket.getLocalSocketAddress() + ", peers " + peers);
+	}
+
+	/**
+	 * Stops the federation: closes the federation listener and all links
+	 */
+	@Override
+	public void close()
+	{
+		running = false;
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("Federation: unable to close listener");
+			logger.warning(e.getLocalizedMessage());
+		}
+		for (Link link : links)
+		{
+			link.close();
+		}
+	}
+
+	/**
+	 * Acceptor loop: accepts peers' connections until the federation
+	 * listener is closed
+	 */
+	private void accept()
+	{
+		while (running)
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				Thread reader = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						open(socket);
+					}
+				}, "Federation-" + socket.getRemoteSocketAddress());
+				reader.setDaemon(true);
+				reader.start();
+			}
+			catch (IOException e)
+			{
+				if (running)
+				{
+					logger.warning("Federation: accept failed");
+					logger.warning(e.getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connector loop: connects to a peer and reconnects after
+	 * {@link #RECONNECTDELAY} when the link is lost, until the federation
+	 * is closed
+	 * @param peer the peer to connect to
+	 */
+	private void connect(Listener peer)
+	{
+		InetSocketAddress address = peer.getSocketAddress();
+		while (running)
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(address, RECONNECTDELAY);
+				open(socket);
+			}
+			catch (IOException e)
+			{
+				logger.fine("Federation: unable to connect to " + peer + ": "
+				    + e.getLocalizedMessage());
+				try
+				{
+					socket.close();
+				}
+				catch (IOException ce)
+				{
+					// nothing more to do
+				}
+			}
+			try
+			{
+				Thread.sleep(RECONNECTDELAY);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Opens a link on a connected socket and reads it until it is closed
+	 * (in the calling thread)
+	 * @param socket the connected socket
+	 */
+	private void open(Socket socket)
+	{
+		Link link;
+		try
+		{
+			socket.setTcpNoDelay(true);
+			link = new Link(socket);
+		}
+		catch (IOException e)
+		{
+			logger.warning("Federation: unable to open link with "
+			    + socket.getRemoteSocketAddress());
+			logger.warning(e.getLocalizedMessage());
+			try
+			{
+				socket.close();
+			}
+			catch (IOException ce)
+			{
+				// nothing more to do
+			}
+			return;
+		}
+		link.run();
+	}
+
+	/**
+	 * Indicates a user is connected to another node
+	 * @param name the user's name
+	 * @return true if a user with this name is connected to another node
+	 */
+	public boolean isRemoteUser(String name)
+	{
+		return remoteUsers.containsKey(name);
+	}
+
+	/**
+	 * Relays the login of a local user to all peers
+	 * @param name the user's name
+	 */
+	public void relayLogin(String name)
+	{
+		relay(LOGIN, name.getBytes(StandardCharsets.UTF_8), null);
+	}
+
+	/**
+	 * Relays the logout of a local user to all peers
+	 * @param name the user's name
+	 */
+	public void relayLogout(String name)
+	{
+		relay(LOGOUT, name.getBytes(StandardCharsets.UTF_8), null);
+	}
+
+	/**
+	 * Relays the message of a local user: direct messages are only relayed
+	 * to the recipient's node, other messages are relayed to all peers
+	 * @param message the message to relay
+	 */
+	public void relay(Message message)
+	{
+		String target = null;
+		if (message.hasRoom()
+		    && message.getRoom().startsWith(Vocabulary.directPrefix))
+		{
+			target = remoteUsers.get(message.getRoom()
+			    .substring(Vocabulary.directPrefix.length()));
+			if (target == null)
+			{
+				return;
+			}
+		}
+		relay(MESSAGE, BinaryCodec.INSTANCE.encode(message), target);
+	}
+
+	/**
+	 * Sequences a record of this node, keeps it in the backlog and queues
+	 * it to the resumed links (even without links, so that peers get it
+	 * when they reconnect)
+	 * @param type the record's type
+	 * @param payload the record's payload
+	 * @param target the instance of the only node the record is sent to (or
+	 * null to send it to all nodes)
+	 */
+	private void relay(byte type, byte[] payload, String target)
+	{
+		synchronized (sendLock)
+		{
+			byte[] record = record(type, ++sequence, payload);
+			backlog.addLast(new Relayed(sequence, record, target));
+			if (backlog.size() > BACKLOGSIZE)
+			{
+				backlog.removeFirst();
+			}
+			for (Link link : links)
+			{
+				if (link.resumed
+				    && ((target == null) || target.equals(link.peer)))
+				{
+					link.send(record);
+				}
+			}
+		}
+		relayed.incrementAndGet();
+	}
+
+	/**
+	 * Encodes a record of this node
+	 * @param type the record's type
+	 * @param recordSequence the record's sequence number
+	 * @param payload the record's payload
+	 * @return the encoded record
+	 */
+	private byte[] record(byte type, long recordSequence, byte[] payload)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+		    payload.length + instance.length() + 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeByte(type);
+			out.writeUTF(instance);
+			out.writeLong(recordSequence);
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+		catch (IOException e)
+		{
+			// can't happen with a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Delivers a record received from a peer, unless it has already been
+	 * delivered (while holding its origin's lock so that records of an
+	 * origin are delivered in sequence order)
+	 * @param link the link the record has been received from
+	 * @param type the record's type
+	 * @param origin the instance of the record's node
+	 * @param recordSequence the record's sequence number
+	 * @param payload the record's payload
+	 * @throws IOException if the record is invalid
+	 */
+	private void deliver(Link link,
+	                     byte type,
+	                     String origin,
+	                     long recordSequence,
+	                     byte[] payload) throws IOException
+	{
+		if (type == HELLO)
+		{
+			link.hello(origin, recordSequence);
+			return;
+		}
+		if ((link.peer == null) || !link.peer.equals(origin))
+		{
+			throw new StreamCorruptedException("record from " + origin
+			    + " before hello");
+		}
+		if (type == RESUME)
+		{
+			link.resume(recordSequence);
+			return;
+		}
+		Origin state = origins.get(origin);
+		synchronized (state)
+		{
+			if (type == ROSTER)
+			{
+				// a roster older than delivered records is outdated
+				if (recordSequence >= state.last)
+				{
+					remoteUsers.put(text(payload), origin);
+				}
+				return;
+			}
+			if (recordSequence <= state.last)
+			{
+				duplicates.incrementAndGet();
+				return;
+			}
+			state.last = recordSequence;
+			delivered.incrementAndGet();
+			switch (type)
+			{
+				case LOGIN:
+				{
+					String name = text(payload);
+					remoteUsers.put(name, origin);
+					server.remoteLogin(name);
+					break;
+				}
+				case LOGOUT:
+					remoteUsers.remove(text(payload), origin);
+					break;
+				case MESSAGE:
+					server.deliver(BinaryCodec.INSTANCE.decode(payload));
+					break;
+				default:
+					throw new StreamCorruptedException("unknown record type "
+					    + type);
+			}
+		}
+	}
+
+	/**
+	 * Decodes the text payload of a record (a user's name)
+	 * @param payload the record's payload
+	 * @return the decoded text
+	 */
+	private static String text(byte[] payload)
+	{
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Removes a closed link: if it was the last link to its peer, the users
+	 * of this peer are removed from the remote users
+	 * @param link the closed link
+	 */
+	private void closed(Link link)
+	{
+		links.remove(link);
+		if (link.peer == null)
+		{
+			return;
+		}
+		for (Link other : links)
+		{
+			if (link.peer.equals(other.peer))
+			{
+				return;
+			}
+		}
+		int removed = 0;
+		for (Map.Entry<String, String> user : remoteUsers.entrySet())
+		{
+			if (link.peer.equals(user.getValue())
+			    && remoteUsers.remove(user.getKey(), link.peer))
+			{
+				removed++;
+			}
+		}
+		logger.info("Federation: lost node " + link.peer + " (" + removed
+		    + " users)");
+	}
+
+	/**
+	 * Federation string representation (for metrics)
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("federation node " + nodeId + ": " + links.size()
+		    + " links, " + remoteUsers.size() + " remote users, "
+		    + relayed.get() + " relayed, " + delivered.get() + " delivered, "
+		    + duplicates.get() + " duplicates, " + resent.get() + " resent");
+	}
+
+	/**
+	 * Delivery state of a peer's instance
+	 */
+	private static class Origin
+	{
+		/**
+		 * Sequence number of the last record delivered from this instance
+		 * (guarded by this origin)
+		 */
+		private long last;
+
+		/**
+		 * Constructor
+		 * @param last the sequence of this instance's first hello (its
+		 * previous records are not delivered)
+		 */
+		private Origin(long last)
+		{
+			this.last = last;
+		}
+	}
+
+	/**
+	 * Record of this node kept in the backlog
+	 */
+	private static class Relayed
+	{
+		/**
+		 * The record's sequence number
+		 */
+		private final long sequence;
+
+		/**
+		 * The encoded record
+		 */
+		private final byte[] record;
+
+		/**
+		 * The instance of the only node the record is sent to (or null)
+		 */
+		private final String target;
+
+		/**
+		 * Constructor
+		 * @param sequence the record's sequence number
+		 * @param record the encoded record
+		 * @param target the instance of the only node the record is sent to
+		 * (or null to send it to all nodes)
+		 */
+		private Relayed(long sequence, byte[] record, String target)
+		{
+			this.sequence = sequence;
+			this.record = record;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Link to a peer: records are read by the thread running the link and
+	 * written by the link's own writer thread
+	 */
+	private class Link implements Runnable
+	{
+		/**
+		 * The link's socket
+		 */
+		private final Socket socket;
+
+		/**
+		 * Records received from the peer
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * Records sent to the peer
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * Records waiting to be written to the peer
+		 */
+		private final BlockingQueue<byte[]> queue;
+
+		/**
+		 * Instance of the peer (null until its hello has been received)
+		 */
+		private volatile String peer;
+
+		/**
+		 * Indicates this link has been closed
+		 */
+		private volatile boolean closed;
+
+		/**
+		 * Indicates the peer's resume has been received: new records are
+		 * only queued to resumed links (guarded by {@link #sendLock})
+		 */
+		private boolean resumed;
+
+		/**
+		 * Records to resend, written by the writer when it dequeues
+		 * {@link Federation#RESEND} (guarded by {@link #sendLock})
+		 */
+		private List<byte[]> missed;
+
+		/**
+		 * Constructor: queues this node's hello and registers this link (new
+		 * records are queued once the peer's resume has been received)
+		 * @param socket the connected socket
+		 * @throws IOException if the socket's streams could not be obtained
+		 */
+		private Link(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			in = new DataInputStream(
+			    new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(
+			    new BufferedOutputStream(socket.getOutputStream()));
+			queue = new ArrayBlockingQueue<byte[]>(QUEUESIZE);
+			peer = null;
+			closed = false;
+			resumed = false;
+			missed = null;
+			synchronized (sendLock)
+			{
+				send(record(HELLO, sequence, new byte[0]));
+				links.add(this);
+			}
+			Thread writer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					write();
+				}
+			}, "Federation-writer-" + socket.getRemoteSocketAddress());
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		/**
+		 * Queues a record to this link (the link is closed if its queue is
+		 * full)
+		 * @param record the record to send
+		 */
+		private void send(byte[] record)
+		{
+			if (!closed && !queue.offer(record))
+			{
+				logger.warning("Federation: link with " + this
+				    + " overflowed, closing");
+				close();
+			}
+		}
+
+		/**
+		 * Registers the peer's instance from its hello and queues the
+		 * resume of this node: the sequence of the last record delivered
+		 * from this instance (or of its hello if it is a new instance)
+		 * @param origin the peer's instance
+		 * @param helloSequence the peer's sequence when it sent its hello
+		 * @throws IOException if this node connected to itself or the
+		 * peer sent a second hello
+		 */
+		private void hello(String origin, long helloSequence)
+		    throws IOException
+		{
+			if (origin.equals(instance))
+			{
+				throw new IOException("connected to itself");
+			}
+			if (peer != null)
+			{
+				throw new StreamCorruptedException("second hello from "
+				    + origin);
+			}
+			Origin previous = origins.putIfAbsent(origin,
+			                                      new Origin(helloSequence));
+			long last = helloSequence;
+			if (previous != null)
+			{
+				synchronized (previous)
+				{
+					last = previous.last;
+				}
+			}
+			peer = origin;
+			send(record(RESUME, last, new byte[0]));
+			logger.info("Federation: linked with " + this
+			    + (previous != null ? " (again)" : ""));
+		}
+
+		/**
+		 * Resumes this link from the peer's resume: queues the records of
+		 * the backlog the peer missed then the roster of this node, and
+		 * marks this link as resumed (while holding the send lock so that
+		 * no record is missed or sent out of order and the roster is
+		 * consistent with the following logins and logouts)
+		 * @param last the sequence of the last record the peer delivered
+		 * from this node
+		 * @throws IOException if the peer sent a second resume
+		 */
+		private void resume(long last) throws IOException
+		{
+			synchronized (sendLock)
+			{
+				if (resumed)
+				{
+					throw new StreamCorruptedException("second resume from "
+					    + peer);
+				}
+				List<byte[]> records = new ArrayList<byte[]>();
+				long first = sequence + 1;
+				for (Relayed relayedRecord : backlog)
+				{
+					if (relayedRecord.sequence > last)
+					{
+						first = Math.min(first, relayedRecord.sequence);
+						if ((relayedRecord.target == null)
+						    || relayedRecord.target.equals(peer))
+						{
+							records.add(relayedRecord.record);
+						}
+					}
+				}
+				if (first > last + 1)
+				{
+					logger.warning("Federation: " + (first - last - 1)
+					    + " records missed by " + this
+					    + " are no longer in the backlog");
+				}
+				if (!records.isEmpty())
+				{
+					missed = records;
+					send(RESEND);
+					resent.addAndGet(records.size());
+					logger.info("Federation: resending " + records.size()
+					    + " records to " + this);
+				}
+				for (InputOutputClient client : server.clients)
+				{
+					send(record(ROSTER,
+					            sequence,
+					            client.getName().getBytes(
+					                StandardCharsets.UTF_8)));
+				}
+				resumed = true;
+			}
+		}
+
+		/**
+		 * Reader loop: reads and delivers records until the link is closed
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (!closed)
+				{
+					byte type = in.readByte();
+					String origin = in.readUTF();
+					long recordSequence = in.readLong();
+					int length = in.readInt();
+					if ((length < 0) || (length > MAXRECORD))
+					{
+						throw new StreamCorruptedException(
+						    "invalid record length " + length);
+					}
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					deliver(this, type, origin, recordSequence, payload);
+				}
+			}
+			catch (EOFException e)
+			{
+				logger.info("Federation: link with " + this + " closed by peer");
+			}
+			catch (IOException e)
+			{
+				if (!closed)
+				{
+					logger.warning("Federation: link with " + this + " failed");
+					logger.warning(e.getLocalizedMessage());
+				}
+			}
+			finally
+			{
+				close();
+			}
+		}
+
+		/**
+		 * Writer loop: writes the queued records (and the records to resend
+		 * in place of {@link Federation#RESEND}), flushing when the queue is
+		 * empty, until the link is closed
+		 */
+		private void write()
+		{
+			try
+			{
+				while (!closed)
+				{
+					byte[] record = queue.take();
+					if (record == RESEND)
+					{
+						List<byte[]> records;
+						synchronized (sendLock)
+						{
+							records = missed;
+							missed = null;
+						}
+						for (byte[] missedRecord : records)
+						{
+							out.write(missedRecord);
+						}
+					}
+					else
+					{
+						out.write(record);
+					}
+					if (queue.isEmpty())
+					{
+						out.flush();
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				if (!closed)
+				{
+					logger.warning("Federation: unable to write to " + this);
+					logger.warning(e.getLocalizedMessage());
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// link closed
+			}
+			close();
+		}
+
+		/**
+		 * Closes this link (its reader and writer terminate)
+		 */
+		private void close()
+		{
+			synchronized (this)
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+			}
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("Federation: unable to close link with " + this);
+				logger.warning(e.getLocalizedMessage());
+			}
+			// wakes up the writer
+			queue.clear();
+			queue.offer(new byte[0]);
+			closed(this);
+		}
+
+		/**
+		 * Link string representation
+		 */
+		@Override
+		public String toString()
+		{
+			return new String((peer != null ? peer + " " : "")
+			    + socket.getRemoteSocketAddress());
+		}
+	}
+}
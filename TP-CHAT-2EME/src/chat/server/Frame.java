@@ -0,0 +1,160 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import chat.codec.CodecType;
+import chat.codec.MessageCodec;
+import chat.codec.MessageWriter;
+import models.Message;
+
+/**
+ * Frame containing a {@link Message} encoded once per {@link MessageCodec} so
+ * the same bytes can be written to every recipient of a broadcast using this
+ * codec.
+ * A message is encoded lazily the first time a recipient using a given codec
+ * needs it, then the encoded bytes are kept by the frame.
+ * Encoded messages do not depend on messages previously written on a stream
+ * so frames can be written in any order after the codec's header (unless
+ * they are written on a stateful {@link MessageWriter} which encodes the
+ * message itself).
+ * @author davidroussel
+ */
+public class Frame
+{
+	/**
+	 * The message contained in this frame (replaced by a copy with its
+	 * sequence number when the frame is added to the history)
+	 */
+	private Message message;
+
+	/**
+	 * The encoded message for each codec type (null until needed)
+	 */
+	private final byte[][] encoded;
+
+	/**
+	 * Constructor
+	 * @param message the message contained in this frame
+	 */
+	public Frame(Message message)
+	{
+		this.message = message;
+		encoded = new byte[CodecType.values().length][];
+	}
+
+	/**
+	 * Constructor of a frame read from the {@link MessageLog}
+	 * @param message the message contained in this frame
+	 * @param binary the message encoded with the binary codec
+	 */
+	Frame(Message message, byte[] binary)
+	{
+		this(message);
+		encoded[CodecType.BINARY.ordinal()] = binary;
+	}
+
+	/**
+	 * Stream header of a codec to write on a new connection before any frame
+	 * @param codec the codec used on this connection
+	 * @return a new buffer containing the codec's header
+	 */
+	public static ByteBuffer header(MessageCodec codec)
+	{
+		return ByteBuffer.wrap(codec.header()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Message accessor
+	 * @return the message contained in this frame
+	 */
+	public synchronized Message getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * Sequence number accessor
+	 * @return the sequence number of this frame in the server's history (0
+	 * if this frame has not been added to the history)
+	 */
+	public long getSequence()
+	{
+		return getMessage().getSequence();
+	}
+
+	/**
+	 * Sequence number setter (used by {@link MessageHistory#add(Frame)}
+	 * before the frame is published to other threads): the message is
+	 * replaced by a copy with this sequence number which is encoded in the
+	 * frame's bytes
+	 * @param sequence the sequence number of this frame
+	 */
+	synchronized void setSequence(long sequence)
+	{
+		message = new Message(message, sequence);
+		Arrays.fill(encoded, null);
+	}
+
+	/**
+	 * Encoded message accessor
+	 * @param codec the codec used to encode the message
+	 * @return the message encoded with this codec (encoded only once, should
+	 * not be modified)
+	 * @throws IOException if the message could not be encoded
+	 */
+	synchronized byte[] bytes(MessageCodec codec) throws IOException
+	{
+		int index = codec.getType().ordinal();
+		if (encoded[index] == null)
+		{
+			encoded[index] = codec.encode(message);
+		}
+		return encoded[index];
+	}
+
+	/**
+	 * Size of this frame
+	 * @param codec the codec used to encode the message
+	 * @return the number of bytes of this frame with this codec
+	 * @throws IOException if the message could not be encoded
+	 */
+	public int size(MessageCodec codec) throws IOException
+	{
+		return bytes(codec).length;
+	}
+
+	/**
+	 * Buffer view of this frame. Each call returns a new buffer (with its own
+	 * position) sharing this frame's bytes, so it can be written to one
+	 * recipient independently of others
+	 * @param codec the codec used to encode the message
+	 * @return a new read only buffer on this frame's bytes
+	 * @throws IOException if the message could not be encoded
+	 */
+	public ByteBuffer buffer(MessageCodec codec) throws IOException
+	{
+		return ByteBuffer.wrap(bytes(codec)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes this frame with a writer: shared encoded bytes are written on
+	 * stateless writers, otherwise the message is encoded by the writer
+	 * @param writer the writer to write to
+	 * @param codec the codec used by this writer
+	 * @throws IOException if this frame could not be encoded or written
+	 */
+	public void writeTo(MessageWriter writer, MessageCodec codec)
+	    throws IOException
+	{
+		if (writer.isStateless())
+		{
+			writer.writeEncoded(bytes(codec));
+		}
+		else
+		{
+			writer.write(message);
+		}
+	}
+}
@@ -2,10 +2,13 @@ package chat.server;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.util.logging.Logger;
 
+import chat.Hello;
+
 import logger.LoggerFactory;
 
 /**
@@ -44,13 +47,19 @@ public class InputClient
 	 * Client ready flag (true when {@link #clientSocket} and {@link #inBR}
 	 * are bith non null)
 	 */
-	protected boolean ready;
+	protected volatile boolean ready;
 
 	/**
 	 * Indicates if this client is currently banned.
 	 */
 	protected boolean banned;
 
+	/**
+	 * Maximum size (in bytes) of the frames (lines read from this client or
+	 * messages written to it) negotiated in this client's {@link Hello}
+	 */
+	protected int maxFrame;
+
 	/**
 	 * logger to display info or debug messages
 	 */
@@ -68,6 +77,7 @@ public class InputClient
 		this.name = name;
 		inBR = null;
 		ready = false;
+		maxFrame = Hello.DEFAULTMAXFRAME;
 
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
@@ -90,6 +100,25 @@ public class InputClient
 		}
 	}
 
+	/**
+	 * Constructor without streams (used by subclasses which don't read
+	 * from a blocking {@link InputStream} such as {@link ChannelClient})
+	 * @param name the client's name
+	 * @param parentLogger parent logger
+	 */
+	protected InputClient(String name, Logger parentLogger)
+	{
+		clientSocket = null;
+		this.name = name;
+		inBR = null;
+		ready = false;
+		maxFrame = Hello.DEFAULTMAXFRAME;
+
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+	}
+
 	/**
 	 * Client's name accessor
 	 * @return the name of the client
@@ -126,6 +155,27 @@ public class InputClient
 		return banned;
 	}
 
+	/**
+	 * Maximum frame size accessor
+	 * @return the maximum size (in bytes) of the frames exchanged with this
+	 * client
+	 */
+	public int getMaxFrame()
+	{
+		return maxFrame;
+	}
+
+	/**
+	 * Maximum frame size setter (set once negotiated, before this client is
+	 * registered)
+	 * @param maxFrame the maximum size (in bytes) of the frames exchanged
+	 * with this client
+	 */
+	public void setMaxFrame(int maxFrame)
+	{
+		this.maxFrame = maxFrame;
+	}
+
 	/**
 	 * Banned status setter
 	 * @param banned the new banned status
@@ -1,10 +1,22 @@
 package chat.server;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.Hello;
+import chat.codec.CodecType;
+import chat.codec.Compression;
+import chat.codec.DeflatingOutputStream;
+import chat.codec.MessageCodec;
+import chat.codec.MessageWriter;
+import chat.codec.ResetBudget;
+import models.Message;
 
 
 /**
@@ -13,30 +25,107 @@ import chat.Failure;
  * Regular client adds an output stream to parent's {@link InputClient}
  * in order to write messages to these clients
  * <ul>
- * 	<li>out : {@link ObjectOutputStream}</li>
+ * 	<li>out : {@link OutputStream} receiving {@link Frame}s encoded with this
+ * 	client's {@link MessageCodec}</li>
+ * 	<li>writer : {@link MessageWriter} writing frames on out (and counting
+ * 	messages, bytes and resets written to this client)</li>
+ * 	<li>compressor : optional {@link DeflatingOutputStream} between writer
+ * 	and out when the client's session is compressed</li>
+ * 	<li>outbound : {@link OutboundQueue} of frames waiting to be written
+ * 	by this client's writer (see {@link #getWriter()})</li>
+ * 	<li>coalescing : {@link Coalescing} window during which the writer
+ * 	gathers queued frames before writing them to the socket</li>
  * </ul>
  * @author davidroussel
  */
 public class InputOutputClient extends InputClient
 {
 	/**
-	 * Object output stream to send messages to
+	 * Maximum number of frames written by a writer before flushing
 	 */
-	private ObjectOutputStream outOS;
+	protected final static int MAXBATCH = 64;
+
+	/**
+	 * Minimum size of the buffer between the writer and the socket
+	 */
+	protected final static int BUFFERSIZE = 8192;
+
+	/**
+	 * Output stream to send serialized messages to
+	 */
+	private OutputStream out;
+
+	/**
+	 * Queue of frames waiting to be written to this client
+	 */
+	protected final OutboundQueue<Frame> outbound;
+
+	/**
+	 * Codec used to encode messages sent to this client
+	 */
+	protected final MessageCodec codec;
+
+	/**
+	 * Writer encoding frames sent to this client (and counting them)
+	 */
+	protected MessageWriter writer;
+
+	/**
+	 * Compressing stream between {@link #writer} and the connection (null
+	 * if this client's session is not compressed)
+	 */
+	protected DeflatingOutputStream compressor;
+
+	/**
+	 * Write coalescing of this client's writer
+	 */
+	protected final Coalescing coalescing;
+
+	/**
+	 * Number of writes on this client's socket (i.e. system calls)
+	 */
+	protected volatile long socketWrites;
+
+	/**
+	 * Indicates this client's writer has been started, otherwise
+	 * {@link #cleanup()} should close streams itself
+	 */
+	private volatile boolean writerStarted;
 
 	/**
 	 * Constructor
 	 * @param socket client's socket
 	 * @param name client's name
-	 * @param verbose verbose level for log messages
+	 * @param outbound queue of frames waiting to be written to this client
+	 * @param codec codec used to encode messages sent to this client
+	 * @param budget budget between two resets of this client's stream
+	 * (only used by stateful codecs streams)
+	 * @param compression compression of this client's stream
+	 * @param dictionary preset dictionary of the compression (or null)
+	 * @param coalescing write coalescing of this client's writer
 	 * @param parentLogger parent's logger
 	 */
-	public InputOutputClient(Socket socket, String name, Logger parentLogger)
+	public InputOutputClient(Socket socket,
+	                         String name,
+	                         OutboundQueue<Frame> outbound,
+	                         MessageCodec codec,
+	                         ResetBudget budget,
+	                         Compression compression,
+	                         byte[] dictionary,
+	                         Coalescing coalescing,
+	                         Logger parentLogger)
 	{
 		super(socket, name, parentLogger);
+		this.outbound = outbound;
+		this.codec = codec;
+		this.coalescing = coalescing;
+		socketWrites = 0;
+		writerStarted = false;
+		writer = null;
+		compressor = null;
 		if (ready)
 		{
-			outOS = null;
+			out = null;
 			ready = false;
 
 			if (clientSocket != null)
@@ -44,7 +133,38 @@ public class InputOutputClient extends InputClient
 				logger.info("Client: Creating Output Stream ... ");
 				try
 				{
-					outOS = new ObjectOutputStream(clientSocket.getOutputStream());
+					/*
+					 * The buffer holds a whole coalesced batch so it is
+					 * written with a single socket write
+					 */
+					out = new BufferedOutputStream(
+					    new FilterOutputStream(clientSocket.getOutputStream())
+					{
+						@Override
+						public void write(int b) throws IOException
+						{
+							out.write(b);
+							socketWrites++;
+						}
+
+						@Override
+						public void write(byte[] b, int off, int len)
+						    throws IOException
+						{
+							out.write(b, off, len);
+							socketWrites++;
+						}
+					}, Math.max(BUFFERSIZE, coalescing.getMaxBytes()));
+					if (compression == Compression.DEFLATE)
+					{
+						compressor = new DeflatingOutputStream(out, dictionary);
+						writer = codec.newWriter(compressor, budget);
+					}
+					else
+					{
+						writer = codec.newWriter(out, budget);
+					}
+					writer.flush();
 					ready = true;
 				}
 				catch (IOException e)
@@ -61,26 +181,369 @@ public class InputOutputClient extends InputClient
 		}
 	}
 
+	/**
+	 * Constructor with a default outbound queue and codec (reset before each
+	 * message)
+	 * @param socket client's socket
+	 * @param name client's name
+	 * @param parentLogger parent's logger
+	 */
+	public InputOutputClient(Socket socket, String name, Logger parentLogger)
+	{
+		this(socket,
+		     name,
+		     new OutboundQueue<Frame>(),
+		     CodecType.SERIAL.getCodec(),
+		     ResetBudget.EACH_MESSAGE,
+		     Compression.NONE,
+		     null,
+		     Coalescing.NONE,
+		     parentLogger);
+	}
+
+	/**
+	 * Constructor without streams (used by subclasses which don't write
+	 * to a blocking {@link OutputStream} such as {@link ChannelClient})
+	 * @param name client's name
+	 * @param outbound queue of frames waiting to be written to this client
+	 * @param codec codec used to encode messages sent to this client
+	 * @param coalescing write coalescing of this client's writer
+	 * @param parentLogger parent's logger
+	 */
+	protected InputOutputClient(String name,
+	                            OutboundQueue<Frame> outbound,
+	                            MessageCodec codec,
+	                            Coalescing coalescing,
+	                            Logger parentLogger)
+	{
+		super(name, parentLogger);
+		this.outbound = outbound;
+		this.codec = codec;
+		this.coalescing = coalescing;
+		socketWrites = 0;
+		out = null;
+		writer = null;
+		compressor = null;
+		writerStarted = false;
+	}
+
 	/**
 	 * client's output stream accessor
-	 * @return this client's object output stream
+	 * @return this client's output stream
+	 */
+	public OutputStream getOut()
+	{
+		return out;
+	}
+
+	/**
+	 * Outbound queue accessor
+	 * @return the queue of frames waiting to be written to this client
+	 */
+	public OutboundQueue<Frame> getOutbound()
+	{
+		return outbound;
+	}
+
+	/**
+	 * Codec accessor
+	 * @return the codec used to encode messages sent to this client
+	 */
+	public MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Number of messages written to this client (may be slightly out of date
+	 * when called from another thread than this client's writer)
+	 * @return the number of messages written to this client
+	 */
+	public long getMessagesWritten()
+	{
+		return (writer != null ? writer.getMessages() : 0);
+	}
+
+	/**
+	 * Number of bytes written to this client (may be slightly out of date
+	 * when called from another thread than this client's writer)
+	 * @return the number of bytes written to this client
+	 */
+	public long getBytesWritten()
+	{
+		return (writer != null ? writer.getBytes() : 0);
+	}
+
+	/**
+	 * Number of resets of this client's stream
+	 * @return the number of resets of this client's stream handle table
+	 */
+	public long getResets()
+	{
+		return (writer != null ? writer.getResets() : 0);
+	}
+
+	/**
+	 * Number of bytes written to this client since its stream was last
+	 * reset. Objects contained in these bytes are still referenced by the
+	 * handle tables of this client's stream (and of the client's reader), so
+	 * this value should stay bounded by the reset budget
+	 * @return the number of bytes written since last reset (0 on stateless
+	 * streams)
+	 */
+	public long getBytesSinceReset()
+	{
+		return (writer != null ? writer.getBytesSinceReset() : 0);
+	}
+
+	/**
+	 * Number of writes on this client's socket: each of them is a system
+	 * call (and at least one TCP segment), so the number of writes per
+	 * message shows the effect of write coalescing
+	 * @return the number of writes on this client's socket
+	 */
+	public long getSocketWrites()
+	{
+		return socketWrites;
+	}
+
+	/**
+	 * Write coalescing accessor
+	 * @return the write coalescing of this client's writer
 	 */
-	public ObjectOutputStream getOut()
+	public Coalescing getCoalescing()
 	{
-		return outOS;
+		return coalescing;
 	}
 
 	/**
-	 * Client's cleanup: Closes output stream an calls
-	 * {@link InputClient#cleanup()}
+	 * Compressing stream accessor (for compression ratio and CPU cost
+	 * metrics)
+	 * @return the compressing stream of this client or null if this client's
+	 * session is not compressed
+	 */
+	public DeflatingOutputStream getCompressor()
+	{
+		return compressor;
+	}
+
+	/**
+	 * Indicates regions of the server's {@link MessageLog} can be sent as is
+	 * to this client ({@link LogRegion}s): this client's stream is an
+	 * uncompressed binary stream, the same format as logged messages
+	 * @return true if this client accepts log regions
+	 */
+	public boolean acceptsRegions()
+	{
+		return (writer != null) && writer.isStateless() && (compressor == null)
+		    && (codec.getType() == CodecType.BINARY)
+		    && (maxFrame >= Hello.DEFAULTMAXFRAME);
+	}
+
+	/**
+	 * Sends a message to this client.
+	 * When the same message is sent to several clients
+	 * {@link #send(Frame)} should be used instead so the message is
+	 * encoded only once
+	 * @param message the message to send
+	 */
+	public void send(Message message)
+	{
+		send(new Frame(message));
+	}
+
+	/**
+	 * Sends a framed message to this client without ever waiting: the frame
+	 * is only queued and will be written by this client's writer so the
+	 * caller never performs socket I/O. If the queue is full the queue's
+	 * {@link OverflowPolicy} applies ({@link OverflowPolicy#BLOCK} behaving
+	 * as {@link OverflowPolicy#DISCONNECT}) and this client might be
+	 * disconnected.
+	 * @param frame the framed message to send
+	 * @see #send(Frame, boolean)
+	 */
+	public void send(Frame frame)
+	{
+		send(frame, false);
+	}
+
+	/**
+	 * Sends a framed message to this client: the frame is only queued and
+	 * will be written by this client's writer so the caller never performs
+	 * socket I/O. If the queue is full the queue's {@link OverflowPolicy}
+	 * applies and this client might be disconnected.
+	 * @param frame the framed message to send
+	 * @param mayBlock indicates the caller may wait for room in the queue
+	 * with the {@link OverflowPolicy#BLOCK} policy: only a sender's own
+	 * thread holding no shared lock may wait, otherwise a single slow client
+	 * would freeze a whole room, federation link or event loop
+	 */
+	public void send(Frame frame, boolean mayBlock)
+	{
+		if (!fits(frame))
+		{
+			return;
+		}
+		if (!outbound.offer(frame, mayBlock))
+		{
+			if (ready)
+			{
+				logger.warning("Client[" + name + "]: outbound queue full ("
+				    + outbound.getPolicy() + "), disconnecting");
+				disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Checks a frame does not exceed the maximum frame size negotiated with
+	 * this client (which would make the client's reader fail): larger frames
+	 * are dropped. Clients which did not lower the maximum frame size are
+	 * not checked since lines read from clients are bounded by the same
+	 * size (and log regions are only sent to them)
+	 * @param frame the frame to send
+	 * @return true if the frame can be sent to this client
+	 */
+	protected boolean fits(Frame frame)
+	{
+		if (maxFrame >= Hello.DEFAULTMAXFRAME)
+		{
+			return true;
+		}
+		try
+		{
+			int size = frame.size(codec);
+			if (size <= maxFrame)
+			{
+				return true;
+			}
+			logger.warning("Client[" + name + "]: message of " + size
+			    + " bytes exceeds max frame " + maxFrame + ", dropped");
+		}
+		catch (IOException e)
+		{
+			logger.warning("Client[" + name + "]: unable to encode message: "
+			    + e.getLocalizedMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Disconnects a slow client: queued messages are discarded and the
+	 * socket is closed so that this client's handler terminates
+	 */
+	protected void disconnect()
+	{
+		ready = false;
+		outbound.clear();
+		try
+		{
+			clientSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("Client: unable to close client socket");
+			logger.severe(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Writer of this client: a {@link Runnable} writing all queued frames
+	 * to the client until the outbound queue is closed, then closing this
+	 * client's streams. Should be executed in its own thread.
+	 * Once a first batch of frames has been written, the writer keeps
+	 * gathering frames until the end of the {@link #coalescing} window (or
+	 * until its byte budget is reached) then flushes them all at once.
+	 * @return a new writer for this client
+	 */
+	public Runnable getWriter()
+	{
+		writerStarted = true;
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				List<Frame> batch = new ArrayList<Frame>(MAXBATCH);
+				long window = coalescing.getWindowNanos();
+				try
+				{
+					while (outbound.takeBatch(batch, MAXBATCH) > 0)
+					{
+						long deadline = System.nanoTime() + window;
+						long start = writer.getBytes();
+						long remaining;
+						do
+						{
+							for (Frame frame : batch)
+							{
+								frame.writeTo(writer, codec);
+							}
+							batch.clear();
+							remaining = deadline - System.nanoTime();
+						}
+						while ((remaining > 0)
+						    && !coalescing.isFull(writer.getBytes() - start)
+						    && (outbound.takeBatch(batch, MAXBATCH,
+						                           remaining) > 0));
+						writer.flush();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					logger.warning("Client[" + name + "]: writer interrupted");
+				}
+				catch (IOException e)
+				{
+					logger.warning("Client[" + name + "]: write failed, "
+					    + e.getLocalizedMessage());
+					/*
+					 * Closing the socket unblocks this client's handler which
+					 * will then terminate
+					 */
+					disconnect();
+				}
+				closeStreams();
+			}
+		};
+	}
+
+	/**
+	 * Client's cleanup: closes the outbound queue so that the writer writes
+	 * remaining messages then closes streams and socket (or closes them
+	 * directly if there is no writer)
 	 */
 	@Override
 	public void cleanup()
 	{
-		logger.info("Client::cleanup: closing output stream ... ");
+		ready = false;
+		outbound.close();
+		if (!writerStarted)
+		{
+			closeStreams();
+		}
+	}
+
+	/**
+	 * Closes output stream an calls {@link InputClient#cleanup()}
+	 */
+	private void closeStreams()
+	{
+		logger.info("Client::cleanup: closing output stream after "
+		    + getMessagesWritten() + " messages (" + getBytesWritten()
+		    + " bytes, " + getSocketWrites() + " writes, " + getResets()
+		    + " resets"
+		    + (compressor != null ? ", " + compressor : "") + ") ... ");
 		try
 		{
-			outOS.close();
+			if (writer != null)
+			{
+				writer.close();
+			}
+			else if (out != null)
+			{
+				out.close();
+			}
 		}
 		catch (IOException e)
 		{
@@ -0,0 +1,171 @@
+package chat.server;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non negative values (such as latencies) with logarithmic
+ * buckets: values are counted in 8 buckets per power of 2, so percentiles
+ * are estimated within 12.5% whatever the range of values, with a fixed
+ * memory footprint.
+ * @author davidroussel
+ */
+class LatencyHistogram
+{
+	/**
+	 * Number of buckets per power of 2 (should be a power of 2)
+	 */
+	private final static int SUBBUCKETS = 8;
+
+	/**
+	 * Number of bits of {@link #SUBBUCKETS}
+	 */
+	private final static int SUBBITS = 3;
+
+	/**
+	 * Number of values in each bucket
+	 */
+	private final long[] counts;
+
+	/**
+	 * Number of values
+	 */
+	private long count;
+
+	/**
+	 * Sum of values
+	 */
+	private long sum;
+
+	/**
+	 * Maximum value
+	 */
+	private long max;
+
+	/**
+	 * Constructor
+	 */
+	LatencyHistogram()
+	{
+		counts = new long[(64 - SUBBITS + 1) * SUBBUCKETS];
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Bucket of a value
+	 * @param value the (non negative) value
+	 * @return the index of the bucket counting this value
+	 */
+	private static int bucket(long value)
+	{
+		if (value < SUBBUCKETS)
+		{
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUBBITS)) & (SUBBUCKETS - 1);
+		return (exponent - SUBBITS + 1) * SUBBUCKETS + sub;
+	}
+
+	/**
+	 * Highest value counted in a bucket
+	 * @param bucket the bucket index
+	 * @return the highest value of this bucket
+	 */
+	private static long highest(int bucket)
+	{
+		if (bucket < SUBBUCKETS)
+		{
+			return bucket;
+		}
+		int exponent = bucket / SUBBUCKETS + SUBBITS - 1;
+		int sub = bucket % SUBBUCKETS;
+		long lowest = (long) (SUBBUCKETS + sub) << (exponent - SUBBITS);
+		return lowest + (1L << (exponent - SUBBITS)) - 1;
+	}
+
+	/**
+	 * Records a value
+	 * @param value the value to record (negative values are recorded as 0)
+	 */
+	synchronized void record(long value)
+	{
+		value = Math.max(value, 0);
+		counts[bucket(value)]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Number of recorded values
+	 * @return the number of values recorded since last reset
+	 */
+	synchronized long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Mean of recorded values
+	 * @return the mean of the values recorded since last reset (0 if none)
+	 */
+	synchronized double getMean()
+	{
+		return count > 0 ? (double) sum / count : 0;
+	}
+
+	/**
+	 * Maximum recorded value
+	 * @return the maximum value recorded since last reset (0 if none)
+	 */
+	synchronized long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Percentile of recorded values
+	 * @param percent the percentile (between 0 and 100)
+	 * @return an upper estimate of the value below which this percent of the
+	 * recorded values fall (0 if none)
+	 */
+	synchronized long percentile(double percent)
+	{
+		long rank = (long) Math.ceil(count * percent / 100.0);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if ((seen >= rank) && (seen > 0))
+			{
+				return Math.min(highest(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Forgets all recorded values
+	 */
+	synchronized void reset()
+	{
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Histogram string representation: count, mean, median, 99th
+	 * percentile and maximum of recorded values
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return new String(count + " values, mean "
+		    + String.format("%.1f", getMean()) + ", p50 " + percentile(50)
+		    + ", p99 " + percentile(99) + ", max " + max);
+	}
+}
@@ -0,0 +1,179 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Settings of a server listener: bind address, port and backlog (the
+ * maximum number of connections waiting to be accepted).
+ * A {@link ChatServer} can listen on several listeners, each of them being
+ * accepted by one or several acceptors.
+ * @author davidroussel
+ */
+public class Listener
+{
+	/**
+	 * Bind address (null for all interfaces)
+	 */
+	private final String address;
+
+	/**
+	 * Listening port
+	 */
+	private final int port;
+
+	/**
+	 * Maximum number of connections waiting to be accepted (0 or less for
+	 * the system's default backlog)
+	 */
+	private final int backlog;
+
+	/**
+	 * Constructor
+	 * @param address bind address (null for all interfaces)
+	 * @param port listening port
+	 * @param backlog maximum number of connections waiting to be accepted
+	 * (0 or less for the system's default backlog)
+	 */
+	public Listener(String address, int port, int backlog)
+	{
+		this.address = address;
+		this.port = port;
+		this.backlog = Math.max(backlog, 0);
+	}
+
+	/**
+	 * Constructor of a listener on all interfaces with the default backlog
+	 * @param port listening port
+	 */
+	public Listener(int port)
+	{
+		this(null, port, 0);
+	}
+
+	/**
+	 * Bind address accessor
+	 * @return the bind address (null for all interfaces)
+	 */
+	public String getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * Port accessor
+	 * @return the listening port
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Backlog accessor
+	 * @return the maximum number of connections waiting to be accepted (0
+	 * for the system's default backlog)
+	 */
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+	/**
+	 * Socket address of this listener
+	 * @return a new socket address with this listener's address and port
+	 */
+	public InetSocketAddress getSocketAddress()
+	{
+		return (address != null ? new InetSocketAddress(address, port) :
+		    new InetSocketAddress(port));
+	}
+
+	/**
+	 * Opens and binds the server socket of this listener
+	 * @param channel indicates the server socket should be obtained from a
+	 * {@link ServerSocketChannel} (for non blocking servers)
+	 * @return a new bound server socket
+	 * @throws IOException if the server socket could not be opened or bound
+	 */
+	public ServerSocket open(boolean channel) throws IOException
+	{
+		ServerSocket serverSocket;
+		if (channel)
+		{
+			serverSocket = ServerSocketChannel.open().socket();
+		}
+		else
+		{
+			serverSocket = new ServerSocket();
+		}
+		try
+		{
+			serverSocket.bind(getSocketAddress(), backlog);
+		}
+		catch (IOException e)
+		{
+			serverSocket.close();
+			throw e;
+		}
+		return serverSocket;
+	}
+
+	/**
+	 * Factory method of a {@link Listener} from its description
+	 * @param value the listener's description: <code>port</code>,
+	 * <code>address:port</code>, <code>port/backlog</code> or
+	 * <code>address:port/backlog</code>
+	 * @return a new listener or null if value is not a valid description
+	 */
+	public static Listener fromString(String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		String bind = value.trim();
+		int backlog = 0;
+		String bindAddress = null;
+		try
+		{
+			int slash = bind.indexOf('/');
+			if (slash >= 0)
+			{
+				backlog = Integer.parseInt(bind.substring(slash + 1));
+				bind = bind.substring(0, slash);
+			}
+			int colon = bind.lastIndexOf(':');
+			if (colon >= 0)
+			{
+				bindAddress = bind.substring(0, colon);
+				bind = bind.substring(colon + 1);
+			}
+			int bindPort = Integer.parseInt(bind);
+			if ((bindPort < 0) || (bindPort > 65535))
+			{
+				return null;
+			}
+			return new Listener((bindAddress == null) || bindAddress.isEmpty() ?
+			                    null : bindAddress,
+			                    bindPort,
+			                    backlog);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Listener string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String((address != null ? address : "*") + ":" + port
+		    + (backlog > 0 ? " (backlog " + backlog + ")" : ""));
+	}
+}
@@ -0,0 +1,239 @@
+package chat.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import chat.codec.CodecType;
+import chat.codec.MessageCodec;
+import chat.codec.MessageWriter;
+import models.Message;
+
+/**
+ * Frame standing for a range of frames stored in the {@link MessageLog}
+ * (a catchup reaching beyond the in-memory history): consecutive byte ranges
+ * of segment files containing messages encoded with the binary codec.
+ * A region is sent as is to a single client using an uncompressed binary
+ * stream (see {@link InputOutputClient#acceptsRegions()}), the stored bytes
+ * are transferred from the segment files to the client's connection with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} (without
+ * copy to a socket channel) so messages are never decoded.
+ * A region keeps track of the bytes already transferred, so it can be
+ * written in several steps on a non blocking channel.
+ * A region holds a lease on its segment files so that they are not closed
+ * by the log while it is transferred: the lease is released once the region
+ * has been entirely transferred or its transfer has failed.
+ * @author davidroussel
+ */
+class LogRegion extends Frame
+{
+	/**
+	 * Segment files containing the region
+	 */
+	private final FileChannel[] files;
+
+	/**
+	 * Position of the region's first byte in each file
+	 */
+	private final long[] starts;
+
+	/**
+	 * Position following the region's last byte in each file
+	 */
+	private final long[] ends;
+
+	/**
+	 * Number of messages contained in the region
+	 */
+	private final long messages;
+
+	/**
+	 * Index of the file currently transferred
+	 */
+	private int current;
+
+	/**
+	 * Position of the next byte to transfer in the current file
+	 */
+	private long position;
+
+	/**
+	 * Lease of the segment files
+	 */
+	private final MessageLog.Lease lease;
+
+	/**
+	 * Constructor
+	 * @param files segment files containing the region
+	 * @param starts position of the region's first byte in each file
+	 * @param ends position following the region's last byte in each file
+	 * @param messages number of messages contained in the region
+	 * @param lease lease of the segment files
+	 */
+	LogRegion(FileChannel[] files,
+	          long[] starts,
+	          long[] ends,
+	          long messages,
+	          MessageLog.Lease lease)
+	{
+		super(new Message("catchup of " + messages + " logged messages"));
+		this.files = files;
+		this.starts = starts;
+		this.ends = ends;
+		this.messages = messages;
+		this.lease = lease;
+		current = 0;
+		position = (files.length > 0 ? starts[0] : 0);
+	}
+
+	/**
+	 * Number of messages accessor
+	 * @return the number of messages contained in the region
+	 */
+	public long getMessages()
+	{
+		return messages;
+	}
+
+	/**
+	 * Size of the region
+	 * @return the number of bytes of the region
+	 */
+	public long getBytes()
+	{
+		long bytes = 0;
+		for (int i = 0; i < files.length; i++)
+		{
+			bytes += ends[i] - starts[i];
+		}
+		return bytes;
+	}
+
+	/**
+	 * Number of bytes remaining to transfer
+	 * @return the number of bytes of the region not transferred yet
+	 */
+	public synchronized long remaining()
+	{
+		long bytes = 0;
+		for (int i = current; i < files.length; i++)
+		{
+			bytes += ends[i] - (i == current ? position : starts[i]);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Indicates bytes remain to be transferred
+	 * @return true if the region has not been entirely transferred
+	 */
+	public boolean hasRemaining()
+	{
+		return remaining() > 0;
+	}
+
+	/**
+	 * Transfers as many bytes of the region as the target accepts (all the
+	 * remaining bytes on a blocking target)
+	 * @param target the channel to transfer the region to
+	 * @return the number of bytes transferred
+	 * @throws IOException if the region could not be read (such as a segment
+	 * truncated or closed in the meantime) or written
+	 */
+	public synchronized long transferTo(WritableByteChannel target)
+	    throws IOException
+	{
+		long transferred = 0;
+		try
+		{
+			while (current < files.length)
+			{
+				long count = ends[current] - position;
+				if (count > 0)
+				{
+					if (position >= files[current].size())
+					{
+						throw new EOFException("truncated log segment");
+					}
+					long written =
+					    files[current].transferTo(position, count, target);
+					position += written;
+					transferred += written;
+					if (written < count)
+					{
+						// the target can't accept more bytes for now
+						return transferred;
+					}
+				}
+				current++;
+				if (current < files.length)
+				{
+					position = starts[current];
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			lease.release();
+			throw e;
+		}
+		lease.release();
+		return transferred;
+	}
+
+	/**
+	 * Size of this frame
+	 * @param codec the codec of the recipient's stream
+	 * @return the number of remaining bytes of the region
+	 */
+	@Override
+	public int size(MessageCodec codec)
+	{
+		return (int) Math.min(remaining(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Writes the region with a writer (blocking clients): the stored bytes
+	 * are transferred to the writer's stream
+	 * @param writer the writer to write to
+	 * @param codec the codec used by this writer
+	 * @throws IOException if the writer is not an uncompressed binary
+	 * stream writer, or if the region could not be read or written
+	 */
+	@Override
+	public synchronized void writeTo(MessageWriter writer, MessageCodec codec)
+	    throws IOException
+	{
+		if ((codec.getType() != CodecType.BINARY) || !writer.isStateless())
+		{
+			throw new IOException("log regions need a binary stream");
+		}
+		try
+		{
+			for (int i = current; i < files.length; i++)
+			{
+				long start = (i == current ? position : starts[i]);
+				writer.transferEncoded(files[i],
+				                       start,
+				                       ends[i] - start,
+				                       i == (files.length - 1) ? messages : 0);
+			}
+			current = files.length;
+		}
+		finally
+		{
+			lease.release();
+		}
+	}
+
+	/**
+	 * Region string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("log region of " + messages + " messages ("
+		    + getBytes() + " bytes in " + files.length + " segments)");
+	}
+}
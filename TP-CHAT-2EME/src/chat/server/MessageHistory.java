@@ -0,0 +1,280 @@
+package chat.server;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity history of the last {@link Frame}s broadcast by the server
+ * (resent during "catchup" processing).
+ * Each added frame gets a monotonically increasing sequence number (starting
+ * at 1) and is stored in a ring buffer slot:
+ * <ul>
+ * 	<li>this history itself never locks writers: a sequence number (and
+ * 	thus a slot) is claimed with a single atomic increment, then the frame
+ * 	is published in its slot with a compare and set which only replaces an
+ * 	older frame (the frame stored {@link #getCapacity()} sequences before).
+ * 	A delayed writer whose slot already holds a newer frame doesn't publish
+ * 	its frame, which is then missing from the history (but still broadcast
+ * 	to all clients). Note that {@link ChatServer} serializes its writers
+ * 	when the history is also logged or replicated, so that the log and the
+ * 	standbys receive frames in sequence order</li>
+ * 	<li>readers never lock nor wait: a {@link #cursor()} is a snapshot of the
+ * 	sequences claimed when it is created and iterates over the slots,
+ * 	skipping frames which have been overwritten by newer frames or which
+ * 	have not been published yet by their writer (such frames are still
+ * 	broadcast to all clients)</li>
+ * 	<li>cursors can start after a sequence number or a date so that clients
+ * 	only get the frames they missed</li>
+ * </ul>
+ * @author davidroussel
+ */
+public class MessageHistory
+{
+	/**
+	 * Ring buffer slots
+	 */
+	private final AtomicReferenceArray<Frame> slots;
+
+	/**
+	 * Next sequence number to claim
+	 */
+	private final AtomicLong next;
+
+	/**
+	 * Constructor
+	 * @param capacity maximum number of frames kept in this history (0 or
+	 * less for no history)
+	 */
+	public MessageHistory(int capacity)
+	{
+		slots = new AtomicReferenceArray<Frame>(Math.max(capacity, 0));
+		next = new AtomicLong(1);
+	}
+
+	/**
+	 * Capacity accessor
+	 * @return the maximum number of frames kept in this history
+	 */
+	public int getCapacity()
+	{
+		return slots.length();
+	}
+
+	/**
+	 * Last sequence number accessor
+	 * @return the sequence number of the last added frame (0 if no frame has
+	 * been added yet)
+	 */
+	public long getLastSequence()
+	{
+		return next.get() - 1;
+	}
+
+	/**
+	 * Adds a frame to this history: the frame gets the next sequence number
+	 * and replaces the oldest frame if this history is full
+	 * @param frame the frame to add
+	 * @return the sequence number of the added frame
+	 */
+	public long add(Frame frame)
+	{
+		long sequence = next.getAndIncrement();
+		frame.setSequence(sequence);
+		publish(frame);
+		return sequence;
+	}
+
+	/**
+	 * Restores a frame read from the {@link MessageLog} when the server
+	 * starts (before any frame is added): the frame keeps its sequence number
+	 * and the next frames will follow it
+	 * @param frame the frame to restore
+	 */
+	public void restore(Frame frame)
+	{
+		long sequence = frame.getSequence();
+		publish(frame);
+		resume(sequence);
+	}
+
+	/**
+	 * Publishes a frame in its slot unless this slot already holds a newer
+	 * frame (published by a writer which claimed its sequence number
+	 * {@link #getCapacity()} sequences later)
+	 * @param frame the frame to publish (with its sequence number)
+	 */
+	private void publish(Frame frame)
+	{
+		if (slots.length() == 0)
+		{
+			return;
+		}
+		long sequence = frame.getSequence();
+		int index = index(sequence);
+		Frame existing;
+		do
+		{
+			existing = slots.get(index);
+			if ((existing != null) && (existing.getSequence() >= sequence))
+			{
+				return;
+			}
+		}
+		while (!slots.compareAndSet(index, existing, frame));
+	}
+
+	/**
+	 * Resumes sequence numbers after the last sequence number of the
+	 * {@link MessageLog} when the server starts (before any frame is added)
+	 * @param lastSequence the sequence number of the last logged frame
+	 */
+	public void resume(long lastSequence)
+	{
+		if (lastSequence >= next.get())
+		{
+			next.set(lastSequence + 1);
+		}
+	}
+
+	/**
+	 * Snapshot cursor over the frames of this history (oldest first) added
+	 * before this call. Frames added afterwards are never returned
+	 * @return a new cursor over this history
+	 */
+	public Iterator<Frame> cursor()
+	{
+		return cursor(0);
+	}
+
+	/**
+	 * Snapshot cursor over the frames of this history (oldest first) added
+	 * before this call and after a sequence number: only the slots following
+	 * this sequence number are visited, so the cost of this cursor scales with
+	 * the number of frames missed since then.
+	 * @param since the sequence number of the last frame already received (0
+	 * for all frames)
+	 * @return a new cursor over the frames added after since
+	 */
+	public Iterator<Frame> cursor(long since)
+	{
+		return new Cursor(since + 1, null);
+	}
+
+	/**
+	 * Snapshot cursor over the frames of this history (oldest first) added
+	 * before this call and dated after a date: slots are visited backwards
+	 * from the newest frame to find the first frame to send, so the cost of
+	 * this cursor scales with the number of frames missed since this date.
+	 * @param since the date of the last frame already received
+	 * @return a new cursor over the frames dated after since
+	 */
+	public Iterator<Frame> cursor(Date since)
+	{
+		long end = next.get();
+		long oldest = Math.max(1, end - slots.length());
+		long start = end;
+		while (start > oldest)
+		{
+			Frame frame = slots.get(index(start - 1));
+			if ((frame != null) && (frame.getSequence() == (start - 1))
+			    && !frame.getMessage().getDate().after(since))
+			{
+				break;
+			}
+			start--;
+		}
+		return new Cursor(start, since);
+	}
+
+	/**
+	 * Slot index of a sequence number
+	 * @param sequence the sequence number
+	 * @return the index of the slot storing the frame with this sequence
+	 */
+	private int index(long sequence)
+	{
+		return (int) (sequence % slots.length());
+	}
+
+	/**
+	 * Snapshot cursor over the history's slots
+	 */
+	private class Cursor implements Iterator<Frame>
+	{
+		/**
+		 * Sequence number following the last one of the snapshot
+		 */
+		private final long end;
+
+		/**
+		 * Sequence number of the next slot to read
+		 */
+		private long sequence;
+
+		/**
+		 * Date frames should be newer than (or null to return all frames)
+		 */
+		private final Date since;
+
+		/**
+		 * Next frame to return (null if not found yet)
+		 */
+		private Frame nextFrame;
+
+		/**
+		 * Constructor
+		 * @param start sequence number of the first frame to return (if it
+		 * is still in the history)
+		 * @param since date frames should be newer than (or null to return
+		 * all frames)
+		 */
+		private Cursor(long start, Date since)
+		{
+			end = next.get();
+			sequence = Math.max(start, Math.max(1, end - slots.length()));
+			this.since = since;
+			nextFrame = null;
+		}
+
+		/**
+		 * Looks for the next frame of the snapshot still stored in its slot
+		 * @return true if there is another frame in the snapshot
+		 */
+		@Override
+		public boolean hasNext()
+		{
+			while ((nextFrame == null) && (sequence < end))
+			{
+				Frame frame = slots.get(index(sequence));
+				if ((frame != null) && (frame.getSequence() == sequence)
+				    && ((since == null)
+				        || frame.getMessage().getDate().after(since)))
+				{
+					nextFrame = frame;
+				}
+				sequence++;
+			}
+			return nextFrame != null;
+		}
+
+		/**
+		 * Next frame of the snapshot
+		 * @return the next frame of the snapshot
+		 * @throws NoSuchElementException if there is no more frames
+		 */
+		@Override
+		public Frame next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			Frame frame = nextFrame;
+			nextFrame = null;
+			return frame;
+		}
+	}
+}
@@ -0,0 +1,2563 @@
+package chat.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import chat.codec.BinaryCodec;
+import logger.LoggerFactory;
+import models.Message;
+
+/**
+ * Durable append-only log of the {@link Frame}s added to the server's
+ * history, so that history survives restarts and can be much larger than
+ * the in-memory {@link MessageHistory}.
+ * The log is a directory of segment files:
+ * <ul>
+ * 	<li>each segment file (named after the first sequence number it
+ * 	contains) is a sequence of messages encoded with the
+ * 	{@link BinaryCodec} (the frames' shared binary bytes) written through a
+ * 	{@link FileChannel}. A new segment is started when the current one
+ * 	reaches its maximum size</li>
+ * 	<li>each segment has a sparse index file containing an entry (sequence
+ * 	number, date and position) every {@link #INDEXINTERVAL} bytes, so that
+ * 	cursors starting at a sequence number or a date only read the end of
+ * 	the log</li>
+ * </ul>
+ * When the log is opened, only the end of the last segment (after its last
+ * index entry) is scanned to find the last valid message (truncating a
+ * partially written message), so the server restarts quickly whatever the
+ * size of the log.
+ * Frames are only written to the operating system by {@link #append(Frame)},
+ * they are forced to the disk according to the log's {@link Durability}:
+ * <ul>
+ * 	<li>{@link Durability#NONE}: never (frames survive a server crash but
+ * 	not a system crash)</li>
+ * 	<li>{@link Durability#INTERVAL}: periodically by a background
+ * 	thread</li>
+ * 	<li>{@link Durability#BATCH}: senders wait in {@link #commit(long)}
+ * 	until their frame is forced. The first waiting sender forces all the
+ * 	frames appended so far (group commit) while the following ones wait,
+ * 	then all the senders of the batch are released together. Senders which
+ * 	must not wait (such as event loops) use
+ * 	{@link #commit(long, Runnable)} instead: a background committer forces
+ * 	the frames appended so far and then runs the callbacks of all the
+ * 	frames forced (so the batch grows with all the frames appended during
+ * 	a force)</li>
+ * </ul>
+ * A segment sealed by {@link #append(Frame)} is not forced by the appender
+ * either: it is forced by the next force, before the active segment.
+ * A {@link Retention} deletes or compacts old sealed segments in the
+ * background: segments are only replaced in the list of segments while
+ * holding the log (so appends are never blocked by file operations), and
+ * the files of replaced segments stay open for a while for the cursors and
+ * regions still reading them.
+ * Segments are stored in tiers (the in-memory {@link MessageHistory} being
+ * the hot tier in front of the log):
+ * <ul>
+ * 	<li>warm tier: the active segment and the most recent sealed segments
+ * 	(see {@link #setWarmSegments(int)}) are kept as is, the sealed ones
+ * 	being memory-mapped so cursors read them without system calls</li>
+ * 	<li>cold tier: older sealed segments are rewritten in the background as
+ * 	blocks of frames compressed with {@link Deflater} (indexed by block),
+ * 	and decompressed block by block on demand by deep catchups</li>
+ * </ul>
+ * Hits and misses of each tier are counted (see {@link #tierMetrics()}).
+ * @author davidroussel
+ */
+public class MessageLog implements Closeable
+{
+	/**
+	 * Default maximum size of a segment file (in bytes)
+	 */
+	public final static int DEFAULTSEGMENT = 64 << 20;
+
+	/**
+	 * Number of bytes between two sparse index entries
+	 */
+	public final static int INDEXINTERVAL = 4096;
+
+	/**
+	 * Size of an index entry: sequence number, date and position
+	 */
+	private final static int INDEXENTRY = 8 + 8 + 4;
+
+	/**
+	 * Size of the buffer used by cursors to read segments
+	 */
+	private final static int READBUFFER = 64 << 10;
+
+	/**
+	 * Number of bytes read to get a frame's length, date and sequence number
+	 */
+	private final static int HEADERBYTES = 32;
+
+	/**
+	 * Segment files suffix
+	 */
+	private final static String SEGMENTSUFFIX = ".log";
+
+	/**
+	 * Index files suffix
+	 */
+	private final static String INDEXSUFFIX = ".idx";
+
+	/**
+	 * Suffix of segment and index files being compacted
+	 */
+	private final static String COMPACTSUFFIX = ".compact";
+
+	/**
+	 * Cold segment files suffix
+	 */
+	private final static String COLDSUFFIX = ".cold";
+
+	/**
+	 * Cold segment block index files suffix
+	 */
+	private final static String COLDINDEXSUFFIX = ".cidx";
+
+	/**
+	 * Number of uncompressed bytes of frames compressed together in a block
+	 * of a cold segment
+	 */
+	public final static int COLDBLOCK = 64 << 10;
+
+	/**
+	 * Size of a cold segment block header: uncompressed and compressed
+	 * lengths of the block
+	 */
+	private final static int BLOCKHEADER = 4 + 4;
+
+	/**
+	 * Default period (in ms) between two applications of the retention and
+	 * tiering
+	 */
+	public final static long DEFAULTPERIOD = 10000;
+
+	/**
+	 * Directory containing segment and index files
+	 */
+	private final File directory;
+
+	/**
+	 * Maximum size of a segment file (in bytes)
+	 */
+	private final int segmentBytes;
+
+	/**
+	 * Segments of this log (oldest first): the last one is the active
+	 * segment messages are appended to
+	 */
+	private final List<Segment> segments;
+
+	/**
+	 * Sealed segments which have not been forced to the disk yet (guarded
+	 * by this log)
+	 */
+	private final List<Segment> unforced;
+
+	/**
+	 * Sequence number of the last appended frame (0 if the log is empty)
+	 */
+	private volatile long lastSequence;
+
+	/**
+	 * Durability mode: when appended frames are forced to the disk
+	 */
+	private Durability durability;
+
+	/**
+	 * Lock guarding {@link #durableSequence} and {@link #committing} (senders
+	 * wait on this lock for their frame to be forced)
+	 */
+	private final Object commitLock;
+
+	/**
+	 * Sequence number of the last frame forced to the disk
+	 */
+	private long durableSequence;
+
+	/**
+	 * Indicates a sender is forcing a batch of frames
+	 */
+	private boolean committing;
+
+	/**
+	 * Background thread forcing frames with {@link Durability#INTERVAL}
+	 * (null otherwise)
+	 */
+	private ScheduledExecutorService syncer;
+
+	/**
+	 * Asynchronous commits waiting for their frame to be forced (guarded by
+	 * {@link #commitLock})
+	 */
+	private final List<PendingCommit> pending;
+
+	/**
+	 * Indicates the committer is scheduled to force the frames of
+	 * {@link #pending} commits (guarded by {@link #commitLock})
+	 */
+	private boolean flushing;
+
+	/**
+	 * Background thread forcing frames on behalf of asynchronous commits
+	 * with {@link Durability#BATCH} (null otherwise)
+	 */
+	private ExecutorService committer;
+
+	/**
+	 * Retention of this log
+	 */
+	private Retention retention;
+
+	/**
+	 * Background thread applying the {@link #retention} (null if no
+	 * retention)
+	 */
+	private ScheduledExecutorService retainer;
+
+	/**
+	 * Period (in ms) between two applications of the {@link #retention} and
+	 * tiering by the {@link #retainer}
+	 */
+	private long period;
+
+	/**
+	 * Number of most recent sealed segments kept uncompressed and
+	 * memory-mapped (warm tier), older sealed segments being compressed
+	 * (cold tier). 0 when segments are not tiered
+	 */
+	private int warmSegments;
+
+	/**
+	 * Cursors and regions starting in a warm segment
+	 */
+	private final AtomicLong warmHits;
+
+	/**
+	 * Cursors and regions starting before the warm segments
+	 */
+	private final AtomicLong warmMisses;
+
+	/**
+	 * Cursors starting in a cold segment
+	 */
+	private final AtomicLong coldHits;
+
+	/**
+	 * Cursors starting before the first logged frame (frames deleted by the
+	 * retention)
+	 */
+	private final AtomicLong coldMisses;
+
+	/**
+	 * Files of deleted or compacted segments not closed yet because a
+	 * {@link Lease} still holds them (guarded by itself)
+	 */
+	private final Set<FileChannel> retired;
+
+	/**
+	 * Leases not released yet, weakly referenced so that the lease of a
+	 * dropped cursor or region does not hold its files forever (guarded by
+	 * {@link #retired})
+	 */
+	private final Set<Lease> leases;
+
+	/**
+	 * Total number of bytes reclaimed by the {@link #retention}
+	 */
+	private final AtomicLong reclaimed;
+
+	/**
+	 * Number of frames forced by each force (i.e. batch sizes)
+	 */
+	private final LatencyHistogram batchSizes;
+
+	/**
+	 * Time (in µs) spent by senders in {@link #commit(long)}
+	 */
+	private final LatencyHistogram commitLatencies;
+
+	/**
+	 * Logger
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructor: opens (or creates) the log in a directory and recovers
+	 * its segments
+	 * @param directory directory containing segment and index files (created
+	 * if it does not exist)
+	 * @param segmentBytes maximum size of a segment file (in bytes)
+	 * @param parentLogger parent logger
+	 * @throws IOException if the directory, segments or index files could
+	 * not be created or read
+	 */
+	public MessageLog(File directory, int segmentBytes, Logger parentLogger)
+	    throws IOException
+	{
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		this.directory = directory;
+		this.segmentBytes = Math.max(segmentBytes, INDEXINTERVAL);
+		segments = new CopyOnWriteArrayList<Segment>();
+		unforced = new ArrayList<Segment>();
+		lastSequence = 0;
+		durability = Durability.NONE;
+		commitLock = new Object();
+		committing = false;
+		syncer = null;
+		pending = new ArrayList<PendingCommit>();
+		flushing = false;
+		committer = null;
+		retention = Retention.NONE;
+		retainer = null;
+		period = DEFAULTPERIOD;
+		warmSegments = 0;
+		warmHits = new AtomicLong(0);
+		warmMisses = new AtomicLong(0);
+		coldHits = new AtomicLong(0);
+		coldMisses = new AtomicLong(0);
+		retired = new HashSet<FileChannel>();
+		leases = Collections.newSetFromMap(new WeakHashMap<Lease, Boolean>());
+		reclaimed = new AtomicLong(0);
+		batchSizes = new LatencyHistogram();
+		commitLatencies = new LatencyHistogram();
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("unable to create log directory "
+			    + directory);
+		}
+		File[] files = directory.listFiles();
+		// first sequence numbers of segments: true for cold segments
+		Map<Long, Boolean> bases = new TreeMap<Long, Boolean>();
+		for (File file : files)
+		{
+			String name = file.getName();
+			if (name.endsWith(COMPACTSUFFIX))
+			{
+				// interrupted compaction: the original segment is intact
+				logger.warning("MessageLog: deleting " + file);
+				file.delete();
+			}
+			else if (name.endsWith(SEGMENTSUFFIX)
+			    || name.endsWith(COLDSUFFIX))
+			{
+				boolean cold = name.endsWith(COLDSUFFIX);
+				try
+				{
+					long base = Long.parseLong(name.substring(0,
+					    name.length() - (cold ? COLDSUFFIX.length() :
+					        SEGMENTSUFFIX.length())));
+					bases.put(base, cold || Boolean.TRUE.equals(bases.get(base)));
+				}
+				catch (NumberFormatException e)
+				{
+					logger.warning("MessageLog: ignoring " + file);
+				}
+			}
+		}
+		List<Long> sorted = new ArrayList<Long>(bases.keySet());
+
+		long start = System.nanoTime();
+		for (int i = 0; i < sorted.size(); i++)
+		{
+			boolean last = i == (sorted.size() - 1);
+			boolean cold = bases.get(sorted.get(i)) && !last;
+			Segment segment = new Segment(sorted.get(i), "", cold);
+			if (cold && segment.file(SEGMENTSUFFIX).exists())
+			{
+				// interrupted tiering: the cold segment is complete
+				logger.warning("MessageLog: deleting "
+				    + segment.file(SEGMENTSUFFIX));
+				segment.file(SEGMENTSUFFIX).delete();
+				segment.file(INDEXSUFFIX).delete();
+			}
+			segment.recover(last);
+			if (!last)
+			{
+				segment.lastSequence = sorted.get(i + 1) - 1;
+			}
+			segments.add(segment);
+		}
+		if (!segments.isEmpty())
+		{
+			lastSequence = segments.get(segments.size() - 1).lastSequence;
+		}
+		durableSequence = lastSequence;
+		logger.info("MessageLog: opened " + this + " in "
+		    + ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+
+	/**
+	 * Sets the durability mode of this log (should be called before
+	 * appending frames)
+	 * @param durability the durability mode
+	 * @param interval period (in ms) between two forces with
+	 * {@link Durability#INTERVAL}
+	 */
+	public synchronized void setDurability(Durability durability,
+	                                       long interval)
+	{
+		this.durability = (durability != null ? durability : Durability.NONE);
+		if (syncer != null)
+		{
+			syncer.shutdown();
+			syncer = null;
+		}
+		if (this.durability == Durability.INTERVAL)
+		{
+			syncer = Executors.newSingleThreadScheduledExecutor();
+			syncer.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						force();
+					}
+					catch (IOException e)
+					{
+						logger.severe("MessageLog: force failed: "
+						    + e.getLocalizedMessage());
+					}
+				}
+			}, interval, Math.max(interval, 1), TimeUnit.MILLISECONDS);
+		}
+		if ((this.durability == Durability.BATCH) && (committer == null))
+		{
+			committer = Executors.newSingleThreadExecutor();
+		}
+	}
+
+	/**
+	 * Durability accessor
+	 * @return the durability mode of this log
+	 */
+	public Durability getDurability()
+	{
+		return durability;
+	}
+
+	/**
+	 * Sets the retention of this log and starts applying it periodically in
+	 * the background
+	 * @param retention the retention of this log
+	 * @param period period (in ms) between two applications of the retention
+	 * (and of the tiering)
+	 */
+	public synchronized void setRetention(Retention retention, long period)
+	{
+		this.retention = (retention != null ? retention : Retention.NONE);
+		this.period = period;
+		schedule();
+	}
+
+	/**
+	 * Sets the number of most recent sealed segments kept uncompressed and
+	 * memory-mapped (warm tier): older sealed segments are compressed in the
+	 * background (cold tier)
+	 * @param warmSegments the number of warm sealed segments (0 or less not
+	 * to tier segments)
+	 */
+	public synchronized void setWarmSegments(int warmSegments)
+	{
+		this.warmSegments = Math.max(warmSegments, 0);
+		remap();
+		schedule();
+	}
+
+	/**
+	 * Warm segments accessor
+	 * @return the number of most recent sealed segments kept uncompressed
+	 * and memory-mapped (0 if segments are not tiered)
+	 */
+	public int getWarmSegments()
+	{
+		return warmSegments;
+	}
+
+	/**
+	 * (Re)starts the {@link #retainer} applying the {@link #retention} and
+	 * the tiering (if any) every {@link #period}
+	 */
+	private synchronized void schedule()
+	{
+		if (retainer != null)
+		{
+			retainer.shutdown();
+			retainer = null;
+		}
+		if (retention.isEnabled() || (warmSegments > 0))
+		{
+			retainer = Executors.newSingleThreadScheduledExecutor();
+			retainer.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					retain();
+				}
+			}, period, Math.max(period, 1), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Retention accessor
+	 * @return the retention of this log
+	 */
+	public Retention getRetention()
+	{
+		return retention;
+	}
+
+	/**
+	 * Reclaimed bytes accessor
+	 * @return the total number of bytes reclaimed by the retention
+	 */
+	public long getReclaimed()
+	{
+		return reclaimed.get();
+	}
+
+	/**
+	 * Applies the {@link #retention} and the tiering once (run by the
+	 * {@link #retainer}):
+	 * <ul>
+	 * 	<li>sealed segments whose messages are all older than the maximum
+	 * 	age are deleted, then the oldest sealed segments are deleted while
+	 * 	the log exceeds the maximum size</li>
+	 * 	<li>sealed segments whose messages are all older than the notice age
+	 * 	are compacted once (their system notices are removed)</li>
+	 * 	<li>sealed segments older than the {@link #warmSegments} most recent
+	 * 	ones are compressed (once compacted if notices expire)</li>
+	 * </ul>
+	 */
+	private void retain()
+	{
+		long now = System.currentTimeMillis();
+		long deleted = 0;
+		long compacted = 0;
+		// files whose cursors or regions have been dropped
+		closeRetired(false);
+
+		// Deletes old segments (a segment's messages are all older than the
+		// next segment's first message)
+		List<Segment> snapshot = new ArrayList<Segment>(segments);
+		long total = getSize();
+		List<Segment> expired = new ArrayList<Segment>();
+		for (int i = 0; i < snapshot.size() - 1; i++)
+		{
+			boolean old = (retention.getMaxAge() > 0)
+			    && (snapshot.get(i + 1).firstDate()
+			        < now - retention.getMaxAge() * 1000);
+			boolean over = (retention.getMaxBytes() > 0)
+			    && (total > retention.getMaxBytes());
+			if (!old && !over)
+			{
+				break;
+			}
+			expired.add(snapshot.get(i));
+			total -= snapshot.get(i).size;
+		}
+		if (!expired.isEmpty())
+		{
+			synchronized (this)
+			{
+				segments.removeAll(expired);
+			}
+			for (Segment segment : expired)
+			{
+				deleted += segment.size;
+				segment.delete();
+			}
+		}
+
+		// Compacts segments whose notices have all expired
+		if (retention.getNoticeAge() > 0)
+		{
+			snapshot = new ArrayList<Segment>(segments);
+			long cutoff = now - retention.getNoticeAge() * 1000;
+			for (int i = 0; i < snapshot.size() - 1; i++)
+			{
+				Segment segment = snapshot.get(i);
+				if (!segment.compacted
+				    && (snapshot.get(i + 1).firstDate() < cutoff))
+				{
+					try
+					{
+						compacted += compact(segment);
+					}
+					catch (IOException e)
+					{
+						logger.warning("MessageLog: unable to compact "
+						    + segment + ": " + e.getLocalizedMessage());
+					}
+				}
+			}
+		}
+
+		if ((deleted + compacted) > 0)
+		{
+			reclaimed.addAndGet(deleted + compacted);
+			logger.info("MessageLog: " + retention + " reclaimed " + deleted
+			    + " bytes (" + expired.size() + " segments deleted) and "
+			    + compacted + " bytes (notices compacted), " + this);
+		}
+
+		// Compresses sealed segments leaving the warm tier
+		if (warmSegments > 0)
+		{
+			snapshot = new ArrayList<Segment>(segments);
+			for (int i = 0; i < snapshot.size() - 1 - warmSegments; i++)
+			{
+				Segment segment = snapshot.get(i);
+				if (!segment.cold
+				    && (segment.compacted || (retention.getNoticeAge() == 0)))
+				{
+					try
+					{
+						freeze(segment);
+					}
+					catch (IOException e)
+					{
+						logger.warning("MessageLog: unable to compress "
+						    + segment + ": " + e.getLocalizedMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves a sealed segment to the cold tier: its frames are compressed by
+	 * blocks of about {@link #COLDBLOCK} bytes in a new cold segment (whose
+	 * index has an entry per block) which replaces the original one
+	 * @param segment the segment to compress
+	 * @throws IOException if the segment could not be read or the cold
+	 * segment written
+	 */
+	private void freeze(Segment segment) throws IOException
+	{
+		Segment frozen = new Segment(segment.base, COMPACTSUFFIX, true);
+		frozen.file().delete();
+		frozen.indexFile().delete();
+		frozen.recover(true);
+		Deflater deflater = new Deflater();
+		try
+		{
+			ByteArrayOutputStream block = new ByteArrayOutputStream(COLDBLOCK);
+			byte[] compressed = new byte[COLDBLOCK];
+			long blockSequence = 0;
+			long blockDate = 0;
+			Cursor cursor = new Cursor(Arrays.asList(segment), 0, 0, 0, null,
+			                           null);
+			while (true)
+			{
+				Frame frame = cursor.hasNext() ? cursor.next() : null;
+				byte[] bytes = (frame != null ?
+				    frame.bytes(BinaryCodec.INSTANCE) : null);
+				if ((block.size() > 0)
+				    && ((frame == null)
+				        || (block.size() + bytes.length > COLDBLOCK)))
+				{
+					// writes the current block
+					byte[] raw = block.toByteArray();
+					deflater.reset();
+					deflater.setInput(raw);
+					deflater.finish();
+					ByteArrayOutputStream out =
+					    new ByteArrayOutputStream(raw.length / 2);
+					out.write(ByteBuffer.allocate(BLOCKHEADER).putInt(raw.length)
+					    .putInt(0).array());
+					while (!deflater.finished())
+					{
+						out.write(compressed, 0, deflater.deflate(compressed));
+					}
+					byte[] written = out.toByteArray();
+					ByteBuffer.wrap(written).putInt(4,
+					                                written.length - BLOCKHEADER);
+					frozen.appendBlock(blockSequence, blockDate, written);
+					block.reset();
+				}
+				if (frame == null)
+				{
+					break;
+				}
+				if (block.size() == 0)
+				{
+					blockSequence = frame.getSequence();
+					blockDate = frame.getMessage().getDate().getTime();
+				}
+				block.write(bytes);
+			}
+			if (durability != Durability.NONE)
+			{
+				frozen.channel.force(false);
+				frozen.indexChannel.force(false);
+			}
+		}
+		finally
+		{
+			deflater.end();
+			frozen.close();
+		}
+
+		// the cold segment replaces the original one once renamed
+		Segment cold = new Segment(segment.base, "", true);
+		Files.move(frozen.indexFile().toPath(),
+		           cold.indexFile().toPath(),
+		           StandardCopyOption.REPLACE_EXISTING,
+		           StandardCopyOption.ATOMIC_MOVE);
+		Files.move(frozen.file().toPath(),
+		           cold.file().toPath(),
+		           StandardCopyOption.REPLACE_EXISTING,
+		           StandardCopyOption.ATOMIC_MOVE);
+		cold.recover(false);
+		cold.lastSequence = segment.lastSequence;
+		synchronized (this)
+		{
+			int index = segments.indexOf(segment);
+			if (index >= 0)
+			{
+				segments.set(index, cold);
+			}
+		}
+		segment.delete();
+		logger.fine("MessageLog: compressed " + segment + " to " + cold);
+	}
+
+	/**
+	 * Maps the {@link #warmSegments} most recent sealed segments in memory
+	 * and releases the mappings of older segments (should be called while
+	 * holding the log)
+	 */
+	private void remap()
+	{
+		int sealed = segments.size() - 1;
+		for (int i = 0; i < sealed; i++)
+		{
+			segments.get(i).map(i >= sealed - warmSegments);
+		}
+	}
+
+	/**
+	 * Compacts a sealed segment: the frames which are not system notices are
+	 * copied to a new segment which replaces the original one (or the
+	 * segment is deleted if it only contains notices)
+	 * @param segment the segment to compact
+	 * @return the number of bytes reclaimed
+	 * @throws IOException if the segment could not be read or the compacted
+	 * segment written
+	 */
+	private long compact(Segment segment) throws IOException
+	{
+		Segment compact = new Segment(segment.base, COMPACTSUFFIX, false);
+		compact.file().delete();
+		compact.indexFile().delete();
+		compact.recover(true);
+		int removed = 0;
+		try
+		{
+			Cursor cursor = new Cursor(Arrays.asList(segment), 0, 0, 0, null,
+			                           null);
+			while (cursor.hasNext())
+			{
+				Frame frame = cursor.next();
+				Message message = frame.getMessage();
+				if (message.hasAuthor())
+				{
+					compact.append(frame.getSequence(),
+					               message.getDate().getTime(),
+					               frame.bytes(BinaryCodec.INSTANCE));
+				}
+				else
+				{
+					removed++;
+				}
+			}
+			if (durability != Durability.NONE)
+			{
+				compact.channel.force(false);
+			}
+		}
+		finally
+		{
+			compact.close();
+		}
+
+		if ((removed == 0) || (compact.size == 0))
+		{
+			compact.file().delete();
+			compact.indexFile().delete();
+			if (removed == 0)
+			{
+				segment.compacted = true;
+				return 0;
+			}
+			// only notices: the whole segment is deleted
+			synchronized (this)
+			{
+				segments.remove(segment);
+			}
+			segment.delete();
+			return segment.size;
+		}
+
+		// the index is deleted first so that it is rebuilt if the server
+		// stops before the new index is renamed
+		segment.indexFile().delete();
+		Files.move(compact.file().toPath(),
+		           segment.file().toPath(),
+		           StandardCopyOption.REPLACE_EXISTING,
+		           StandardCopyOption.ATOMIC_MOVE);
+		Files.move(compact.indexFile().toPath(),
+		           segment.indexFile().toPath(),
+		           StandardCopyOption.REPLACE_EXISTING,
+		           StandardCopyOption.ATOMIC_MOVE);
+		Segment replacement = new Segment(segment.base);
+		replacement.recover(false);
+		replacement.lastSequence = segment.lastSequence;
+		replacement.compacted = true;
+		synchronized (this)
+		{
+			int index = segments.indexOf(segment);
+			if (index >= 0)
+			{
+				segments.set(index, replacement);
+				remap();
+			}
+		}
+		retire(segment.channel);
+		return segment.size - replacement.size;
+	}
+
+	/**
+	 * Retires the file of a segment removed from {@link #segments}: the file
+	 * is closed as soon as no {@link Lease} holds it
+	 * @param channel the segment file
+	 */
+	private void retire(FileChannel channel)
+	{
+		synchronized (retired)
+		{
+			retired.add(channel);
+		}
+		closeRetired(false);
+	}
+
+	/**
+	 * Closes the retired segment files which are not held by a lease
+	 * @param all closes all retired files, even those still held (when the
+	 * log is closed)
+	 */
+	private void closeRetired(boolean all)
+	{
+		List<FileChannel> closed = new ArrayList<FileChannel>();
+		synchronized (retired)
+		{
+			for (Iterator<FileChannel> it = retired.iterator(); it.hasNext();)
+			{
+				FileChannel channel = it.next();
+				boolean held = false;
+				for (Iterator<Lease> lit = leases.iterator();
+				     !all && !held && lit.hasNext();)
+				{
+					held = lit.next().holds(channel);
+				}
+				if (!held)
+				{
+					closed.add(channel);
+					it.remove();
+				}
+			}
+		}
+		for (FileChannel channel : closed)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("MessageLog: unable to close a retired "
+				    + "segment: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Leases segment files to a cursor or a region: while the lease is not
+	 * released (and its holder not garbage collected), these files stay
+	 * open even if their segments are deleted or compacted. Must be called
+	 * while holding the log's lock (the segments can't be retired in the
+	 * meantime) or another lease on these files
+	 * @param files the segment files to read
+	 * @return a new lease on these files
+	 */
+	private Lease lease(FileChannel[] files)
+	{
+		Lease lease = new Lease(files);
+		synchronized (retired)
+		{
+			leases.add(lease);
+		}
+		return lease;
+	}
+
+	/**
+	 * Leases the files of segments (see {@link #lease(FileChannel[])})
+	 * @param snapshot the segments to read
+	 * @return a new lease on these segments' files
+	 */
+	private Lease lease(List<Segment> snapshot)
+	{
+		FileChannel[] files = new FileChannel[snapshot.size()];
+		for (int i = 0; i < files.length; i++)
+		{
+			files[i] = snapshot.get(i).channel;
+		}
+		return lease(files);
+	}
+
+	/**
+	 * Waits until an appended frame has been forced to the disk (only with
+	 * {@link Durability#BATCH}, returns immediately otherwise).
+	 * If no other sender is forcing frames, the calling sender forces all
+	 * the frames appended so far on behalf of all waiting senders, otherwise
+	 * it waits for the current force to complete (and forces the next batch
+	 * if its frame was appended after the current force started)
+	 * @param sequence the sequence number of the appended frame
+	 * @throws IOException if frames could not be forced
+	 */
+	public void commit(long sequence) throws IOException
+	{
+		if (durability != Durability.BATCH)
+		{
+			return;
+		}
+		long start = System.nanoTime();
+		try
+		{
+			synchronized (commitLock)
+			{
+				while (committing && (durableSequence < sequence))
+				{
+					commitLock.wait();
+				}
+				if (durableSequence >= sequence)
+				{
+					return;
+				}
+				committing = true;
+			}
+			try
+			{
+				force();
+			}
+			finally
+			{
+				synchronized (commitLock)
+				{
+					committing = false;
+					commitLock.notifyAll();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("MessageLog: commit interrupted");
+		}
+		finally
+		{
+			commitLatencies.record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Commits an appended frame without waiting: the callback is run once
+	 * the frame has been forced to the disk with {@link Durability#BATCH}
+	 * (by the committer's thread, together with the callbacks of all the
+	 * frames forced at the same time, in sequence order), or at once
+	 * otherwise. Callbacks should not block since they delay the following
+	 * commits.
+	 * If frames could not be forced, the failure is logged and callbacks
+	 * are run anyway (as {@link #commit(long)} senders are released)
+	 * @param sequence the sequence number of the appended frame
+	 * @param committed the callback to run once the frame is committed
+	 */
+	public void commit(long sequence, Runnable committed)
+	{
+		if ((durability != Durability.BATCH) || (sequence > lastSequence))
+		{
+			committed.run();
+			return;
+		}
+		boolean durable = false;
+		boolean schedule = false;
+		synchronized (commitLock)
+		{
+			if (durableSequence >= sequence)
+			{
+				durable = true;
+			}
+			else
+			{
+				pending.add(new PendingCommit(sequence, committed));
+				schedule = !flushing;
+				flushing = true;
+			}
+		}
+		if (durable)
+		{
+			commitLatencies.record(0);
+			committed.run();
+		}
+		else if (schedule)
+		{
+			committer.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Committer's task: forces the frames appended so far and runs the
+	 * callbacks of the forced frames until there are no more pending
+	 * commits
+	 */
+	private void flush()
+	{
+		boolean more = true;
+		while (more)
+		{
+			long forced;
+			try
+			{
+				synchronized (commitLock)
+				{
+					while (committing)
+					{
+						commitLock.wait();
+					}
+					committing = true;
+				}
+				try
+				{
+					force();
+				}
+				finally
+				{
+					synchronized (commitLock)
+					{
+						committing = false;
+						commitLock.notifyAll();
+						forced = durableSequence;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				logger.severe("MessageLog: force failed: "
+				    + e.getLocalizedMessage());
+				forced = Long.MAX_VALUE;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				forced = Long.MAX_VALUE;
+			}
+
+			List<PendingCommit> done = new ArrayList<PendingCommit>();
+			synchronized (commitLock)
+			{
+				for (Iterator<PendingCommit> it = pending.iterator();
+				     it.hasNext();)
+				{
+					PendingCommit commit = it.next();
+					if (commit.sequence <= forced)
+					{
+						done.add(commit);
+						it.remove();
+					}
+				}
+				more = !pending.isEmpty();
+				flushing = more;
+			}
+			run(done);
+		}
+	}
+
+	/**
+	 * Runs the callbacks of committed frames in sequence order
+	 * @param done the committed frames
+	 */
+	private void run(List<PendingCommit> done)
+	{
+		Collections.sort(done, new Comparator<PendingCommit>()
+		{
+			@Override
+			public int compare(PendingCommit c1, PendingCommit c2)
+			{
+				return Long.compare(c1.sequence, c2.sequence);
+			}
+		});
+		long now = System.nanoTime();
+		for (PendingCommit commit : done)
+		{
+			commitLatencies.record((now - commit.start) / 1000);
+			try
+			{
+				commit.callback.run();
+			}
+			catch (RuntimeException e)
+			{
+				logger.severe("MessageLog: commit callback of frame "
+				    + commit.sequence + " failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Forces all the frames appended so far to the disk: the segments
+	 * sealed since the last force (if any) then the active segment
+	 * @throws IOException if a segment could not be forced
+	 */
+	private void force() throws IOException
+	{
+		long target;
+		FileChannel channel;
+		List<Segment> sealed;
+		synchronized (this)
+		{
+			target = lastSequence;
+			channel = segments.isEmpty() ? null :
+			    segments.get(segments.size() - 1).channel;
+			sealed = new ArrayList<Segment>(unforced);
+		}
+		synchronized (commitLock)
+		{
+			if (target <= durableSequence)
+			{
+				return;
+			}
+		}
+		for (Segment segment : sealed)
+		{
+			try
+			{
+				segment.channel.force(false);
+			}
+			catch (ClosedChannelException e)
+			{
+				// deleted or replaced (and forced) by the retention
+			}
+		}
+		if (!sealed.isEmpty())
+		{
+			synchronized (this)
+			{
+				unforced.removeAll(sealed);
+			}
+		}
+		if ((channel != null) && channel.isOpen())
+		{
+			channel.force(false);
+		}
+		synchronized (commitLock)
+		{
+			if (target > durableSequence)
+			{
+				batchSizes.record(target - durableSequence);
+				durableSequence = target;
+			}
+		}
+	}
+
+	/**
+	 * Group commit metrics since last call: batch sizes (frames per force)
+	 * and time spent by senders waiting for their frames to be forced
+	 * @return a description of the group commit metrics
+	 */
+	public String commitMetrics()
+	{
+		String metrics = new String("durability " + durability + ", batches: "
+		    + batchSizes + " frames, commit latency: " + commitLatencies
+		    + " us");
+		batchSizes.reset();
+		commitLatencies.reset();
+		return metrics;
+	}
+
+	/**
+	 * Sequence number of the first frame of this log
+	 * @return the sequence number of the first logged frame (or the next
+	 * frame's sequence number if the log is empty)
+	 */
+	public long getFirstSequence()
+	{
+		return segments.isEmpty() ? lastSequence + 1 : segments.get(0).base;
+	}
+
+	/**
+	 * Sequence number of the last frame of this log
+	 * @return the sequence number of the last appended frame (0 if the log
+	 * has always been empty)
+	 */
+	public long getLastSequence()
+	{
+		return lastSequence;
+	}
+
+	/**
+	 * Size of this log
+	 * @return the total size of the segment files (in bytes)
+	 */
+	public long getSize()
+	{
+		long size = 0;
+		for (Segment segment : segments)
+		{
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Appends a frame to this log (frames should be appended in sequence
+	 * order).
+	 * A new segment is started when the frame does not fit in the active
+	 * segment
+	 * @param frame the frame to append (which has been added to the history
+	 * and thus has a sequence number)
+	 * @throws IOException if the frame could not be written
+	 */
+	public synchronized void append(Frame frame) throws IOException
+	{
+		byte[] bytes = frame.bytes(BinaryCodec.INSTANCE);
+		long sequence = frame.getSequence();
+		Segment segment = segments.isEmpty() ? null :
+		    segments.get(segments.size() - 1);
+		if ((segment == null)
+		    || ((segment.size > 0)
+		        && (segment.size + bytes.length > segmentBytes)))
+		{
+			if (segment != null)
+			{
+				// forced by the next force rather than by this appender
+				if (durability != Durability.NONE)
+				{
+					unforced.add(segment);
+				}
+				segment.seal();
+			}
+			segment = new Segment(sequence);
+			segment.recover(true);
+			segments.add(segment);
+			remap();
+			logger.fine("MessageLog: new segment " + segment);
+		}
+		segment.append(sequence,
+		               frame.getMessage().getDate().getTime(),
+		               bytes);
+		lastSequence = sequence;
+	}
+
+	/**
+	 * Cursor over the logged frames (oldest first) appended before this call
+	 * after a sequence number. Only the segment containing the next sequence
+	 * number and the following ones are read, starting at the nearest index
+	 * entry
+	 * @param since the sequence number of the last frame already received
+	 * @return a new cursor over the logged frames following since
+	 */
+	public Iterator<Frame> cursor(long since)
+	{
+		List<Segment> snapshot;
+		Lease lease;
+		synchronized (this)
+		{
+			snapshot = new ArrayList<Segment>(segments);
+			lease = lease(snapshot);
+		}
+		int first = first(snapshot, since);
+		long position = snapshot.isEmpty() ? 0 :
+		    snapshot.get(first).floor(since + 1);
+		count(snapshot, first, snapshot.isEmpty()
+		    || (since + 1 >= snapshot.get(0).base));
+		return new Cursor(snapshot, first, position, since, null, lease);
+	}
+
+	/**
+	 * Cursor over the logged frames (oldest first) appended before this call
+	 * and dated after a date. Only the segment containing this date and the
+	 * following ones are read, starting at the nearest index entry
+	 * @param since the date of the last frame already received
+	 * @return a new cursor over the logged frames dated after since
+	 */
+	public Iterator<Frame> cursor(Date since)
+	{
+		List<Segment> snapshot;
+		Lease lease;
+		synchronized (this)
+		{
+			snapshot = new ArrayList<Segment>(segments);
+			lease = lease(snapshot);
+		}
+		int first = firstDated(snapshot, since.getTime());
+		long position = snapshot.isEmpty() ? 0 :
+		    snapshot.get(first).floorDate(since.getTime());
+		count(snapshot, first, true);
+		return new Cursor(snapshot, first, position, 0, since, lease);
+	}
+
+	/**
+	 * Region of the log containing the frames appended before this call
+	 * after a sequence number, to be sent as is to a client using an
+	 * uncompressed binary stream. Only the frames following the nearest
+	 * index entry are read (without being decoded) to find the region's
+	 * first byte.
+	 * @param since the sequence number of the last frame already received
+	 * @return a new region containing the logged frames following since
+	 * (or null if there is no such frame or if some of these frames are in
+	 * cold segments)
+	 * @throws IOException if the segments could not be read
+	 */
+	public Frame region(long since) throws IOException
+	{
+		return region(since, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Region of the log containing the frames appended before this call
+	 * starting with the first frame dated after a date, to be sent as is to
+	 * a client using an uncompressed binary stream.
+	 * @param since the date of the last frame already received
+	 * @return a new region containing the logged frames following the first
+	 * frame dated after since (or null if there is no such frame or if some
+	 * of these frames are in cold segments)
+	 * @throws IOException if the segments could not be read
+	 */
+	public Frame region(Date since) throws IOException
+	{
+		return region(0, since.getTime());
+	}
+
+	/**
+	 * Region of the log starting with the first frame following a sequence
+	 * number and dated after a date
+	 * @param since the sequence number of the last frame already received
+	 * @param date the date (in ms since epoch) of the last frame already
+	 * received
+	 * @return a new region (or null if there is no such frame or if it
+	 * starts in a cold segment)
+	 * @throws IOException if the segments could not be read
+	 */
+	private Frame region(long since, long date) throws IOException
+	{
+		List<Segment> snapshot;
+		long[] sizes;
+		long end;
+		Lease lease;
+		synchronized (this)
+		{
+			snapshot = new ArrayList<Segment>(segments);
+			sizes = new long[snapshot.size()];
+			for (int i = 0; i < sizes.length; i++)
+			{
+				sizes[i] = snapshot.get(i).size;
+			}
+			end = lastSequence;
+			lease = lease(snapshot);
+		}
+		try
+		{
+			if (snapshot.isEmpty())
+			{
+				return null;
+			}
+			int first = (date == Long.MIN_VALUE ? first(snapshot, since) :
+			    firstDated(snapshot, date));
+			Segment segment = snapshot.get(first);
+			if (segment.cold)
+			{
+				// compressed frames can't be transferred as is
+				return null;
+			}
+			long[] start = segment.locate(date == Long.MIN_VALUE ?
+			                              segment.floor(since + 1) :
+			                              segment.floorDate(date),
+			                              sizes[first],
+			                              since,
+			                              date);
+			if (start[1] > end)
+			{
+				return null;
+			}
+			count(snapshot, first, true);
+			int count = snapshot.size() - first;
+			FileChannel[] files = new FileChannel[count];
+			long[] starts = new long[count];
+			long[] ends = new long[count];
+			for (int i = 0; i < count; i++)
+			{
+				files[i] = snapshot.get(first + i).channel;
+				starts[i] = (i == 0 ? start[0] : 0);
+				ends[i] = sizes[first + i];
+			}
+			// the region only holds its own files (still held by the
+			// snapshot's lease until it is released below)
+			return new LogRegion(files,
+			                     starts,
+			                     ends,
+			                     end - start[1] + 1,
+			                     lease(files));
+		}
+		finally
+		{
+			lease.release();
+		}
+	}
+
+	/**
+	 * Counts a hit or a miss of the tiers for a cursor or a region
+	 * @param snapshot the segments
+	 * @param first index of the first segment read
+	 * @param complete indicates the requested frames have not been deleted
+	 * by the retention
+	 */
+	private void count(List<Segment> snapshot, int first, boolean complete)
+	{
+		if (snapshot.isEmpty() || !snapshot.get(first).cold)
+		{
+			if (complete)
+			{
+				warmHits.incrementAndGet();
+				return;
+			}
+			warmMisses.incrementAndGet();
+			coldMisses.incrementAndGet();
+			return;
+		}
+		warmMisses.incrementAndGet();
+		(complete ? coldHits : coldMisses).incrementAndGet();
+	}
+
+	/**
+	 * Tiers metrics: number of warm and cold segments and hits and misses
+	 * of each tier since the log has been opened.
+	 * A warm hit is a cursor or region starting in a warm segment, a warm
+	 * miss one starting before them. A cold hit is a cursor starting in a
+	 * cold segment and a cold miss one starting before the first logged
+	 * frame (deleted by the retention)
+	 * @return a description of the tiers metrics
+	 */
+	public String tierMetrics()
+	{
+		int cold = 0;
+		int mapped = 0;
+		for (Segment segment : segments)
+		{
+			if (segment.cold)
+			{
+				cold++;
+			}
+			else if (segment.mapped != null)
+			{
+				mapped++;
+			}
+		}
+		return new String("warm tier " + (segments.size() - cold)
+		    + " segments (" + mapped + " mapped) " + warmHits.get()
+		    + " hits / " + warmMisses.get() + " misses, cold tier " + cold
+		    + " segments " + coldHits.get() + " hits / " + coldMisses.get()
+		    + " misses");
+	}
+
+	/**
+	 * Index of the segment containing the frame following a sequence number
+	 * @param snapshot the segments
+	 * @param since the sequence number
+	 * @return the index of the last segment whose first sequence number is
+	 * not greater than since + 1 (0 if there is none)
+	 */
+	private static int first(List<Segment> snapshot, long since)
+	{
+		for (int i = snapshot.size() - 1; i > 0; i--)
+		{
+			if (snapshot.get(i).base <= since + 1)
+			{
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Index of the segment containing the frames following a date
+	 * @param snapshot the segments
+	 * @param date the date (in ms since epoch)
+	 * @return the index of the last segment whose first frame is not dated
+	 * after date (0 if there is none)
+	 */
+	private static int firstDated(List<Segment> snapshot, long date)
+	{
+		for (int i = snapshot.size() - 1; i > 0; i--)
+		{
+			if (snapshot.get(i).firstDate() <= date)
+			{
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Last frames of this log (used to restore the in-memory history when
+	 * the server starts)
+	 * @param count maximum number of frames
+	 * @return the last count frames of this log (oldest first)
+	 */
+	public List<Frame> tail(int count)
+	{
+		List<Frame> frames = new ArrayList<Frame>();
+		if (count > 0)
+		{
+			// not counted as a tier hit
+			List<Segment> snapshot;
+			Lease lease;
+			synchronized (this)
+			{
+				snapshot = new ArrayList<Segment>(segments);
+				lease = lease(snapshot);
+			}
+			long since = Math.max(lastSequence - count, 0);
+			int first = first(snapshot, since);
+			for (Iterator<Frame> it = new Cursor(snapshot,
+			                                     first,
+			                                     snapshot.isEmpty() ? 0 :
+			                                     snapshot.get(first).floor(since + 1),
+			                                     since,
+			                                     null,
+			                                     lease);
+			     it.hasNext();)
+			{
+				frames.add(it.next());
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * Closes all segment and index files
+	 * @throws IOException if a file could not be closed
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (syncer != null)
+		{
+			syncer.shutdown();
+			syncer = null;
+		}
+		if (retainer != null)
+		{
+			retainer.shutdownNow();
+			try
+			{
+				retainer.awaitTermination(Long.MAX_VALUE,
+				                          TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			retainer = null;
+			closeRetired(true);
+		}
+		if (durability != Durability.NONE)
+		{
+			force();
+		}
+		if (committer != null)
+		{
+			// all frames have been forced: release pending commits
+			List<PendingCommit> done;
+			synchronized (commitLock)
+			{
+				done = new ArrayList<PendingCommit>(pending);
+				pending.clear();
+			}
+			run(done);
+			committer.shutdown();
+			committer = null;
+		}
+		for (Segment segment : segments)
+		{
+			segment.close();
+		}
+	}
+
+	/**
+	 * Log string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("log " + directory + ": " + segments.size()
+		    + " segments, " + getSize() + " bytes, messages "
+		    + getFirstSequence() + " to " + lastSequence
+		    + (reclaimed.get() > 0 ? ", " + reclaimed.get()
+		        + " bytes reclaimed" : ""));
+	}
+
+	/**
+	 * Asynchronous commit waiting for its frame to be forced
+	 */
+	private static class PendingCommit
+	{
+		/**
+		 * Sequence number of the frame
+		 */
+		private final long sequence;
+
+		/**
+		 * Time (in ns) of the commit
+		 */
+		private final long start;
+
+		/**
+		 * Callback to run once the frame is forced
+		 */
+		private final Runnable callback;
+
+		/**
+		 * Constructor
+		 * @param sequence sequence number of the frame
+		 * @param callback callback to run once the frame is forced
+		 */
+		public PendingCommit(long sequence, Runnable callback)
+		{
+			this.sequence = sequence;
+			start = System.nanoTime();
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Segment of the log: a segment file and its sparse index
+	 */
+	private class Segment
+	{
+		/**
+		 * Sequence number of the first frame of this segment
+		 */
+		private final long base;
+
+		/**
+		 * Suffix added to the segment and index files names (while
+		 * compacting)
+		 */
+		private final String suffix;
+
+		/**
+		 * Segment file channel
+		 */
+		private FileChannel channel;
+
+		/**
+		 * Index file channel (null once the segment is sealed)
+		 */
+		private FileChannel indexChannel;
+
+		/**
+		 * Size of this segment's valid content (in bytes)
+		 */
+		private volatile long size;
+
+		/**
+		 * Sequence number of the last frame of this segment
+		 */
+		private volatile long lastSequence;
+
+		/**
+		 * Position of the next frame to index
+		 */
+		private long nextIndex;
+
+		/**
+		 * Sparse index entries: sequence numbers, dates and positions of
+		 * indexed frames (guarded by this segment)
+		 */
+		private long[] sequences, dates, positions;
+
+		/**
+		 * Number of index entries
+		 */
+		private int entries;
+
+		/**
+		 * Indicates this segment's expired notices have been compacted away
+		 * (all its notices had expired)
+		 */
+		private boolean compacted;
+
+		/**
+		 * Indicates this segment belongs to the cold tier: its file contains
+		 * compressed blocks of frames and its index has an entry per block
+		 */
+		private final boolean cold;
+
+		/**
+		 * Read only mapping of this segment's file while it is in the warm
+		 * tier (null otherwise)
+		 */
+		private volatile MappedByteBuffer mapped;
+
+		/**
+		 * Constructor
+		 * @param base sequence number of the first frame of this segment
+		 */
+		private Segment(long base)
+		{
+			this(base, "", false);
+		}
+
+		/**
+		 * Constructor
+		 * @param base sequence number of the first frame of this segment
+		 * @param suffix suffix added to the segment and index files names
+		 * @param cold indicates the segment belongs to the cold tier
+		 */
+		private Segment(long base, String suffix, boolean cold)
+		{
+			this.base = base;
+			this.suffix = suffix;
+			this.cold = cold;
+			compacted = cold;
+			mapped = null;
+			size = 0;
+			lastSequence = base - 1;
+			nextIndex = 0;
+			sequences = new long[16];
+			dates = new long[16];
+			positions = new long[16];
+			entries = 0;
+		}
+
+		/**
+		 * Segment file of this segment
+		 * @return the segment file
+		 */
+		private File file()
+		{
+			return file(cold ? COLDSUFFIX : SEGMENTSUFFIX);
+		}
+
+		/**
+		 * Index file of this segment
+		 * @return the index file
+		 */
+		private File indexFile()
+		{
+			return file(cold ? COLDINDEXSUFFIX : INDEXSUFFIX);
+		}
+
+		/**
+		 * File of this segment with an extension
+		 * @param extension the file's extension
+		 * @return the file named after this segment's first sequence number
+		 */
+		private File file(String extension)
+		{
+			return new File(directory, String.format("%020d", base)
+			    + extension + suffix);
+		}
+
+		/**
+		 * Maps this sealed segment's file in memory (when it enters the warm
+		 * tier) or releases its mapping
+		 * @param map indicates the segment should be mapped
+		 */
+		private void map(boolean map)
+		{
+			if (!map || cold || (size == 0))
+			{
+				mapped = null;
+			}
+			else if (mapped == null)
+			{
+				try
+				{
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				}
+				catch (IOException e)
+				{
+					logger.warning("MessageLog: unable to map " + this + ": "
+					    + e.getLocalizedMessage());
+				}
+			}
+		}
+
+		/**
+		 * Opens this segment's files and recovers its index: index entries
+		 * are read from the index file and, on the active segment, frames
+		 * following the last index entry are scanned to find the end of the
+		 * valid content (a partially written frame is truncated).
+		 * @param active indicates this segment is the active segment
+		 * @throws IOException if the files could not be opened or read
+		 */
+		private void recover(boolean active) throws IOException
+		{
+			channel = FileChannel.open(file().toPath(),
+			                           StandardOpenOption.CREATE,
+			                           StandardOpenOption.READ,
+			                           StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(indexFile().toPath(),
+			                                StandardOpenOption.CREATE,
+			                                StandardOpenOption.READ,
+			                                StandardOpenOption.WRITE);
+			long fileSize = channel.size();
+			ByteBuffer index = ByteBuffer.allocate(
+			    (int) (indexChannel.size() / INDEXENTRY) * INDEXENTRY);
+			while (index.hasRemaining()
+			    && (indexChannel.read(index, index.position()) > 0))
+			{
+				// read the whole index file
+			}
+			index.flip();
+			while (index.remaining() >= INDEXENTRY)
+			{
+				long sequence = index.getLong();
+				long date = index.getLong();
+				long position = index.getInt() & 0xFFFFFFFFL;
+				if (position >= fileSize)
+				{
+					break;
+				}
+				addEntry(sequence, date, position);
+			}
+			if (!active && (entries > 0))
+			{
+				size = fileSize;
+				seal();
+				return;
+			}
+
+			// Scan frames following the last index entry
+			long position = 0;
+			if (entries > 0)
+			{
+				entries--;
+				position = positions[entries];
+			}
+			indexChannel.truncate((long) entries * INDEXENTRY);
+			size = position;
+			nextIndex = position;
+			Cursor scan = new Cursor(Arrays.asList(this),
+			                         0,
+			                         position,
+			                         0,
+			                         null,
+			                         null);
+			scan.bounded = false;
+			while (scan.hasNext())
+			{
+				Frame frame = scan.next();
+				append(frame.getSequence(),
+				       frame.getMessage().getDate().getTime(),
+				       frame.bytes(BinaryCodec.INSTANCE),
+				       false);
+			}
+			if (size < fileSize)
+			{
+				logger.warning("MessageLog: truncating " + file() + " from "
+				    + fileSize + " to " + size + " bytes");
+				channel.truncate(size);
+			}
+			if (!active)
+			{
+				seal();
+			}
+		}
+
+		/**
+		 * Appends a frame to this segment
+		 * @param sequence the frame's sequence number
+		 * @param date the frame's date (in ms since epoch)
+		 * @param bytes the frame's binary bytes
+		 * @throws IOException if the frame could not be written
+		 */
+		private void append(long sequence, long date, byte[] bytes)
+		    throws IOException
+		{
+			append(sequence, date, bytes, true);
+		}
+
+		/**
+		 * Appends a compressed block of frames to this cold segment (each
+		 * block is indexed)
+		 * @param sequence the sequence number of the block's first frame
+		 * @param date the date of the block's first frame (in ms since
+		 * epoch)
+		 * @param block the block's header and compressed frames
+		 * @throws IOException if the block could not be written
+		 */
+		private void appendBlock(long sequence, long date, byte[] block)
+		    throws IOException
+		{
+			nextIndex = size;
+			append(sequence, date, block, true);
+		}
+
+		/**
+		 * Appends a frame to this segment
+		 * @param sequence the frame's sequence number
+		 * @param date the frame's date (in ms since epoch)
+		 * @param bytes the frame's binary bytes
+		 * @param write indicates the frame should be written (false when
+		 * the frame is already in the segment file during recovery)
+		 * @throws IOException if the frame could not be written
+		 */
+		private void append(long sequence, long date, byte[] bytes,
+		                    boolean write)
+		    throws IOException
+		{
+			long position = size;
+			if (write)
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining())
+				{
+					channel.write(buffer, position + buffer.position());
+				}
+			}
+			if (position >= nextIndex)
+			{
+				ByteBuffer entry = ByteBuffer.allocate(INDEXENTRY);
+				entry.putLong(sequence).putLong(date).putInt((int) position);
+				entry.flip();
+				long indexPosition = (long) entries * INDEXENTRY;
+				while (entry.hasRemaining())
+				{
+					indexChannel.write(entry, indexPosition + entry.position());
+				}
+				synchronized (this)
+				{
+					addEntry(sequence, date, position);
+				}
+				nextIndex = position + INDEXINTERVAL;
+			}
+			size = position + bytes.length;
+			lastSequence = sequence;
+		}
+
+		/**
+		 * Adds an index entry in memory
+		 * @param sequence the indexed frame's sequence number
+		 * @param date the indexed frame's date
+		 * @param position the indexed frame's position
+		 */
+		private void addEntry(long sequence, long date, long position)
+		{
+			if (entries == sequences.length)
+			{
+				sequences = Arrays.copyOf(sequences, entries * 2);
+				dates = Arrays.copyOf(dates, entries * 2);
+				positions = Arrays.copyOf(positions, entries * 2);
+			}
+			sequences[entries] = sequence;
+			dates[entries] = date;
+			positions[entries] = position;
+			entries++;
+		}
+
+		/**
+		 * Position of the nearest indexed frame preceding a sequence number
+		 * @param sequence the sequence number
+		 * @return the position of the last indexed frame whose sequence
+		 * number is not greater than sequence (0 if there is none)
+		 */
+		private synchronized long floor(long sequence)
+		{
+			int i = Arrays.binarySearch(sequences, 0, entries, sequence);
+			if (i < 0)
+			{
+				i = -i - 2;
+			}
+			return i >= 0 ? positions[i] : 0;
+		}
+
+		/**
+		 * Position of the nearest indexed frame preceding a date
+		 * @param date the date (in ms since epoch)
+		 * @return the position of the last indexed frame dated before date
+		 * (0 if there is none)
+		 */
+		private synchronized long floorDate(long date)
+		{
+			for (int i = entries - 1; i >= 0; i--)
+			{
+				if (dates[i] < date)
+				{
+					return positions[i];
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Finds the first frame following a sequence number and dated after
+		 * a date by reading frames headers from a position
+		 * @param from the position of the first frame to read
+		 * @param limit the end of the frames to read
+		 * @param since the sequence number frames should follow
+		 * @param date the date (in ms since epoch) frames should be dated
+		 * after
+		 * @return the position and sequence number of the first frame found,
+		 * or limit and the sequence number following this segment's last
+		 * frame if there is none
+		 * @throws IOException if the segment could not be read
+		 */
+		private long[] locate(long from, long limit, long since, long date)
+		    throws IOException
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADERBYTES);
+			long position = from;
+			while (position < limit)
+			{
+				header.clear();
+				int read = channel.read(header, position);
+				int length = read > 0 ?
+				    BinaryCodec.frameLength(header.array(), 0, read) : -1;
+				if (length < 0)
+				{
+					break;
+				}
+				long[] fields = BinaryCodec.frameHeader(header.array(), 0, read);
+				if ((fields[1] > since) && (fields[0] > date))
+				{
+					return new long[] {position, fields[1]};
+				}
+				position += length;
+			}
+			return new long[] {limit, lastSequence + 1};
+		}
+
+		/**
+		 * Date of the first frame of this segment
+		 * @return the date of the first frame of this segment (in ms since
+		 * epoch) or {@link Long#MAX_VALUE} if this segment is empty
+		 */
+		private synchronized long firstDate()
+		{
+			return entries > 0 ? dates[0] : Long.MAX_VALUE;
+		}
+
+		/**
+		 * Seals this segment when it is no longer the active segment: its
+		 * index file is closed
+		 * @throws IOException if the index file could not be closed
+		 */
+		private void seal() throws IOException
+		{
+			if (indexChannel != null)
+			{
+				indexChannel.close();
+				indexChannel = null;
+			}
+		}
+
+		/**
+		 * Deletes this segment's files (its segment file is closed once no
+		 * {@link Lease} holds it)
+		 */
+		private void delete()
+		{
+			try
+			{
+				seal();
+			}
+			catch (IOException e)
+			{
+				logger.warning("MessageLog: unable to close index of " + this);
+			}
+			mapped = null;
+			retire(channel);
+			if (!file().delete() || !indexFile().delete())
+			{
+				logger.warning("MessageLog: unable to delete " + this);
+			}
+		}
+
+		/**
+		 * Closes this segment's files
+		 * @throws IOException if a file could not be closed
+		 */
+		private void close() throws IOException
+		{
+			seal();
+			channel.close();
+		}
+
+		/**
+		 * Segment string representation
+		 */
+		@Override
+		public String toString()
+		{
+			return new String(file().getName() + " (" + size + " bytes"
+			    + (mapped != null ? ", mapped" : "") + ")");
+		}
+	}
+
+	/**
+	 * Lease of segment files by a cursor or a {@link LogRegion}: retired
+	 * files are only closed once all the leases holding them have been
+	 * released (or are no longer referenced)
+	 */
+	final class Lease
+	{
+		/**
+		 * Leased segment files
+		 */
+		private final FileChannel[] files;
+
+		/**
+		 * Indicates this lease has been released
+		 */
+		private boolean released;
+
+		/**
+		 * Constructor
+		 * @param files leased segment files
+		 */
+		private Lease(FileChannel[] files)
+		{
+			this.files = files;
+			released = false;
+		}
+
+		/**
+		 * Indicates this lease holds a file
+		 * @param channel the file
+		 * @return true if this lease has not been released and holds
+		 * channel
+		 */
+		private boolean holds(FileChannel channel)
+		{
+			for (int i = 0; !released && i < files.length; i++)
+			{
+				if (files[i] == channel)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Releases this lease (once): retired files which are no longer
+		 * held are closed
+		 */
+		void release()
+		{
+			synchronized (retired)
+			{
+				if (released)
+				{
+					return;
+				}
+				released = true;
+				leases.remove(this);
+			}
+			closeRetired(false);
+		}
+	}
+
+	/**
+	 * Cursor over logged frames: reads segment files sequentially through a
+	 * buffer and decodes frames up to the last sequence number appended when
+	 * the cursor was created
+	 */
+	private class Cursor implements Iterator<Frame>
+	{
+		/**
+		 * Segments to read
+		 */
+		private final List<Segment> segments;
+
+		/**
+		 * Index of the segment being read
+		 */
+		private int segment;
+
+		/**
+		 * Sequence number of the last frame already received (frames with
+		 * smaller or equal sequence numbers are skipped)
+		 */
+		private final long since;
+
+		/**
+		 * Date frames should be newer than (or null)
+		 */
+		private final Date sinceDate;
+
+		/**
+		 * Sequence number of the last frame to return
+		 */
+		private final long end;
+
+		/**
+		 * Indicates frames are read up to {@link #end} and the segments'
+		 * sizes (false while recovering a segment: frames are read up to the
+		 * end of the file or the first invalid frame)
+		 */
+		private boolean bounded;
+
+		/**
+		 * Read buffer
+		 */
+		private byte[] buffer;
+
+		/**
+		 * Position in the segment file of the first byte of the buffer
+		 */
+		private long bufferPosition;
+
+		/**
+		 * Offset of the next frame in the buffer
+		 */
+		private int offset;
+
+		/**
+		 * End of the valid bytes in the buffer
+		 */
+		private int limit;
+
+		/**
+		 * Next frame to return (null if not read yet)
+		 */
+		private Frame nextFrame;
+
+		/**
+		 * Lease of the segments' files, released when the cursor is
+		 * exhausted (or null if the segments can't be retired while read)
+		 */
+		private final Lease lease;
+
+		/**
+		 * Constructor
+		 * @param segments segments to read
+		 * @param segment index of the first segment to read
+		 * @param position position of the first frame to read in the first
+		 * segment
+		 * @param since sequence number of the last frame already received
+		 * @param sinceDate date frames should be newer than (or null)
+		 * @param lease lease of the segments' files (or null)
+		 */
+		private Cursor(List<Segment> segments,
+		               int segment,
+		               long position,
+		               long since,
+		               Date sinceDate,
+		               Lease lease)
+		{
+			this.segments = segments;
+			this.segment = segment;
+			this.since = since;
+			this.sinceDate = sinceDate;
+			end = lastSequence;
+			bounded = true;
+			buffer = new byte[READBUFFER];
+			bufferPosition = position;
+			offset = 0;
+			limit = 0;
+			nextFrame = null;
+			this.lease = lease;
+		}
+
+		/**
+		 * Reads the next frame to return
+		 * @return true if there is another frame
+		 */
+		@Override
+		public boolean hasNext()
+		{
+			try
+			{
+				while ((nextFrame == null) && (segment < segments.size()))
+				{
+					Frame frame = read(segments.get(segment));
+					if (frame == null)
+					{
+						segment++;
+						bufferPosition = 0;
+						offset = 0;
+						limit = 0;
+						continue;
+					}
+					long sequence = frame.getSequence();
+					if (bounded && (sequence > end))
+					{
+						segment = segments.size();
+					}
+					else if ((sequence > since)
+					    && ((sinceDate == null)
+					        || frame.getMessage().getDate().after(sinceDate)))
+					{
+						nextFrame = frame;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				if (bounded)
+				{
+					logger.warning("MessageLog: unable to read "
+					    + segments.get(segment) + ": "
+					    + e.getLocalizedMessage());
+				}
+				segment = segments.size();
+			}
+			if ((nextFrame == null) && (lease != null))
+			{
+				lease.release();
+			}
+			return nextFrame != null;
+		}
+
+		/**
+		 * Next frame
+		 * @return the next frame
+		 * @throws NoSuchElementException if there is no more frames
+		 */
+		@Override
+		public Frame next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			Frame frame = nextFrame;
+			nextFrame = null;
+			return frame;
+		}
+
+		/**
+		 * Reads the next frame of a segment
+		 * @param current the segment to read
+		 * @return the next frame or null at the end of the segment
+		 * @throws IOException if the segment could not be read or contains
+		 * an invalid frame
+		 */
+		private Frame read(Segment current) throws IOException
+		{
+			long available = bounded ? current.size : current.channel.size();
+			int length = BinaryCodec.frameLength(buffer, offset, limit);
+			if ((length < 0) || (length > limit - offset))
+			{
+				fill(current, available);
+				length = BinaryCodec.frameLength(buffer, offset, limit);
+				if (length > buffer.length)
+				{
+					buffer = Arrays.copyOf(buffer, length);
+					fill(current, available);
+				}
+				if ((length < 0) || (length > limit - offset))
+				{
+					return null;
+				}
+			}
+			byte[] bytes = Arrays.copyOfRange(buffer, offset, offset + length);
+			offset += length;
+			Message message = BinaryCodec.INSTANCE.decode(bytes);
+			if (message.getSequence() < current.base)
+			{
+				throw new StreamCorruptedException("invalid sequence "
+				    + message.getSequence());
+			}
+			return new Frame(message, bytes);
+		}
+
+		/**
+		 * Moves the remaining bytes to the beginning of the buffer and fills
+		 * the rest of the buffer from the segment file
+		 * @param current the segment to read
+		 * @param available number of readable bytes of the segment
+		 * @throws IOException if the segment could not be read
+		 */
+		private void fill(Segment current, long available) throws IOException
+		{
+			if (current.cold)
+			{
+				inflate(current, available);
+				return;
+			}
+			System.arraycopy(buffer, offset, buffer, 0, limit - offset);
+			bufferPosition += offset;
+			limit -= offset;
+			offset = 0;
+			int toRead = (int) Math.min(buffer.length - limit,
+			    available - (bufferPosition + limit));
+			MappedByteBuffer mapped = current.mapped;
+			if ((toRead > 0) && (mapped != null)
+			    && (bufferPosition + limit + toRead <= mapped.capacity()))
+			{
+				ByteBuffer source = mapped.duplicate();
+				source.position((int) (bufferPosition + limit));
+				source.get(buffer, limit, toRead);
+				limit += toRead;
+			}
+			else if (toRead > 0)
+			{
+				ByteBuffer target = ByteBuffer.wrap(buffer, limit, toRead);
+				while (target.hasRemaining())
+				{
+					int read = current.channel.read(target,
+					    bufferPosition + target.position());
+					if (read < 0)
+					{
+						break;
+					}
+				}
+				limit = target.position();
+			}
+		}
+
+		/**
+		 * Decompresses the next block of a cold segment in the buffer once
+		 * the frames of the current block have been read (frames never
+		 * straddle blocks)
+		 * @param current the cold segment to read
+		 * @param available size of the cold segment file
+		 * @throws IOException if the segment could not be read or contains
+		 * an invalid block
+		 */
+		private void inflate(Segment current, long available)
+		    throws IOException
+		{
+			if ((offset < limit) || (bufferPosition >= available))
+			{
+				return;
+			}
+			ByteBuffer header = ByteBuffer.allocate(BLOCKHEADER);
+			readFully(current, header, bufferPosition);
+			int rawLength = header.getInt(0);
+			int compressedLength = header.getInt(4);
+			if ((rawLength < 0) || (compressedLength < 0)
+			    || (bufferPosition + BLOCKHEADER + compressedLength > available))
+			{
+				throw new StreamCorruptedException("invalid block at "
+				    + bufferPosition);
+			}
+			ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+			readFully(current, compressed, bufferPosition + BLOCKHEADER);
+			if (buffer.length < rawLength)
+			{
+				buffer = new byte[rawLength];
+			}
+			Inflater inflater = new Inflater();
+			try
+			{
+				inflater.setInput(compressed.array());
+				int inflated = 0;
+				while ((inflated < rawLength) && !inflater.finished())
+				{
+					int count = inflater.inflate(buffer,
+					                             inflated,
+					                             rawLength - inflated);
+					if ((count == 0) && inflater.needsInput())
+					{
+						break;
+					}
+					inflated += count;
+				}
+				if (inflated != rawLength)
+				{
+					throw new StreamCorruptedException("truncated block at "
+					    + bufferPosition);
+				}
+			}
+			catch (DataFormatException e)
+			{
+				throw new StreamCorruptedException("invalid block at "
+				    + bufferPosition + ": " + e.getLocalizedMessage());
+			}
+			finally
+			{
+				inflater.end();
+			}
+			bufferPosition += BLOCKHEADER + compressedLength;
+			offset = 0;
+			limit = rawLength;
+		}
+
+		/**
+		 * Reads bytes of a segment file until a buffer is full
+		 * @param current the segment to read
+		 * @param target the buffer to fill
+		 * @param position position of the first byte to read
+		 * @throws IOException if the segment could not be read or ends
+		 * before the buffer is full
+		 */
+		private void readFully(Segment current, ByteBuffer target,
+		                       long position)
+		    throws IOException
+		{
+			while (target.hasRemaining())
+			{
+				if (current.channel.read(target,
+				    position + target.position()) < 0)
+				{
+					throw new EOFException("truncated cold segment");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import chat.Failure;
+
+/**
+ * Non blocking chat server.
+ * Instead of running one {@link ClientHandler} thread per client, this server
+ * runs a small fixed set of {@link EventLoop}s which multiplex all client
+ * connections with selectors: each loop performs the name handshake, reads
+ * lines and writes messages for all its clients. Clients commands are still
+ * processed by {@link ClientHandler#processLine(String)} so the chat behavior
+ * is the same as {@link ChatServer}'s.
+ * Each loop is a shard owning the connections dispatched to it, and
+ * accepting connections on the server's listeners is spread over the loops.
+ * @author davidroussel
+ */
+public class NioChatServer extends ChatServer
+{
+	/**
+	 * Default number of event loops : one per available processor
+	 */
+	public final static int DEFAULTLOOPS =
+	    Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Number of event loops
+	 */
+	private final int nbLoops;
+
+	/**
+	 * The event loops, i.e. the shards of this server (accepting new
+	 * connections is spread over the loops: each server socket is accepted
+	 * by {@link #getAcceptors()} loops)
+	 */
+	private volatile EventLoop[] loops;
+
+	/**
+	 * Counter used to dispatch new connections to loops in a round robin
+	 * fashion
+	 */
+	private final AtomicInteger dispatchCounter;
+
+	/**
+	 * Non blocking chat server constructor.
+	 * @param port TCP port used to listen to clients messages
+	 * @param timeout handshake timeout (in ms) of newly connected clients
+	 * @param quitOnLastClient quits the server when last client logs out
+	 * @param history number of messages to keep on server
+	 * @param nbLoops number of event loops to run
+	 * @param parentLogger parent logger
+	 * @throws IOException if the server socket could not be created properly
+	 */
+	public NioChatServer(int port,
+	                     int timeout,
+	                     boolean quitOnLastClient,
+	                     int history,
+	                     int nbLoops,
+	                     Logger parentLogger)
+	    throws IOException
+	{
+		this(Collections.singletonList(new Listener(port)),
+		     timeout,
+		     quitOnLastClient,
+		     history,
+		     nbLoops,
+		     parentLogger);
+	}
+
+	/**
+	 * Non blocking chat server constructor listening on several listeners.
+	 * @param listeners listeners (address, port and backlog) used to listen
+	 * to clients connections
+	 * @param timeout handshake timeout (in ms) of newly connected clients
+	 * @param quitOnLastClient quits the server when last client logs out
+	 * @param history number of messages to keep on server
+	 * @param nbLoops number of event loops to run
+	 * @param parentLogger parent logger
+	 * @throws IOException if one of the server sockets could not be created
+	 * properly
+	 */
+	public NioChatServer(List<Listener> listeners,
+	                     int timeout,
+	                     boolean quitOnLastClient,
+	                     int history,
+	                     int nbLoops,
+	                     Logger parentLogger)
+	    throws IOException
+	{
+		super(listeners, timeout, quitOnLastClient, history, true, parentLogger);
+		this.nbLoops = (nbLoops > 0 ? nbLoops : 1);
+		loops = null;
+		dispatchCounter = new AtomicInteger();
+		logger.info("NioChatServer::NioChatServer(loops = " + this.nbLoops
+		    + ")");
+	}
+
+	/**
+	 * listening state setter which also wakes up all event loops so they can
+	 * stop accepting and terminate when they have no more clients
+	 * @param value new value of the listenig state
+	 */
+	@Override
+	public synchronized void setListening(boolean value)
+	{
+		super.setListening(value);
+		EventLoop[] currentLoops = loops;
+		if (!value && (currentLoops != null))
+		{
+			for (EventLoop loop : currentLoops)
+			{
+				loop.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * Next event loop to hand a new connection to
+	 * @return the next event loop in a round robin fashion
+	 */
+	EventLoop nextLoop()
+	{
+		EventLoop[] currentLoops = loops;
+		int next = dispatchCounter.getAndIncrement() & Integer.MAX_VALUE;
+		return currentLoops[next % currentLoops.length];
+	}
+
+	/**
+	 * Non blocking chat server run loop: launch all event loops (the first one
+	 * accepting new connections on the server channel) and wait for them to
+	 * terminate.
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		setListening(true);
+
+		EventLoop[] newLoops = new EventLoop[nbLoops];
+		try
+		{
+			for (int i = 0; i < nbLoops; i++)
+			{
+				newLoops[i] = new EventLoop(this, i, logger);
+			}
+			/*
+			 * Each server socket is accepted by several consecutive loops
+			 * (so that several listeners are accepted by different loops)
+			 */
+			int next = 0;
+			for (ServerSocket serverSocket : serverSockets)
+			{
+				ServerSocketChannel serverChannel = serverSocket.getChannel();
+				serverChannel.configureBlocking(false);
+				for (int j = 0; j < Math.min(getAcceptors(), nbLoops); j++)
+				{
+					newLoops[next++ % nbLoops].listen(serverChannel);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			logger.severe(Failure.SERVER_CONNECTION.toString()
+			    + ": " + e.getLocalizedMessage());
+			System.exit(Failure.SERVER_CONNECTION.toInteger());
+		}
+		loops = newLoops;
+		startMetrics();
+		startFederation();
+		startReplication();
+
+		Thread[] loopThreads = new Thread[nbLoops];
+		for (int i = 0; i < nbLoops; i++)
+		{
+			loopThreads[i] = new Thread(newLoops[i], "EventLoop-" + i);
+			loopThreads[i].start();
+		}
+
+		// Wait for all event loops to terminate
+		for (Thread t : loopThreads)
+		{
+			try
+			{
+				t.join();
+			}
+			catch (InterruptedException e)
+			{
+				logger.severe("NioChatServer::run: event loops join interrupted");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+
+		logger.info("NioChatServer::run: all event loops terminated");
+		stopMetrics();
+		closeFederation();
+		closeReplication();
+
+		clients.clear();
+
+		logger.info("NioChatServer::run: Closing server sockets ... ");
+		closeServerSockets();
+		closeLog();
+	}
+
+	/**
+	 * Load of each event loop (for metrics)
+	 * @return a description of each loop's current and accepted connections
+	 */
+	@Override
+	protected String shardsLoad()
+	{
+		EventLoop[] currentLoops = loops;
+		return (currentLoops != null ? Arrays.toString(currentLoops) : "[]");
+	}
+}
@@ -0,0 +1,357 @@
+package chat.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of elements waiting to be written to a client.
+ * Senders only enqueue elements (see {@link #offer(Object, boolean)}) and a
+ * single writer (a writer thread or an event loop) drains the queue and
+ * performs the actual socket I/O, so a slow client never stalls the senders.
+ * When the queue is full the {@link OverflowPolicy} decides whether the
+ * oldest element is dropped, the sender waits or the client should be
+ * disconnected.
+ * @param <E> the type of queued elements
+ * @author davidroussel
+ */
+public class OutboundQueue<E>
+{
+	/**
+	 * Default maximum number of queued elements
+	 */
+	public final static int DEFAULTCAPACITY = 1024;
+
+	/**
+	 * Default time (in ms) a sender waits for room in the queue with the
+	 * {@link OverflowPolicy#BLOCK} policy
+	 */
+	public final static long DEFAULTTIMEOUT = 1000;
+
+	/**
+	 * The queued elements
+	 */
+	private final ArrayDeque<E> elements;
+
+	/**
+	 * Maximum number of queued elements
+	 */
+	private final int capacity;
+
+	/**
+	 * What to do when the queue is full
+	 */
+	private final OverflowPolicy policy;
+
+	/**
+	 * Time (in ms) a sender waits for room with {@link OverflowPolicy#BLOCK}
+	 */
+	private final long timeout;
+
+	/**
+	 * Lock protecting {@link #elements}
+	 */
+	private final ReentrantLock lock;
+
+	/**
+	 * Condition signaled when elements are added or the queue is closed
+	 */
+	private final Condition notEmpty;
+
+	/**
+	 * Condition signaled when elements are removed or the queue is closed
+	 */
+	private final Condition notFull;
+
+	/**
+	 * Indicates no more elements will be accepted
+	 */
+	private boolean closed;
+
+	/**
+	 * Number of elements dropped because of overflows
+	 */
+	private final AtomicLong dropped;
+
+	/**
+	 * Constructor
+	 * @param capacity maximum number of queued elements
+	 * @param policy what to do when the queue is full
+	 * @param timeout time (in ms) a sender waits for room with
+	 * {@link OverflowPolicy#BLOCK}
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy, long timeout)
+	{
+		this.capacity = (capacity > 0 ? capacity : DEFAULTCAPACITY);
+		this.policy = (policy != null ? policy : OverflowPolicy.DROP_OLDEST);
+		this.timeout = timeout;
+		elements = new ArrayDeque<E>(Math.min(this.capacity, 64));
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+		closed = false;
+		dropped = new AtomicLong(0);
+	}
+
+	/**
+	 * Constructor with default capacity, policy and timeout
+	 */
+	public OutboundQueue()
+	{
+		this(DEFAULTCAPACITY, OverflowPolicy.DROP_OLDEST, DEFAULTTIMEOUT);
+	}
+
+	/**
+	 * Enqueues an element according to the overflow policy
+	 * @param element the element to enqueue
+	 * @param mayBlock indicates if the caller is allowed to wait for room
+	 * with the {@link OverflowPolicy#BLOCK} policy
+	 * @return true if the element has been queued (eventually dropping the
+	 * oldest one), false if the client should be disconnected or the queue
+	 * is closed
+	 */
+	public boolean offer(E element, boolean mayBlock)
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				return false;
+			}
+
+			if (elements.size() >= capacity)
+			{
+				switch (policy)
+				{
+					case DROP_OLDEST:
+						elements.poll();
+						dropped.incrementAndGet();
+						break;
+					case BLOCK:
+						if (mayBlock && awaitRoom())
+						{
+							break;
+						}
+						dropped.incrementAndGet();
+						return false;
+					case DISCONNECT:
+					default:
+						dropped.incrementAndGet();
+						return false;
+				}
+			}
+
+			elements.add(element);
+			notEmpty.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits (with {@link #lock} held) until there is room in the queue or
+	 * the timeout is up
+	 * @return true if there is room in the (non closed) queue
+	 */
+	private boolean awaitRoom()
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		try
+		{
+			while ((elements.size() >= capacity) && !closed)
+			{
+				if (nanos <= 0)
+				{
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !closed;
+	}
+
+	/**
+	 * Waits until at least one element is available (or the queue is closed)
+	 * then moves up to max elements to the batch
+	 * @param batch the collection to fill with queued elements
+	 * @param max maximum number of elements to move
+	 * @return the number of elements moved, 0 meaning the queue is closed
+	 * and empty
+	 * @throws InterruptedException if the writer is interrupted while waiting
+	 */
+	public int takeBatch(Collection<? super E> batch, int max)
+	    throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (elements.isEmpty() && !closed)
+			{
+				notEmpty.await();
+			}
+			return drain(batch, max);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits at most timeout ns until at least one element is available (or
+	 * the queue is closed) then moves up to max elements to the batch
+	 * @param batch the collection to fill with queued elements
+	 * @param max maximum number of elements to move
+	 * @param timeout maximum time to wait (in ns)
+	 * @return the number of elements moved, 0 meaning the timeout is up or
+	 * the queue is closed and empty
+	 * @throws InterruptedException if the writer is interrupted while waiting
+	 */
+	public int takeBatch(Collection<? super E> batch, int max, long timeout)
+	    throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			long nanos = timeout;
+			while (elements.isEmpty() && !closed)
+			{
+				if (nanos <= 0)
+				{
+					return 0;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return drain(batch, max);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to max elements to the batch without waiting
+	 * @param batch the collection to fill with queued elements
+	 * @param max maximum number of elements to move
+	 * @return the number of elements moved
+	 */
+	public int pollBatch(Collection<? super E> batch, int max)
+	{
+		lock.lock();
+		try
+		{
+			return drain(batch, max);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to max elements to the batch (with {@link #lock} held)
+	 * @param batch the collection to fill with queued elements
+	 * @param max maximum number of elements to move
+	 * @return the number of elements moved
+	 */
+	private int drain(Collection<? super E> batch, int max)
+	{
+		int count = 0;
+		while ((count < max) && !elements.isEmpty())
+		{
+			batch.add(elements.poll());
+			count++;
+		}
+		if (count > 0)
+		{
+			notFull.signalAll();
+		}
+		return count;
+	}
+
+	/**
+	 * Closes this queue: no more elements are accepted but already queued
+	 * elements can still be drained.
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes this queue and discards all queued elements
+	 */
+	public void clear()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			elements.clear();
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Current number of queued elements
+	 * @return the number of queued elements
+	 */
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			return elements.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Overflow policy accessor
+	 * @return the overflow policy of this queue
+	 */
+	public OverflowPolicy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Dropped elements counter accessor
+	 * @return the number of elements dropped because of overflows
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+}
@@ -0,0 +1,67 @@
+package chat.server;
+
+/**
+ * Enumeration of what happens when a client's {@link OutboundQueue} is full
+ * because the client does not read its messages fast enough
+ * @author davidroussel
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * The oldest queued message is dropped to make room for the new one
+	 */
+	DROP_OLDEST,
+	/**
+	 * The slow client is disconnected
+	 */
+	DISCONNECT,
+	/**
+	 * The sender waits (up to a timeout) for some room in the queue, then
+	 * the slow client is disconnected.
+	 * Only a client handler running in its own thread and holding no shared
+	 * lock waits: rooms, federation links and event loops never wait so this
+	 * policy behaves as {@link #DISCONNECT} for them (and in the
+	 * {@link NioChatServer})
+	 */
+	BLOCK;
+
+	/**
+	 * Overflow policy string representation
+	 */
+	@Override
+	public String toString()
+	{
+		switch (this)
+		{
+			case DROP_OLDEST:
+				return new String("Drop oldest");
+			case DISCONNECT:
+				return new String("Disconnect");
+			case BLOCK:
+				return new String("Block");
+		}
+		throw new AssertionError("OverflowPolicy: unknown policy: " + this);
+	}
+
+	/**
+	 * Factory method of an {@link OverflowPolicy} from its name
+	 * @param value the name of the policy ("drop", "disconnect" or "block")
+	 * @return the corresponding policy, or {@link #DROP_OLDEST} if the name
+	 * is unknown
+	 */
+	public static OverflowPolicy fromString(String value)
+	{
+		if (value != null)
+		{
+			if (value.equalsIgnoreCase("disconnect"))
+			{
+				return DISCONNECT;
+			}
+			if (value.equalsIgnoreCase("block"))
+			{
+				return BLOCK;
+			}
+		}
+		return DROP_OLDEST;
+	}
+}
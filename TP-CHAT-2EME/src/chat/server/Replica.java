@@ -0,0 +1,290 @@
+package chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.logging.Logger;
+
+import chat.codec.BinaryCodec;
+import logger.LoggerFactory;
+
+/**
+ * Hot standby of a primary server (see {@link Replication}): the standby
+ * server does not listen to clients (see {@link ChatServer#listen(java.util.List)})
+ * while its replica receives the primary's history.
+ * The replica connects to the primary's replication listener, sends the
+ * sequence number of the last message of the standby's history and then
+ * applies the messages it receives in sequence order to the standby's
+ * history (and log) with the primary's sequence numbers. Applied messages
+ * are acknowledged asynchronously by the replica's own thread every
+ * {@link #ACKPERIOD} ms.
+ * When the connection is lost the replica reconnects and resumes from its
+ * last message. If nothing has been received from the primary (not even a
+ * heartbeat) during the failover timeout, the primary is considered dead:
+ * {@link #run()} returns and the standby server can serve its clients
+ * immediately with the primary's history (clients catching up with the
+ * sequence number of their last message only receive the messages they
+ * missed).
+ * @author davidroussel
+ */
+public class Replica implements Runnable
+{
+	/**
+	 * Period (in ms) of acknowledgements
+	 */
+	public final static int ACKPERIOD = 100;
+
+	/**
+	 * Default time (in ms) without news from the primary before failing over
+	 */
+	public final static int DEFAULTFAILOVER = 3 * Replication.HEARTBEATPERIOD;
+
+	/**
+	 * Delay (in ms) between two connections attempts to the primary
+	 */
+	public final static int RECONNECTDELAY = 500;
+
+	/**
+	 * The standby server
+	 */
+	private final ChatServer server;
+
+	/**
+	 * The primary's replication listener
+	 */
+	private final Listener primary;
+
+	/**
+	 * Time (in ms) without news from the primary before failing over
+	 */
+	private final int failover;
+
+	/**
+	 * Sequence number of the last applied message
+	 */
+	private volatile long applied;
+
+	/**
+	 * Number of applied messages
+	 */
+	private long count;
+
+	/**
+	 * Time (in ms) of the last record received from the primary
+	 */
+	private long lastContact;
+
+	/**
+	 * Logger
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructor
+	 * @param server the standby server (which should not run until the
+	 * primary fails)
+	 * @param primary the primary's replication listener
+	 * @param failover time (in ms) without news from the primary before
+	 * failing over
+	 * @param parentLogger parent logger
+	 */
+	public Replica(ChatServer server,
+	               Listener primary,
+	               int failover,
+	               Logger parentLogger)
+	{
+		this.server = server;
+		this.primary = primary;
+		this.failover = Math.max(failover, Replication.HEARTBEATPERIOD);
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		applied = server.getLastSequence();
+		count = 0;
+		lastContact = System.currentTimeMillis();
+	}
+
+	/**
+	 * Replication loop: receives and applies the primary's messages,
+	 * reconnecting when the connection is lost, until nothing has been
+	 * received from the primary during the failover timeout
+	 */
+	@Override
+	public void run()
+	{
+		logger.info("Replica: standby of " + primary + " from message "
+		    + applied);
+		lastContact = System.currentTimeMillis();
+		while (System.currentTimeMillis() - lastContact < failover)
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(primary.getSocketAddress(), failover);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(failover);
+				replicate(socket);
+			}
+			catch (SocketTimeoutException e)
+			{
+				logger.warning("Replica: no news from primary " + primary);
+			}
+			catch (EOFException e)
+			{
+				logger.warning("Replica: primary " + primary
+				    + " closed the connection");
+			}
+			catch (IOException e)
+			{
+				logger.fine("Replica: primary " + primary + ": "
+				    + e.getLocalizedMessage());
+			}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (IOException e)
+				{
+					// nothing more to do
+				}
+			}
+			try
+			{
+				Thread.sleep(RECONNECTDELAY);
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+		}
+		logger.info("Replica: failing over after "
+		    + (System.currentTimeMillis() - lastContact)
+		    + " ms without primary: " + this);
+	}
+
+	/**
+	 * Receives and applies the primary's messages until the connection is
+	 * lost
+	 * @param socket the socket connected to the primary
+	 * @throws IOException if the connection is lost
+	 */
+	private void replicate(Socket socket) throws IOException
+	{
+		DataInputStream in = new DataInputStream(
+		    new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out =
+		    new DataOutputStream(socket.getOutputStream());
+		out.writeLong(applied);
+		out.flush();
+		lastContact = System.currentTimeMillis();
+		logger.info("Replica: connected to primary " + primary
+		    + " from message " + applied);
+
+		Thread acknowledger = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				acknowledge(out);
+			}
+		}, "Replica-acks");
+		acknowledger.setDaemon(true);
+		acknowledger.start();
+		try
+		{
+			while (true)
+			{
+				byte type = in.readByte();
+				in.readLong(); // sending time (primary's clock)
+				lastContact = System.currentTimeMillis();
+				if (type == Replication.HEARTBEAT)
+				{
+					continue;
+				}
+				if (type != Replication.MESSAGE)
+				{
+					throw new StreamCorruptedException("unknown record type "
+					    + type);
+				}
+				int length = in.readInt();
+				if ((length < 0) || (length > BinaryCodec.MAXLENGTH))
+				{
+					throw new StreamCorruptedException(
+					    "invalid message length " + length);
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				Frame frame = new Frame(BinaryCodec.INSTANCE.decode(bytes),
+				                        bytes);
+				long sequence = frame.getSequence();
+				if (sequence <= applied)
+				{
+					continue;
+				}
+				if (sequence != applied + 1)
+				{
+					logger.warning("Replica: messages " + (applied + 1)
+					    + " to " + (sequence - 1) + " missing");
+				}
+				server.replicate(frame);
+				applied = sequence;
+				count++;
+			}
+		}
+		finally
+		{
+			acknowledger.interrupt();
+		}
+	}
+
+	/**
+	 * Acknowledgements loop: sends the sequence number of the last applied
+	 * message every {@link #ACKPERIOD} ms (when it changed) until the
+	 * connection is lost
+	 * @param out the stream to the primary
+	 */
+	private void acknowledge(DataOutputStream out)
+	{
+		long acknowledged = -1;
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				long sequence = applied;
+				if (sequence != acknowledged)
+				{
+					out.writeLong(sequence);
+					out.flush();
+					acknowledged = sequence;
+				}
+				Thread.sleep(ACKPERIOD);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.fine("Replica: unable to acknowledge: "
+			    + e.getLocalizedMessage());
+		}
+		catch (InterruptedException e)
+		{
+			// connection lost
+		}
+	}
+
+	/**
+	 * Replica string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String(count + " messages applied, last message "
+		    + applied);
+	}
+}
@@ -0,0 +1,575 @@
+package chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import chat.codec.BinaryCodec;
+import logger.LoggerFactory;
+
+/**
+ * Replication of a primary server's history to hot standby servers (see
+ * {@link Replica}).
+ * A standby connects to the primary's replication listener and sends the
+ * sequence number of the last message of its history. The primary then
+ * streams the messages following this sequence number: first the ones
+ * already in its history (or log), then the messages appended since the
+ * standby connected, in sequence order. Messages are sent with the binary
+ * codec (with their sequence number) and heartbeats are sent when there is
+ * nothing to replicate so that standbys can detect the primary's failure.
+ * Standbys acknowledge the messages they applied asynchronously (the
+ * primary never waits for them) and the replication lag of each standby is
+ * measured from these acknowledgements: messages appended but not yet
+ * acknowledged and time elapsed since the oldest of them has been appended.
+ * Messages are only queued to each standby's bounded queue when they are
+ * appended: a standby whose queue is full (or which does not acknowledge
+ * its messages anymore) is disconnected, it then reconnects and resumes
+ * from its last message.
+ * @author davidroussel
+ */
+public class Replication implements Closeable
+{
+	/**
+	 * Message record: the time it has been sent followed by the message
+	 * encoded with the binary codec
+	 */
+	final static byte MESSAGE = 1;
+
+	/**
+	 * Heartbeat record: the time it has been sent
+	 */
+	final static byte HEARTBEAT = 2;
+
+	/**
+	 * Period (in ms) of heartbeats when there is nothing to replicate
+	 */
+	public final static int HEARTBEATPERIOD = 1000;
+
+	/**
+	 * Maximum number of messages queued to a standby before it is
+	 * disconnected
+	 */
+	public final static int QUEUESIZE = 65536;
+
+	/**
+	 * The primary server
+	 */
+	private final ChatServer server;
+
+	/**
+	 * Server socket accepting standbys' connections
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Connected standbys
+	 */
+	private final Set<Standby> standbys;
+
+	/**
+	 * Sequence number of the last appended message (guarded by this
+	 * replication)
+	 */
+	private long lastSequence;
+
+	/**
+	 * Logger
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructor: binds the replication listener (standbys are only
+	 * accepted once {@link #start()} has been called)
+	 * @param server the primary server
+	 * @param listener the listener accepting standbys' connections
+	 * @param parentLogger parent logger
+	 * @throws IOException if the replication listener could not be bound
+	 */
+	public Replication(ChatServer server,
+	                   Listener listener,
+	                   Logger parentLogger) throws IOException
+	{
+		this.server = server;
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+		serverSocket = listener.open(false);
+		standbys = new CopyOnWriteArraySet<Standby>();
+		lastSequence = 0;
+	}
+
+	/**
+	 * Starts accepting standbys' connections
+	 */
+	public void start()
+	{
+		synchronized (this)
+		{
+			lastSequence = server.getLastSequence();
+		}
+		Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		}, "Replication-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("Replication: listening on "
+		    + serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * Stops the replication: closes the replication listener and
+	 * disconnects the standbys once they have been sent the queued messages
+	 * (waiting at most two heartbeat periods)
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("Replication: unable to close listener");
+			logger.warning(e.getLocalizedMessage());
+		}
+		for (Standby standby : standbys)
+		{
+			standby.finish();
+		}
+		long deadline = System.currentTimeMillis() + 2 * HEARTBEATPERIOD;
+		while (!standbys.isEmpty() && (System.currentTimeMillis() < deadline))
+		{
+			try
+			{
+				Thread.sleep(HEARTBEATPERIOD / 20);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Acceptor loop: accepts standbys' connections until the replication
+	 * listener is closed
+	 */
+	private void accept()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				Thread sender = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(socket);
+					}
+				}, "Replication-" + socket.getRemoteSocketAddress());
+				sender.setDaemon(true);
+				sender.start();
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+				{
+					logger.warning("Replication: accept failed");
+					logger.warning(e.getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves a standby (in the calling thread) until it is disconnected
+	 * @param socket the standby's socket
+	 */
+	private void serve(Socket socket)
+	{
+		Standby standby = null;
+		try
+		{
+			socket.setTcpNoDelay(true);
+			standby = new Standby(socket);
+			standby.run();
+		}
+		catch (IOException e)
+		{
+			// a disconnected standby has already been logged
+			if ((standby == null) || !standby.closed)
+			{
+				logger.warning("Replication: standby "
+				    + socket.getRemoteSocketAddress() + " failed");
+				logger.warning(e.getLocalizedMessage());
+			}
+		}
+		finally
+		{
+			if (standby != null)
+			{
+				standbys.remove(standby);
+			}
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("Replication: unable to close standby socket");
+				logger.warning(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Queues a message appended to the primary's history to all standbys
+	 * (should be called in sequence order, while the primary serializes its
+	 * appends)
+	 * @param frame the appended frame (with its sequence number)
+	 */
+	public synchronized void append(Frame frame)
+	{
+		lastSequence = frame.getSequence();
+		for (Standby standby : standbys)
+		{
+			standby.send(frame);
+		}
+	}
+
+	/**
+	 * Registers a standby: it will receive the messages appended from now
+	 * on
+	 * @param standby the standby to register
+	 * @return the sequence number of the last message appended before the
+	 * standby has been registered (the standby should be sent the previous
+	 * messages from the history)
+	 */
+	private synchronized long register(Standby standby)
+	{
+		standbys.add(standby);
+		return lastSequence;
+	}
+
+	/**
+	 * Sequence number of the last appended message
+	 * @return the sequence number of the last appended message
+	 */
+	private synchronized long getLastSequence()
+	{
+		return lastSequence;
+	}
+
+	/**
+	 * Replication string representation (for metrics): lag of each standby
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("replication: "
+		    + standbys.size() + " standbys");
+		for (Standby standby : standbys)
+		{
+			sb.append(", ");
+			sb.append(standby);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Connection to a standby: messages are sent by the thread serving the
+	 * standby and acknowledgements are read by the standby's own thread
+	 */
+	private class Standby
+	{
+		/**
+		 * The standby's socket
+		 */
+		private final Socket socket;
+
+		/**
+		 * Acknowledgements received from the standby
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * Records sent to the standby
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * Messages appended since the standby has been registered, waiting
+		 * to be sent
+		 */
+		private final BlockingQueue<Frame> queue;
+
+		/**
+		 * Appended and not yet acknowledged messages (in sequence order):
+		 * sequence number and appending time (in ms) of each message
+		 * (guarded by itself)
+		 */
+		private final ArrayDeque<long[]> pending;
+
+		/**
+		 * Sequence number of the last message acknowledged by the standby
+		 */
+		private volatile long acknowledged;
+
+		/**
+		 * Indicates the standby should be disconnected once the queued
+		 * messages have been sent
+		 */
+		private volatile boolean finished;
+
+		/**
+		 * Indicates the standby has been disconnected (its queue
+		 * overflowed)
+		 */
+		private volatile boolean closed;
+
+		/**
+		 * Constructor
+		 * @param socket the standby's socket
+		 * @throws IOException if the socket's streams could not be obtained
+		 */
+		private Standby(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			in = new DataInputStream(
+			    new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(
+			    new BufferedOutputStream(socket.getOutputStream()));
+			queue = new ArrayBlockingQueue<Frame>(QUEUESIZE);
+			pending = new ArrayDeque<long[]>();
+			acknowledged = 0;
+			finished = false;
+			closed = false;
+		}
+
+		/**
+		 * Sends the history following the standby's last message, then the
+		 * appended messages (or heartbeats) until the standby is
+		 * disconnected
+		 * @throws IOException if the standby could not be written
+		 */
+		private void run() throws IOException
+		{
+			long since = in.readLong();
+			acknowledged = since;
+			long until = register(this);
+			logger.info("Replication: standby "
+			    + socket.getRemoteSocketAddress() + " from message "
+			    + since + " (catching up to " + until + ")");
+			Thread reader = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					acknowledgements();
+				}
+			}, "Replication-acks-" + socket.getRemoteSocketAddress());
+			reader.setDaemon(true);
+			reader.start();
+
+			long expected = since + 1;
+			for (Iterator<Frame> it = server.messages(since); it.hasNext();)
+			{
+				Frame frame = it.next();
+				if (frame.getSequence() > until)
+				{
+					break;
+				}
+				if (frame.getSequence() != expected)
+				{
+					logger.warning("Replication: messages " + expected + " to "
+					    + (frame.getSequence() - 1)
+					    + " are no longer available");
+				}
+				write(frame);
+				expected = frame.getSequence() + 1;
+			}
+			out.flush();
+
+			while (!closed)
+			{
+				if (finished && queue.isEmpty())
+				{
+					out.flush();
+					return;
+				}
+				Frame frame = null;
+				try
+				{
+					frame = queue.poll(HEARTBEATPERIOD, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				if (frame != null)
+				{
+					write(frame);
+				}
+				else if (!finished)
+				{
+					out.writeByte(HEARTBEAT);
+					out.writeLong(System.currentTimeMillis());
+				}
+				if (queue.isEmpty())
+				{
+					out.flush();
+				}
+			}
+		}
+
+		/**
+		 * Writes a message record
+		 * @param frame the frame to write
+		 * @throws IOException if the frame could not be written
+		 */
+		private void write(Frame frame) throws IOException
+		{
+			byte[] bytes = frame.bytes(BinaryCodec.INSTANCE);
+			out.writeByte(MESSAGE);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		/**
+		 * Acknowledgements reader loop: updates the last acknowledged
+		 * message until the standby is disconnected
+		 */
+		private void acknowledgements()
+		{
+			try
+			{
+				while (true)
+				{
+					long sequence = in.readLong();
+					acknowledged = sequence;
+					synchronized (pending)
+					{
+						while (!pending.isEmpty()
+						    && (pending.peek()[0] <= sequence))
+						{
+							pending.poll();
+						}
+					}
+				}
+			}
+			catch (EOFException e)
+			{
+				logger.info("Replication: standby "
+				    + socket.getRemoteSocketAddress() + " disconnected");
+			}
+			catch (IOException e)
+			{
+				if (!socket.isClosed())
+				{
+					logger.warning("Replication: unable to read standby "
+					    + socket.getRemoteSocketAddress());
+					logger.warning(e.getLocalizedMessage());
+				}
+			}
+			close();
+		}
+
+		/**
+		 * Queues an appended message (the standby is disconnected if its
+		 * queue is full or if too many messages are not acknowledged)
+		 * @param frame the appended frame
+		 */
+		private void send(Frame frame)
+		{
+			if (closed)
+			{
+				return;
+			}
+			boolean overflow;
+			synchronized (pending)
+			{
+				pending.add(new long[] {frame.getSequence(),
+				                        System.currentTimeMillis()});
+				overflow = pending.size() > QUEUESIZE;
+			}
+			if (overflow || !queue.offer(frame))
+			{
+				logger.warning("Replication: standby "
+				    + socket.getRemoteSocketAddress()
+				    + " overflowed, disconnecting");
+				close();
+			}
+		}
+
+		/**
+		 * Disconnects the standby once the queued messages have been sent
+		 */
+		private void finish()
+		{
+			finished = true;
+		}
+
+		/**
+		 * Disconnects the standby
+		 */
+		private void close()
+		{
+			closed = true;
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("Replication: unable to close standby socket");
+				logger.warning(e.getLocalizedMessage());
+			}
+		}
+
+		/**
+		 * Standby string representation: its replication lag in messages
+		 * and in ms (age of the oldest unacknowledged message)
+		 */
+		@Override
+		public String toString()
+		{
+			long oldest = 0;
+			synchronized (pending)
+			{
+				if (!pending.isEmpty())
+				{
+					oldest = pending.peek()[1];
+				}
+			}
+			long lastAppended = getLastSequence();
+			return new String("standby " + socket.getRemoteSocketAddress()
+			    + " acknowledged " + acknowledged + ", lag "
+			    + Math.max(lastAppended - acknowledged, 0) + " messages / "
+			    + (oldest > 0 ? System.currentTimeMillis() - oldest : 0)
+			    + " ms");
+		}
+	}
+}
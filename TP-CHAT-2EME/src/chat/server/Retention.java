@@ -0,0 +1,110 @@
+package chat.server;
+
+/**
+ * Retention settings of the {@link MessageLog}, applied periodically in the
+ * background:
+ * <ul>
+ * 	<li>sealed segments whose messages are all older than a maximum age are
+ * 	deleted</li>
+ * 	<li>the oldest sealed segments are deleted while the log exceeds a
+ * 	maximum size</li>
+ * 	<li>system notices (messages without author such as "logged out" or
+ * 	"kick" notices) older than a notice age are compacted away from sealed
+ * 	segments</li>
+ * </ul>
+ * The active segment (the one messages are appended to) is never deleted
+ * nor compacted.
+ * @author davidroussel
+ */
+public class Retention
+{
+	/**
+	 * No retention: the log keeps all messages
+	 */
+	public final static Retention NONE = new Retention(0, 0, 0);
+
+	/**
+	 * Maximum age (in s) of logged messages (0 for no limit)
+	 */
+	private final long maxAge;
+
+	/**
+	 * Maximum size (in bytes) of the log (0 for no limit)
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Age (in s) after which system notices are compacted away (0 to keep
+	 * notices)
+	 */
+	private final long noticeAge;
+
+	/**
+	 * Constructor
+	 * @param maxAge maximum age (in s) of logged messages (0 or less for no
+	 * limit)
+	 * @param maxBytes maximum size (in bytes) of the log (0 or less for no
+	 * limit)
+	 * @param noticeAge age (in s) after which system notices are compacted
+	 * away (0 or less to keep notices)
+	 */
+	public Retention(long maxAge, long maxBytes, long noticeAge)
+	{
+		this.maxAge = Math.max(maxAge, 0);
+		this.maxBytes = Math.max(maxBytes, 0);
+		this.noticeAge = Math.max(noticeAge, 0);
+	}
+
+	/**
+	 * Maximum age accessor
+	 * @return the maximum age (in s) of logged messages (0 for no limit)
+	 */
+	public long getMaxAge()
+	{
+		return maxAge;
+	}
+
+	/**
+	 * Maximum size accessor
+	 * @return the maximum size (in bytes) of the log (0 for no limit)
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Notice age accessor
+	 * @return the age (in s) after which system notices are compacted away
+	 * (0 to keep notices)
+	 */
+	public long getNoticeAge()
+	{
+		return noticeAge;
+	}
+
+	/**
+	 * Indicates some messages might be removed from the log
+	 * @return true if any limit is set
+	 */
+	public boolean isEnabled()
+	{
+		return (maxAge > 0) || (maxBytes > 0) || (noticeAge > 0);
+	}
+
+	/**
+	 * Retention string representation
+	 */
+	@Override
+	public String toString()
+	{
+		if (!isEnabled())
+		{
+			return new String("no retention");
+		}
+		return new String("retention"
+		    + (maxAge > 0 ? " " + maxAge + " s" : "")
+		    + (maxBytes > 0 ? " " + maxBytes + " bytes" : "")
+		    + (noticeAge > 0 ? " notices " + noticeAge + " s" : ""));
+	}
+}
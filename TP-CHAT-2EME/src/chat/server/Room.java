@@ -0,0 +1,262 @@
+package chat.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+
+import models.Message;
+
+/**
+ * Chat room of a {@link ChatServer}: messages sent to a room are only
+ * broadcast to the room's members (and subscribers).
+ * Each room has its own members registry, its own history and its own lock
+ * so that traffic in a room never contends with traffic in other rooms:
+ * <ul>
+ * 	<li>a message is added to the room's history and queued to the room's
+ * 	members while holding the room's lock, so all members receive the
+ * 	room's messages in the same order</li>
+ * 	<li>a new member gets the room's history and is registered while
+ * 	holding the room's lock, so it never misses nor receives twice a
+ * 	message published concurrently</li>
+ * 	<li>once its last member left, a room is closed and can't be joined
+ * 	nor sent to anymore (the server then creates a new room with the same
+ * 	name)</li>
+ * </ul>
+ * A room's name is a topic (see {@link SubscriptionTrie}): messages sent to
+ * a room are also queued to the clients subscribed to a pattern matching
+ * this topic (members being subscribed or not receive a message once).
+ * Rooms' notices (members joining or leaving) are only sent to members.
+ * Messages are only queued to the members' outbound queues, so the lock is
+ * never held during socket I/O.
+ * Rooms' frames have no sequence number (0): sequence numbers are those of
+ * the server's history, which clients use to catch up.
+ * @author davidroussel
+ */
+public class Room
+{
+	/**
+	 * Name of this room
+	 */
+	private final String name;
+
+	/**
+	 * Members of this room
+	 */
+	private final ClientRegistry members;
+
+	/**
+	 * Last messages sent to this room, oldest first (only accessed while
+	 * holding the lock)
+	 */
+	private final Deque<Frame> history;
+
+	/**
+	 * Maximum number of messages kept in this room's history
+	 */
+	private final int maxHistory;
+
+	/**
+	 * Subscriptions of the server's clients
+	 */
+	private final SubscriptionTrie subscriptions;
+
+	/**
+	 * Lock ordering the messages, joins and leaves of this room
+	 */
+	private final Object lock;
+
+	/**
+	 * Indicates this room has been closed (its last member left)
+	 */
+	private boolean closed;
+
+	/**
+	 * Constructor
+	 * @param name name of the room
+	 * @param history maximum number of messages kept in the room's history
+	 * (the history grows up to this size as messages are sent)
+	 * @param subscriptions subscriptions of the server's clients to topics
+	 */
+	public Room(String name, int history, SubscriptionTrie subscriptions)
+	{
+		this.name = name;
+		members = new ClientRegistry();
+		maxHistory = Math.max(history, 0);
+		this.history = new ArrayDeque<Frame>();
+		this.subscriptions = subscriptions;
+		lock = new Object();
+		closed = false;
+	}
+
+	/**
+	 * Name accessor
+	 * @return the name of this room
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Number of members accessor
+	 * @return the number of members of this room
+	 */
+	public int size()
+	{
+		return members.size();
+	}
+
+	/**
+	 * Indicates a client is a member of this room
+	 * @param client the client
+	 * @return true if the client is a member of this room
+	 */
+	public boolean contains(InputOutputClient client)
+	{
+		return members.get(client.getName()) == client;
+	}
+
+	/**
+	 * Adds a member to this room: the room's history is sent to the new
+	 * member and the other members are notified
+	 * @param client the new member
+	 * @return true if the client is a member of this room, false if the
+	 * room has been closed in the meantime (it should be joined again from
+	 * the server)
+	 */
+	public boolean join(InputOutputClient client)
+	{
+		synchronized (lock)
+		{
+			if (closed)
+			{
+				return false;
+			}
+			if (contains(client))
+			{
+				return true;
+			}
+			for (Frame frame : history)
+			{
+				client.send(frame);
+			}
+			members.claim(client);
+			publish(client.getName() + " joined");
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a member from this room: the other members are notified and
+	 * the room is closed if this was its last member
+	 * @param client the member leaving this room
+	 * @return true if the room has been closed (the client was its last
+	 * member)
+	 */
+	public boolean leave(InputOutputClient client)
+	{
+		synchronized (lock)
+		{
+			if (members.remove(client))
+			{
+				publish(client.getName() + " left");
+			}
+			closed = closed || (members.size() == 0);
+			return closed;
+		}
+	}
+
+	/**
+	 * Sends a message to this room: the message is added to the room's
+	 * history and queued to all the room's members and subscribers
+	 * @param content the message's content
+	 * @param author the message's author
+	 * @return the frame sent to the members or null if the room has been
+	 * closed in the meantime (the message should be sent again from the
+	 * server)
+	 */
+	public Frame send(String content, String author)
+	{
+		Frame frame = new Frame(new Message(null, content, author, name));
+		synchronized (lock)
+		{
+			if (closed)
+			{
+				return null;
+			}
+			record(frame);
+			Set<InputOutputClient> subscribers = subscriptions.match(name);
+			for (InputOutputClient member : members)
+			{
+				subscribers.remove(member);
+				if (member.isReady())
+				{
+					member.send(frame);
+				}
+			}
+			for (InputOutputClient subscriber : subscribers)
+			{
+				if (subscriber.isReady())
+				{
+					subscriber.send(frame);
+				}
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Publishes a room's notice (should be called while holding the lock)
+	 * @param content the notice's content
+	 */
+	private void publish(String content)
+	{
+		Frame frame = new Frame(new Message(null, content, null, name));
+		record(frame);
+		broadcast(frame);
+	}
+
+	/**
+	 * Adds a frame to the room's history (should be called while holding the
+	 * lock), dropping the oldest frame beyond {@link #maxHistory} frames.
+	 * The frame is not given a sequence number
+	 * @param frame the frame to add
+	 */
+	private void record(Frame frame)
+	{
+		if (maxHistory == 0)
+		{
+			return;
+		}
+		if (history.size() == maxHistory)
+		{
+			history.removeFirst();
+		}
+		history.addLast(frame);
+	}
+
+	/**
+	 * Queues a frame to all the room's members (should be called while
+	 * holding the lock)
+	 * @param frame the frame to queue
+	 */
+	private void broadcast(Frame frame)
+	{
+		for (InputOutputClient member : members)
+		{
+			if (member.isReady())
+			{
+				member.send(frame);
+			}
+		}
+	}
+
+	/**
+	 * Room string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String(name + " (" + members.size() + " members)");
+	}
+}
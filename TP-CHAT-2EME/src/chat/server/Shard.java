@@ -0,0 +1,124 @@
+package chat.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shard of a blocking {@link ChatServer}: the executor running the
+ * handshakes, handlers and writers of the clients assigned to this shard by
+ * the server's acceptors, along with load counters of this shard.
+ * (shards of a {@link NioChatServer} are its {@link EventLoop}s)
+ * @author davidroussel
+ */
+class Shard
+{
+	/**
+	 * This shard index among all server's shards
+	 */
+	private final int index;
+
+	/**
+	 * Executor running this shard's clients tasks
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Number of connections assigned to this shard
+	 */
+	private final AtomicLong accepted;
+
+	/**
+	 * Number of connections of this shard which are not terminated yet
+	 */
+	private final AtomicInteger connections;
+
+	/**
+	 * Constructor
+	 * @param index index of this shard among all server's shards
+	 * @param executor executor running this shard's clients tasks
+	 */
+	Shard(int index, ExecutorService executor)
+	{
+		this.index = index;
+		this.executor = executor;
+		accepted = new AtomicLong(0);
+		connections = new AtomicInteger(0);
+	}
+
+	/**
+	 * Assigns a new connection to this shard
+	 * @param connection the task processing the connection until it
+	 * terminates (handshake then client handler)
+	 */
+	void assign(final Runnable connection)
+	{
+		accepted.incrementAndGet();
+		connections.incrementAndGet();
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					connection.run();
+				}
+				finally
+				{
+					connections.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs another task of this shard's clients (such as a client's writer)
+	 * @param task the task to run
+	 */
+	void execute(Runnable task)
+	{
+		executor.execute(task);
+	}
+
+	/**
+	 * Shuts down this shard's executor and waits for all its tasks to
+	 * terminate
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void terminate() throws InterruptedException
+	{
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Number of accepted connections accessor
+	 * @return the number of connections assigned to this shard
+	 */
+	long getAccepted()
+	{
+		return accepted.get();
+	}
+
+	/**
+	 * Number of current connections accessor
+	 * @return the number of connections of this shard which are not
+	 * terminated yet
+	 */
+	int getConnections()
+	{
+		return connections.get();
+	}
+
+	/**
+	 * Shard load string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String("#" + index + ": " + connections.get() + "/"
+		    + accepted.get());
+	}
+}
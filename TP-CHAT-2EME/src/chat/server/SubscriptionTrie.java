@@ -0,0 +1,286 @@
+package chat.server;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import chat.Vocabulary;
+
+/**
+ * Subscriptions of clients to hierarchical topics (room names made of
+ * levels separated by dots such as "ops.alerts.db") stored in a trie
+ * indexed by levels. A subscription pattern may contain wildcards levels:
+ * <ul>
+ * 	<li>"*" matches exactly one level ("ops.*" matches "ops.alerts" but
+ * 	neither "ops" nor "ops.alerts.db")</li>
+ * 	<li>"#" (last level only) matches zero or more levels ("ops.#" matches
+ * 	"ops", "ops.alerts" and "ops.alerts.db")</li>
+ * </ul>
+ * Matching a topic only walks the trie nodes of the topic's levels (and of
+ * the wildcards found on the way), so its cost depends on the topic's depth
+ * and not on the number of subscriptions.
+ * Matching does not lock (nodes are concurrent maps and sets) while
+ * subscribing and unsubscribing are serialized by the trie's lock (so that
+ * unused nodes can be pruned).
+ * @author davidroussel
+ */
+public class SubscriptionTrie
+{
+	/**
+	 * Separator of topics levels
+	 */
+	public final static String SEPARATOR = ".";
+
+	/**
+	 * Wildcard matching exactly one level
+	 */
+	public final static String ONELEVEL = "*";
+
+	/**
+	 * Wildcard matching zero or more levels (last level of a pattern only)
+	 */
+	public final static String MULTILEVEL = "#";
+
+	/**
+	 * Root node (empty pattern)
+	 */
+	private final Node root;
+
+	/**
+	 * Number of subscriptions
+	 */
+	private int size;
+
+	/**
+	 * Constructor of an empty trie
+	 */
+	public SubscriptionTrie()
+	{
+		root = new Node();
+		size = 0;
+	}
+
+	/**
+	 * Indicates a name is a valid topic: non empty levels separated by dots
+	 * without wildcards nor spaces
+	 * @param name the name to check
+	 * @return true if name is a valid topic
+	 */
+	public static boolean isTopic(String name)
+	{
+		return isPattern(name)
+		    && !name.contains(ONELEVEL) && !name.contains(MULTILEVEL);
+	}
+
+	/**
+	 * Indicates a name is a valid subscription pattern: non empty levels
+	 * separated by dots without spaces, wildcards being whole levels and
+	 * {@link #MULTILEVEL} being the last level (and not starting like the
+	 * rooms of direct messages)
+	 * @param name the name to check
+	 * @return true if name is a valid pattern
+	 */
+	public static boolean isPattern(String name)
+	{
+		if ((name == null) || name.isEmpty() || (name.indexOf(' ') >= 0)
+		    || name.startsWith(Vocabulary.directPrefix))
+		{
+			return false;
+		}
+		String[] levels = split(name);
+		for (int i = 0; i < levels.length; i++)
+		{
+			String level = levels[i];
+			if (level.isEmpty()
+			    || ((level.contains(ONELEVEL) || level.contains(MULTILEVEL))
+			        && (level.length() > 1))
+			    || (level.equals(MULTILEVEL) && (i < levels.length - 1)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Levels of a topic or pattern
+	 * @param name the topic or pattern
+	 * @return the levels of name
+	 */
+	private static String[] split(String name)
+	{
+		return name.split("\\.", -1);
+	}
+
+	/**
+	 * Subscribes a client to a pattern
+	 * @param pattern the pattern (see {@link #isPattern(String)})
+	 * @param client the subscribing client
+	 * @return true if the client has been subscribed, false if it was
+	 * already subscribed to this pattern
+	 */
+	public synchronized boolean subscribe(String pattern,
+	                                      InputOutputClient client)
+	{
+		Node node = root;
+		for (String level : split(pattern))
+		{
+			Node child = node.children.get(level);
+			if (child == null)
+			{
+				child = new Node();
+				node.children.put(level, child);
+			}
+			node = child;
+		}
+		boolean added = node.subscribers.add(client);
+		if (added)
+		{
+			size++;
+		}
+		return added;
+	}
+
+	/**
+	 * Unsubscribes a client from a pattern (nodes left without
+	 * subscriptions are pruned)
+	 * @param pattern the pattern
+	 * @param client the subscribed client
+	 * @return true if the client has been unsubscribed, false if it was not
+	 * subscribed to this pattern
+	 */
+	public synchronized boolean unsubscribe(String pattern,
+	                                        InputOutputClient client)
+	{
+		String[] levels = split(pattern);
+		Node[] path = new Node[levels.length + 1];
+		path[0] = root;
+		for (int i = 0; i < levels.length; i++)
+		{
+			path[i + 1] = path[i].children.get(levels[i]);
+			if (path[i + 1] == null)
+			{
+				return false;
+			}
+		}
+		if (!path[levels.length].subscribers.remove(client))
+		{
+			return false;
+		}
+		size--;
+		for (int i = levels.length; i > 0; i--)
+		{
+			if (!path[i].isEmpty())
+			{
+				break;
+			}
+			path[i - 1].children.remove(levels[i - 1], path[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Clients subscribed to patterns matching a topic
+	 * @param topic the topic
+	 * @return the set of clients subscribed to at least one pattern matching
+	 * topic (each client appears once)
+	 */
+	public Set<InputOutputClient> match(String topic)
+	{
+		Set<InputOutputClient> matched = new HashSet<InputOutputClient>();
+		if (!root.children.isEmpty())
+		{
+			match(root, split(topic), 0, matched);
+		}
+		return matched;
+	}
+
+	/**
+	 * Collects the subscribers of the patterns of a node's subtree matching
+	 * the remaining levels of a topic
+	 * @param node the node matching the first levels of the topic
+	 * @param levels the topic's levels
+	 * @param index index of the first level to match
+	 * @param matched the set of subscribers collected so far
+	 */
+	private static void match(Node node,
+	                          String[] levels,
+	                          int index,
+	                          Set<InputOutputClient> matched)
+	{
+		Node multi = node.children.get(MULTILEVEL);
+		if (multi != null)
+		{
+			matched.addAll(multi.subscribers);
+		}
+		if (index == levels.length)
+		{
+			matched.addAll(node.subscribers);
+			return;
+		}
+		Node exact = node.children.get(levels[index]);
+		if (exact != null)
+		{
+			match(exact, levels, index + 1, matched);
+		}
+		Node one = node.children.get(ONELEVEL);
+		if (one != null)
+		{
+			match(one, levels, index + 1, matched);
+		}
+	}
+
+	/**
+	 * Number of subscriptions
+	 * @return the number of (pattern, client) subscriptions
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Trie string representation
+	 */
+	@Override
+	public String toString()
+	{
+		return new String(size() + " subscriptions");
+	}
+
+	/**
+	 * Trie node: a pattern's level
+	 */
+	private static class Node
+	{
+		/**
+		 * Child nodes indexed by level (including wildcards levels)
+		 */
+		private final Map<String, Node> children;
+
+		/**
+		 * Clients subscribed to the pattern ending at this node
+		 */
+		private final Set<InputOutputClient> subscribers;
+
+		/**
+		 * Constructor of a node without children nor subscribers
+		 */
+		private Node()
+		{
+			children = new ConcurrentHashMap<String, Node>();
+			subscribers = new CopyOnWriteArraySet<InputOutputClient>();
+		}
+
+		/**
+		 * Indicates this node is useless
+		 * @return true if this node has no children nor subscribers
+		 */
+		private boolean isEmpty()
+		{
+			return children.isEmpty() && subscribers.isEmpty();
+		}
+	}
+}
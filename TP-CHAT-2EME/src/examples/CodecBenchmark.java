@@ -0,0 +1,223 @@
+package examples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import chat.codec.CodecType;
+import chat.codec.MessageCodec;
+import chat.codec.MessageReader;
+import models.Message;
+
+/**
+ * Size and throughput comparison of {@link Message}s wire formats:
+ * <ul>
+ * 	<li>a single {@link ObjectOutputStream} writing all messages (as the
+ * 	server used to do for each client)</li>
+ * 	<li>each {@link CodecType} (messages encoded independently of each
+ * 	other)</li>
+ * </ul>
+ * Usage: java examples.CodecBenchmark [number of messages]
+ * @author davidroussel
+ */
+public class CodecBenchmark
+{
+	/**
+	 * Default number of messages
+	 */
+	private final static int DEFAULTCOUNT = 100000;
+
+	/**
+	 * Number of warm up rounds before measuring
+	 */
+	private final static int WARMUP = 3;
+
+	/**
+	 * Generates messages with random authors and contents (of 10 to 200
+	 * characters). One message out of ten has no author (server's message)
+	 * @param count number of messages to generate
+	 * @return a list of random messages
+	 */
+	private static List<Message> generate(int count)
+	{
+		String[] authors = {"Zébulon", "Ténéphore", "alice", "bob", "Margoulin"};
+		String words = "Lorem ipsum dolor sit amet, consectetur adipiscing "
+		    + "elit, sed do eiusmod tempor incididunt ut labore et dolore "
+		    + "magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation "
+		    + "ullamco laboris nisi ut aliquip ex ea commodo consequat. Déjà vu";
+		Random rand = new Random(1394);
+		List<Message> messages = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int start = rand.nextInt(words.length() - 200);
+			String content = words.substring(start,
+			                                 start + 10 + rand.nextInt(190));
+			if ((i % 10) == 0)
+			{
+				messages.add(new Message(content));
+			}
+			else
+			{
+				messages.add(new Message(content,
+				    authors[rand.nextInt(authors.length)]));
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Writes all messages on a single object output stream
+	 * @param messages the messages to write
+	 * @return the resulting stream
+	 * @throws IOException if a message could not be written
+	 */
+	private static byte[] writeObjectStream(List<Message> messages)
+	    throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		for (Message m : messages)
+		{
+			oos.writeObject(m);
+		}
+		oos.flush();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads all messages from an object stream
+	 * @param stream the stream to read
+	 * @param count number of messages to read
+	 * @throws IOException if a message could not be read
+	 * @throws ClassNotFoundException if Message class could not be found
+	 */
+	private static void readObjectStream(byte[] stream, int count)
+	    throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream ois =
+		    new ObjectInputStream(new ByteArrayInputStream(stream));
+		for (int i = 0; i < count; i++)
+		{
+			ois.readObject();
+		}
+	}
+
+	/**
+	 * Encodes all messages independently with a codec
+	 * @param codec the codec to use
+	 * @param messages the messages to write
+	 * @return the resulting stream (header and all messages)
+	 * @throws IOException if a message could not be encoded
+	 */
+	private static byte[] writeCodecStream(MessageCodec codec,
+	                                       List<Message> messages)
+	    throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(codec.header());
+		for (Message m : messages)
+		{
+			out.write(codec.encode(m));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads all messages from a codec stream
+	 * @param codec the codec to use
+	 * @param stream the stream to read
+	 * @param count number of messages to read
+	 * @throws IOException if a message could not be decoded
+	 * @throws ClassNotFoundException if Message class could not be found
+	 */
+	private static void readCodecStream(MessageCodec codec,
+	                                    byte[] stream,
+	                                    int count)
+	    throws IOException, ClassNotFoundException
+	{
+		MessageReader reader =
+		    codec.newReader(new ByteArrayInputStream(stream));
+		for (int i = 0; i < count; i++)
+		{
+			reader.read();
+		}
+	}
+
+	/**
+	 * Prints a result line
+	 * @param name name of the format
+	 * @param size size of the stream
+	 * @param count number of messages
+	 * @param encodeNanos encoding time
+	 * @param decodeNanos decoding time
+	 */
+	private static void print(String name,
+	                          int size,
+	                          int count,
+	                          long encodeNanos,
+	                          long decodeNanos)
+	{
+		System.out.println(String.format("%-22s %10.1f %14.0f %14.0f",
+		                                 name,
+		                                 (double) size / count,
+		                                 count * 1e9 / encodeNanos,
+		                                 count * 1e9 / decodeNanos));
+	}
+
+	/**
+	 * Main program
+	 * @param args number of messages (optional)
+	 * @throws Exception if messages could not be encoded or decoded
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int count = DEFAULTCOUNT;
+		if (args.length > 0)
+		{
+			count = Integer.parseInt(args[0]);
+		}
+		List<Message> messages = generate(count);
+
+		System.out.println(String.format("%-22s %10s %14s %14s",
+		                                 "format",
+		                                 "bytes/msg",
+		                                 "encode msg/s",
+		                                 "decode msg/s"));
+
+		// Single object stream
+		byte[] stream = null;
+		long encode = 0;
+		long decode = 0;
+		for (int round = 0; round <= WARMUP; round++)
+		{
+			long start = System.nanoTime();
+			stream = writeObjectStream(messages);
+			long middle = System.nanoTime();
+			readObjectStream(stream, count);
+			encode = middle - start;
+			decode = System.nanoTime() - middle;
+		}
+		print("ObjectOutputStream", stream.length, count, encode, decode);
+
+		// Codecs
+		for (CodecType type : CodecType.values())
+		{
+			MessageCodec codec = type.getCodec();
+			for (int round = 0; round <= WARMUP; round++)
+			{
+				long start = System.nanoTime();
+				stream = writeCodecStream(codec, messages);
+				long middle = System.nanoTime();
+				readCodecStream(codec, stream, count);
+				encode = middle - start;
+				decode = System.nanoTime() - middle;
+			}
+			print(type.toString(), stream.length, count, encode, decode);
+		}
+	}
+}
@@ -15,6 +15,9 @@ import java.util.Vector;
  * <li>message's date</li>
  * <li>message's content</li>
  * <li>and eventual message's author</li>
+ * <li>and eventual name of the chat room the message has been sent to</li>
+ * <li>and eventual sequence number given by the server when the message is
+ * kept in its history (used to ask the server for newer messages only)</li>
  * </ul>
  * Messages are comparables so they can be compared with
  * {@link #compareTo(Message)}
@@ -94,6 +97,19 @@ public class Message implements Serializable, Comparable<Message>
 	 */
 	private String author;
 
+	/**
+	 * Name of the chat room the message has been sent to (null for messages
+	 * sent to all users, "@" followed by the recipient's name for direct
+	 * messages)
+	 */
+	private String room;
+
+	/**
+	 * Message sequence number in the server's history (0 if the message is
+	 * not kept in the server's history)
+	 */
+	private long sequence;
+
 	/**
 	 * Date format to use to print message date
 	 */
@@ -136,6 +152,34 @@ public class Message implements Serializable, Comparable<Message>
 		}
 		
 		this.author = author;
+		room = null;
+		sequence = 0;
+	}
+
+	/**
+	 * Constructor of a message sent to a chat room
+	 * @param date message receiving date
+	 * @param content message content
+	 * @param author message author (may be null on server's messages)
+	 * @param room name of the room the message is sent to (null for
+	 * messages sent to all users)
+	 */
+	public Message(Date date, String content, String author, String room)
+	{
+		this(date, content, author);
+		this.room = room;
+	}
+
+	/**
+	 * Copy constructor with a sequence number (messages are immutable so the
+	 * server copies a message when it is added to its history)
+	 * @param message the message to copy
+	 * @param sequence the message sequence number in the server's history
+	 */
+	public Message(Message message, long sequence)
+	{
+		this(message.date, message.content, message.author, message.room);
+		this.sequence = sequence;
 	}
 
 	/**
@@ -207,6 +251,36 @@ public class Message implements Serializable, Comparable<Message>
 		return author;
 	}
 
+	/**
+	 * Message room accessor
+	 * @return the name of the room the message has been sent to or null if
+	 * it has been sent to all users
+	 */
+	public String getRoom()
+	{
+		return room;
+	}
+
+	/**
+	 * Indicates if a message has been sent to a chat room
+	 * @return true if the message has been sent to a room, false if it has
+	 * been sent to all users
+	 */
+	public boolean hasRoom()
+	{
+		return room != null;
+	}
+
+	/**
+	 * Message sequence number accessor
+	 * @return the message sequence number in the server's history (0 if the
+	 * message is not kept in the server's history)
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
 	/**
 	 * Indicates if a message has an author
 	 * @return true if the messag has an author, false otherwise
@@ -240,6 +314,10 @@ public class Message implements Serializable, Comparable<Message>
 		{
 			hash = (prime * hash) + author.hashCode();
 		}
+		if (room != null)
+		{
+			hash = (prime * hash) + room.hashCode();
+		}
 		return hash;
 	}
 
@@ -247,7 +325,7 @@ public class Message implements Serializable, Comparable<Message>
 	 * Message comparison with another object
 	 * @param the other object to compare
 	 * @return true if the other object is also a Message and has the same date,
-	 * content and author
+	 * content, author and room
 	 */
 	@Override
 	public boolean equals(Object obj)
@@ -266,7 +344,8 @@ public class Message implements Serializable, Comparable<Message>
 		{
 			Message m = (Message) obj;
 
-			if (date.equals(m.date))
+			if (date.equals(m.date)
+			    && ((room != null) ? room.equals(m.room) : m.room == null))
 			{
 				if (content.equals(m.content))
 				{
@@ -288,7 +367,9 @@ public class Message implements Serializable, Comparable<Message>
 	/**
 	 * Message string representation
 	 * @return a new string formatted as:
-	 * "[yyyy/mm/dd HH:MM:SS] author > message content"
+	 * "[yyyy/mm/dd HH:MM:SS] author > message content" (or
+	 * "[yyyy/mm/dd HH:MM:SS] (room) author > message content" for messages
+	 * sent to a room)
 	 */
 	@Override
 	public String toString()
@@ -297,6 +378,12 @@ public class Message implements Serializable, Comparable<Message>
 
 		sb.append(dateFormat.format(date));
 		sb.append("] ");
+		if (room != null)
+		{
+			sb.append("(");
+			sb.append(room);
+			sb.append(") ");
+		}
 		if (author != null)
 		{
 			sb.append(author);
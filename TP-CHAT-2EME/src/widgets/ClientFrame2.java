@@ -8,7 +8,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
 import java.io.OptionalDataException;
 import java.io.StreamCorruptedException;
 import java.util.ArrayList;
@@ -39,6 +38,9 @@ import javax.swing.text.DefaultCaret;
 
 import chat.Failure;
 import chat.Vocabulary;
+import chat.codec.CodecType;
+import chat.codec.MessageCodec;
+import chat.codec.MessageReader;
 import models.AuthorListFilter;
 import models.Message;
 import models.Message.MessageOrder;
@@ -74,11 +76,21 @@ public class ClientFrame2 extends AbstractClientFrame
 	private List<Message> messages;
 
 	/**
-	 * Object input stream. Used to read {@link Message}s on the
+	 * Message input stream. Used to read {@link Message}s on the
 	 * {@link AbstractClientFrame#inPipe} and display these messages in the
-	 * {@link AbstractClientFrame#document}
+	 * {@link AbstractClientFrame#document}.
+	 * Objects kept by this reader's handle table are released each time the
+	 * client resets the stream (according to its
+	 * {@link chat.codec.ResetBudget}) so memory stays bounded
 	 */
-	private ObjectInputStream inOIS;
+	private MessageReader inOIS;
+
+	/**
+	 * Codec used to decode {@link Message}s on the
+	 * {@link AbstractClientFrame#inPipe} (should be the same as the one used
+	 * by the client to encode messages)
+	 */
+	private MessageCodec codec;
 
 	/**
 	 * Special ListModel containig only unique names and associated to the users
@@ -196,6 +208,7 @@ public class ClientFrame2 extends AbstractClientFrame
 		messages = new Vector<Message>();
 
 		inOIS = null;
+		codec = CodecType.SERIAL.getCodec();
 
 		filtering = false;
 
@@ -304,6 +317,18 @@ public class ClientFrame2 extends AbstractClientFrame
 		authorFilter = null; // <-- TODO replace null
 	}
 
+	/**
+	 * {@link #codec} setter (should be called before running this frame)
+	 * @param codec the codec used to decode messages
+	 */
+	public void setCodec(MessageCodec codec)
+	{
+		if (codec != null)
+		{
+			this.codec = codec;
+		}
+	}
+
 	/**
 	 * Client frame's thread run loop: read {@link Message} object with {@link #inOIS} and
 	 * @see java.lang.Runnable#run()
@@ -311,11 +336,11 @@ public class ClientFrame2 extends AbstractClientFrame
 	@Override
 	public void run()
 	{
-		// DONE create an ObjectInputStream on the #inPipe to be able to read
-		// Message objects
+		// DONE create a MessageReader (according to codec) on the #inPipe to
+		// be able to read Message objects
 		try
 		{
-			inOIS = new ObjectInputStream(inPipe);
+			inOIS = codec.newReader(inPipe);
 		}
 		catch (StreamCorruptedException sce)
 		{
@@ -339,7 +364,7 @@ public class ClientFrame2 extends AbstractClientFrame
 			// DONE Read message from inOIS
 			try
 			{
-				message = (Message)inOIS.readObject();
+				message = inOIS.read();
 			}
 			catch (ClassNotFoundException | InvalidClassException |
 			       StreamCorruptedException | OptionalDataException e)